@@ -0,0 +1,147 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of encrypting and decrypting a part through
+ * {@link BulkCipherInputStream} and through {@link CipherInputStream}, for the read sizes of the
+ * upload and download paths. Each invocation transforms {@link #PART_SIZE} bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CipherStreamBenchmark
+{
+  static final int PART_SIZE = 16 * 1024 * 1024;
+
+  @Param({"AES/CBC/PKCS5Padding", "AES/CTR/NoPadding"})
+  public String transformation;
+
+  @Param({"8192", "1048576"})
+  public int readSize;
+
+  private SecretKeySpec _key;
+  private IvParameterSpec _iv;
+  private byte[] _plain;
+  private byte[] _encrypted;
+  private byte[] _buf;
+
+  @Setup
+  public void setUp()
+    throws IOException, GeneralSecurityException
+  {
+    Random random = new Random(1);
+    byte[] key = new byte[32];
+    byte[] iv = new byte[16];
+    random.nextBytes(key);
+    random.nextBytes(iv);
+    _key = new SecretKeySpec(key, "AES");
+    _iv = new IvParameterSpec(iv);
+    _plain = new byte[PART_SIZE];
+    random.nextBytes(_plain);
+    _buf = new byte[readSize];
+
+    InputStream in = new BulkCipherInputStream(new ByteArrayInputStream(_plain),
+      newCipher(Cipher.ENCRYPT_MODE));
+    _encrypted = new byte[newCipher(Cipher.ENCRYPT_MODE).getOutputSize(PART_SIZE)];
+    int offset = 0;
+    int count;
+    while((count = in.read(_encrypted, offset, _encrypted.length - offset)) > 0)
+    {
+      offset += count;
+    }
+  }
+
+  @Benchmark
+  public long encryptCipherInputStream()
+    throws IOException, GeneralSecurityException
+  {
+    return drain(new CipherInputStream(new ByteArrayInputStream(_plain),
+      newCipher(Cipher.ENCRYPT_MODE)));
+  }
+
+  @Benchmark
+  public long encryptBulkCipherInputStream()
+    throws IOException, GeneralSecurityException
+  {
+    return drain(new BulkCipherInputStream(new ByteArrayInputStream(_plain),
+      newCipher(Cipher.ENCRYPT_MODE)));
+  }
+
+  @Benchmark
+  public long decryptCipherInputStream()
+    throws IOException, GeneralSecurityException
+  {
+    return drain(new CipherInputStream(new ByteArrayInputStream(_encrypted),
+      newCipher(Cipher.DECRYPT_MODE)));
+  }
+
+  @Benchmark
+  public long decryptBulkCipherInputStream()
+    throws IOException, GeneralSecurityException
+  {
+    return drain(new BulkCipherInputStream(new ByteArrayInputStream(_encrypted),
+      newCipher(Cipher.DECRYPT_MODE)));
+  }
+
+  private Cipher newCipher(int mode)
+    throws GeneralSecurityException
+  {
+    Cipher cipher = Cipher.getInstance(transformation);
+    cipher.init(mode, _key, _iv);
+    return cipher;
+  }
+
+  private long drain(InputStream in)
+    throws IOException
+  {
+    long total = 0;
+    int count;
+    while((count = in.read(_buf, 0, _buf.length)) != -1)
+    {
+      total += count;
+    }
+    in.close();
+    return total;
+  }
+}
@@ -0,0 +1,347 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * API executor whose concurrency limit adapts to the storage service using additive increase,
+ * multiplicative decrease (AIMD), instead of running a fixed number of requests at a time.
+ * <p>
+ * Tasks are run on a pool of up to {@code maxLimit} threads, but at most {@link #getLimit} of them
+ * are running at any time; the rest wait in a FIFO queue. Completed tasks are aggregated in
+ * windows of at least {@link #MIN_WINDOW_TASKS} tasks and {@link #MIN_WINDOW_NANOS} nanoseconds.
+ * At the end of a window in which tasks had to wait for the limit (tasks were queued when they
+ * were submitted, or when a running task completed), the limit is raised by one if
+ * throughput did not drop and the average latency stayed within {@link #LATENCY_TOLERANCE} times
+ * the best average seen so far. When a task submitted as a {@link Callable} fails with an overload
+ * signal (see {@link ExpBackoffRetryPolicy#isOverload}), the limit is halved, at most once per
+ * window, so a burst of throttled requests only backs off once.
+ * <p>
+ * The current limit, throughput and number of running tasks are exposed for monitoring.
+ */
+public class AdaptiveApiExecutor
+  extends AbstractExecutorService
+  implements ListeningExecutorService
+{
+  static final int MIN_WINDOW_TASKS = 20;
+  static final long MIN_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+  static final double LATENCY_TOLERANCE = 1.5;
+
+  private final ThreadPoolExecutor _executor;
+  private final int _maxLimit;
+  private final long _minWindowNanos;
+  private final Queue<Runnable> _queue = new ArrayDeque<>();
+  private final CountDownLatch _drained = new CountDownLatch(1);
+  private int _limit;
+  private int _running = 0;
+  private boolean _shutdown = false;
+
+  private long _windowStart = System.nanoTime();
+  private int _windowTasks = 0;
+  private long _windowLatency = 0;
+  private boolean _windowSaturated = false;
+  private boolean _windowDecreased = false;
+  private double _throughput = 0;
+  private double _bestLatency = Double.MAX_VALUE;
+
+  /**
+   * @param initialLimit The number of tasks allowed to run concurrently at first
+   * @param maxLimit     The number of tasks the limit can grow to
+   */
+  public AdaptiveApiExecutor(int initialLimit, int maxLimit)
+  {
+    this(initialLimit, maxLimit, MIN_WINDOW_NANOS);
+  }
+
+  /**
+   * @param minWindowNanos The minimum duration of a window
+   */
+  AdaptiveApiExecutor(int initialLimit, int maxLimit, long minWindowNanos)
+  {
+    if(initialLimit < 1 || maxLimit < initialLimit)
+    {
+      throw new IllegalArgumentException(
+        "limits must satisfy 1 <= initialLimit <= maxLimit: " + initialLimit + ", " + maxLimit);
+    }
+    _limit = initialLimit;
+    _maxLimit = maxLimit;
+    _minWindowNanos = minWindowNanos;
+    _executor = new ThreadPoolExecutor(maxLimit, maxLimit, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>());
+    _executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return The number of tasks currently allowed to run concurrently
+   */
+  public synchronized int getLimit()
+  {
+    return _limit;
+  }
+
+  /**
+   * @return The number of tasks completed per second in the last complete window
+   */
+  public synchronized double getThroughput()
+  {
+    return _throughput;
+  }
+
+  /**
+   * @return The number of tasks currently running
+   */
+  public synchronized int getInFlight()
+  {
+    return _running;
+  }
+
+  @Override
+  protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value)
+  {
+    return ListenableFutureTask.create(runnable, value);
+  }
+
+  @Override
+  protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable)
+  {
+    return ListenableFutureTask.create(new Callable<T>()
+    {
+      public T call()
+        throws Exception
+      {
+        try
+        {
+          return callable.call();
+        }
+        catch(Exception exc)
+        {
+          if(ExpBackoffRetryPolicy.isOverload(exc))
+          {
+            overloaded();
+          }
+          throw exc;
+        }
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<?> submit(Runnable task)
+  {
+    return (ListenableFuture<?>) super.submit(task);
+  }
+
+  @Override
+  public <T> ListenableFuture<T> submit(Runnable task, T result)
+  {
+    return (ListenableFuture<T>) super.submit(task, result);
+  }
+
+  @Override
+  public <T> ListenableFuture<T> submit(Callable<T> task)
+  {
+    return (ListenableFuture<T>) super.submit(task);
+  }
+
+  @Override
+  public void execute(Runnable command)
+  {
+    synchronized(this)
+    {
+      if(_shutdown)
+      {
+        throw new RejectedExecutionException("executor has been shut down");
+      }
+      if(_running >= _limit)
+      {
+        _queue.add(command);
+        _windowSaturated = true;
+        return;
+      }
+      _running++;
+    }
+    start(command);
+  }
+
+  private void start(final Runnable command)
+  {
+    _executor.execute(new Runnable()
+    {
+      public void run()
+      {
+        long start = System.nanoTime();
+        try
+        {
+          command.run();
+        }
+        finally
+        {
+          finished(System.nanoTime() - start);
+        }
+      }
+    });
+  }
+
+  private void finished(long latency)
+  {
+    List<Runnable> next = new ArrayList<>();
+    synchronized(this)
+    {
+      _running--;
+      _windowTasks++;
+      _windowLatency += latency;
+      // a backlog queued before the window started is saturation as well
+      if(!_queue.isEmpty())
+      {
+        _windowSaturated = true;
+      }
+      endWindowIfComplete();
+
+      while(_running < _limit && !_queue.isEmpty())
+      {
+        next.add(_queue.poll());
+        _running++;
+      }
+      if(_shutdown && _running == 0 && _queue.isEmpty())
+      {
+        terminate();
+      }
+    }
+    for(Runnable command : next)
+    {
+      start(command);
+    }
+  }
+
+  private void endWindowIfComplete()
+  {
+    long elapsed = System.nanoTime() - _windowStart;
+    if(_windowTasks < Math.max(MIN_WINDOW_TASKS, _limit) || elapsed < _minWindowNanos)
+    {
+      return;
+    }
+
+    double throughput = _windowTasks / (elapsed / 1e9);
+    double latency = (double) _windowLatency / _windowTasks;
+    if(_windowSaturated && !_windowDecreased && throughput >= _throughput &&
+      latency <= _bestLatency * LATENCY_TOLERANCE)
+    {
+      _limit = Math.min(_maxLimit, _limit + 1);
+    }
+    _bestLatency = Math.min(_bestLatency, latency);
+    _throughput = throughput;
+    resetWindow();
+  }
+
+  private synchronized void overloaded()
+  {
+    if(_windowDecreased)
+    {
+      return;
+    }
+    _limit = Math.max(1, _limit / 2);
+    // The throughput of the window that ends here reflects the old limit, so it is not a
+    // baseline the reduced limit has to beat.
+    _throughput = 0;
+    resetWindow();
+    _windowDecreased = true;
+  }
+
+  private void resetWindow()
+  {
+    _windowStart = System.nanoTime();
+    _windowTasks = 0;
+    _windowLatency = 0;
+    _windowSaturated = false;
+    _windowDecreased = false;
+  }
+
+  private void terminate()
+  {
+    _executor.shutdown();
+    _drained.countDown();
+  }
+
+  @Override
+  public synchronized void shutdown()
+  {
+    if(_shutdown)
+    {
+      return;
+    }
+    _shutdown = true;
+    if(_running == 0 && _queue.isEmpty())
+    {
+      terminate();
+    }
+  }
+
+  @Override
+  public List<Runnable> shutdownNow()
+  {
+    List<Runnable> notStarted;
+    synchronized(this)
+    {
+      _shutdown = true;
+      notStarted = new ArrayList<>(_queue);
+      _queue.clear();
+      _drained.countDown();
+    }
+    _executor.shutdownNow();
+    return notStarted;
+  }
+
+  @Override
+  public synchronized boolean isShutdown()
+  {
+    return _shutdown;
+  }
+
+  @Override
+  public boolean isTerminated()
+  {
+    return _drained.getCount() == 0 && _executor.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit)
+    throws InterruptedException
+  {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    if(!_drained.await(timeout, unit))
+    {
+      return false;
+    }
+    return _executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+  }
+}
@@ -0,0 +1,234 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Drop-in replacement for {@link javax.crypto.CipherInputStream} that feeds the cipher in large
+ * chunks (up to {@link #CHUNK_SIZE} bytes per {@link Cipher#update} call) instead of through
+ * {@code CipherInputStream}'s small internal buffer. This keeps per-call overhead low enough for
+ * the (hardware accelerated) cipher to be the bottleneck rather than the stream plumbing.
+ * <p>
+ * When the caller asks for enough bytes, the cipher writes directly into the caller's array;
+ * otherwise output is staged in an internal buffer.
+ * <p>
+ * The {@code cipher} must already be initialized. Unlike {@code CipherInputStream}, padding or
+ * authentication failures reported by {@link Cipher#doFinal} surface as {@link IOException}s.
+ */
+class BulkCipherInputStream
+  extends FilterInputStream
+{
+  static final int CHUNK_SIZE = 1024 * 1024;
+
+  private final Cipher _cipher;
+  private final int _blockSize;
+  private final byte[] _inBuf = new byte[CHUNK_SIZE];
+  private byte[] _outBuf;
+  private int _outPos = 0;
+  private int _outEnd = 0;
+  private boolean _done = false;
+  private boolean _closed = false;
+
+  public BulkCipherInputStream(InputStream in, Cipher cipher)
+  {
+    super(in);
+    _cipher = cipher;
+    _blockSize = Math.max(cipher.getBlockSize(), 1);
+    _outBuf = new byte[cipher.getOutputSize(CHUNK_SIZE)];
+  }
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    while(_outPos >= _outEnd)
+    {
+      if(_done)
+      {
+        return -1;
+      }
+      fill();
+    }
+    return (int) _outBuf[_outPos++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b)
+    throws IOException
+  {
+    return read(b, 0, b.length);
+  }
+
+  /**
+   * Like {@code CipherInputStream}, a zero-length read still returns -1 once all input has been
+   * transformed. {@link DownloadCommand} relies on this to verify empty encrypted files.
+   */
+  @Override
+  public int read(byte[] b, int off, int len)
+    throws IOException
+  {
+    if(_closed)
+    {
+      throw new IOException("Stream closed");
+    }
+
+    while(_outPos >= _outEnd)
+    {
+      if(_done)
+      {
+        return -1;
+      }
+
+      // Large reads bypass the staging buffer when the caller's array is big enough for
+      // whatever the cipher may output.
+      int maxInput = Math.min(CHUNK_SIZE, len - _blockSize);
+      if(maxInput > 0 && _cipher.getOutputSize(maxInput) <= len)
+      {
+        int count = transform(b, off, maxInput);
+        if(count > 0)
+        {
+          return count;
+        }
+      }
+      else
+      {
+        fill();
+      }
+    }
+
+    int count = Math.min(len, _outEnd - _outPos);
+    System.arraycopy(_outBuf, _outPos, b, off, count);
+    _outPos += count;
+    return count;
+  }
+
+  @Override
+  public long skip(long n)
+    throws IOException
+  {
+    long skipped = 0;
+    while(skipped < n)
+    {
+      if(_outPos >= _outEnd)
+      {
+        if(_done)
+        {
+          break;
+        }
+        fill();
+        continue;
+      }
+      int count = (int) Math.min(n - skipped, _outEnd - _outPos);
+      _outPos += count;
+      skipped += count;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available()
+  {
+    return _outEnd - _outPos;
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+    return false;
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    if(_closed)
+    {
+      return;
+    }
+    _closed = true;
+    in.close();
+  }
+
+  /**
+   * Refills the internal output buffer with the next chunk of transformed bytes.
+   */
+  private void fill()
+    throws IOException
+  {
+    if(_outBuf.length < _cipher.getOutputSize(CHUNK_SIZE))
+    {
+      _outBuf = new byte[_cipher.getOutputSize(CHUNK_SIZE)];
+    }
+    _outPos = 0;
+    _outEnd = transform(_outBuf, 0, CHUNK_SIZE);
+  }
+
+  /**
+   * Reads up to {@code maxInput} bytes from the underlying stream and transforms them into
+   * {@code out} at {@code off}, calling {@link Cipher#doFinal} once the underlying stream is
+   * exhausted. {@code out} must have room for {@code getOutputSize(maxInput)} bytes.
+   *
+   * @return The number of bytes written to {@code out}, possibly 0
+   */
+  private int transform(byte[] out, int off, int maxInput)
+    throws IOException
+  {
+    int n = readInput(maxInput);
+    try
+    {
+      if(n == -1)
+      {
+        _done = true;
+        return _cipher.doFinal(out, off);
+      }
+      return _cipher.update(_inBuf, 0, n, out, off);
+    }
+    catch(IllegalBlockSizeException | BadPaddingException | ShortBufferException e)
+    {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Reads from the underlying stream until {@code max} bytes have been read or the stream is
+   * exhausted, so that the cipher sees large chunks even if the source delivers small ones.
+   *
+   * @return The number of bytes read, or -1 on end of stream
+   */
+  private int readInput(int max)
+    throws IOException
+  {
+    int total = 0;
+    while(total < max)
+    {
+      int count = in.read(_inBuf, total, max - total);
+      if(count == -1)
+      {
+        break;
+      }
+      total += count;
+    }
+    return total == 0 && max > 0 ? -1 : total;
+  }
+}
@@ -0,0 +1,296 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+
+package com.logicblox.cloudstore;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * KeyProvider decorator that caches the keys returned by another KeyProvider, so that commands
+ * operating on many encrypted objects do not re-read and re-parse the same key files for every
+ * object.
+ * <p>
+ * When the decorated provider reads its keys from files in a set of directories (as {@link
+ * DirectoryKeyProvider} does), pass the same directories to the constructor: a cached key (or a
+ * cached {@link NoSuchKeyException}) is only reused as long as the modification time, size and
+ * identity of the corresponding files in those directories are unchanged. Without directories,
+ * keys are cached for the lifetime of this object.
+ * <p>
+ * Additionally, this class keeps a bounded LRU cache of data keys that were unwrapped (RSA
+ * decrypted) with a private key, indexed by the hash of the matching public key and the wrapped
+ * key, so that objects that are read repeatedly by a long-lived client (or by several commands,
+ * e.g. a copy followed by a download) only need a single RSA decryption. Data keys are random per
+ * object, so wrapping a data key on upload cannot be cached.
+ *
+ * @see Utils#createKeyProvider
+ */
+public class CachingKeyProvider
+  implements KeyProvider
+{
+  public static final int DEFAULT_DATA_KEY_CACHE_SIZE = 1024;
+
+  private static final Base64.Decoder base64Decoder = Base64.getMimeDecoder();
+  private static final Base64.Encoder base64Encoder = Base64.getEncoder();
+
+  private final KeyProvider _delegate;
+  private final List<File> _directories = new ArrayList<>();
+
+  private final Map<String, Entry<PrivateKey>> _privateKeys = new ConcurrentHashMap<>();
+  private final Map<String, Entry<PublicKey>> _publicKeys = new ConcurrentHashMap<>();
+  private final Map<String, Entry<Certificate>> _certificates = new ConcurrentHashMap<>();
+
+  private final Map<PrivateKey, String> _publicKeyHashes = Collections.synchronizedMap(
+    new WeakHashMap<PrivateKey, String>());
+  private final Map<String, byte[]> _dataKeys;
+
+  public CachingKeyProvider(KeyProvider delegate)
+  {
+    this(delegate, Collections.<File>emptyList(), DEFAULT_DATA_KEY_CACHE_SIZE);
+  }
+
+  public CachingKeyProvider(KeyProvider delegate, List<File> directories)
+  {
+    this(delegate, directories, DEFAULT_DATA_KEY_CACHE_SIZE);
+  }
+
+  /**
+   * @param delegate         The KeyProvider to cache keys of
+   * @param directories      The directories the key files of {@code delegate} are located in
+   * @param dataKeyCacheSize The maximum number of unwrapped data keys to keep
+   */
+  public CachingKeyProvider(KeyProvider delegate, List<File> directories, final int dataKeyCacheSize)
+  {
+    if(dataKeyCacheSize < 0)
+    {
+      throw new UsageException("Data key cache size should be non-negative: " + dataKeyCacheSize);
+    }
+    _delegate = delegate;
+    _directories.addAll(directories);
+    _dataKeys = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest)
+      {
+        return size() > dataKeyCacheSize;
+      }
+    });
+  }
+
+  public PrivateKey getPrivateKey(final String alias)
+    throws NoSuchKeyException
+  {
+    return lookup(_privateKeys, alias, "pem", new Loader<PrivateKey>()
+    {
+      public PrivateKey load()
+        throws NoSuchKeyException
+      {
+        return _delegate.getPrivateKey(alias);
+      }
+    });
+  }
+
+  public PublicKey getPublicKey(final String alias)
+    throws NoSuchKeyException
+  {
+    return lookup(_publicKeys, alias, "pem", new Loader<PublicKey>()
+    {
+      public PublicKey load()
+        throws NoSuchKeyException
+      {
+        return _delegate.getPublicKey(alias);
+      }
+    });
+  }
+
+  public Certificate getCertificate(final String alias)
+    throws NoSuchKeyException
+  {
+    return lookup(_certificates, alias, "cer", new Loader<Certificate>()
+    {
+      public Certificate load()
+        throws NoSuchKeyException
+      {
+        return _delegate.getCertificate(alias);
+      }
+    });
+  }
+
+  /**
+   * Drops all cached keys and data keys.
+   */
+  public void invalidate()
+  {
+    _privateKeys.clear();
+    _publicKeys.clear();
+    _certificates.clear();
+    _publicKeyHashes.clear();
+    _dataKeys.clear();
+  }
+
+  /**
+   * Returns the base64-encoded SHA-256 hash of the public key that belongs to {@code privateKey}.
+   */
+  String getPublicKeyHash(PrivateKey privateKey)
+    throws NoSuchKeyException
+  {
+    String hash = _publicKeyHashes.get(privateKey);
+    if(hash == null)
+    {
+      hash = computePublicKeyHash(privateKey);
+      _publicKeyHashes.put(privateKey, hash);
+    }
+    return hash;
+  }
+
+  /**
+   * Decrypts the base64-encoded data key {@code wrappedKey} with {@code privateKey}, reusing the
+   * result of an earlier decryption of the same wrapped key with the same key pair.
+   */
+  byte[] unwrapDataKey(PrivateKey privateKey, String wrappedKey)
+    throws NoSuchKeyException
+  {
+    String cacheKey = getPublicKeyHash(privateKey) + ":" + wrappedKey;
+    byte[] keyBytes = _dataKeys.get(cacheKey);
+    if(keyBytes == null)
+    {
+      keyBytes = decryptDataKey(privateKey, wrappedKey);
+      _dataKeys.put(cacheKey, keyBytes);
+    }
+    return keyBytes.clone();
+  }
+
+  static String computePublicKeyHash(PrivateKey privateKey)
+    throws NoSuchKeyException
+  {
+    PublicKey pubKey = Command.getPublicKey(privateKey);
+    return base64Encoder.encodeToString(DigestUtils.sha256(pubKey.getEncoded()));
+  }
+
+  static byte[] decryptDataKey(PrivateKey privateKey, String wrappedKey)
+  {
+    try
+    {
+      Cipher cipher = Cipher.getInstance("RSA");
+      cipher.init(Cipher.DECRYPT_MODE, privateKey);
+      return cipher.doFinal(base64Decoder.decode(wrappedKey));
+    }
+    catch(NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException |
+      IllegalBlockSizeException | BadPaddingException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private <T> T lookup(Map<String, Entry<T>> cache, String alias, String extension, Loader<T> loader)
+    throws NoSuchKeyException
+  {
+    List<Object> stamp = getStamp(alias + "." + extension);
+    Entry<T> entry = cache.get(alias);
+    if(entry == null || !entry.stamp.equals(stamp))
+    {
+      // Concurrent misses for the same alias might both load the key, which is harmless.
+      try
+      {
+        entry = new Entry<>(stamp, loader.load(), null);
+      }
+      catch(NoSuchKeyException e)
+      {
+        entry = new Entry<>(stamp, null, e);
+      }
+      cache.put(alias, entry);
+    }
+
+    if(entry.exception != null)
+    {
+      throw new NoSuchKeyException(entry.exception.getMessage());
+    }
+    return entry.value;
+  }
+
+  /**
+   * Returns the attributes of the file with the given name in every directory, so that the
+   * result changes whenever one of these files is created, deleted, replaced or modified.
+   */
+  private List<Object> getStamp(String fileName)
+  {
+    List<Object> stamp = new ArrayList<>();
+    for(File dir : _directories)
+    {
+      try
+      {
+        BasicFileAttributes attrs = Files.readAttributes(new File(dir, fileName).toPath(),
+          BasicFileAttributes.class);
+        stamp.add(attrs.lastModifiedTime());
+        stamp.add(attrs.size());
+        stamp.add(attrs.fileKey());
+      }
+      catch(NoSuchFileException e)
+      {
+        stamp.add(null);
+      }
+      catch(IOException | RuntimeException e)
+      {
+        // Unknown state: never matches, so the key is always reloaded.
+        stamp.add(new Object());
+      }
+    }
+    return stamp;
+  }
+
+  private interface Loader<T>
+  {
+    T load()
+      throws NoSuchKeyException;
+  }
+
+  private static class Entry<T>
+  {
+    final List<Object> stamp;
+    final T value;
+    final NoSuchKeyException exception;
+
+    Entry(List<Object> stamp, T value, NoSuchKeyException exception)
+    {
+      this.stamp = stamp;
+      this.value = value;
+      this.exception = exception;
+    }
+  }
+}
@@ -17,7 +17,6 @@
 package com.logicblox.cloudstore;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
 import javax.crypto.spec.IvParameterSpec;
 import java.io.FilterInputStream;
 import java.io.IOException;
@@ -70,7 +69,7 @@ class CipherWithInlineIVInputStream
         throw new IllegalArgumentException(CipherWithInlineIVInputStream.class.getCanonicalName() +
           " can only be constructed in DECRYPT_MODE or ENCRYPT_MODE");
     }
-    this.in = new CipherInputStream(this.in, cipher);
+    this.in = new BulkCipherInputStream(this.in, cipher);
   }
 
   @Override
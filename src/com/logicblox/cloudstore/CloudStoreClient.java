@@ -383,6 +383,33 @@ public interface CloudStoreClient
    */
   ListenableFuture<List<StoreFile>> listObjects(ListOptions lsOptions);
 
+  /**
+   * Return a future to a single page of the results of {@link #listObjects}, starting at the
+   * page token of the options (or at the beginning if none is set). The next page is requested
+   * by setting {@link ListPage#getNextPageToken()} as the page token of the next call. This
+   * allows processing a listing while it is still being fetched, without holding all of it in
+   * memory.
+   * <p>
+   * Paged listing of versions is only supported by some services.
+   *
+   * @param lsOptions Set of options controlling the behavior of the list operation
+   * @return Future containing one page of StoreFiles
+   */
+  ListenableFuture<ListPage> listObjectsPage(ListOptions lsOptions);
+
+  /**
+   * Return an iterator over the pages of the results of {@link #listObjects}, starting at the
+   * page token of the options (or at the beginning if none is set). The first page is requested
+   * right away, and every following page while the caller is processing the previous one. Unlike
+   * {@link #listObjects}, the listing is never held in memory as a whole.
+   * <p>
+   * Paged listing of versions is only supported by some services.
+   *
+   * @param lsOptions Set of options controlling the behavior of the list operation
+   * @return Iterator over the pages of StoreFiles
+   */
+  ListPageIterator listObjectsPages(ListOptions lsOptions);
+
   /**
    * Return a list of pending in-progress uploads for files whose keys match a given key.
    * <p>
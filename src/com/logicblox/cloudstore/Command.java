@@ -211,4 +211,32 @@ class Command
       throw new NoSuchKeyException(exc);
     }
   }
+
+  /**
+   * Returns the base64-encoded SHA-256 hash of the public key of a private key, cached if the
+   * key provider is a {@link CachingKeyProvider}.
+   */
+  static String getPublicKeyHash(KeyProvider keyProvider, PrivateKey privateKey)
+    throws NoSuchKeyException
+  {
+    if(keyProvider instanceof CachingKeyProvider)
+    {
+      return ((CachingKeyProvider) keyProvider).getPublicKeyHash(privateKey);
+    }
+    return CachingKeyProvider.computePublicKeyHash(privateKey);
+  }
+
+  /**
+   * Decrypts a base64-encoded, RSA encrypted data key with a private key, cached if the key
+   * provider is a {@link CachingKeyProvider}.
+   */
+  static byte[] unwrapDataKey(KeyProvider keyProvider, PrivateKey privateKey, String wrappedKey)
+    throws NoSuchKeyException
+  {
+    if(keyProvider instanceof CachingKeyProvider)
+    {
+      return ((CachingKeyProvider) keyProvider).unwrapDataKey(privateKey, wrappedKey);
+    }
+    return CachingKeyProvider.decryptDataKey(privateKey, wrappedKey);
+  }
 }
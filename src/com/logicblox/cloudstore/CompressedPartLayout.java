@@ -0,0 +1,235 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The positions of the blocks of an object that was uploaded with a {@link PartCodec}. The file
+ * is split into blocks of the chunk size, each of which is compressed (and then encrypted, if
+ * the object is encrypted) on its own. Since compressed blocks differ in size, their position in
+ * the object cannot be derived from the chunk size like for other objects.
+ * <p>
+ * The stored blocks are packed back to back into the parts of the upload: a part takes blocks
+ * until it reaches the target part size (at least the minimum part size of the storage service),
+ * so no part but the last is smaller than that minimum and nothing is padded.
+ * <p>
+ * Objects with more than one block end with an index, at the end of the last part, that holds
+ * per block the big-endian long position of the stored block in the object, the big-endian long
+ * size of the compressed block (before encryption, if any), and the big-endian int number of the
+ * part that holds the block. A block ends where the next one (or, for the last block, the index)
+ * starts. The index has a fixed size per block, so it can be found from the size of the object.
+ * An object with a single block has no index: its only block is the whole object.
+ */
+class CompressedPartLayout
+{
+  static final int ENTRY_SIZE = 20;
+
+  private final long[] _blockStarts;
+  private final long[] _compressedSizes;
+  private final int[] _blockParts;
+  private final int[] _partFirstBlocks;
+  private final long _dataEnd;
+
+  /**
+   * @param blockStarts     The position of each stored block in the object
+   * @param compressedSizes The size of each compressed block
+   * @param blockParts      The number of the part that holds each block
+   * @param dataEnd         The position right after the last block, where the index starts
+   */
+  CompressedPartLayout(long[] blockStarts, long[] compressedSizes, int[] blockParts, long dataEnd)
+  {
+    _blockStarts = blockStarts.clone();
+    _compressedSizes = compressedSizes.clone();
+    _blockParts = blockParts.clone();
+    _dataEnd = dataEnd;
+
+    int partCount = blockParts.length == 0 ? 0 : blockParts[blockParts.length - 1] + 1;
+    _partFirstBlocks = new int[partCount];
+    for(int i = blockParts.length - 1; i >= 0; i--)
+    {
+      _partFirstBlocks[blockParts[i]] = i;
+    }
+  }
+
+  /**
+   * @return The layout of an object with a single block, which takes up the whole object
+   */
+  static CompressedPartLayout forSingleBlock(long compressedSize, long objectSize)
+  {
+    return new CompressedPartLayout(new long[]{0}, new long[]{compressedSize}, new int[]{0},
+      objectSize);
+  }
+
+  static int getBlockCount(long fileLength, long chunkSize)
+  {
+    return fileLength == 0 ? 1 : (int) ((fileLength + chunkSize - 1) / chunkSize);
+  }
+
+  static boolean hasIndex(int blockCount)
+  {
+    return blockCount > 1;
+  }
+
+  static long getIndexSize(int blockCount)
+  {
+    return hasIndex(blockCount) ? (long) blockCount * ENTRY_SIZE : 0;
+  }
+
+  /**
+   * Reads the index of an object with {@code blockCount} blocks, consuming {@code in} to its
+   * end.
+   *
+   * @param indexStart The position of the index in the object
+   */
+  static CompressedPartLayout readIndex(InputStream in, int blockCount, long indexStart)
+    throws IOException
+  {
+    DataInputStream din = new DataInputStream(in);
+    long[] blockStarts = new long[blockCount];
+    long[] compressedSizes = new long[blockCount];
+    int[] blockParts = new int[blockCount];
+    try
+    {
+      for(int i = 0; i < blockCount; i++)
+      {
+        blockStarts[i] = din.readLong();
+        compressedSizes[i] = din.readLong();
+        blockParts[i] = din.readInt();
+
+        long expectedStart = i == 0 ? 0 : blockStarts[i - 1] + compressedSizes[i - 1];
+        int previousPart = i == 0 ? 0 : blockParts[i - 1];
+        boolean valid = i == 0 ? blockStarts[i] == 0 : blockStarts[i] >= expectedStart;
+        valid = valid && compressedSizes[i] >= 0 &&
+          (blockParts[i] == previousPart || (i > 0 && blockParts[i] == previousPart + 1));
+        if(!valid)
+        {
+          throw new IOException("Corrupt index of compressed blocks at block " + (i + 1));
+        }
+      }
+    }
+    catch(EOFException e)
+    {
+      throw new IOException("Truncated index of compressed blocks", e);
+    }
+    if(din.read() != -1)
+    {
+      throw new IOException("Index of compressed blocks is longer than expected");
+    }
+
+    int last = blockCount - 1;
+    if(blockStarts[last] + compressedSizes[last] > indexStart)
+    {
+      throw new IOException("Index of compressed blocks does not match the size of the object");
+    }
+    return new CompressedPartLayout(blockStarts, compressedSizes, blockParts, indexStart);
+  }
+
+  byte[] toIndex()
+  {
+    ByteBuffer index = ByteBuffer.allocate((int) getIndexSize(getBlockCount()));
+    if(hasIndex())
+    {
+      for(int i = 0; i < getBlockCount(); i++)
+      {
+        index.putLong(_blockStarts[i]);
+        index.putLong(_compressedSizes[i]);
+        index.putInt(_blockParts[i]);
+      }
+    }
+    return index.array();
+  }
+
+  int getBlockCount()
+  {
+    return _blockStarts.length;
+  }
+
+  long getCompressedSize(int blockNumber)
+  {
+    return _compressedSizes[blockNumber];
+  }
+
+  long getBlockStart(int blockNumber)
+  {
+    return _blockStarts[blockNumber];
+  }
+
+  /**
+   * @return The size of the stored (possibly encrypted) block
+   */
+  long getStoredSize(int blockNumber)
+  {
+    long end = blockNumber + 1 < getBlockCount() ? _blockStarts[blockNumber + 1] : _dataEnd;
+    return end - _blockStarts[blockNumber];
+  }
+
+  int getPartCount()
+  {
+    return _partFirstBlocks.length;
+  }
+
+  int getFirstBlock(int partNumber)
+  {
+    return _partFirstBlocks[partNumber];
+  }
+
+  /**
+   * @return The number of the block after the last block of the part
+   */
+  int getEndBlock(int partNumber)
+  {
+    return partNumber + 1 < getPartCount() ? _partFirstBlocks[partNumber + 1] : getBlockCount();
+  }
+
+  long getPartStart(int partNumber)
+  {
+    return _blockStarts[getFirstBlock(partNumber)];
+  }
+
+  /**
+   * @return The size of the part, including the index if it is the last part
+   */
+  long getPartSize(int partNumber)
+  {
+    int end = getEndBlock(partNumber);
+    long partEnd = end < getBlockCount() ? _blockStarts[end] : getObjectSize();
+    return partEnd - getPartStart(partNumber);
+  }
+
+  boolean hasIndex()
+  {
+    return hasIndex(getBlockCount());
+  }
+
+  /**
+   * @return The position of the index in the object, right after the last block
+   */
+  long getIndexStart()
+  {
+    return _dataEnd;
+  }
+
+  long getObjectSize()
+  {
+    return _dataEnd + getIndexSize(getBlockCount());
+  }
+}
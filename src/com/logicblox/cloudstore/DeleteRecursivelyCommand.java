@@ -16,20 +16,35 @@
 
 package com.logicblox.cloudstore;
 
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
-
-class DeleteRecursivelyCommand
+/**
+ * Deletes all objects under a prefix. The objects of each page of the listing are deleted with
+ * batch requests of up to {@link #getMaxBatchSize()} objects, instead of a request per object.
+ * Objects that a batch request fails to delete are reported and retried with a smaller batch.
+ */
+abstract class DeleteRecursivelyCommand
   extends Command
 {
-  private DeleteOptions _options;
+  /**
+   * The maximum number of per-object errors included in the message of a failed batch.
+   */
+  private static final int MAX_REPORTED_ERRORS = 10;
+
+  protected DeleteOptions _options;
 
   public DeleteRecursivelyCommand(DeleteOptions options)
   {
@@ -37,65 +52,167 @@ class DeleteRecursivelyCommand
     _options = options;
   }
 
+  /**
+   * Return the maximum number of objects deleted with a single batch request.
+   */
+  protected abstract int getMaxBatchSize();
+
+  /**
+   * Deletes the objects with the given keys with a single batch request.
+   *
+   * @return The error of each object that could not be deleted, by key
+   */
+  protected abstract Map<String, String> deleteObjects(String bucket, List<String> keys)
+    throws IOException;
+
   public ListenableFuture<List<StoreFile>> run()
     throws InterruptedException, ExecutionException
   {
-    ListenableFuture<List<StoreFile>> listObjs = queryFiles();
-    ListenableFuture<List<StoreFile>> result = Futures.transformAsync(
-      listObjs,
-      new AsyncFunction<List<StoreFile>, List<StoreFile>>()
+    // the files of a page are deleted while the next page is being fetched
+    ListenableFuture<List<StoreFile>> result = queryFiles().transformPages(
+      new AsyncFunction<ListPage, List<StoreFile>>()
       {
-        public ListenableFuture<List<StoreFile>> apply(List<StoreFile> potential)
+        public ListenableFuture<List<StoreFile>> apply(ListPage page)
         {
           List<StoreFile> matches = new ArrayList<StoreFile>();
-          for(StoreFile f : potential)
+          for(StoreFile f : page.getFiles())
           {
             if(!f.getObjectKey().endsWith("/"))
             {
               matches.add(f);
             }
           }
-          List<ListenableFuture<StoreFile>> futures = prepareFutures(matches);
+          return deletePage(matches);
+        }
+      });
 
-          if(_options.isDryRun())
-          {
-            return Futures.immediateFuture(null);
-          }
-          else
+    if(_options.isDryRun())
+    {
+      return Futures.transform(result, Functions.<List<StoreFile>>constant(null),
+        MoreExecutors.directExecutor());
+    }
+    else
+    {
+      return result;
+    }
+  }
+
+
+  private ListenableFuture<List<StoreFile>> deletePage(List<StoreFile> toDelete)
+  {
+    if(_options.isDryRun())
+    {
+      for(StoreFile src : toDelete)
+      {
+        System.out.println("<DRYRUN> deleting '" + getUri(src.getBucketName(), src.getObjectKey()) + "'");
+      }
+      return Futures.immediateFuture(toDelete);
+    }
+
+    List<ListenableFuture<List<StoreFile>>> batches = new ArrayList<>();
+    for(int start = 0; start < toDelete.size(); start += getMaxBatchSize())
+    {
+      int end = Math.min(start + getMaxBatchSize(), toDelete.size());
+      batches.add(deleteBatch(new ArrayList<StoreFile>(toDelete.subList(start, end))));
+    }
+
+    return Futures.transform(Futures.allAsList(batches),
+      new Function<List<List<StoreFile>>, List<StoreFile>>()
+      {
+        public List<StoreFile> apply(List<List<StoreFile>> deleted)
+        {
+          List<StoreFile> files = new ArrayList<StoreFile>();
+          for(List<StoreFile> batch : deleted)
           {
-            return Futures.allAsList(futures);
+            files.addAll(batch);
           }
+          return files;
         }
       },
       MoreExecutors.directExecutor());
-    return result;
   }
 
 
-  private List<ListenableFuture<StoreFile>> prepareFutures(List<StoreFile> toDelete)
+  /**
+   * Deletes a batch of objects. Every attempt only includes the objects that have not been
+   * deleted by earlier attempts.
+   */
+  private ListenableFuture<List<StoreFile>> deleteBatch(final List<StoreFile> batch)
   {
-    List<ListenableFuture<StoreFile>> futures = new ArrayList<ListenableFuture<StoreFile>>();
-    for(StoreFile src : toDelete)
+    final String bucket = _options.getBucketName();
+    final List<String> remaining = new ArrayList<String>();
+    for(StoreFile f : batch)
     {
-      if(_options.isDryRun())
-      {
-        System.out.println("<DRYRUN> deleting '" + getUri(src.getBucketName(), src.getObjectKey()) + "'");
-      }
-      else
+      remaining.add(f.getObjectKey());
+    }
+
+    return executeWithRetry(_client.getInternalExecutor(),
+      new Callable<ListenableFuture<List<StoreFile>>>()
       {
-        DeleteOptions opts = _client.getOptionsBuilderFactory()
-          .newDeleteOptionsBuilder()
-          .setBucketName(src.getBucketName())
-          .setObjectKey(src.getObjectKey())
-          .createOptions();
-        futures.add(_client.delete(opts));
-      }
+        public ListenableFuture<List<StoreFile>> call()
+        {
+          return _client.getApiExecutor().submit(new Callable<List<StoreFile>>()
+          {
+            public List<StoreFile> call()
+              throws IOException
+            {
+              synchronized(remaining)
+              {
+                // support for testing failures
+                _options.injectAbort(getUri(bucket, remaining.get(0)));
+
+                Map<String, String> errors = deleteObjects(bucket, remaining);
+                if(!errors.isEmpty())
+                {
+                  int attempted = remaining.size();
+                  remaining.retainAll(errors.keySet());
+                  throw new IOException(describeErrors(bucket, errors, attempted));
+                }
+                remaining.clear();
+              }
+
+              List<StoreFile> deleted = new ArrayList<StoreFile>();
+              for(StoreFile src : batch)
+              {
+                StoreFile file = new StoreFile();
+                file.setBucketName(bucket);
+                file.setObjectKey(src.getObjectKey());
+                deleted.add(file);
+              }
+              return deleted;
+            }
+          });
+        }
+
+        public String toString()
+        {
+          return "delete batch of " + batch.size() + " objects from " +
+            getUri(bucket, batch.get(0).getObjectKey());
+        }
+      });
+  }
+
+
+  private String describeErrors(String bucket, Map<String, String> errors, int attempted)
+  {
+    StringBuilder msg = new StringBuilder("Could not delete " + errors.size() + " of " +
+      attempted + " objects:");
+    Iterator<Map.Entry<String, String>> it = errors.entrySet().iterator();
+    for(int i = 0; i < MAX_REPORTED_ERRORS && it.hasNext(); i++)
+    {
+      Map.Entry<String, String> e = it.next();
+      msg.append(" ").append(getUri(bucket, e.getKey()));
+      msg.append(" (").append(e.getValue()).append(")");
+    }
+    if(errors.size() > MAX_REPORTED_ERRORS)
+    {
+      msg.append(" ...");
     }
-    return futures;
+    return msg.toString();
   }
 
 
-  private ListenableFuture<List<StoreFile>> queryFiles()
+  private ListPageIterator queryFiles()
   {
     // find all files that need to be deleted
     ListOptions opts = _client.getOptionsBuilderFactory()
@@ -104,6 +221,6 @@ class DeleteRecursivelyCommand
       .setObjectKey(_options.getObjectKey())
       .setRecursive(true)
       .createOptions();
-    return _client.listObjects(opts);
+    return _client.listObjectsPages(opts);
   }
 }
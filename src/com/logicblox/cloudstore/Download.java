@@ -42,13 +42,55 @@ interface Download
   ListenableFuture<InputStream> downloadPart(
     int partNumber, long start, long end, OverallProgressListener opl);
 
+  /**
+   * Downloads a range of the target object that is not a part of the download, e.g. to find out
+   * how the object is laid out. Unlike the parts, the range is not included in the checksum
+   * validation of {@link #completeDownload}.
+   *
+   * @param start The index of target object's byte where the range starts
+   * @param end The index of target object's byte where the range ends (inclusive)
+   * @return A future to the input stream from which the range can be read
+   */
+  ListenableFuture<InputStream> downloadRange(long start, long end);
+
   /**
    * Runs any required actions after all object parts have been downloaded and combined. Examples
    * of such actions: checksum validation, cleanup.
    *
+   * @param contentMd5 The MD5 of the whole (possibly encrypted) object, if {@link
+   *                   #needsContentMd5} asked for it and it could be computed, otherwise null
    * @return A future to this download implementation
    */
-  ListenableFuture<Download> completeDownload(long fileLength, long chunkSize);
+  ListenableFuture<Download> completeDownload(long fileLength, long chunkSize, byte[] contentMd5);
+
+  /**
+   * Tells whether the checksum validation of {@link #completeDownload} needs the MD5 of the whole
+   * object, because it cannot be derived from the checksums of the individual parts. This is the
+   * case for objects whose checksum is a plain MD5, but which are downloaded in several parts.
+   *
+   * @return True if the MD5 of the whole object should be passed to {@link #completeDownload}
+   */
+  boolean needsContentMd5(long fileLength, long chunkSize);
+
+  /**
+   * Describes the checksum state of a part that has been downloaded and written completely, in
+   * enough detail to validate the whole object later without downloading the part again. Used to
+   * journal the progress of resumable downloads.
+   *
+   * @param partNumber The sequence number of the part
+   * @return A backend-specific description of the part, to be passed to {@link #restorePart}
+   */
+  String getPartState(int partNumber);
+
+  /**
+   * Registers a part that has been downloaded by a previous, interrupted run of this download,
+   * so that it is included in the checksum validation of {@link #completeDownload}.
+   *
+   * @param partNumber The sequence number of the part
+   * @param partState The description of the part returned by {@link #getPartState}
+   * @return True if the part was restored, false if it needs to be downloaded again
+   */
+  boolean restorePart(int partNumber, String partState);
 
   /**
    * @return The user metadata associated with the target object
@@ -19,32 +19,40 @@ package com.logicblox.cloudstore;
 
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.AsyncFunction;
 //import com.google.common.util.concurrent.FutureFallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
-import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Drives an end-to-end parallel object download according to {@code DownloadOptions}. At a high
@@ -55,12 +63,68 @@ import java.util.concurrent.Callable;
 abstract class DownloadCommand
   extends Command
 {
-  private static final Base64.Decoder base64Decoder = Base64.getMimeDecoder();
-  private static final Base64.Encoder base64Encoder = Base64.getEncoder();
+  private static final int BUFFER_SIZE = 1024 * 1024;
 
   DownloadOptions _options;
   KeyProvider _encKeyProvider;
   OverallProgressListenerFactory _progressListenerFactory;
+
+  /**
+   * The file parts are written to. This is the output file itself, unless the download is
+   * resumable, in which case parts go to a {@code .partial} file that is renamed to the output
+   * file once the download has been validated.
+   */
+  private File _dataFile;
+
+  /**
+   * Records the completed parts of a resumable download. Null unless the download is resumable.
+   */
+  private volatile TransferJournal _journal;
+
+  /**
+   * True if a resumable download found an output file it may not overwrite. That is only fine if
+   * the file is what a previous run of the download completed.
+   */
+  private boolean _outputFileExists = false;
+
+  /**
+   * Shared by all parts of this download, which write to it positionally.
+   */
+  private FileChannel _fileChannel;
+  private boolean _fileChannelClosed = false;
+
+  /**
+   * Writes the parts to the output stream in order. Null unless the download goes to a stream
+   * instead of a file, in which case there is no file, data file or channel.
+   */
+  private OrderedPartWriter _output;
+
+  /**
+   * Hashes the parts in order while the download runs, if the download asks for the MD5 of the
+   * whole object. Null otherwise, or when streaming, where {@link #_output} does the hashing.
+   */
+  private OrderedDigest _contentDigest;
+  private MessageDigest _streamDigest;
+  private volatile byte[] _contentMd5;
+
+  /**
+   * Buffers parts are copied through, reused across parts. The number of buffers is bounded by
+   * the number of parts in flight.
+   */
+  private final Queue<byte[]> _buffers = new ConcurrentLinkedQueue<>();
+
+  /**
+   * The format the object was uploaded in, which determines the layout of its encrypted parts.
+   */
+  private int _formatVersion = Version.CURRENT;
+
+  /**
+   * The codec the parts of the object were compressed with and their positions in the object,
+   * or null if the object is not compressed.
+   */
+  private PartCodec _codec;
+  private CompressedPartLayout _layout;
+
   public DownloadCommand(DownloadOptions options)
     throws IOException
   {
@@ -69,7 +133,18 @@ abstract class DownloadCommand
     _encKeyProvider = _client.getKeyProvider();
 
     this.file = _options.getFile();
-    createNewFile();
+    if(_options.getOutputStream().isPresent())
+    {
+      _output = new OrderedPartWriter(_options.getOutputStream().get());
+    }
+    else if(_options.isResume())
+    {
+      preparePartialFile();
+    }
+    else
+    {
+      createNewFile();
+    }
     _progressListenerFactory = _options.getOverallProgressListenerFactory().orElse(null);
   }
 
@@ -118,6 +193,120 @@ abstract class DownloadCommand
         throw new IOException("File '" + file + "' already exists");
       }
     }
+    _dataFile = file;
+  }
+
+  /**
+   * Like {@link #createNewFile}, but leaves an existing output file alone until the download
+   * completes and keeps an existing {@code .partial} file, so that the parts it already contains
+   * can be reused.
+   */
+  private void preparePartialFile()
+    throws IOException
+  {
+    file = file.getAbsoluteFile();
+    _dataFile = new File(file.getPath() + ".partial");
+    File dir = file.getParentFile();
+    if(!dir.exists())
+    {
+      List<File> newDirs = Utils.mkdirs(dir, _options.isDryRun());
+      if(_options.isDryRun())
+      {
+        for(File f : newDirs)
+          System.out.println("<DRYRUN> creating missing directory '" + f.getAbsolutePath() + "'");
+      }
+    }
+
+    // Whether an existing output file is complete can only be told once the object's length and
+    // ETag are known, see isCompleteFromPreviousRun
+    _outputFileExists = file.exists() && !_options.doesOverwrite();
+
+    if(!_options.isDryRun())
+    {
+      _dataFile.createNewFile();
+    }
+  }
+
+  /**
+   * Returns true if a previous run of this resumable download already completed it: there is no
+   * journal of an unfinished run and the output file is the one the previous run moved into
+   * place, downloaded from the same version of the object (see {@link #isCompletedDownload}).
+   *
+   * @throws UsageException if the output file exists, but is not such a complete download
+   */
+  private boolean isCompleteFromPreviousRun(Download download)
+    throws IOException
+  {
+    if(!_outputFileExists)
+    {
+      return false;
+    }
+    // the .partial file was only created by this run unless there is a journal
+    boolean unfinished = new File(_dataFile.getPath() + ".journal").exists();
+    if(!unfinished && _dataFile.length() == 0)
+    {
+      _dataFile.delete();
+    }
+    String uri = getUri(download.getBucketName(), download.getObjectKey());
+    if(unfinished || file.length() != fileLength ||
+      !isCompletedDownload(uri, download.getETag(), _options.getVersion().orElse(""), file))
+    {
+      throw new UsageException(
+        "File '" + file + "' already exists.  Please delete or use --overwrite");
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if {@code file} is the output file of a resumable download of {@code uri} that
+   * completed, and the object it was downloaded from had the given ETag and version. The record of
+   * a completed download (see {@link #recordCompletedDownload}) also holds the length and
+   * modification time of the file, so a file that was changed since is not taken for complete.
+   */
+  static boolean isCompletedDownload(String uri, String etag, String version, File file)
+    throws IOException
+  {
+    if(etag == null || !file.isFile())
+    {
+      return false;
+    }
+    TransferJournal record = new TransferJournal(getCompletionRecordFile(uri, file));
+    return record.load() && record.matches(getCompletedIdentity(etag, version, file));
+  }
+
+  /**
+   * Records that the resumable download of {@code uri} to {@code file} completed, so that a rerun
+   * can tell a complete output file from a stale one. The record replaces the journal of the
+   * download and is kept in the journal directory, see {@link Utils#getDefaultJournalDirectory()}.
+   */
+  static void recordCompletedDownload(String uri, String etag, String version, File file)
+    throws IOException
+  {
+    TransferJournal record = new TransferJournal(getCompletionRecordFile(uri, file));
+    if(etag == null)
+    {
+      record.delete();
+      return;
+    }
+    record.create(getCompletedIdentity(etag, version, file));
+    record.close();
+  }
+
+  private static File getCompletionRecordFile(String uri, File file)
+    throws IOException
+  {
+    return TransferJournal.getJournalFile(
+      new File(Utils.getDefaultJournalDirectory()), "download", uri, file);
+  }
+
+  private static Map<String, String> getCompletedIdentity(String etag, String version, File file)
+  {
+    Map<String, String> identity = new HashMap<>();
+    identity.put("etag", etag);
+    identity.put("version", version);
+    identity.put("file-length", Long.toString(file.length()));
+    identity.put("file-modified", Long.toString(file.lastModified()));
+    return identity;
   }
 
   /**
@@ -136,12 +325,19 @@ abstract class DownloadCommand
 
     if(_options.isDryRun())
     {
+      String target = _output != null ? "output stream" : "'" + this.file.getAbsolutePath() + "'";
       System.out.println(
         "<DRYRUN> downloading '" + getUri(_options.getBucketName(), _options.getObjectKey()) +
-          "' to '" + this.file.getAbsolutePath() + "'");
+          "' to " + target);
       return Futures.immediateFuture(null);
     }
 
+    if(_options.isPrefetchFirstPart() && canPrefetchFirstPart())
+    {
+      // The first request fetches data and metadata at once, and fails if there is no object
+      return scheduleExecution();
+    }
+
     ExistsOptions opts = _client.getOptionsBuilderFactory()
       .newExistsOptionsBuilder()
       .setBucketName(_options.getBucketName())
@@ -173,11 +369,18 @@ abstract class DownloadCommand
   private ListenableFuture<StoreFile> scheduleExecution()
   {
     ListenableFuture<Download> download = startDownload();
-//    download = Futures.transform(download, startPartsAsyncFunction(), );
-    download = Futures.transformAsync(
-      download, startPartsAsyncFunction(), MoreExecutors.directExecutor());
-//    download = Futures.transform(download, complete());
-    download = Futures.transformAsync(download, complete(), MoreExecutors.directExecutor());
+    download = Futures.transformAsync(download, new AsyncFunction<Download, Download>()
+    {
+      public ListenableFuture<Download> apply(Download download)
+        throws IOException
+      {
+        if(isCompleteFromPreviousRun(download))
+        {
+          return Futures.immediateFuture(download);
+        }
+        return downloadParts(download);
+      }
+    }, MoreExecutors.directExecutor());
     ListenableFuture<StoreFile> res = Futures.transform(
       download,
       new Function<Download, StoreFile>()
@@ -203,7 +406,23 @@ abstract class DownloadCommand
 //      public ListenableFuture<StoreFile> create(Throwable t)
         public ListenableFuture<StoreFile> apply(Throwable t)
         {
-          if(DownloadCommand.this.file.exists())
+          try
+          {
+            closeFileChannel(false);
+          }
+          catch(IOException ignored)
+          {
+          }
+
+          if(_options.isResume())
+          {
+            // keep the .partial file and its journal, so that a rerun can resume the download
+            if(_journal != null)
+            {
+              _journal.close();
+            }
+          }
+          else if(_output == null && DownloadCommand.this.file.exists())
           {
             DownloadCommand.this.file.delete();
           }
@@ -212,6 +431,11 @@ abstract class DownloadCommand
           {
             return Futures.immediateFailedFuture(t);
           }
+          if(isNotFound(t))
+          {
+            return Futures.immediateFailedFuture(new UsageException(
+              "Object not found at " + getUri(_options.getBucketName(), _options.getObjectKey())));
+          }
           return Futures.immediateFailedFuture(new Exception(
             "Error " + "downloading " + getUri(_options.getBucketName(), _options.getObjectKey()) +
               ".", t));
@@ -220,6 +444,27 @@ abstract class DownloadCommand
       MoreExecutors.directExecutor());
   }
 
+  /**
+   * Downloads and validates the parts of an object whose download has been started.
+   */
+  private ListenableFuture<Download> downloadParts(Download download)
+  {
+    ListenableFuture<Download> result = Futures.immediateFuture(download);
+//    result = Futures.transform(result, startPartsAsyncFunction(), );
+    result = Futures.transformAsync(
+      result, startPartsAsyncFunction(), MoreExecutors.directExecutor());
+//    result = Futures.transform(result, complete());
+    result = Futures.transformAsync(
+      result, closeFileChannelAsyncFunction(), MoreExecutors.directExecutor());
+    result = Futures.transformAsync(result, complete(), MoreExecutors.directExecutor());
+    if(_options.isResume())
+    {
+      result = Futures.transformAsync(
+        result, finishPartialFile(), MoreExecutors.directExecutor());
+    }
+    return result;
+  }
+
   /**
    * Step 1: Start download and fetch metadata.
    */
@@ -261,12 +506,13 @@ abstract class DownloadCommand
         {
           String objectVersion = meta.get("s3tool-version");
 
-          if(!String.valueOf(Version.CURRENT).equals(objectVersion))
+          if(!Version.isSupported(objectVersion))
           {
             throw new UsageException(
               errPrefix + "file uploaded with unsupported version: " + objectVersion +
-                ", should be " + Version.CURRENT);
+                ", should be " + Version.CBC + " or " + Version.CURRENT);
           }
+          _formatVersion = Integer.parseInt(objectVersion);
           if(meta.containsKey("s3tool-key-name"))
           {
             if(_encKeyProvider == null)
@@ -289,9 +535,8 @@ abstract class DownloadCommand
                 if(meta.containsKey("s3tool-pubkey-hash"))
                 {
                   String pubKeyHashHeader = meta.get("s3tool-pubkey-hash");
-                  PublicKey pubKey = Command.getPublicKey(privKey);
-                  String pubKeyHashLocal = base64Encoder.encodeToString(
-                    DigestUtils.sha256(pubKey.getEncoded())).substring(0, 8);
+                  String pubKeyHashLocal = Command.getPublicKeyHash(_encKeyProvider, privKey)
+                    .substring(0, 8);
 
                   if(!pubKeyHashLocal.equals(pubKeyHashHeader))
                   {
@@ -339,9 +584,8 @@ abstract class DownloadCommand
 
                 try
                 {
-                  PublicKey pubKey = Command.getPublicKey(privKey);
-                  String pubKeyHashLocal = base64Encoder.encodeToString(
-                    DigestUtils.sha256(pubKey.getEncoded())).substring(0, 8);
+                  String pubKeyHashLocal = Command.getPublicKeyHash(_encKeyProvider, privKey)
+                    .substring(0, 8);
 
                   if(pubKeyHashLocal.equals(pubKeyHashHeaders.get(privKeyIndex)))
                   {
@@ -368,23 +612,37 @@ abstract class DownloadCommand
               symKeyStr = symKeys.get(privKeyIndex);
             }
 
-            Cipher cipher;
             byte[] encKeyBytes;
             try
             {
-              cipher = Cipher.getInstance("RSA");
-              cipher.init(Cipher.DECRYPT_MODE, privKey);
-              encKeyBytes = cipher.doFinal(base64Decoder.decode(symKeyStr));
+              encKeyBytes = Command.unwrapDataKey(_encKeyProvider, privKey, symKeyStr);
             }
-            catch(NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException |
-              IllegalBlockSizeException | BadPaddingException e)
+            catch(NoSuchKeyException e)
             {
-              throw new RuntimeException(e);
+              throw new UsageException(
+                errPrefix + "Cannot generate the public key out of the private one");
             }
 
             encKey = new SecretKeySpec(encKeyBytes, "AES");
           }
 
+          if(meta.containsKey("s3tool-compression"))
+          {
+            if(_formatVersion != Version.CURRENT)
+            {
+              throw new UsageException(
+                errPrefix + "compressed file uploaded with unexpected version: " + objectVersion);
+            }
+            try
+            {
+              _codec = PartCodecs.get(meta.get("s3tool-compression"));
+            }
+            catch(UsageException e)
+            {
+              throw new UsageException(errPrefix + e.getMessage());
+            }
+          }
+
           cs = Long.valueOf(meta.get("s3tool-chunk-size"));
           len = Long.valueOf(meta.get("s3tool-file-length"));
         }
@@ -395,6 +653,10 @@ abstract class DownloadCommand
           cs = Utils.getDefaultChunkSize(len);
         }
         setChunkSize(cs);
+        if(_codec != null)
+        {
+          return readCompressedLayout(download);
+        }
         return Futures.immediateFuture(download);
       }
     };
@@ -404,6 +666,107 @@ abstract class DownloadCommand
 
   protected abstract ListenableFuture<Download> initiateDownload();
 
+  /**
+   * Determines the positions of the blocks and parts of a compressed object, which requires
+   * reading the index at the end of the object if it has more than one block.
+   */
+  private ListenableFuture<Download> readCompressedLayout(final Download download)
+  {
+    final int blockCount = CompressedPartLayout.getBlockCount(fileLength, chunkSize);
+    final long objectLength = download.getLength();
+    if(!CompressedPartLayout.hasIndex(blockCount))
+    {
+      long compressedSize = objectLength;
+      if(encKey != null)
+      {
+        compressedSize -= EncryptedPartFormat.getStoredPartSize(_formatVersion, 0);
+      }
+      _layout = CompressedPartLayout.forSingleBlock(compressedSize, objectLength);
+      return Futures.immediateFuture(download);
+    }
+
+    final long indexStart = objectLength - CompressedPartLayout.getIndexSize(blockCount);
+    if(indexStart < 0)
+    {
+      throw new UsageException(getUri(download.getBucketName(), download.getObjectKey()) +
+        ": compressed object is too small to have an index of " + blockCount + " blocks");
+    }
+
+    // The index is not checksummed here: it is read again as the end of the last part, which is
+    // validated and has to hold the same index
+    return Futures.transformAsync(
+      download.downloadRange(indexStart, objectLength - 1),
+      new AsyncFunction<InputStream, Download>()
+      {
+        public ListenableFuture<Download> apply(InputStream stream)
+          throws IOException
+        {
+          CompressedPartLayout layout;
+          try(InputStream in = stream)
+          {
+            layout = CompressedPartLayout.readIndex(in, blockCount, indexStart);
+          }
+          for(int i = 0; i < blockCount; i++)
+          {
+            long storedSize = layout.getCompressedSize(i);
+            if(encKey != null)
+            {
+              storedSize = EncryptedPartFormat.getStoredPartSize(_formatVersion, storedSize);
+            }
+            if(layout.getStoredSize(i) != storedSize)
+            {
+              throw new IOException("Index of compressed blocks does not match the size of " +
+                "block " + (i + 1) + " of " +
+                getUri(download.getBucketName(), download.getObjectKey()));
+            }
+          }
+          _layout = layout;
+          return Futures.immediateFuture(download);
+        }
+      },
+      MoreExecutors.directExecutor());
+  }
+
+  /**
+   * @return True if {@link #initiateDownload} can take the object's metadata from the response
+   * to the request for the first part, if {@link DownloadOptions#isPrefetchFirstPart()} is set
+   */
+  protected boolean canPrefetchFirstPart()
+  {
+    return false;
+  }
+
+  /**
+   * @return True if {@code t} reports that the object to download does not exist
+   */
+  protected boolean isNotFound(Throwable t)
+  {
+    return false;
+  }
+
+  /**
+   * The number of bytes to request for the first part before the object's layout is known: the
+   * largest stored size of the first part of an encrypted object with the default chunk size,
+   * which is the one of format {@link Version#CBC}. This also covers the first part of an object
+   * in any other format with the default chunk size.
+   */
+  protected static long getFirstPartPrefetchLength()
+  {
+    return EncryptedPartFormat.getStoredPartSize(Version.CBC, Utils.getDefaultChunkSize());
+  }
+
+  /**
+   * Like {@link #getFirstPartPrefetchLength()}, but for an object of the given (stored) length,
+   * whose default chunk size may be larger. The default chunk size grows with the length of the
+   * object, so the stored length of an encrypted object never yields a smaller chunk size than
+   * the length of its content.
+   */
+  protected static long getFirstPartPrefetchLength(long objectLength)
+  {
+    return EncryptedPartFormat.getStoredPartSize(Version.CBC,
+      Utils.getDefaultChunkSize(objectLength));
+  }
+
   /**
    * Step 2: Start downloading parts
    */
@@ -419,10 +782,25 @@ abstract class DownloadCommand
     };
   }
 
-  private ListenableFuture<Download> startParts(Download download)
+  private ListenableFuture<Download> startParts(final Download download)
     throws IOException, UsageException
   {
-    OverallProgressListener opl = null;
+    Set<Integer> restoredParts = Collections.emptySet();
+    if(_options.isResume())
+    {
+      restoredParts = openJournal(download);
+    }
+
+    // Size the file up front, so that the parts only ever write within the file
+    if(_output == null)
+    {
+      try(RandomAccessFile out = new RandomAccessFile(_dataFile, "rw"))
+      {
+        out.setLength(fileLength);
+      }
+    }
+
+    final OverallProgressListener opl;
     if(_progressListenerFactory != null)
     {
       opl = _progressListenerFactory.create(
@@ -431,28 +809,281 @@ abstract class DownloadCommand
           .setFileSizeInBytes(fileLength)
           .createProgressOptions());
     }
+    else
+    {
+      opl = null;
+    }
 
-    List<ListenableFuture<Integer>> parts = new ArrayList<ListenableFuture<Integer>>();
-    for(long position = 0; position < fileLength || (position == 0 && fileLength == 0);
-        position += chunkSize)
+    if(encKey == null && _codec == null && download.needsContentMd5(fileLength, chunkSize))
     {
-      parts.add(startPartDownload(download, position, opl));
+      startContentDigest(restoredParts);
     }
 
-    return Futures.transform(
-      Futures.allAsList(parts), Functions.constant(download), MoreExecutors.directExecutor());
+    // Parts are released through a bounded window rather than all at once, so that the
+    // executors only ever see a few parts of this download at a time.
+    PartScheduler scheduler = new PartScheduler(_options.getMaxPartsInFlight(),
+      _options.getMaxBytesInFlight());
+    for(int partNumber = 0; partNumber < getPartCount(); partNumber++)
+    {
+      if(restoredParts.contains(partNumber))
+      {
+        continue;
+      }
+
+      final int nextPart = partNumber;
+      scheduler.addPart(getPartLength(partNumber),
+        new Callable<ListenableFuture<Integer>>()
+        {
+          public ListenableFuture<Integer> call()
+          {
+            ListenableFuture<Integer> part = startPartDownload(download, nextPart, opl);
+            if(_output == null)
+            {
+              return part;
+            }
+
+            // When streaming, a part only leaves the window once it has been written to the
+            // stream, which bounds the parts held back by the reorder buffer.
+            return Futures.transformAsync(part, new AsyncFunction<Integer, Integer>()
+            {
+              public ListenableFuture<Integer> apply(Integer partNumber)
+              {
+                return Futures.transform(_output.written(getLastBlock(partNumber)),
+                  Functions.constant(partNumber), MoreExecutors.directExecutor());
+              }
+            }, MoreExecutors.directExecutor());
+          }
+        });
+    }
+
+    ListenableFuture<Download> result = Futures.transform(
+      scheduler.start(), Functions.constant(download), MoreExecutors.directExecutor());
+    if(_contentDigest != null || _streamDigest != null)
+    {
+      result = Futures.transformAsync(
+        result, contentMd5AsyncFunction(), MoreExecutors.directExecutor());
+    }
+    return result;
   }
 
-  private ListenableFuture<Integer> startPartDownload(
-    final Download download, final long position, final OverallProgressListener opl)
+  /**
+   * Computes the MD5 of the whole object in order, while the parts are being downloaded. Without
+   * encryption the downloaded bytes are the stored bytes, so they can be hashed as written: by
+   * the stream writer when streaming, and otherwise as they are written to the file. Parts that
+   * complete out of order are held back in memory within the byte budget of the download, and
+   * only parts beyond that budget (or restored from a previous run) are read back from the file.
+   */
+  private void startContentDigest(Set<Integer> restoredParts)
+  {
+    MessageDigest md = DigestUtils.getMd5Digest();
+    if(_output != null)
+    {
+      _output.setDigest(md);
+      _streamDigest = md;
+      return;
+    }
+
+    int partCount = fileLength == 0 ? 1 : (int) ((fileLength + chunkSize - 1) / chunkSize);
+    _contentDigest = new OrderedDigest(md, partCount, _options.getMaxBytesInFlight(),
+      _client.getInternalExecutor())
+    {
+      protected void hashPart(int partNumber, MessageDigest md)
+        throws IOException
+      {
+        long position = partNumber * chunkSize;
+        long partSize = Math.min(fileLength - position, chunkSize);
+        FileChannel in = getFileChannel();
+        byte[] buf = acquireBuffer();
+        try
+        {
+          long offset = 0;
+          while(offset < partSize)
+          {
+            ByteBuffer dst = ByteBuffer.wrap(buf, 0, (int) Math.min(buf.length, partSize - offset));
+            while(dst.hasRemaining())
+            {
+              if(in.read(dst, position + offset + dst.position()) == -1)
+              {
+                throw new IOException("unexpected EOF: file was truncated while being downloaded");
+              }
+            }
+            md.update(buf, 0, dst.position());
+            offset += dst.position();
+          }
+        }
+        finally
+        {
+          releaseBuffer(buf);
+        }
+      }
+    };
+
+    for(Integer partNumber : restoredParts)
+    {
+      _contentDigest.partCompleted(partNumber);
+    }
+  }
+
+  /**
+   * Waits for the MD5 of the whole object to be complete.
+   */
+  private AsyncFunction<Download, Download> contentMd5AsyncFunction()
+  {
+    return new AsyncFunction<Download, Download>()
+    {
+      public ListenableFuture<Download> apply(final Download download)
+      {
+        if(_streamDigest != null)
+        {
+          _contentMd5 = _streamDigest.digest();
+          return Futures.immediateFuture(download);
+        }
+        return Futures.transform(_contentDigest.getDigest(), new Function<byte[], Download>()
+        {
+          public Download apply(byte[] md5)
+          {
+            _contentMd5 = md5;
+            return download;
+          }
+        }, MoreExecutors.directExecutor());
+      }
+    };
+  }
+
+  /**
+   * Continues the journal of a previous run of this download if it describes the same version of
+   * the object, split into the same parts, and the {@code .partial} file still exists. Otherwise
+   * starts over with an empty {@code .partial} file and a new journal.
+   *
+   * @return The numbers of the parts that do not need to be downloaded again
+   */
+  private Set<Integer> openJournal(Download download)
+    throws IOException
   {
-    final int partNumber = (int) (position / chunkSize);
+    TransferJournal journal = new TransferJournal(new File(_dataFile.getPath() + ".journal"));
+    Map<String, String> identity = new HashMap<>();
+    identity.put("scheme", _client.getScheme());
+    identity.put("bucket", download.getBucketName());
+    identity.put("key", download.getObjectKey());
+    identity.put("version", _options.getVersion().orElse(""));
+    identity.put("etag", String.valueOf(download.getETag()));
+    identity.put("file-length", Long.toString(fileLength));
+    identity.put("chunk-size", Long.toString(chunkSize));
+
+    Set<Integer> restoredParts = new HashSet<>();
+    if(_dataFile.isFile() && journal.load() && journal.matches(identity))
+    {
+      for(Map.Entry<Integer, String> part : journal.getParts().entrySet())
+      {
+        if(download.restorePart(part.getKey(), part.getValue()))
+        {
+          restoredParts.add(part.getKey());
+        }
+      }
+      journal.resume();
+    }
+    else
+    {
+      try(RandomAccessFile out = new RandomAccessFile(_dataFile, "rw"))
+      {
+        out.setLength(0);
+      }
+      journal.create(identity);
+    }
+
+    _journal = journal;
+    return restoredParts;
+  }
 
+  /**
+   * Moves the validated {@code .partial} file into place and replaces the journal with a record
+   * of the completed download.
+   */
+  private AsyncFunction<Download, Download> finishPartialFile()
+  {
+    return new AsyncFunction<Download, Download>()
+    {
+      public ListenableFuture<Download> apply(Download download)
+        throws IOException
+      {
+        try
+        {
+          Files.move(_dataFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(AtomicMoveNotSupportedException e)
+        {
+          Files.move(_dataFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        _journal.delete();
+        _journal = null;
+        recordCompletedDownload(getUri(download.getBucketName(), download.getObjectKey()),
+          download.getETag(), _options.getVersion().orElse(""), file);
+        return Futures.immediateFuture(download);
+      }
+    };
+  }
+
+  /**
+   * @return The number of parts the object is downloaded in. The parts of a compressed object
+   * are the parts it was uploaded in.
+   */
+  private int getPartCount()
+  {
+    if(_layout != null)
+    {
+      return _layout.getPartCount();
+    }
+    return fileLength == 0 ? 1 : (int) ((fileLength + chunkSize - 1) / chunkSize);
+  }
+
+  /**
+   * @return The position in the file of the first byte of a part
+   */
+  private long getPartPosition(int partNumber)
+  {
+    if(_layout != null)
+    {
+      return _layout.getFirstBlock(partNumber) * chunkSize;
+    }
+    return partNumber * chunkSize;
+  }
+
+  /**
+   * @return The number of bytes of the file in a part
+   */
+  private long getPartLength(int partNumber)
+  {
+    long position = getPartPosition(partNumber);
+    long end = position + chunkSize;
+    if(_layout != null)
+    {
+      end = _layout.getEndBlock(partNumber) * chunkSize;
+    }
+    return Math.min(fileLength, end) - position;
+  }
+
+  /**
+   * @return The number the last data of a part is handed to the stream writer with. Compressed
+   * parts are handed over block by block, since a part can hold many blocks.
+   */
+  private int getLastBlock(int partNumber)
+  {
+    if(_layout != null)
+    {
+      return _layout.getEndBlock(partNumber) - 1;
+    }
+    return partNumber;
+  }
+
+  private ListenableFuture<Integer> startPartDownload(
+    final Download download, final int partNumber, final OverallProgressListener opl)
+  {
     return executeWithRetry(_client.getInternalExecutor(), new Callable<ListenableFuture<Integer>>()
     {
       public ListenableFuture<Integer> call()
       {
-        return startPartDownloadActual(download, position, opl);
+        return startPartDownloadActual(download, partNumber, opl);
       }
 
       public String toString()
@@ -463,27 +1094,23 @@ abstract class DownloadCommand
   }
 
   private ListenableFuture<Integer> startPartDownloadActual(
-    final Download download, final long position, OverallProgressListener opl)
+    final Download download, final int partNumber, OverallProgressListener opl)
   {
-    final int partNumber = (int) (position / chunkSize);
+    final long position = getPartPosition(partNumber);
     long start;
     long partSize;
 
-    if(encKey != null)
+    if(_layout != null)
+    {
+      // the last part ends with the index, which is read as well to validate the whole part
+      start = _layout.getPartStart(partNumber);
+      partSize = _layout.getPartSize(partNumber);
+    }
+    else if(encKey != null)
     {
-      long blockSize;
-      try
-      {
-        blockSize = Cipher.getInstance("AES/CBC/PKCS5Padding").getBlockSize();
-      }
-      catch(NoSuchAlgorithmException | NoSuchPaddingException e)
-      {
-        throw new RuntimeException(e);
-      }
-
       long postCryptSize = Math.min(fileLength - position, chunkSize);
-      start = partNumber * blockSize * (chunkSize / blockSize + 2);
-      partSize = blockSize * (postCryptSize / blockSize + 2);
+      start = EncryptedPartFormat.getStoredPartStart(_formatVersion, partNumber, chunkSize);
+      partSize = EncryptedPartFormat.getStoredPartSize(_formatVersion, postCryptSize);
     }
     else
     {
@@ -500,13 +1127,33 @@ abstract class DownloadCommand
       public ListenableFuture<Integer> apply(InputStream stream)
         throws Exception
       {
+        OrderedDigest.Part digestPart = null;
+        if(_contentDigest != null)
+        {
+          digestPart = _contentDigest.startPart(partNumber,
+            Math.min(fileLength - position, chunkSize));
+        }
         try
         {
-          readDownload(download, stream, position, partNumber);
+          readDownload(download, stream, position, partNumber, digestPart);
+          if(_journal != null)
+          {
+            _journal.recordPart(partNumber, download.getPartState(partNumber));
+          }
+          if(digestPart != null)
+          {
+            digestPart.completed();
+            digestPart = null;
+          }
           return Futures.immediateFuture(partNumber);
         }
         finally
         {
+          if(digestPart != null)
+          {
+            digestPart.failed();
+          }
+
           // make sure that the stream is always closed
           try
           {
@@ -523,107 +1170,291 @@ abstract class DownloadCommand
       getPartFuture, readDownloadFunction, MoreExecutors.directExecutor());
   }
 
+  /**
+   * @param digestPart Hashes the part as it is written, or null if the object is not hashed
+   */
   private void readDownload(
-    Download download, InputStream stream, long position, int partNumber)
+    Download download, InputStream stream, long position, int partNumber,
+    OrderedDigest.Part digestPart)
     throws Exception
   {
-    RandomAccessFile out = new RandomAccessFile(file, "rw");
-    out.seek(position);
+    if(_layout != null)
+    {
+      readCompressedPart(stream, partNumber);
+      return;
+    }
 
-    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    long postCryptSize = Math.min(fileLength - position, chunkSize);
 
     InputStream in;
     if(encKey != null)
     {
-      in = new CipherWithInlineIVInputStream(stream, cipher, Cipher.DECRYPT_MODE, encKey);
+      in = EncryptedPartFormat.newDecryptingStream(_formatVersion, stream, encKey, partNumber,
+        postCryptSize);
     }
     else
     {
       in = stream;
     }
 
-    long postCryptSize = Math.min(fileLength - position, chunkSize);
-    int bufSize = 8192;
-    byte[] buf = new byte[bufSize];
+    writePart(in, position, partNumber, postCryptSize, digestPart);
+  }
+
+  /**
+   * Reads a part of a compressed object, which holds a run of blocks that are decrypted and
+   * decompressed one after the other (see {@link CompressedPartLayout}). The last part ends with
+   * the index, which has to be the index the layout was read from.
+   */
+  private void readCompressedPart(InputStream stream, int partNumber)
+    throws IOException, GeneralSecurityException
+  {
+    for(int block = _layout.getFirstBlock(partNumber); block < _layout.getEndBlock(partNumber);
+        block++)
+    {
+      // The part continues after the block, so closing the block does not close the part
+      InputStream in = new CloseShieldInputStream(
+        ByteStreams.limit(stream, _layout.getStoredSize(block)));
+      if(encKey != null)
+      {
+        in = EncryptedPartFormat.newDecryptingStream(_formatVersion, in, encKey, block,
+          _layout.getCompressedSize(block));
+      }
 
-    Runnable cleanup = () -> {
+      // The decompressing stream is closed to release the decompressor right away
+      InputStream decompressed = _codec.newDecompressingStream(in);
       try
       {
-        out.close();
-        stream.close();
+        long size = Math.min(fileLength - block * chunkSize, chunkSize);
+        byte[] data = null;
+        if(_output != null)
+        {
+          data = readWhole(decompressed, size);
+        }
+        else
+        {
+          writePart(decompressed, block * chunkSize, block, size, null);
+        }
+        // The decompressor may stop short of the end of the block, so reaching the end of the
+        // block here is what verifies the tag of an encrypted block
+        if(decompressed.read() != -1)
+        {
+          throw new IOException("decompressed block is longer than expected");
+        }
+        if(in.read() != -1)
+        {
+          throw new IOException("unexpected data after the end of a compressed block");
+        }
+        if(data != null)
+        {
+          _output.put(block, data);
+        }
       }
-      catch(IOException ignored)
+      finally
       {
+        decompressed.close();
       }
-    };
+    }
+
+    if(partNumber == _layout.getPartCount() - 1 && _layout.hasIndex())
+    {
+      byte[] index = new byte[(int) CompressedPartLayout.getIndexSize(_layout.getBlockCount())];
+      if(ByteStreams.read(stream, index, 0, index.length) < index.length ||
+        !Arrays.equals(index, _layout.toIndex()))
+      {
+        throw new IOException("index of compressed blocks at the end of the object does not " +
+          "match the index that was read first");
+      }
+    }
+    if(stream.read() != -1)
+    {
+      throw new IOException("unexpected data after the end of a compressed part");
+    }
+  }
 
+  /**
+   * Reads the {@code size} bytes of a part, or of a block of a compressed part, to hand them to
+   * the output stream.
+   */
+  private byte[] readWhole(InputStream in, long size)
+    throws IOException
+  {
+    byte[] data = new byte[Math.toIntExact(size)];
+    if(readFully(in, data, data.length) < data.length)
+    {
+      throw new IOException("unexpected EOF");
+    }
+    return data;
+  }
+
+  /**
+   * Writes a part, or a block of a compressed part, that is read from {@code in} to the file or
+   * the output stream.
+   *
+   * @param partNumber The number the data is handed to the output stream with
+   * @param digestPart Is offered the bytes written to the file, or null
+   */
+  private void writePart(
+    InputStream in, long position, int partNumber, long postCryptSize,
+    OrderedDigest.Part digestPart)
+    throws IOException
+  {
     // Handle empty encrypted file, offset == postCryptSize is implied
-    if(encKey != null && postCryptSize == 0)
+    if(encKey != null && _codec == null && postCryptSize == 0)
     {
-      int result = readSafe(in, buf, 0, 0, cleanup);
+      int result = in.read(new byte[0], 0, 0);
       if(result != -1)
       {
         // TODO: Check if the correct/expected result here should be 0 (instead
         // of -1).
-        cleanup.run();
         throw new IOException("EOF was expected");
       }
+      if(_output != null)
+      {
+        _output.put(partNumber, new byte[0]);
+      }
+      return;
+    }
+
+    if(_output != null)
+    {
+      // The whole part is read before it is handed over, so that a retried part never
+      // reaches the stream twice, and an encrypted part only reaches it once its tag has been
+      // verified
+      _output.put(partNumber, readWhole(in, postCryptSize));
+      return;
     }
-    else // Not necessary, just for easier reading
+
+    FileChannel out = getFileChannel();
+    byte[] buf = acquireBuffer();
+    try
     {
       long offset = 0;
       while(offset < postCryptSize)
       {
-        int unreadSize = Integer.MAX_VALUE;
-        try
+        int len = (int) Math.min(buf.length, postCryptSize - offset);
+        int count = readFully(in, buf, len);
+        if(count < len)
         {
-          unreadSize = Math.toIntExact(postCryptSize - offset);
+          throw new IOException("unexpected EOF");
         }
-        catch(ArithmeticException ignored)
+
+        ByteBuffer src = ByteBuffer.wrap(buf, 0, count);
+        while(src.hasRemaining())
         {
+          out.write(src, position + offset + src.position());
         }
-        int len = Math.min(bufSize, unreadSize);
-        int result = readSafe(in, buf, 0, len, cleanup);
-        if(result == -1)
+        if(digestPart != null)
         {
-          cleanup.run();
-          throw new IOException("unexpected EOF");
+          digestPart.update(buf, 0, count);
         }
+        offset += count;
+      }
+    }
+    finally
+    {
+      releaseBuffer(buf);
+    }
+  }
 
-        writeSafe(out, buf, 0, result, cleanup);
-        offset += result;
+  /**
+   * Reads until {@code len} bytes have been read or the stream is exhausted.
+   *
+   * @return The number of bytes read
+   */
+  private static int readFully(InputStream in, byte[] buf, int len)
+    throws IOException
+  {
+    int total = 0;
+    while(total < len)
+    {
+      int count = in.read(buf, total, len - total);
+      if(count == -1)
+      {
+        break;
       }
+      total += count;
     }
+    return total;
+  }
 
-    cleanup.run();
+  private byte[] acquireBuffer()
+  {
+    byte[] buf = _buffers.poll();
+    return buf != null ? buf : new byte[BUFFER_SIZE];
+  }
+
+  private void releaseBuffer(byte[] buf)
+  {
+    _buffers.offer(buf);
   }
 
-  private int readSafe(InputStream in, byte[] buf, int offset, int len, Runnable cleanup)
+  /**
+   * Returns the channel parts are written to (and read back from to be hashed), opening it on
+   * first use. Like in {@link UploadCommand}, the channel is re-opened if an interrupted writer
+   * closed it.
+   */
+  private synchronized FileChannel getFileChannel()
     throws IOException
   {
-    try
+    if(_fileChannelClosed)
     {
-      return in.read(buf, offset, len);
+      throw new IOException("Download to '" + _dataFile.getPath() + "' has already finished");
     }
-    catch(IOException e)
+    if(_fileChannel == null || !_fileChannel.isOpen())
     {
-      cleanup.run();
-      throw e;
+      _fileChannel = FileChannel.open(_dataFile.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
     }
+    return _fileChannel;
   }
 
-  private void writeSafe(RandomAccessFile out, byte[] buf, int offset, int len, Runnable cleanup)
+  /**
+   * Closes the channel parts are written to, optionally forcing its content to the storage
+   * device first.
+   */
+  private synchronized void closeFileChannel(boolean sync)
     throws IOException
   {
-    try
+    _fileChannelClosed = true;
+    if(_fileChannel != null)
     {
-      out.write(buf, offset, len);
+      try
+      {
+        if(sync && _fileChannel.isOpen())
+        {
+          _fileChannel.force(true);
+        }
+      }
+      finally
+      {
+        _fileChannel.close();
+        _fileChannel = null;
+      }
     }
-    catch(IOException e)
+  }
+
+  /**
+   * Step 3: Close the output file once all parts have been written, or flush the output stream
+   * when streaming.
+   */
+  private AsyncFunction<Download, Download> closeFileChannelAsyncFunction()
+  {
+    return new AsyncFunction<Download, Download>()
     {
-      cleanup.run();
-      throw e;
-    }
+      public ListenableFuture<Download> apply(Download download)
+        throws IOException
+      {
+        if(_output != null)
+        {
+          _output.flush();
+        }
+        else
+        {
+          closeFileChannel(_options.isFsync());
+        }
+        return Futures.immediateFuture(download);
+      }
+    };
   }
 
   private AsyncFunction<Download, Download> complete()
@@ -633,7 +1464,7 @@ abstract class DownloadCommand
       public ListenableFuture<Download> apply(Download download)
       {
         return download.completeDownload(
-          DownloadCommand.this.fileLength, DownloadCommand.this.chunkSize);
+          DownloadCommand.this.fileLength, DownloadCommand.this.chunkSize, _contentMd5);
       }
     };
   }
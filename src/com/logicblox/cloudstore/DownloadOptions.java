@@ -17,6 +17,7 @@
 package com.logicblox.cloudstore;
 
 import java.io.File;
+import java.io.OutputStream;
 import java.util.Optional;
 
 /**
@@ -47,10 +48,21 @@ public class DownloadOptions
   private boolean _overwrite;
   private boolean _dryRun;
   private OverallProgressListenerFactory _overallProgressListenerFactory;
+  private int _maxPartsInFlight = -1;
+  private long _maxBytesInFlight = -1;
+  private boolean _resume;
+  private boolean _fsync;
+  private OutputStream _outputStream;
+  private boolean _prefetchFirstPart;
+  private RequestHedger _requestHedger;
+  private Long _objectLength;
 
   DownloadOptions(
     CloudStoreClient cloudStoreClient, File file, String bucketName, String objectKey, String version,
-    boolean overwrite, boolean dryRun, OverallProgressListenerFactory overallProgressListenerFactory)
+    boolean overwrite, boolean dryRun, OverallProgressListenerFactory overallProgressListenerFactory,
+    int maxPartsInFlight, long maxBytesInFlight, boolean resume, boolean fsync,
+    OutputStream outputStream, boolean prefetchFirstPart, RequestHedger requestHedger,
+    Long objectLength)
   {
     super(cloudStoreClient);
     _file = file;
@@ -60,6 +72,14 @@ public class DownloadOptions
     _overwrite = overwrite;
     _dryRun = dryRun;
     _overallProgressListenerFactory = overallProgressListenerFactory;
+    _maxPartsInFlight = maxPartsInFlight;
+    _maxBytesInFlight = maxBytesInFlight;
+    _resume = resume;
+    _fsync = fsync;
+    _outputStream = outputStream;
+    _prefetchFirstPart = prefetchFirstPart;
+    _requestHedger = requestHedger;
+    _objectLength = objectLength;
   }
 
   /**
@@ -73,6 +93,17 @@ public class DownloadOptions
     return _file;
   }
 
+  /**
+   * Return the stream the object is written to, in order, instead of to a local file. The
+   * stream is flushed, but not closed, once the download completes.
+   *
+   * @return optional output stream
+   */
+  public Optional<OutputStream> getOutputStream()
+  {
+    return Optional.ofNullable(_outputStream);
+  }
+
   /**
    * Return the name of the bucket containing the file to download.
    *
@@ -115,6 +146,64 @@ public class DownloadOptions
     return _overwrite;
   }
 
+  /**
+   * If set to true, the download is written to a {@code .partial} file next to the output file,
+   * together with a journal of the parts that have been downloaded. On failure both are kept, and
+   * a later download of the same object to the same file only fetches the missing parts. The
+   * {@code .partial} file is renamed to the output file once the download has been validated.
+   *
+   * @return resume flag
+   */
+  public boolean isResume()
+  {
+    return _resume;
+  }
+
+  /**
+   * If set to true, the downloaded data is forced to the storage device once, after all parts
+   * have been written.
+   *
+   * @return fsync flag
+   */
+  public boolean isFsync()
+  {
+    return _fsync;
+  }
+
+  /**
+   * If set to true, the first part of the object is requested right away and the object's
+   * metadata is taken from that response, instead of from separate metadata requests made before
+   * any data is downloaded.
+   *
+   * @return prefetch-first-part flag
+   */
+  public boolean isPrefetchFirstPart()
+  {
+    return _prefetchFirstPart;
+  }
+
+  /**
+   * Return the length of the object as it is already known, for instance from a listing. It
+   * determines how many bytes are requested when the first part is prefetched.
+   *
+   * @return optional length of the object
+   */
+  public Optional<Long> getObjectLength()
+  {
+    return Optional.ofNullable(_objectLength);
+  }
+
+  /**
+   * Return the hedger that decides when the ranged GETs of the download are duplicated because
+   * they fall behind. If not set, requests are not hedged.
+   *
+   * @return optional request hedger
+   */
+  public Optional<RequestHedger> getRequestHedger()
+  {
+    return Optional.ofNullable(_requestHedger);
+  }
+
   /**
    * If set to true, print operations that would be executed, but do not perform them.
    *
@@ -134,4 +223,34 @@ public class DownloadOptions
   {
     return Optional.ofNullable(_overallProgressListenerFactory);
   }
+
+  /**
+   * Return the maximum number of parts that are transferred at the same time. Further parts are
+   * started only as earlier ones finish.
+   *
+   * @return maximum number of parts in flight
+   */
+  public int getMaxPartsInFlight()
+  {
+    if(_maxPartsInFlight == -1)
+    {
+      return Utils.getDefaultMaxPartsInFlight();
+    }
+    return _maxPartsInFlight;
+  }
+
+  /**
+   * Return the maximum number of bytes that are transferred at the same time, summed over all
+   * parts in flight. A single part larger than this limit is still transferred, on its own.
+   *
+   * @return maximum number of bytes in flight
+   */
+  public long getMaxBytesInFlight()
+  {
+    if(_maxBytesInFlight == -1)
+    {
+      return Utils.getDefaultMaxBytesInFlight();
+    }
+    return _maxBytesInFlight;
+  }
 }
@@ -17,14 +17,17 @@
 package com.logicblox.cloudstore;
 
 import java.io.File;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * {@code DownloadOptionsBuilder} is a builder for {@code DownloadOptions} objects, used
  * to control the behavior of the cloud-store download command.  This can be used to
  * download both individual files and all files in directories.
  * <p>
- * Fields {@code _file}, {@code _bucketName} and {@code _objectKey} are mandatory. All the others
- * are optional.
+ * Fields {@code _file} (or {@code _outputStream}), {@code _bucketName} and {@code _objectKey} are
+ * mandatory. All the others are optional.
  * 
  * @see DownloadOptions
  * @see CloudStoreClient#getOptionsBuilderFactory()
@@ -42,6 +45,14 @@ public class DownloadOptionsBuilder
   private boolean _overwrite = false;
   private boolean _dryRun = false;
   private OverallProgressListenerFactory _overallProgressListenerFactory;
+  private int _maxPartsInFlight = -1;
+  private long _maxBytesInFlight = -1;
+  private boolean _resume = false;
+  private boolean _fsync = false;
+  private OutputStream _outputStream;
+  private boolean _prefetchFirstPart = false;
+  private RequestHedger _requestHedger;
+  private Long _objectLength;
 
   DownloadOptionsBuilder(CloudStoreClient client)
   {
@@ -61,6 +72,35 @@ public class DownloadOptionsBuilder
     return this;
   }
 
+  /**
+   * Write the object to a stream instead of to a local file. Parts are still downloaded in
+   * parallel, but are written to the stream strictly in order. Parts that arrive ahead of their
+   * turn are held in memory, so the memory used is bounded by the maximum number of bytes in
+   * flight. The stream is flushed, but not closed, once the download completes.
+   * <p>
+   * Streaming downloads cannot be resumed and are not supported by recursive downloads.
+   *
+   * @param outputStream stream to write the object to
+   * @return this builder
+   */
+  public DownloadOptionsBuilder setOutputStream(OutputStream outputStream)
+  {
+    _outputStream = outputStream;
+    return this;
+  }
+
+  /**
+   * Like {@link #setOutputStream}, but writes the object to a channel.
+   *
+   * @param outputChannel channel to write the object to
+   * @return this builder
+   */
+  public DownloadOptionsBuilder setOutputChannel(WritableByteChannel outputChannel)
+  {
+    _outputStream = Channels.newOutputStream(outputChannel);
+    return this;
+  }
+
   /**
    * Set the name of the bucket containing the file to download.
    *
@@ -111,6 +151,84 @@ public class DownloadOptionsBuilder
     return this;
   }
 
+  /**
+   * If set to true, download into a {@code .partial} file next to the output file and record the
+   * downloaded parts in a journal. If the download fails, both are kept and a later download of
+   * the same object to the same file only fetches the parts that are missing. The output file is
+   * only replaced once the download has been validated. The ETag and version of the object are
+   * then recorded in the journal directory ({@link Utils#getDefaultJournalDirectory()}), so that a
+   * rerun skips the file only if it was downloaded from the same version of the object.
+   *
+   * @param resume true if the download should be resumable
+   * @return this builder
+   */
+  public DownloadOptionsBuilder setResume(boolean resume)
+  {
+    _resume = resume;
+    return this;
+  }
+
+  /**
+   * If set to true, force the downloaded data to the storage device (fsync) after all parts have
+   * been written, before the download completes.
+   *
+   * @param fsync fsync flag
+   * @return this builder
+   */
+  public DownloadOptionsBuilder setFsync(boolean fsync)
+  {
+    _fsync = fsync;
+    return this;
+  }
+
+  /**
+   * If set to true, request the first part of the object right away, before its metadata is
+   * known, and take the metadata (user metadata, length and ETag) from that response. This saves
+   * the metadata requests that otherwise precede the first byte, which matters most for small
+   * objects. The first part is requested in the size it has with the default chunk size; if the
+   * object turns out to be laid out differently, that response is only used for its metadata.
+   * <p>
+   * Only supported by S3 stores. Other stores fall back to a regular download.
+   *
+   * @param prefetchFirstPart prefetch-first-part flag
+   * @return this builder
+   */
+  public DownloadOptionsBuilder setPrefetchFirstPart(boolean prefetchFirstPart)
+  {
+    _prefetchFirstPart = prefetchFirstPart;
+    return this;
+  }
+
+  /**
+   * Set the length of the object, if it is already known, for instance from a listing. A
+   * prefetched first part is then requested in the size it has with the default chunk size for
+   * an object of that length, so that it covers the first part of large objects as well.
+   *
+   * @param objectLength length of the object, or null if it is not known
+   * @return this builder
+   */
+  public DownloadOptionsBuilder setObjectLength(Long objectLength)
+  {
+    _objectLength = objectLength;
+    return this;
+  }
+
+  /**
+   * Hedge the ranged GETs of the download: when the request for a part falls behind the others,
+   * as decided by {@code requestHedger}, the bytes of the part that have not arrived yet are
+   * requested again, and whichever request completes first is used. The hedger can be shared by
+   * several downloads to share its statistics and to cap the extra requests of all of them with a
+   * single budget. Parts of hedged requests are buffered in memory.
+   *
+   * @param requestHedger request hedger, or null to not hedge requests
+   * @return this builder
+   */
+  public DownloadOptionsBuilder setRequestHedger(RequestHedger requestHedger)
+  {
+    _requestHedger = requestHedger;
+    return this;
+  }
+
   /**
    * If set to true, print operations that would be executed, but do not perform them.
    *
@@ -136,13 +254,40 @@ public class DownloadOptionsBuilder
     return this;
   }
 
+  /**
+   * Set the maximum number of parts that are transferred at the same time. Further parts are
+   * started only as earlier ones finish. If not set, {@link Utils#getDefaultMaxPartsInFlight()}
+   * is used.
+   *
+   * @param maxPartsInFlight maximum number of parts in flight
+   * @return this builder
+   */
+  public DownloadOptionsBuilder setMaxPartsInFlight(int maxPartsInFlight)
+  {
+    _maxPartsInFlight = maxPartsInFlight;
+    return this;
+  }
+
+  /**
+   * Set the maximum number of bytes that are transferred at the same time, summed over all parts
+   * in flight. If not set, {@link Utils#getDefaultMaxBytesInFlight()} is used.
+   *
+   * @param maxBytesInFlight maximum number of bytes in flight
+   * @return this builder
+   */
+  public DownloadOptionsBuilder setMaxBytesInFlight(long maxBytesInFlight)
+  {
+    _maxBytesInFlight = maxBytesInFlight;
+    return this;
+  }
+
   private void validateOptions()
   {
     if(_cloudStoreClient == null)
     {
       throw new UsageException("CloudStoreClient has to be set");
     }
-    else if(_file == null)
+    else if(_file == null && _outputStream == null)
     {
       throw new UsageException("File has to be set");
     }
@@ -154,6 +299,19 @@ public class DownloadOptionsBuilder
     {
       throw new UsageException("Object key has to be set");
     }
+
+    if(_maxPartsInFlight != -1 && _maxPartsInFlight < 1)
+    {
+      throw new UsageException("Maximum number of parts in flight has to be positive");
+    }
+    if(_maxBytesInFlight != -1 && _maxBytesInFlight < 1)
+    {
+      throw new UsageException("Maximum number of bytes in flight has to be positive");
+    }
+    if(_outputStream != null && _resume)
+    {
+      throw new UsageException("Downloads to an output stream cannot be resumed");
+    }
   }
 
   /**
@@ -168,6 +326,7 @@ public class DownloadOptionsBuilder
     validateOptions();
 
     return new DownloadOptions(_cloudStoreClient, _file, _bucketName, _objectKey, _version,
-      _overwrite, _dryRun, _overallProgressListenerFactory);
+      _overwrite, _dryRun, _overallProgressListenerFactory, _maxPartsInFlight, _maxBytesInFlight,
+      _resume, _fsync, _outputStream, _prefetchFirstPart, _requestHedger, _objectLength);
   }
 }
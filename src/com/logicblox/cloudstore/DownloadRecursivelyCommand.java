@@ -19,25 +19,53 @@ package com.logicblox.cloudstore;
 
 import com.google.common.util.concurrent.AsyncFunction;
 //import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 
+/**
+ * Downloads all objects under a prefix. The listing is consumed page by page: the objects of a
+ * page are queued for download as soon as the page arrives, while the next page is only processed
+ * once the queue has room for it. Downloads are started through a bounded window, and each output
+ * file (and its missing parent directories) is only created when its download starts. Only the
+ * results of the downloads are collected, the listing is never held in memory as a whole.
+ */
 class DownloadRecursivelyCommand
   extends Command
 {
+  /**
+   * The maximum number of files downloaded at the same time. Each of them has its own window of
+   * parts in flight.
+   */
+  static final int MAX_FILES_IN_FLIGHT = 32;
+
+  /**
+   * The number of listed files that may wait for a download slot before the next page of the
+   * listing is requested.
+   */
+  static final int MAX_PENDING_FILES = 1000;
+
   private DownloadOptions _options;
   private File _destination;
+  private PartScheduler _scheduler;
+  private ListenableFuture<Void> _downloads;
+  private ListPageIterator _pages;
   private List<ListenableFuture<StoreFile>> _futures;
+  private List<StoreFile> _downloaded;
   private java.util.Set<File> _filesToCleanup;
   private List<File> _dirsToCleanup;
   private boolean _dryRun = false;
+  private final SettableFuture<List<StoreFile>> _result = SettableFuture.create();
 
 
   public DownloadRecursivelyCommand(DownloadOptions options)
@@ -46,6 +74,7 @@ class DownloadRecursivelyCommand
     _options = options;
     _destination = _options.getFile();
     _futures = new ArrayList<>();
+    _downloaded = new ArrayList<>();
     _filesToCleanup = new java.util.HashSet<>();
     _dirsToCleanup = new ArrayList<>();
     _dryRun = _options.isDryRun();
@@ -55,7 +84,13 @@ class DownloadRecursivelyCommand
   public ListenableFuture<List<StoreFile>> run()
     throws ExecutionException, InterruptedException, IOException
   {
+    if(_options.getOutputStream().isPresent())
+    {
+      throw new UsageException("Recursive downloads to an output stream are not supported");
+    }
+
     _futures.clear();
+    _downloaded.clear();
     _filesToCleanup.clear();
     _dirsToCleanup.clear();
 
@@ -69,27 +104,35 @@ class DownloadRecursivelyCommand
       throw ex;
     }
 
-    ListenableFuture<List<StoreFile>> listObjs = querySourceFiles();
-    ListenableFuture<List<StoreFile>> result = Futures.transformAsync(
-      listObjs,
-      new AsyncFunction<List<StoreFile>, List<StoreFile>>()
+    _scheduler = new PartScheduler(MAX_FILES_IN_FLIGHT, Long.MAX_VALUE);
+    _downloads = _scheduler.open();
+    Futures.addCallback(_downloads, new FutureCallback<Void>()
+    {
+      public void onSuccess(Void ignored)
       {
-        public ListenableFuture<List<StoreFile>> apply(List<StoreFile> srcFiles)
-          throws IOException
+        synchronized(DownloadRecursivelyCommand.this)
         {
-          prepareFutures(srcFiles);
-          if(_options.isDryRun())
-          {
-            return Futures.immediateFuture(null);
-          }
-          else
-          {
-            return scheduleExecution();
-          }
+          _result.set(_dryRun ? null : new ArrayList<>(_downloaded));
         }
-      },
-      MoreExecutors.directExecutor());
-    return result;
+      }
+
+      public void onFailure(Throwable t)
+      {
+        _result.setException(t);
+      }
+    }, MoreExecutors.directExecutor());
+
+    try
+    {
+      _pages = _client.listObjectsPages(createListOptions());
+    }
+    catch(Throwable t)
+    {
+      fail(t);
+      return scheduleExecution();
+    }
+    listNextPage();
+    return scheduleExecution();
   }
 
 
@@ -98,10 +141,9 @@ class DownloadRecursivelyCommand
     // Don't see a way to have all peer futures in the list fail and clean up if any
     // one fails, even if explicitly cancelled.  This seems to be the only way
     // to clean up all the newly created files reliably.
-    ListenableFuture<List<StoreFile>> futureList = Futures.allAsList(_futures);
 //    return Futures.withFallback(futureList, new FutureFallback<List<StoreFile>>()
     return Futures.catchingAsync(
-      futureList, 
+      _result,
       Throwable.class, 
       new AsyncFunction<Throwable, List<StoreFile>>()
       {
@@ -116,7 +158,57 @@ class DownloadRecursivelyCommand
   }
 
 
-  private ListenableFuture<List<StoreFile>> querySourceFiles()
+  /**
+   * Waits for the next page of the listing and queues its files for download. The page after it
+   * is already being fetched meanwhile, but only processed once the download queue has room
+   * again.
+   */
+  private void listNextPage()
+  {
+    if(!_pages.hasNext())
+    {
+      _scheduler.close();
+      return;
+    }
+
+    Futures.addCallback(_pages.next(), new FutureCallback<ListPage>()
+    {
+      public void onSuccess(ListPage page)
+      {
+        try
+        {
+          for(StoreFile src : page.getFiles())
+          {
+            addDownload(src);
+          }
+        }
+        catch(Throwable t)
+        {
+          fail(t);
+          return;
+        }
+
+        _scheduler.awaitCapacity(MAX_PENDING_FILES).addListener(new Runnable()
+        {
+          public void run()
+          {
+            if(!_result.isDone())
+            {
+              listNextPage();
+            }
+          }
+        }, MoreExecutors.directExecutor());
+      }
+
+      public void onFailure(Throwable t)
+      {
+        fail(t);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+
+  private ListOptions createListOptions()
   {
     // find all files that need to be downloaded
     ListOptionsBuilder lob = _client.getOptionsBuilderFactory()
@@ -126,7 +218,23 @@ class DownloadRecursivelyCommand
       .setRecursive(true)
       .setIncludeVersions(false)
       .setExcludeDirs(false);
-    return _client.listObjects(lob.createOptions());
+    return lob.createOptions();
+  }
+
+
+  /**
+   * Fails the download and stops starting further files.
+   */
+  private void fail(Throwable t)
+  {
+    if(_result.setException(t))
+    {
+      _downloads.cancel(true);
+      if(_pages != null)
+      {
+        _pages.cancel();
+      }
+    }
   }
 
 
@@ -190,89 +298,219 @@ class DownloadRecursivelyCommand
   }
 
 
-  private void prepareFutures(List<StoreFile> potentialFiles)
-    throws IOException
+  /**
+   * Queues the download of a listed object. Directory markers only create their parent
+   * directory.
+   */
+  private void addDownload(final StoreFile src)
   {
     File destAbs = _destination.getAbsoluteFile();
     String baseDirURI = Utils.getBaseDirURI(_options.getObjectKey());
+    String relFile = src.getObjectKey().substring(baseDirURI.length());
+    final File outputFile = new File(destAbs, relFile);
 
-    for(StoreFile src : potentialFiles)
+    if(src.getObjectKey().endsWith("/"))
     {
-      String relFile = src.getObjectKey().substring(baseDirURI.length());
-      File outputFile = new File(destAbs, relFile);
-      File outputPath = new File(outputFile.getParent());
-
-      if(!outputPath.exists())
+      createParentDirs(outputFile);
+    }
+    else if(isAlreadyDownloaded(src, outputFile))
+    {
+      if(_dryRun)
       {
-        try
+        System.out.println("<DRYRUN> skipping '" + getUri(_options.getBucketName(),
+          src.getObjectKey()) + "', already downloaded to '" + outputFile.getAbsolutePath() + "'");
+      }
+      else
+      {
+        StoreFile f = new StoreFile();
+        f.setLocalFile(outputFile);
+        f.setETag(src.getETag());
+        f.setBucketName(_options.getBucketName());
+        f.setObjectKey(src.getObjectKey());
+        synchronized(this)
+        {
+          _downloaded.add(f);
+        }
+      }
+    }
+    else if(_dryRun)
+    {
+      prepareOutputFile(outputFile);
+      System.out.println(
+        "<DRYRUN> downloading '" + getUri(_options.getBucketName(), src.getObjectKey()) + "' to '" +
+          outputFile.getAbsolutePath() + "'");
+    }
+    else
+    {
+      long size = src.getSize().orElse(0L);
+      _scheduler.addPart(size, new Callable<ListenableFuture<StoreFile>>()
+      {
+        public ListenableFuture<StoreFile> call()
+          throws IOException, ExecutionException, InterruptedException
         {
-          updateDirsToCleanup(Utils.mkdirs(outputPath, _dryRun));
+          return startDownload(src, outputFile);
         }
-        catch(IOException ex)
+      });
+    }
+  }
+
+
+  /**
+   * Returns true if a resumed download already completed the download of a listed object in a
+   * previous run, i.e. if the output file is recorded as downloaded from an object with the listed
+   * ETag. Other existing output files are left to the download of the object, which refuses to
+   * overwrite them.
+   */
+  private boolean isAlreadyDownloaded(StoreFile src, File outputFile)
+  {
+    if(!_options.isResume())
+    {
+      return false;
+    }
+    try
+    {
+      return DownloadCommand.isCompletedDownload(
+        getUri(_options.getBucketName(), src.getObjectKey()), src.getETag(), "", outputFile);
+    }
+    catch(IOException e)
+    {
+      return false;
+    }
+  }
+
+
+  /**
+   * Starts the download of a listed object. This is synchronized with {@link #cleanup}, so that
+   * no output file is created after the cleanup of a failed download.
+   */
+  private synchronized ListenableFuture<StoreFile> startDownload(StoreFile src, File outputFile)
+    throws IOException
+  {
+    prepareOutputFile(outputFile);
+
+    // The listing already tells that the object exists and how large it is. The first ranged
+    // GET is sized to cover the first part of an object of that size, and the metadata is taken
+    // from its response, so that listed objects are downloaded without any HEAD request.
+    boolean prefetchFirstPart = _options.isPrefetchFirstPart() || src.getSize().isPresent();
+
+    DownloadOptions options = _client.getOptionsBuilderFactory()
+      .newDownloadOptionsBuilder()
+      .setFile(outputFile)
+      .setBucketName(_options.getBucketName())
+      .setObjectKey(src.getObjectKey())
+      .setOverallProgressListenerFactory(
+        _options.getOverallProgressListenerFactory().orElse(null))
+      .setMaxPartsInFlight(_options.getMaxPartsInFlight())
+      .setMaxBytesInFlight(_options.getMaxBytesInFlight())
+      .setResume(_options.isResume())
+      .setFsync(_options.isFsync())
+      .setPrefetchFirstPart(prefetchFirstPart)
+      .setObjectLength(src.getSize().orElse(null))
+      .setRequestHedger(_options.getRequestHedger().orElse(null))
+      .createOptions();
+
+    final ListenableFuture<StoreFile> future = _client.download(options);
+    _futures.add(future);
+    Futures.addCallback(future, new FutureCallback<StoreFile>()
+    {
+      public void onSuccess(StoreFile f)
+      {
+        synchronized(DownloadRecursivelyCommand.this)
         {
-          throw new UsageException(
-            "Could not create directory '" + outputPath + "': " + ex.getMessage());
+          _futures.remove(future);
+          _downloaded.add(f);
         }
       }
 
-      if(!src.getObjectKey().endsWith("/"))
+      public void onFailure(Throwable t)
       {
-        if(outputFile.exists())
+        synchronized(DownloadRecursivelyCommand.this)
         {
-          if(_options.doesOverwrite())
-          {
-            if(_dryRun)
-            {
-              System.out.println(
-                "<DRYRUN> overwrite existing file '" + outputFile.getAbsolutePath() + "'");
-            }
-            else
-            {
-              if(!outputFile.delete())
-              {
-                throw new UsageException("Could not overwrite existing file '" + outputFile + "'");
-              }
-            }
-          }
-          else
-          {
-            throw new UsageException(
-              "File '" + outputFile + "' already exists. Please delete or use --overwrite");
-          }
+          _futures.remove(future);
         }
+      }
+    }, MoreExecutors.directExecutor());
+    return future;
+  }
+
+
+  private synchronized void createParentDirs(File outputFile)
+  {
+    File outputPath = new File(outputFile.getParent());
+    if(!outputPath.exists())
+    {
+      try
+      {
+        updateDirsToCleanup(Utils.mkdirs(outputPath, _dryRun));
+      }
+      catch(IOException ex)
+      {
+        throw new UsageException(
+          "Could not create directory '" + outputPath + "': " + ex.getMessage());
+      }
+    }
+  }
+
+
+  /**
+   * Creates the missing parent directories of an output file and clears the way for it, right
+   * before its download starts.
+   */
+  private synchronized void prepareOutputFile(File outputFile)
+  {
+    if(_result.isDone())
+    {
+      throw new CancellationException("download of '" + outputFile + "' was not started");
+    }
+
+    createParentDirs(outputFile);
+    if(outputFile.exists())
+    {
+      if(_options.doesOverwrite())
+      {
         if(_dryRun)
         {
           System.out.println(
-            "<DRYRUN> downloading '" + getUri(_options.getBucketName(), src.getObjectKey()) + "' to '" +
-              outputFile.getAbsolutePath() + "'");
+            "<DRYRUN> overwrite existing file '" + outputFile.getAbsolutePath() + "'");
         }
-        else
+        else if(!_options.isResume())
         {
-          _filesToCleanup.add(outputFile);
-
-          DownloadOptions options = _client.getOptionsBuilderFactory()
-            .newDownloadOptionsBuilder()
-            .setFile(outputFile)
-            .setBucketName(_options.getBucketName())
-            .setObjectKey(src.getObjectKey())
-            .setOverallProgressListenerFactory(
-              _options.getOverallProgressListenerFactory().orElse(null))
-            .createOptions();
-
-          _futures.add(_client.download(options));
+          // a resumed download keeps the file until it replaces it with the complete download
+          if(!outputFile.delete())
+          {
+            throw new UsageException("Could not overwrite existing file '" + outputFile + "'");
+          }
         }
       }
+      // a resumed download accepts the file if a previous run completed it
+      else if(!_options.isResume() || _dryRun)
+      {
+        throw new UsageException(
+          "File '" + outputFile + "' already exists. Please delete or use --overwrite");
+      }
+    }
+    if(!_dryRun)
+    {
+      _filesToCleanup.add(outputFile);
     }
   }
 
 
-  private void cleanup()
+  private synchronized void cleanup()
   {
     // cancel any futures that may still be trying to run
-    for(ListenableFuture<StoreFile> f : _futures)
+    for(ListenableFuture<StoreFile> f : new ArrayList<>(_futures))
       f.cancel(true);
     _futures.clear();
 
+    // keep whatever has been downloaded if the download can be resumed
+    if(_options.isResume())
+    {
+      _filesToCleanup.clear();
+      _dirsToCleanup.clear();
+      return;
+    }
+
     // delete any files we created
     for(File f : _filesToCleanup)
     {
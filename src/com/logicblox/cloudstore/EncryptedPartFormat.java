@@ -0,0 +1,288 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+
+/**
+ * The layout and the ciphers of the parts of encrypted objects. Each part of the (plain) file is
+ * encrypted separately with the symmetric key of the object, and the encrypted parts are stored
+ * back to back.
+ * <p>
+ * In format {@link Version#CBC}, a part is encrypted with AES-CBC and PKCS5 padding under a
+ * random IV, which is stored in front of it. A part of {@code n} bytes takes
+ * {@code 16 * (n / 16 + 2)} bytes, and can only be decrypted as a whole.
+ * <p>
+ * In format {@link Version#CURRENT}, a part is encrypted with AES-GCM. Its 96-bit nonce is the
+ * part number, which is unique under the per-object key and makes the encryption of a part
+ * deterministic, so that a part that is encrypted again to retry its upload yields the same
+ * bytes. A part of {@code n} bytes is stored as {@code n} bytes of ciphertext followed by the
+ * {@link #TAG_LENGTH}-byte authentication tag. Because GCM is counter mode, the stored offset of
+ * every plain byte is known. Parts are still always decrypted whole, since the tag can only be
+ * verified once the whole part has been read.
+ * <p>
+ * Decryption returns the plain bytes of a part as they arrive, before the tag at the end of the
+ * part has been verified (see {@link #newDecryptingStream}). Callers must not let the bytes of a
+ * part leave the download before its tag has been checked, unless they can take them back: files
+ * are deleted (or kept as a {@code .partial} file) when a part fails, while a part that goes to
+ * an output stream is held back until its last byte, and so its tag, has been read.
+ */
+class EncryptedPartFormat
+{
+  static final int BLOCK_SIZE = 16;
+  static final int TAG_LENGTH = 16;
+  static final int NONCE_LENGTH = 12;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * @return The offset of the first stored byte of part {@code partNumber}
+   */
+  static long getStoredPartStart(int version, int partNumber, long chunkSize)
+  {
+    if(version == Version.CBC)
+    {
+      return partNumber * BLOCK_SIZE * (chunkSize / BLOCK_SIZE + 2);
+    }
+    return partNumber * (chunkSize + TAG_LENGTH);
+  }
+
+  /**
+   * @return The number of bytes a part of {@code plainPartSize} bytes takes when stored
+   */
+  static long getStoredPartSize(int version, long plainPartSize)
+  {
+    if(version == Version.CBC)
+    {
+      return BLOCK_SIZE * (plainPartSize / BLOCK_SIZE + 2);
+    }
+    return plainPartSize + TAG_LENGTH;
+  }
+
+  /**
+   * Encrypts part {@code partNumber} in the current format.
+   */
+  static InputStream newEncryptingStream(InputStream in, Key key, int partNumber)
+    throws GeneralSecurityException
+  {
+    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, getNonce(partNumber)));
+    return new BulkCipherInputStream(in, cipher);
+  }
+
+  /**
+   * Decrypts a whole stored part. In the current format the authentication tag of the part is
+   * verified by the read that returns its last plain byte; a mismatch is reported as an
+   * {@link IOException} by that read, so bytes returned before it are not authenticated yet.
+   *
+   * @param plainPartSize The number of plain bytes of the part
+   */
+  static InputStream newDecryptingStream(
+    int version, InputStream in, Key key, int partNumber, long plainPartSize)
+    throws IOException, GeneralSecurityException
+  {
+    if(version == Version.CBC)
+    {
+      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      return new CipherWithInlineIVInputStream(in, cipher, Cipher.DECRYPT_MODE, key);
+    }
+    return new VerifyingInputStream(in, key, partNumber, plainPartSize);
+  }
+
+  /**
+   * Returns a cipher that decrypts the stored bytes of a part in the current format. Plain block
+   * {@code i} of a part is encrypted by GCM with the counter block made of the nonce followed by
+   * the 32-bit counter {@code i + 2}.
+   */
+  private static Cipher newCounterCipher(Key key, int partNumber)
+    throws GeneralSecurityException
+  {
+    byte[] counter = ByteBuffer.allocate(BLOCK_SIZE)
+      .put(getNonce(partNumber))
+      .putInt(2)
+      .array();
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(counter));
+    return cipher;
+  }
+
+  private static byte[] getNonce(int partNumber)
+  {
+    return ByteBuffer.allocate(NONCE_LENGTH).putInt(0).putLong(partNumber).array();
+  }
+
+  /**
+   * Decrypts a whole part in the current format with AES-CTR, so that the plain bytes are
+   * returned as they arrive, instead of only after the whole part has been buffered as by a GCM
+   * decryption cipher. The tag is verified by encrypting the plain bytes again with GCM, which
+   * computes the tag over the same ciphertext. The returned bytes are therefore not authenticated
+   * until the read that returns the last byte of the part has verified the tag.
+   */
+  private static class VerifyingInputStream
+    extends FilterInputStream
+  {
+    private final Cipher _decrypt;
+    private final Cipher _authenticate;
+    private final byte[] _inBuf = new byte[BUFFER_SIZE];
+    private final byte[] _scratch = new byte[BUFFER_SIZE + BLOCK_SIZE];
+    private long _remaining;
+    private boolean _verified = false;
+
+    VerifyingInputStream(InputStream in, Key key, int partNumber, long plainPartSize)
+      throws GeneralSecurityException
+    {
+      super(in);
+      _decrypt = newCounterCipher(key, partNumber);
+      _authenticate = Cipher.getInstance("AES/GCM/NoPadding");
+      _authenticate.init(Cipher.ENCRYPT_MODE, key,
+        new GCMParameterSpec(TAG_LENGTH * 8, getNonce(partNumber)));
+      _remaining = plainPartSize;
+    }
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      byte[] b = new byte[1];
+      int count;
+      do
+      {
+        count = read(b, 0, 1);
+      }
+      while(count == 0);
+      return count == -1 ? -1 : (int) b[0] & 0xFF;
+    }
+
+    /**
+     * Like {@code CipherInputStream}, a zero-length read returns -1 once the whole part has been
+     * read (and verified).
+     */
+    @Override
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      if(_remaining == 0)
+      {
+        verify();
+        return -1;
+      }
+      if(len == 0)
+      {
+        return 0;
+      }
+
+      int count = in.read(_inBuf, 0, (int) Math.min(Math.min(len, _inBuf.length), _remaining));
+      if(count == -1)
+      {
+        throw new IOException("unexpected EOF: " + _remaining + " bytes of the part are missing");
+      }
+      try
+      {
+        count = _decrypt.update(_inBuf, 0, count, b, off);
+        _authenticate.update(b, off, count, _scratch, 0);
+      }
+      catch(GeneralSecurityException e)
+      {
+        throw new IOException(e);
+      }
+      _remaining -= count;
+      if(_remaining == 0)
+      {
+        verify();
+      }
+      return count;
+    }
+
+    @Override
+    public long skip(long n)
+      throws IOException
+    {
+      // Skipped bytes still have to be authenticated
+      byte[] buf = new byte[(int) Math.min(BUFFER_SIZE, Math.max(n, 1))];
+      long skipped = 0;
+      while(skipped < n)
+      {
+        int count = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+        if(count == -1)
+        {
+          break;
+        }
+        skipped += count;
+      }
+      return skipped;
+    }
+
+    @Override
+    public int available()
+    {
+      return 0;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+      return false;
+    }
+
+    private void verify()
+      throws IOException
+    {
+      if(_verified)
+      {
+        return;
+      }
+
+      byte[] expected = new byte[TAG_LENGTH];
+      int offset = 0;
+      while(offset < TAG_LENGTH)
+      {
+        int count = in.read(expected, offset, TAG_LENGTH - offset);
+        if(count == -1)
+        {
+          throw new IOException("unexpected EOF: the authentication tag of the part is missing");
+        }
+        offset += count;
+      }
+
+      byte[] last;
+      try
+      {
+        last = _authenticate.doFinal();
+      }
+      catch(GeneralSecurityException e)
+      {
+        throw new IOException(e);
+      }
+      byte[] actual = new byte[TAG_LENGTH];
+      System.arraycopy(last, last.length - TAG_LENGTH, actual, 0, TAG_LENGTH);
+      if(!MessageDigest.isEqual(expected, actual))
+      {
+        throw new IOException("authentication of the encrypted part failed");
+      }
+      _verified = true;
+    }
+  }
+}
@@ -18,7 +18,9 @@ package com.logicblox.cloudstore;
 
 
 import com.amazonaws.AmazonServiceException;
+import com.google.api.client.http.HttpResponseException;
 
+import java.net.SocketTimeoutException;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
@@ -44,21 +46,13 @@ public abstract class ExpBackoffRetryPolicy
   {
     long delay = 0;
 
-    if(thrown != null)
+    if(isSlowDown(thrown))
     {
-      if(thrown instanceof AmazonServiceException)
-      {
-        AmazonServiceException exc = (AmazonServiceException) thrown;
-        if(exc.getErrorType() == AmazonServiceException.ErrorType.Service &&
-          exc.getErrorCode().equals("SlowDown"))
-        {
-          long sdInitialDelay = TimeUnit.SECONDS.toMillis(10);
-          long sdMaxDelay = TimeUnit.MINUTES.toMillis(10);
-          delay = expBackoffFullJitter(sdInitialDelay, sdMaxDelay, retryCount);
-
-          return delay;
-        }
-      }
+      long sdInitialDelay = TimeUnit.SECONDS.toMillis(10);
+      long sdMaxDelay = TimeUnit.MINUTES.toMillis(10);
+      delay = expBackoffFullJitter(sdInitialDelay, sdMaxDelay, retryCount);
+
+      return delay;
     }
 
     if(retryCount > 0)
@@ -75,6 +69,50 @@ public abstract class ExpBackoffRetryPolicy
     return (retryOnThrowable(thrown) && retryCount < _maxRetryCount);
   }
 
+  /**
+   * Returns true if {@code thrown} is an S3 {@code SlowDown} error.
+   */
+  static boolean isSlowDown(Throwable thrown)
+  {
+    if(thrown instanceof AmazonServiceException)
+    {
+      AmazonServiceException exc = (AmazonServiceException) thrown;
+      return exc.getErrorType() == AmazonServiceException.ErrorType.Service &&
+        "SlowDown".equals(exc.getErrorCode());
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if {@code thrown}, or one of its causes, signals that the storage service is
+   * overloaded: an S3 {@code SlowDown}, an HTTP 429 or 503 response from either service, or a
+   * socket timeout.
+   */
+  static boolean isOverload(Throwable thrown)
+  {
+    for(Throwable t = thrown; t != null; t = t.getCause())
+    {
+      if(isSlowDown(t) || t instanceof SocketTimeoutException)
+      {
+        return true;
+      }
+      int status = -1;
+      if(t instanceof AmazonServiceException)
+      {
+        status = ((AmazonServiceException) t).getStatusCode();
+      }
+      else if(t instanceof HttpResponseException)
+      {
+        status = ((HttpResponseException) t).getStatusCode();
+      }
+      if(status == 429 || status == 503)
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Full Jitter exponential backoff as described in https://www.awsarchitectureblog
    * .com/2015/03/backoff.html
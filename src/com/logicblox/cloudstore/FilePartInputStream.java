@@ -0,0 +1,208 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a single part (a byte range) of a local file through a {@link FileChannel} that is
+ * shared by all parts of an upload. Reads are positional ({@link FileChannel#read(ByteBuffer,
+ * long)}), so parts can be read concurrently from the same channel without opening the file or
+ * seeking per part.
+ * <p>
+ * Bulk reads go straight into the caller's array. Small reads (e.g. from a cipher stream) are
+ * served from an internal read-ahead buffer of up to {@link #BUFFER_SIZE} bytes.
+ * <p>
+ * Closing this stream does not close the underlying channel; its owner is responsible for that.
+ */
+class FilePartInputStream
+  extends InputStream
+{
+  static final int BUFFER_SIZE = 1024 * 1024;
+
+  private final FileChannel _channel;
+  private final long _start;
+  private final long _end;
+  private long _position;
+  private long _mark;
+  private ByteBuffer _buffer;
+  private boolean _closed = false;
+
+  /**
+   * @param channel The channel of the file the part is read from
+   * @param start   The offset of the first byte of the part in the file
+   * @param length  The number of bytes the part consists of
+   */
+  public FilePartInputStream(FileChannel channel, long start, long length)
+  {
+    _channel = channel;
+    _start = start;
+    _end = start + length;
+    _position = start;
+    _mark = start;
+  }
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    byte[] b = new byte[1];
+    int count = read(b, 0, 1);
+    return count == -1 ? -1 : (int) b[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len)
+    throws IOException
+  {
+    ensureOpen();
+    if(len == 0)
+    {
+      return 0;
+    }
+
+    // Serve from the read-ahead buffer first
+    if(_buffer != null && _buffer.hasRemaining())
+    {
+      int count = Math.min(len, _buffer.remaining());
+      _buffer.get(b, off, count);
+      _position += count;
+      return count;
+    }
+
+    long remaining = _end - _position;
+    if(remaining <= 0)
+    {
+      return -1;
+    }
+
+    int toRead = (int) Math.min(len, remaining);
+    if(toRead >= BUFFER_SIZE || toRead == remaining)
+    {
+      int count = readFully(ByteBuffer.wrap(b, off, toRead), _position);
+      _position += count;
+      return count;
+    }
+
+    fillBuffer();
+    int count = Math.min(toRead, _buffer.remaining());
+    _buffer.get(b, off, count);
+    _position += count;
+    return count;
+  }
+
+  @Override
+  public long skip(long n)
+    throws IOException
+  {
+    ensureOpen();
+    long skipped = Math.max(0, Math.min(n, _end - _position));
+    _position += skipped;
+    discardBuffer();
+    return skipped;
+  }
+
+  @Override
+  public int available()
+    throws IOException
+  {
+    ensureOpen();
+    return (int) Math.min(Integer.MAX_VALUE, _end - _position);
+  }
+
+  /**
+   * Marking is free: the part can always be re-read from the channel, so {@code readlimit} is
+   * ignored.
+   */
+  @Override
+  public synchronized void mark(int readlimit)
+  {
+    _mark = _position;
+  }
+
+  @Override
+  public synchronized void reset()
+    throws IOException
+  {
+    ensureOpen();
+    _position = _mark;
+    discardBuffer();
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+    return true;
+  }
+
+  @Override
+  public void close()
+  {
+    _closed = true;
+    _buffer = null;
+  }
+
+  private void fillBuffer()
+    throws IOException
+  {
+    if(_buffer == null)
+    {
+      _buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, _end - _start));
+    }
+    _buffer.clear();
+    _buffer.limit((int) Math.min(_buffer.capacity(), _end - _position));
+    readFully(_buffer, _position);
+    _buffer.flip();
+  }
+
+  private void discardBuffer()
+  {
+    if(_buffer != null)
+    {
+      _buffer.clear();
+      _buffer.limit(0);
+    }
+  }
+
+  private int readFully(ByteBuffer dst, long position)
+    throws IOException
+  {
+    int total = 0;
+    while(dst.hasRemaining())
+    {
+      int count = _channel.read(dst, position + total);
+      if(count == -1)
+      {
+        throw new IOException("unexpected EOF: file was truncated while being uploaded");
+      }
+      total += count;
+    }
+    return total;
+  }
+
+  private void ensureOpen()
+    throws IOException
+  {
+    if(_closed)
+    {
+      throw new IOException("Stream closed");
+    }
+  }
+}
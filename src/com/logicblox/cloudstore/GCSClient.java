@@ -267,6 +267,18 @@ public class GCSClient
     return _s3Client.listObjects(lsOptions);
   }
 
+  @Override
+  public ListenableFuture<ListPage> listObjectsPage(ListOptions lsOptions)
+  {
+    return _s3Client.listObjectsPage(lsOptions);
+  }
+
+  @Override
+  public ListPageIterator listObjectsPages(ListOptions lsOptions)
+  {
+    return new ListPageIterator(this, lsOptions);
+  }
+
   @Override
   public ListenableFuture<List<Upload>> listPendingUploads(PendingUploadsOptions options)
   {
@@ -364,14 +376,37 @@ public class GCSClient
       return cmd.run();
     }
 
+    @Override
+    public ListenableFuture<List<StoreFile>> deleteRecursively(DeleteOptions options)
+      throws InterruptedException, ExecutionException
+    {
+      GCSDeleteRecursivelyCommand cmd = new GCSDeleteRecursivelyCommand(options);
+      configure(cmd);
+      return cmd.run();
+    }
+
     @Override
     public ListenableFuture<List<StoreFile>> listObjects(ListOptions options)
     {
+      if(options.isSharded())
+      {
+        GCSShardedListCommand cmd = new GCSShardedListCommand(options);
+        configure(cmd);
+        return cmd.run();
+      }
       GCSListCommand cmd = new GCSListCommand(options);
       configure(cmd);
       return cmd.run();
     }
 
+    @Override
+    public ListenableFuture<ListPage> listObjectsPage(ListOptions options)
+    {
+      GCSListCommand cmd = new GCSListCommand(options);
+      configure(cmd);
+      return cmd.runPage();
+    }
+
     @Override
     public ListenableFuture<Metadata> exists(ExistsOptions options)
     {
@@ -18,6 +18,7 @@ package com.logicblox.cloudstore;
 
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Functions;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -61,31 +62,29 @@ class GCSCopyRecursivelyCommand
     }
     final String baseDirPathF = baseDirPath;
 
-    ListenableFuture<List<StoreFile>> listFuture = getListFuture(_options.getSourceBucketName(),
-      _options.getSourceObjectKey(), true);
-    ListenableFuture<List<StoreFile>> result = Futures.transformAsync(
-      listFuture,
-      new AsyncFunction<List<StoreFile>, List<StoreFile>>()
+    // the files of a page are copied while the next page is being fetched
+    ListenableFuture<List<StoreFile>> result = getListPages(_options.getSourceBucketName(),
+      _options.getSourceObjectKey(), true).transformPages(
+      new AsyncFunction<ListPage, List<StoreFile>>()
       {
-        public ListenableFuture<List<StoreFile>> apply(List<StoreFile> filesToCopy)
+        public ListenableFuture<List<StoreFile>> apply(ListPage page)
         {
-          List<ListenableFuture<StoreFile>> files = new ArrayList<>();
           List<ListenableFuture<StoreFile>> futures = new ArrayList<>();
-          for(StoreFile src : filesToCopy)
+          for(StoreFile src : page.getFiles())
             createCopyOp(futures, src, baseDirPathF);
-
-          if(_options.isDryRun())
-          {
-            return Futures.immediateFuture(null);
-          }
-          else
-          {
-            return Futures.allAsList(futures);
-          }
+          return Futures.allAsList(futures);
         }
-      },
-      MoreExecutors.directExecutor());
-    return result;
+      });
+
+    if(_options.isDryRun())
+    {
+      return Futures.transform(result, Functions.<List<StoreFile>>constant(null),
+        MoreExecutors.directExecutor());
+    }
+    else
+    {
+      return result;
+    }
   }
 
 
@@ -142,7 +141,7 @@ class GCSCopyRecursivelyCommand
     return createStoreFile(resp, false);
   }
 
-  private ListenableFuture<List<StoreFile>> getListFuture(
+  private ListPageIterator getListPages(
     String bucket, String prefix, boolean isRecursive)
   {
     // FIXME - if we gave commands a CloudStoreClient when they were created
@@ -154,7 +153,7 @@ class GCSCopyRecursivelyCommand
       .setRecursive(isRecursive)
       .createOptions();
 
-    return _client.listObjects(listOpts);
+    return _client.listObjectsPages(listOpts);
   }
 
   private StoreFile createStoreFile(StorageObject obj, boolean includeVersion)
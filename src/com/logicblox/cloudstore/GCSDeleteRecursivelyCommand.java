@@ -0,0 +1,80 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deletes the objects under a prefix with GCS JSON API batch requests.
+ */
+class GCSDeleteRecursivelyCommand
+  extends DeleteRecursivelyCommand
+{
+  /**
+   * The maximum number of calls GCS accepts in a single batch request.
+   */
+  static final int MAX_BATCH_SIZE = 100;
+
+  public GCSDeleteRecursivelyCommand(DeleteOptions options)
+  {
+    super(options);
+  }
+
+  @Override
+  protected int getMaxBatchSize()
+  {
+    return MAX_BATCH_SIZE;
+  }
+
+  @Override
+  protected Map<String, String> deleteObjects(String bucket, List<String> keys)
+    throws IOException
+  {
+    final Map<String, String> errors = new LinkedHashMap<>();
+    BatchRequest batch = getGCSClient().batch();
+    for(final String key : keys)
+    {
+      getGCSClient().objects().delete(bucket, key).queue(batch, new JsonBatchCallback<Void>()
+      {
+        @Override
+        public void onSuccess(Void v, HttpHeaders responseHeaders)
+        {
+        }
+
+        @Override
+        public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders)
+        {
+          // already deleted since it was listed
+          if(e.getCode() != 404)
+          {
+            errors.put(key, e.getCode() + ": " + e.getMessage());
+          }
+        }
+      });
+    }
+    batch.execute();
+    return errors;
+  }
+}
@@ -16,18 +16,17 @@
 
 package com.logicblox.cloudstore;
 
-import com.google.api.client.googleapis.media.MediaHttpDownloaderProgressListener;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.StorageObject;
 import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 import org.apache.commons.codec.binary.Base64;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
@@ -42,15 +41,16 @@ class GCSDownload
   private DownloadOptions _options;
   private Storage _client;
   private ListeningExecutorService _apiExecutor;
-  private ListeningExecutorService _internalExecutor;
+  private ListeningScheduledExecutorService _internalExecutor;
   private StorageObject _storageObject;
   private ConcurrentMap<Integer, Crc32cInputStream> _partInputStreams
     = new ConcurrentSkipListMap<>();
   private ConcurrentMap<Integer, Long> _partLengths = new ConcurrentSkipListMap<>();
+  private ConcurrentMap<Integer, Long> _restoredCrc32cs = new ConcurrentSkipListMap<>();
 
   public GCSDownload(
     DownloadOptions options, Storage client, ListeningExecutorService apiExecutor,
-    ListeningExecutorService internalExecutor, StorageObject storageObject)
+    ListeningScheduledExecutorService internalExecutor, StorageObject storageObject)
   {
     _options = options;
     _client = client;
@@ -69,17 +69,83 @@ class GCSDownload
     return _apiExecutor.submit(new DownloadCallable(partNumber, start, end, opl));
   }
 
+  @Override
+  public ListenableFuture<InputStream> downloadRange(final long start, final long end)
+  {
+    return _apiExecutor.submit(new Callable<InputStream>()
+    {
+      public InputStream call()
+        throws IOException
+      {
+        Storage.Objects.Get getObject = _client.objects().get(getBucketName(), getObjectKey());
+        getObject.getRequestHeaders().setRange("bytes=" + start + "-" + end);
+        return getObject.executeMediaAsInputStream();
+      }
+    });
+  }
+
   /**
    * Does checksum validation. The downloaded object's CRC32C is computed by combining the CRC32C
    * of all individual parts. The final CRC32C is compared against the CRC32C computed by the GCS
    * service.
    */
   @Override
-  public ListenableFuture<Download> completeDownload(long fileLength, long chunkSize)
+  public ListenableFuture<Download> completeDownload(
+    long fileLength, long chunkSize, byte[] contentMd5)
   {
     return _internalExecutor.submit(new GCSDownload.CompleteCallable());
   }
 
+  /**
+   * CRC32Cs of parts can always be combined, so the MD5 of the whole object is never needed.
+   */
+  @Override
+  public boolean needsContentMd5(long fileLength, long chunkSize)
+  {
+    return false;
+  }
+
+  /**
+   * The CRC32C and the length of the (possibly encrypted) bytes of the part.
+   */
+  @Override
+  public String getPartState(int partNumber)
+  {
+    return getPartCrc32c(partNumber) + " " + _partLengths.get(partNumber);
+  }
+
+  @Override
+  public boolean restorePart(int partNumber, String partState)
+  {
+    String[] state = partState.split(" ");
+    if(state.length != 2)
+    {
+      return false;
+    }
+    try
+    {
+      long crc32c = Long.parseLong(state[0]);
+      long length = Long.parseLong(state[1]);
+      _restoredCrc32cs.put(partNumber, crc32c);
+      _partLengths.put(partNumber, length);
+    }
+    catch(NumberFormatException e)
+    {
+      return false;
+    }
+    return true;
+  }
+
+  private long getPartCrc32c(int partNumber)
+  {
+    Long crc32c = _restoredCrc32cs.get(partNumber);
+    if(crc32c != null)
+    {
+      return crc32c;
+    }
+    return _partInputStreams.get(partNumber).getValue();
+  }
+
   @Override
   public Map<String, String> getMetadata()
   {
@@ -121,6 +187,7 @@ class GCSDownload
     private int _partNumber;
     private long _start;
     private long _end;
+    private long _partLength;
     private OverallProgressListener _progressListener;
 
     public DownloadCallable(
@@ -128,60 +195,72 @@ class GCSDownload
     {
       _partNumber = partNumber;
       _start = start;
-      _end = end < 0 ? 0 : end;
+      _end = end;
+      _partLength = Math.max(end - start + 1, 0);
       _progressListener = progressListener;
     }
 
+    /**
+     * Streams the body of the ranged GET directly, on the calling thread of the bounded API
+     * executor. The part is read by whoever consumes the returned stream, so no extra thread or
+     * pipe is needed to hand the data over (which used to deadlock when all API executor threads
+     * were busy, see LB-3798).
+     */
     public InputStream call()
       throws Exception
     {
-      Storage.Objects.Get getObject = _client.objects().get(getBucketName(), getObjectKey());
-      getObject.getMediaHttpDownloader().setContentRange(_start, _end);
-
-      if(_progressListener != null)
+      InputStream body;
+      // An empty object is the only one with an empty part; it is fetched without a range,
+      // since no range of it is satisfiable
+      if(_partLength > 0 && _options.getRequestHedger().isPresent())
       {
-        PartProgressEvent ppe = new PartProgressEvent(Integer.toString(_partNumber));
-        MediaHttpDownloaderProgressListener gcspl = new GCSDownloaderProgressListener(
-          _progressListener, ppe);
-        getObject.getMediaHttpDownloader().setProgressListener(gcspl);
+        body = HedgedInputStream.open(_options.getRequestHedger().get(), new RangeSource(),
+          _start, _end, _apiExecutor, _internalExecutor);
       }
-      // take the copy of the stream and re-write it to an InputStream
-      PipedInputStream inp = new PipedInputStream();
-      final PipedOutputStream outp = new PipedOutputStream(inp);
-
-      // NOTE: This used to submit a new Callable to the _apiExecutor since PipedOutputStream 
-      //       writes needed to take place in a different thread than PipedInputStream reads,
-      //       thinking that it's safe to do the writes in the _apiExecutor thread because
-      //       the reads happen in an internalExecutor thread.  But when doing recursive
-      //       multipart downloads, we can get into a situation where all the _apiExecutor
-      //       threads are used and we don't have a free thread to execute the PipedOutputStream
-      //       write being waited on the the corresponding read, so we can deadlock.  Using
-      //       an independent thread for the writes seems to resolve the issue.  See LB-3798.
-      Thread t = new Thread(new Runnable() 
+      else
       {
-        public void run()
+        Storage.Objects.Get getObject = _client.objects().get(getBucketName(), getObjectKey());
+        if(_partLength > 0)
         {
-          try
-          {
-             getObject.executeMediaAndDownloadTo(outp);
-             outp.close();
-          }
-          catch(IOException ex)
-          {
-             throw new RuntimeException(ex);
-          }
+          getObject.getRequestHeaders().setRange("bytes=" + _start + "-" + _end);
         }
-      });
-      t.start();
+        body = getObject.executeMediaAsInputStream();
+      }
 
-      Crc32cInputStream in = new Crc32cInputStream(inp);
+      if(_progressListener != null)
+      {
+        PartProgressEvent ppe = new PartProgressEvent(Integer.toString(_partNumber));
+        body = new ProgressInputStream(body, _progressListener, ppe);
+      }
+
+      Crc32cInputStream in = new Crc32cInputStream(body);
       _partInputStreams.put(_partNumber, in);
-      _partLengths.put(_partNumber, _end - _start + 1);
+      _partLengths.put(_partNumber, _partLength);
 
       return in;
     }
   }
 
+  private class RangeSource
+    implements HedgedInputStream.RangeSource
+  {
+    public HedgedInputStream.AbortableInputStream open(long start, long end)
+      throws IOException
+    {
+      Storage.Objects.Get getObject = _client.objects().get(getBucketName(), getObjectKey());
+      getObject.getRequestHeaders().setRange("bytes=" + start + "-" + end);
+      final HttpResponse response = getObject.executeMedia();
+      return new HedgedInputStream.AbortableInputStream(response.getContent())
+      {
+        void abort()
+          throws IOException
+        {
+          response.disconnect();
+        }
+      };
+    }
+  }
+
   private class CompleteCallable
     implements Callable<Download>
   {
@@ -198,10 +277,10 @@ class GCSDownload
         return GCSDownload.this;
       }
 
-      long localCrc32cL = _partInputStreams.get(0).getValue();
-      for(int partNumber : Iterables.skip(_partInputStreams.keySet(), 1))
+      long localCrc32cL = getPartCrc32c(0);
+      for(int partNumber : Iterables.skip(_partLengths.keySet(), 1))
       {
-        localCrc32cL = Crc32c.combine(localCrc32cL, _partInputStreams.get(partNumber).getValue(),
+        localCrc32cL = Crc32c.combine(localCrc32cL, getPartCrc32c(partNumber),
           _partLengths.get(partNumber));
       }
 
@@ -20,6 +20,7 @@ import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.StorageObject;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 
 import java.io.IOException;
 import java.util.concurrent.Callable;
@@ -32,13 +33,13 @@ class GCSDownloadFactory
 {
   final private DownloadOptions _options;
   final private ListeningExecutorService _apiExecutor;
-  private final ListeningExecutorService _internalExecutor;
+  private final ListeningScheduledExecutorService _internalExecutor;
   final private Storage _client;
 
   public GCSDownloadFactory(DownloadOptions options,
                             Storage client,
                             ListeningExecutorService apiExecutor,
-                            ListeningExecutorService internalExecutor)
+                            ListeningScheduledExecutorService internalExecutor)
   {
     _options = options;
     _client = client;
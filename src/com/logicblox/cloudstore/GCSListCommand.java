@@ -60,6 +60,61 @@ class GCSListCommand
     return future;
   }
 
+  /**
+   * Lists a single page, starting at the page token of the options.
+   */
+  public ListenableFuture<ListPage> runPage()
+  {
+    return executeWithRetry(_client.getInternalExecutor(),
+      new Callable<ListenableFuture<ListPage>>()
+      {
+        public ListenableFuture<ListPage> call()
+        {
+          return runPageActual();
+        }
+
+        public String toString()
+        {
+          return "listing a page of objects and directories for " +
+            getUri(_options.getBucketName(), _options.getObjectKey().orElse(""));
+        }
+      });
+  }
+
+  private ListenableFuture<ListPage> runPageActual()
+  {
+    return _client.getApiExecutor().submit(new Callable<ListPage>()
+    {
+      public ListPage call()
+        throws IOException
+      {
+        boolean ver = _options.versionsIncluded();
+        Objects objs = createRequest().execute();
+        List<StoreFile> files = new ArrayList<StoreFile>();
+        if(objs.getItems() != null)
+        {
+          for(StorageObject s : objs.getItems())
+            files.add(createStoreFile(s, ver));
+        }
+        return new ListPage(files, objs.getNextPageToken());
+      }
+    });
+  }
+
+  private Storage.Objects.List createRequest()
+    throws IOException
+  {
+    Storage.Objects.List cmd = getGCSClient().objects().list(_options.getBucketName());
+    cmd.setPrefix(_options.getObjectKey().orElse(null));
+    if(!_options.isRecursive())
+    {
+      cmd.setDelimiter("/");
+    }
+    cmd.setVersions(_options.versionsIncluded());
+    cmd.setPageToken(_options.getPageToken().orElse(null));
+    return cmd;
+  }
+
 
   private ListenableFuture<List<StoreFile>> runActual()
   {
@@ -69,15 +124,8 @@ class GCSListCommand
         throws IOException
       {
         List<StoreFile> s3files = new ArrayList<StoreFile>();
-        List<StorageObject> allObjs = new ArrayList<StorageObject>();
-        Storage.Objects.List cmd = getGCSClient().objects().list(_options.getBucketName());
-        cmd.setPrefix(_options.getObjectKey().orElse(null));
-        if(!_options.isRecursive())
-        {
-          cmd.setDelimiter("/");
-        }
+        Storage.Objects.List cmd = createRequest();
         boolean ver = _options.versionsIncluded();
-        cmd.setVersions(ver);
         Objects objs;
         do
         {
@@ -85,14 +133,14 @@ class GCSListCommand
           List<StorageObject> items = objs.getItems();
           if(items != null)
           {
-            allObjs.addAll(items);
+            // convert page by page, so the raw objects of only one page are held at a time
+            for(StorageObject s : items)
+              s3files.add(createStoreFile(s, ver));
           }
           cmd.setPageToken(objs.getNextPageToken());
         }
         while(objs.getNextPageToken() != null);
 
-        for(StorageObject s : allObjs)
-          s3files.add(createStoreFile(s, ver));
         return s3files;
       }
     });
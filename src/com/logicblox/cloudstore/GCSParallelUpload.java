@@ -16,6 +16,7 @@
 
 package com.logicblox.cloudstore;
 
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.googleapis.media.MediaHttpUploaderProgressListener;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.services.storage.Storage;
@@ -102,6 +103,53 @@ class GCSParallelUpload
     return (new AbortCallable()).call();
   }
 
+  /**
+   * The generation, CRC32C and size of the part object. Its name is implied by the part number.
+   */
+  public String getPartState(int partNumber)
+  {
+    StorageObject part = _uploadedParts.get(partNumber);
+    return part.getGeneration() + " " + part.getCrc32c() + " " + part.getSize();
+  }
+
+  /**
+   * Reuses the part object of a previous run if it still exists with the same generation,
+   * CRC32C and size.
+   */
+  public boolean restorePart(int partNumber, String partState)
+    throws IOException
+  {
+    String[] state = partState.split(" ");
+    if(state.length != 3)
+    {
+      return false;
+    }
+
+    StorageObject part;
+    try
+    {
+      part = _client.objects().get(getBucketName(), getPartObjectName(partNumber)).execute();
+    }
+    catch(GoogleJsonResponseException e)
+    {
+      if(e.getStatusCode() == 404)
+      {
+        return false;
+      }
+      throw e;
+    }
+
+    if(!state[0].equals(String.valueOf(part.getGeneration())) ||
+      !state[1].equals(part.getCrc32c()) || !state[2].equals(String.valueOf(part.getSize())))
+    {
+      return false;
+    }
+
+    _uploadedParts.put(partNumber, part);
+    _tempObjectNames.add(part.getName());
+    return true;
+  }
+
   public String getBucketName()
   {
     return _options.getBucketName();
@@ -122,6 +170,11 @@ class GCSParallelUpload
     return _initiated;
   }
 
+  private String getPartObjectName(int partNumber)
+  {
+    return "_" + getObjectKey() + ".cs.single." + partNumber;
+  }
+
   private class AbortCallable
     implements Callable<ListenableFuture<Void>>
   {
@@ -406,8 +459,7 @@ class GCSParallelUpload
       // Not strictly necessary, but allows optimization in GCS
       mediaContent.setLength(_partSize);
 
-      StorageObject objectMetadata = new StorageObject().setName("_" + getObjectKey() +
-        ".cs.single." + _partNumber)
+      StorageObject objectMetadata = new StorageObject().setName(getPartObjectName(_partNumber))
         .setMetadata(ImmutableMap.copyOf(_meta));
 
       Storage.Objects.Insert insertObject = _client.objects()
@@ -0,0 +1,101 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sharded listing on GCS. Directories are discovered and listed concurrently, but they cannot be
+ * split into key ranges, since the objects list API cannot start after a given key.
+ */
+class GCSShardedListCommand
+  extends ShardedListCommand
+{
+  public GCSShardedListCommand(ListOptions options)
+  {
+    super(options);
+  }
+
+  @Override
+  protected ShardPage listLevel(String prefix, String pageToken)
+    throws IOException
+  {
+    Objects objs = createRequest(prefix, pageToken).setDelimiter("/").execute();
+    List<String> prefixes = objs.getPrefixes();
+    return new ShardPage(toStoreFiles(objs),
+      prefixes == null ? Collections.<String>emptyList() : prefixes, objs.getNextPageToken());
+  }
+
+  @Override
+  protected ShardPage listRange(String prefix, String startAfter, String pageToken)
+    throws IOException
+  {
+    if(startAfter != null)
+    {
+      throw new UnsupportedOperationException("GCS listings cannot start after a key");
+    }
+    Objects objs = createRequest(prefix, pageToken).execute();
+    return new ShardPage(toStoreFiles(objs), null, objs.getNextPageToken());
+  }
+
+  @Override
+  protected boolean supportsKeyRanges()
+  {
+    return false;
+  }
+
+  private Storage.Objects.List createRequest(String prefix, String pageToken)
+    throws IOException
+  {
+    Storage.Objects.List cmd = getGCSClient().objects().list(_options.getBucketName());
+    cmd.setPrefix(prefix);
+    cmd.setVersions(_options.versionsIncluded());
+    cmd.setPageToken(pageToken);
+    return cmd;
+  }
+
+  private List<StoreFile> toStoreFiles(Objects objs)
+  {
+    List<StoreFile> files = new ArrayList<StoreFile>();
+    if(objs.getItems() != null)
+    {
+      boolean ver = _options.versionsIncluded();
+      for(StorageObject obj : objs.getItems())
+      {
+        StoreFile f = new StoreFile();
+        f.setObjectKey(obj.getName());
+        f.setETag(obj.getEtag());
+        f.setBucketName(obj.getBucket());
+        f.setSize(obj.getSize().longValue());
+        if(ver && (null != obj.getGeneration()))
+        {
+          f.setVersionId(obj.getGeneration().toString());
+        }
+        f.setTimestamp(new java.util.Date(obj.getUpdated().getValue()));
+        files.add(f);
+      }
+    }
+    return files;
+  }
+}
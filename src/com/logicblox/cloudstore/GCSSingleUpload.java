@@ -0,0 +1,187 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.api.client.googleapis.media.MediaHttpUploaderProgressListener;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * {@link Upload} implementation for objects that fit in a single part. The only part is inserted
+ * directly under the final object name, instead of as a temporary object that then has to be
+ * composed and deleted as {@link GCSParallelUpload} does. There is nothing to clean up if the
+ * insert fails, so {@link #abort} is a no-op.
+ */
+class GCSSingleUpload
+  implements Upload
+{
+  private Storage _client;
+  private Map<String, String> _meta;
+  private Date _initiated;
+  private ListeningExecutorService _executor;
+  private UploadOptions _options;
+  private volatile String _etag;
+
+  // for testing
+  private String _uploadId;
+
+  public GCSSingleUpload(
+    UploadOptions options, Storage client, ListeningExecutorService executor,
+    Map<String, String> meta, Date initiated)
+  {
+    _options = options;
+    _client = client;
+    _meta = meta;
+    _initiated = initiated;
+    _executor = executor;
+    _uploadId = _options.getBucketName() + "/" + _options.getObjectKey();
+  }
+
+  public ListenableFuture<Void> uploadPart(
+    int partNumber, long partSize, Callable<InputStream> stream,
+    OverallProgressListener progressListener)
+  {
+    // added to support retry testing
+    _options.injectAbort(_uploadId);
+
+    return _executor.submit(new UploadCallable(partNumber, partSize, stream, progressListener));
+  }
+
+  public ListenableFuture<String> completeUpload()
+  {
+    return Futures.immediateFuture(_etag);
+  }
+
+  public ListenableFuture<Void> abort()
+  {
+    return Futures.immediateFuture(null);
+  }
+
+  public String getPartState(int partNumber)
+  {
+    return _etag;
+  }
+
+  /**
+   * A single-request upload has no parts that could survive a failed run.
+   */
+  public boolean restorePart(int partNumber, String partState)
+  {
+    return false;
+  }
+
+  public String getBucketName()
+  {
+    return _options.getBucketName();
+  }
+
+  public String getObjectKey()
+  {
+    return _options.getObjectKey();
+  }
+
+  public String getId()
+  {
+    return null;
+  }
+
+  public Date getInitiationDate()
+  {
+    return _initiated;
+  }
+
+  private class UploadCallable
+    implements Callable<Void>
+  {
+    private int _partNumber;
+    private long _partSize;
+    private Callable<InputStream> _streamCallable;
+    private OverallProgressListener _progressListener;
+
+    public UploadCallable(
+      int partNumber, long partSize, Callable<InputStream> streamCallable,
+      OverallProgressListener progressListener)
+    {
+      _partNumber = partNumber;
+      _partSize = partSize;
+      _streamCallable = streamCallable;
+      _progressListener = progressListener;
+    }
+
+    public Void call()
+      throws Exception
+    {
+      try(Crc32cInputStream stream = new Crc32cInputStream(_streamCallable.call()))
+      {
+        return upload(stream);
+      }
+    }
+
+    private Void upload(Crc32cInputStream stream)
+      throws IOException, BadHashException
+    {
+      InputStreamContent mediaContent = new InputStreamContent("application/octet-stream", stream);
+
+      // Not strictly necessary, but allows optimization in GCS
+      mediaContent.setLength(_partSize);
+
+      StorageObject objectMetadata = new StorageObject().setName(getObjectKey())
+        .setContentType("application/octet-stream")
+        .setMetadata(ImmutableMap.copyOf(_meta));
+
+      Storage.Objects.Insert insertObject = _client.objects()
+        .insert(getBucketName(), objectMetadata, mediaContent)
+        .setPredefinedAcl(_options.getCannedAcl());
+      insertObject.getMediaHttpUploader().setDisableGZipContent(true);
+      if(_progressListener != null)
+      {
+        PartProgressEvent ppe = new PartProgressEvent(Integer.toString(_partNumber));
+        MediaHttpUploaderProgressListener gcspl = new GCSUploaderProgressListener(_progressListener, ppe);
+        insertObject.getMediaHttpUploader().setProgressListener(gcspl);
+      }
+
+      StorageObject res = insertObject.execute();
+
+      String remoteCrc32c = res.getCrc32c();
+      String localCrc32c = new String(Base64.encodeBase64(stream.getValueAsBytes()));
+      if(remoteCrc32c.equals(localCrc32c))
+      {
+        _etag = res.getEtag();
+
+        return null;
+      }
+      else
+      {
+        throw new BadHashException(
+          "Failed checksum validation for " + getBucketName() + "/" + getObjectKey() + ". " +
+            "Calculated CRC32C: " + localCrc32c + ", Expected CRC32C: " + remoteCrc32c);
+      }
+    }
+  }
+}
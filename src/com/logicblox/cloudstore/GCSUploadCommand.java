@@ -16,8 +16,10 @@
 
 package com.logicblox.cloudstore;
 
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.Date;
 import java.util.Map;
 
 class GCSUploadCommand
@@ -52,4 +54,22 @@ class GCSUploadCommand
       _client.getApiExecutor(), metadata);
     return factory.startUpload();
   }
+
+  /**
+   * GCS uploads have no server-side state apart from the part objects, which are checked
+   * individually when they are restored.
+   */
+  @Override
+  protected ListenableFuture<Upload> resumeUpload(Map<String, String> metadata, String uploadId)
+  {
+    return Futures.immediateFuture(new GCSParallelUpload(_options, getGCSClient(),
+      _client.getApiExecutor(), metadata, new Date()));
+  }
+
+  @Override
+  protected ListenableFuture<Upload> initiateSingleRequestUpload(Map<String, String> metadata)
+  {
+    return Futures.immediateFuture(new GCSSingleUpload(_options, getGCSClient(),
+      _client.getApiExecutor(), metadata, new Date()));
+  }
 }
@@ -22,10 +22,16 @@ import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+/**
+ * Computes the MD5 of the bytes read through it. If the underlying stream supports
+ * {@link #mark} and {@link #reset}, resetting also rewinds the digest to the mark, so that bytes
+ * read again are not hashed twice.
+ */
 class HashingInputStream
   extends FilterInputStream
 {
   private MessageDigest _md;
+  private MessageDigest _markedMd;
   private byte[] _digest;
 
   public HashingInputStream(InputStream in)
@@ -87,4 +93,36 @@ class HashingInputStream
     }
     return count;
   }
+
+  @Override
+  public synchronized void mark(int readlimit)
+  {
+    in.mark(readlimit);
+    _markedMd = copy(_md);
+  }
+
+  @Override
+  public synchronized void reset()
+    throws IOException
+  {
+    if(_markedMd == null)
+    {
+      throw new IOException("Mark not set");
+    }
+    in.reset();
+    _md = copy(_markedMd);
+    _digest = null;
+  }
+
+  private static MessageDigest copy(MessageDigest md)
+  {
+    try
+    {
+      return (MessageDigest) md.clone();
+    }
+    catch(CloneNotSupportedException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
 }
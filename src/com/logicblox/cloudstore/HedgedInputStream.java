@@ -0,0 +1,516 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a byte range of an object through a ranged GET that is hedged when it falls behind, as
+ * decided by a {@link RequestHedger}.
+ * <p>
+ * While the range is read, the request is checked every {@link #CHECK_INTERVAL_MILLIS}
+ * milliseconds. Once it is behind, and the hedger's budget allows it, a second request for the
+ * bytes that have not been read yet is started on the API executor and buffered in memory, if
+ * there are at most {@link RequestHedger#getMaxHedgeBytes()} of them. If it completes before the
+ * original request has delivered the whole range, the original request is aborted and the rest
+ * of the range is served from the buffer; otherwise the second request is aborted. Both requests return the same bytes, so the switch is invisible to the reader.
+ * <p>
+ * A request that has not returned a response yet cannot be aborted: if the second request wins
+ * while the original one is still waiting for its response, the buffer is used as soon as that
+ * response arrives (or the request fails).
+ * <p>
+ * The throughput of the original request is measured over the time reads spent waiting for it,
+ * not over the time since its response arrived. A reader that consumes the range slower than it
+ * arrives therefore does not make the request look behind.
+ */
+class HedgedInputStream
+  extends InputStream
+{
+  static final long CHECK_INTERVAL_MILLIS = 100;
+
+  /**
+   * How long reads have to have waited for a response before its throughput is compared to
+   * others.
+   */
+  static final long MIN_STREAMING_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+  /**
+   * Issues the ranged GETs of a {@link HedgedInputStream}.
+   */
+  interface RangeSource
+  {
+    /**
+     * @param start The index of the first byte of the range
+     * @param end   The index of the last byte of the range (inclusive)
+     * @return The body of the response
+     */
+    AbortableInputStream open(long start, long end)
+      throws IOException;
+  }
+
+  /**
+   * The body of a response that can be aborted from another thread, so that a read blocked on it
+   * returns (or fails) right away, without consuming the rest of the response.
+   */
+  abstract static class AbortableInputStream
+    extends FilterInputStream
+  {
+    AbortableInputStream(InputStream in)
+    {
+      super(in);
+    }
+
+    abstract void abort()
+      throws IOException;
+  }
+
+  private final RequestHedger _hedger;
+  private final RangeSource _source;
+  private final ListeningExecutorService _apiExecutor;
+  private final long _start;
+  private final long _end;
+  private final long _requestStart = System.nanoTime();
+  private volatile long _position;
+  private volatile long _readNanos = 0;
+  private volatile long _readStart = 0;
+  private AbortableInputStream _primary;
+  private Future<?> _monitor;
+  private ListenableFuture<byte[]> _hedge;
+  private long _hedgeStart;
+  private AbortableInputStream _hedgeStream;
+  private volatile byte[] _hedgeData;
+  private boolean _finished = false;
+  private boolean _closed = false;
+
+  private HedgedInputStream(
+    RequestHedger hedger, RangeSource source, long start, long end,
+    ListeningExecutorService apiExecutor)
+  {
+    _hedger = hedger;
+    _source = source;
+    _start = start;
+    _end = end;
+    _position = start;
+    _apiExecutor = apiExecutor;
+  }
+
+  /**
+   * Requests the range {@code start} to {@code end} (inclusive) from {@code source} and returns
+   * once the response has arrived.
+   *
+   * @param scheduler The executor the progress of the request is checked on
+   */
+  static HedgedInputStream open(
+    RequestHedger hedger, RangeSource source, long start, long end,
+    ListeningExecutorService apiExecutor, ListeningScheduledExecutorService scheduler)
+    throws IOException
+  {
+    HedgedInputStream in = new HedgedInputStream(hedger, source, start, end, apiExecutor);
+    in.openPrimary(scheduler);
+    return in;
+  }
+
+  private void openPrimary(ListeningScheduledExecutorService scheduler)
+    throws IOException
+  {
+    _hedger.requestStarted();
+    Future<?> monitor = scheduler.scheduleWithFixedDelay(new Runnable()
+    {
+      public void run()
+      {
+        check();
+      }
+    }, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    synchronized(this)
+    {
+      _monitor = monitor;
+    }
+
+    AbortableInputStream primary;
+    try
+    {
+      primary = _source.open(_start, _end);
+    }
+    catch(IOException | RuntimeException e)
+    {
+      // A hedge that was started while the original request waited for its response can still
+      // serve the whole range
+      if(awaitHedge())
+      {
+        return;
+      }
+      finish(false);
+      throw e;
+    }
+
+    _hedger.recordFirstByte(System.nanoTime() - _requestStart);
+    synchronized(this)
+    {
+      _primary = primary;
+    }
+    if(_hedgeData != null)
+    {
+      abortQuietly(primary);
+    }
+  }
+
+  /**
+   * Waits for the hedge, if one was started.
+   *
+   * @return True if the hedge won, in which case the range is served from its buffer
+   */
+  private boolean awaitHedge()
+  {
+    ListenableFuture<byte[]> hedge;
+    synchronized(this)
+    {
+      hedge = _hedge;
+    }
+    if(hedge != null && _hedgeData == null)
+    {
+      try
+      {
+        byte[] data = hedge.get();
+        synchronized(this)
+        {
+          if(!_finished)
+          {
+            _hedgeData = data;
+          }
+        }
+      }
+      catch(InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      catch(ExecutionException | CancellationException e)
+      {
+      }
+    }
+    return _hedgeData != null;
+  }
+
+  /**
+   * Starts a hedge if the original request is behind.
+   */
+  private void check()
+  {
+    ListenableFuture<byte[]> hedge;
+    synchronized(this)
+    {
+      if(_finished || _hedge != null)
+      {
+        return;
+      }
+
+      long now = System.nanoTime();
+      boolean behind;
+      if(_primary == null)
+      {
+        long threshold = _hedger.getFirstByteThreshold();
+        behind = threshold >= 0 && now - _requestStart > threshold;
+      }
+      else
+      {
+        // Time the reader spent elsewhere does not count, so a slow reader is not mistaken for a
+        // slow request
+        long waiting = getReadNanos(now);
+        double threshold = _hedger.getThroughputThreshold();
+        behind = threshold >= 0 && waiting > MIN_STREAMING_NANOS &&
+          (_position - _start) / (waiting / 1e9) < threshold;
+      }
+
+      // The hedge is buffered in memory, so large remainders are left to the original request
+      if(!behind || _end - _position + 1 > _hedger.getMaxHedgeBytes() ||
+        !_hedger.tryStartHedge())
+      {
+        return;
+      }
+
+      _hedgeStart = _position;
+      _hedge = _apiExecutor.submit(new HedgeCallable(_hedgeStart));
+      hedge = _hedge;
+    }
+
+    Futures.addCallback(hedge, new FutureCallback<byte[]>()
+    {
+      public void onSuccess(byte[] data)
+      {
+        boolean won = false;
+        AbortableInputStream loser = null;
+        synchronized(HedgedInputStream.this)
+        {
+          _hedgeStream = null;
+          if(!_finished)
+          {
+            _hedgeData = data;
+            won = true;
+            loser = _primary;
+          }
+        }
+        _hedger.hedgeFinished(won);
+        if(loser != null)
+        {
+          abortQuietly(loser);
+        }
+      }
+
+      public void onFailure(Throwable t)
+      {
+        AbortableInputStream hedgeStream;
+        synchronized(HedgedInputStream.this)
+        {
+          hedgeStream = _hedgeStream;
+          _hedgeStream = null;
+        }
+        if(hedgeStream != null)
+        {
+          abortQuietly(hedgeStream);
+        }
+        _hedger.hedgeFinished(false);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  private class HedgeCallable
+    implements Callable<byte[]>
+  {
+    private final long _from;
+
+    HedgeCallable(long from)
+    {
+      _from = from;
+    }
+
+    public byte[] call()
+      throws IOException
+    {
+      AbortableInputStream in = _source.open(_from, _end);
+      synchronized(HedgedInputStream.this)
+      {
+        if(_finished)
+        {
+          abortQuietly(in);
+          throw new CancellationException("the original request completed first");
+        }
+        _hedgeStream = in;
+      }
+
+      byte[] data = new byte[(int) (_end - _from + 1)];
+      ByteStreams.readFully(in, data);
+      in.close();
+      return data;
+    }
+  }
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    byte[] b = new byte[1];
+    int count = read(b, 0, 1);
+    return count == -1 ? -1 : (int) b[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len)
+    throws IOException
+  {
+    if(_closed)
+    {
+      throw new IOException("Stream closed");
+    }
+    long remaining = _end - _position + 1;
+    if(remaining <= 0)
+    {
+      return -1;
+    }
+    if(len == 0)
+    {
+      return 0;
+    }
+
+    int toRead = (int) Math.min(len, remaining);
+    int count;
+    while(true)
+    {
+      byte[] hedgeData = _hedgeData;
+      if(hedgeData != null)
+      {
+        count = toRead;
+        System.arraycopy(hedgeData, (int) (_position - _hedgeStart), b, off, count);
+        break;
+      }
+
+      // Once the hedge has won, the original request is aborted, which makes a read from it
+      // fail or end early
+      _readStart = System.nanoTime();
+      try
+      {
+        count = _primary.read(b, off, toRead);
+      }
+      catch(IOException e)
+      {
+        if(_hedgeData != null)
+        {
+          continue;
+        }
+        throw e;
+      }
+      finally
+      {
+        _readNanos += System.nanoTime() - _readStart;
+        _readStart = 0;
+      }
+      if(count == -1)
+      {
+        if(_hedgeData != null)
+        {
+          continue;
+        }
+        return -1;
+      }
+      break;
+    }
+
+    _position += count;
+    if(_position > _end)
+    {
+      finish(_hedgeData == null);
+    }
+    return count;
+  }
+
+  /**
+   * @return How long reads have waited for the original request so far
+   */
+  private long getReadNanos(long now)
+  {
+    long readStart = _readStart;
+    long readNanos = _readNanos;
+    return readStart == 0 ? readNanos : readNanos + Math.max(0, now - readStart);
+  }
+
+  @Override
+  public int available()
+    throws IOException
+  {
+    if(_hedgeData != null)
+    {
+      return (int) (_end - _position + 1);
+    }
+    return _primary.available();
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    if(_closed)
+    {
+      return;
+    }
+    _closed = true;
+    finish(false);
+
+    AbortableInputStream primary;
+    synchronized(this)
+    {
+      primary = _primary;
+    }
+    if(primary == null)
+    {
+      return;
+    }
+    if(_position > _end && _hedgeData == null)
+    {
+      primary.close();
+    }
+    else
+    {
+      abortQuietly(primary);
+    }
+  }
+
+  /**
+   * Stops checking the original request and aborts the hedge, if it is still running.
+   *
+   * @param completed True if the original request delivered the whole range
+   */
+  private void finish(boolean completed)
+  {
+    Future<?> monitor;
+    Future<?> hedge;
+    AbortableInputStream hedgeStream;
+    synchronized(this)
+    {
+      if(_finished)
+      {
+        return;
+      }
+      _finished = true;
+      monitor = _monitor;
+      hedge = _hedge;
+      hedgeStream = _hedgeStream;
+      _hedgeStream = null;
+    }
+
+    if(monitor != null)
+    {
+      monitor.cancel(false);
+    }
+    if(hedge != null)
+    {
+      hedge.cancel(false);
+    }
+    if(hedgeStream != null)
+    {
+      abortQuietly(hedgeStream);
+    }
+    if(completed)
+    {
+      double seconds = _readNanos / 1e9;
+      _hedger.recordThroughput((_end - _start + 1) / Math.max(seconds, 1e-6));
+    }
+  }
+
+  private static void abortQuietly(AbortableInputStream in)
+  {
+    try
+    {
+      in.abort();
+    }
+    catch(IOException e)
+    {
+    }
+  }
+}
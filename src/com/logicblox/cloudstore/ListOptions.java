@@ -24,6 +24,7 @@ import java.util.Optional;
  * @see ListOptionsBuilder
  * @see CloudStoreClient#getOptionsBuilderFactory()
  * @see CloudStoreClient#listObjects(ListOptions)
+ * @see CloudStoreClient#listObjectsPage(ListOptions)
  * @see OptionsBuilderFactory#newListOptionsBuilder()
  */
 public class ListOptions
@@ -34,10 +35,15 @@ public class ListOptions
   private boolean _recursive;
   private boolean _includeVersions;
   private boolean _excludeDirs;
+  private String _pageToken;
+  private int _shardDepth;
+  private int _keyRangeShards;
+  private boolean _lexicalOrder;
 
   ListOptions(
     CloudStoreClient cloudStoreClient, String bucketName, String objectKey, boolean recursive,
-    boolean includeVersions, boolean excludeDirs)
+    boolean includeVersions, boolean excludeDirs, String pageToken, int shardDepth,
+    int keyRangeShards, boolean lexicalOrder)
   {
     super(cloudStoreClient);
     _bucketName = bucketName;
@@ -45,6 +51,10 @@ public class ListOptions
     _recursive = recursive;
     _includeVersions = includeVersions;
     _excludeDirs = excludeDirs;
+    _pageToken = pageToken;
+    _shardDepth = shardDepth;
+    _keyRangeShards = keyRangeShards;
+    _lexicalOrder = lexicalOrder;
   }
 
   /**
@@ -99,4 +109,65 @@ public class ListOptions
     return _excludeDirs;
   }
 
+  /**
+   * Return the token of the page the listing starts at, as returned by a previous page.
+   *
+   * @return optional page token
+   */
+  public Optional<String> getPageToken()
+  {
+    return Optional.ofNullable(_pageToken);
+  }
+
+  /**
+   * Return the number of levels of directories (common prefixes) that are discovered before the
+   * directories found at the last level are listed concurrently. 0 means the listing is not
+   * sharded by directory.
+   *
+   * @return shard depth
+   */
+  public int getShardDepth()
+  {
+    return _shardDepth;
+  }
+
+  /**
+   * Return the number of key ranges each directory is split into to be listed concurrently. 1
+   * means directories are not split.
+   *
+   * @return number of key range shards
+   */
+  public int getKeyRangeShards()
+  {
+    return _keyRangeShards;
+  }
+
+  /**
+   * If true, the results of a sharded listing are returned in lexicographic order. Otherwise,
+   * the results of each shard are returned in the order the shards complete.
+   *
+   * @return lexical order flag
+   */
+  public boolean isLexicalOrder()
+  {
+    return _lexicalOrder;
+  }
+
+  /**
+   * Return true if the listing is split into shards that are listed concurrently.
+   */
+  boolean isSharded()
+  {
+    return _shardDepth > 0 || _keyRangeShards > 1;
+  }
+
+  /**
+   * Return a copy of these options that starts the listing at another page.
+   */
+  ListOptions withPageToken(String pageToken)
+  {
+    return new ListOptions(getCloudStoreClient(), _bucketName, _objectKey, _recursive,
+      _includeVersions, _excludeDirs, pageToken, _shardDepth, _keyRangeShards, _lexicalOrder);
+  }
+
 }
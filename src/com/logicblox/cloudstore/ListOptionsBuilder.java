@@ -25,6 +25,7 @@ package com.logicblox.cloudstore;
  * @see ListOptions
  * @see CloudStoreClient#getOptionsBuilderFactory()
  * @see CloudStoreClient#listObjects(ListOptions)
+ * @see CloudStoreClient#listObjectsPage(ListOptions)
  * @see OptionsBuilderFactory#newListOptionsBuilder()
  */
 public class ListOptionsBuilder
@@ -35,6 +36,10 @@ public class ListOptionsBuilder
   private boolean _recursive;
   private boolean _includeVersions;
   private boolean _excludeDirs;
+  private String _pageToken;
+  private int _shardDepth = 0;
+  private int _keyRangeShards = 1;
+  private boolean _lexicalOrder = true;
 
   ListOptionsBuilder(CloudStoreClient client)
   {
@@ -103,6 +108,68 @@ public class ListOptionsBuilder
     return this;
   }
 
+  /**
+   * Start the listing at the page with the given token, as returned by {@link
+   * ListPage#getNextPageToken()}, instead of at the beginning.
+   *
+   * @param pageToken token of the first page to list
+   * @return this builder
+   */
+  public ListOptionsBuilder setPageToken(String pageToken)
+  {
+    _pageToken = pageToken;
+    return this;
+  }
+
+  /**
+   * Set the number of levels of directories (common prefixes) to discover before listing the
+   * directories found at the last level concurrently. This speeds up recursive listings of large
+   * buckets with many directories. Files found at the discovered levels are part of the results
+   * as well. The default of 0 lists the whole prefix page by page.
+   * <p>
+   * Sharding only applies to {@link CloudStoreClient#listObjects(ListOptions)} and requires a
+   * recursive listing.
+   *
+   * @param shardDepth number of directory levels to discover
+   * @return this builder
+   */
+  public ListOptionsBuilder setShardDepth(int shardDepth)
+  {
+    _shardDepth = shardDepth;
+    return this;
+  }
+
+  /**
+   * Split each directory that is listed (the prefix itself, or the directories found with
+   * {@link #setShardDepth}) into this many key ranges, which are listed concurrently. This speeds
+   * up recursive listings of flat key spaces. The ranges are split by the first character after
+   * the directory, so keys should be spread over letters and digits. The default of 1 does not
+   * split directories.
+   * <p>
+   * Key range sharding is only supported by some services, and requires a recursive listing.
+   *
+   * @param keyRangeShards number of key ranges per directory
+   * @return this builder
+   */
+  public ListOptionsBuilder setKeyRangeShards(int keyRangeShards)
+  {
+    _keyRangeShards = keyRangeShards;
+    return this;
+  }
+
+  /**
+   * If set to false, the results of a sharded listing are returned in the order the shards
+   * complete instead of in lexicographic order. Defaults to true.
+   *
+   * @param lexicalOrder false to return results in completion order
+   * @return this builder
+   */
+  public ListOptionsBuilder setLexicalOrder(boolean lexicalOrder)
+  {
+    _lexicalOrder = lexicalOrder;
+    return this;
+  }
+
   private void validateOptions()
   {
     if(_cloudStoreClient == null)
@@ -113,6 +180,20 @@ public class ListOptionsBuilder
     {
       throw new UsageException("Bucket has to be set");
     }
+
+    if(_shardDepth < 0)
+    {
+      throw new UsageException("Shard depth cannot be negative");
+    }
+    if(_keyRangeShards < 1 || _keyRangeShards > ShardedListCommand.KEY_RANGE_ALPHABET.length())
+    {
+      throw new UsageException("Number of key range shards has to be between 1 and " +
+        ShardedListCommand.KEY_RANGE_ALPHABET.length());
+    }
+    if((_shardDepth > 0 || _keyRangeShards > 1) && !_recursive)
+    {
+      throw new UsageException("Sharded listing requires a recursive listing");
+    }
   }
 
   /**
@@ -127,6 +208,6 @@ public class ListOptionsBuilder
     validateOptions();
 
     return new ListOptions(_cloudStoreClient, _bucketName, _objectKey, _recursive, _includeVersions,
-      _excludeDirs);
+      _excludeDirs, _pageToken, _shardDepth, _keyRangeShards, _lexicalOrder);
   }
 }
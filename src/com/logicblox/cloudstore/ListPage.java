@@ -0,0 +1,57 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * One page of the results of a list operation, as returned by {@link
+ * CloudStoreClient#listObjectsPage(ListOptions)}. Besides the files on the page, it carries the
+ * token to request the next page with (see {@link ListOptionsBuilder#setPageToken(String)}).
+ */
+public class ListPage
+{
+  private final List<StoreFile> _files;
+  private final String _nextPageToken;
+
+  ListPage(List<StoreFile> files, String nextPageToken)
+  {
+    _files = files;
+    _nextPageToken = nextPageToken;
+  }
+
+  /**
+   * Return the files on this page, in lexicographic order.
+   *
+   * @return files on this page
+   */
+  public List<StoreFile> getFiles()
+  {
+    return _files;
+  }
+
+  /**
+   * Return the token of the next page, or nothing if this is the last page.
+   *
+   * @return optional next page token
+   */
+  public Optional<String> getNextPageToken()
+  {
+    return Optional.ofNullable(_nextPageToken);
+  }
+}
@@ -0,0 +1,298 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Iterates over the pages of a listing, as returned by {@link
+ * CloudStoreClient#listObjectsPages(ListOptions)}. The first page is requested right away, and
+ * each following page is requested as soon as the previous one has arrived, so that the next page
+ * is being fetched while the caller processes the current one. At most one page is fetched ahead
+ * of the caller, so the memory used does not depend on the size of the listing.
+ * <p>
+ * Pages can be consumed asynchronously with {@link #hasNext} and {@link #next}, or, blocking, as
+ * an {@link Iterator} over the files of all pages with {@link #files}.
+ */
+public class ListPageIterator
+{
+  private final CloudStoreClient _client;
+  private final ListOptions _options;
+  private ListenableFuture<ListPage> _returned;
+  private ListenableFuture<ListPage> _prefetched;
+
+  ListPageIterator(CloudStoreClient client, ListOptions options)
+  {
+    _client = client;
+    _options = options;
+    _prefetched = _client.listObjectsPage(options);
+  }
+
+  /**
+   * Return true if there is another page. This must only be called once the future returned by
+   * the previous call to {@link #next} has completed.
+   *
+   * @return true if {@link #next} returns another page
+   * @throws IllegalStateException if the previous page has not arrived yet
+   */
+  public synchronized boolean hasNext()
+  {
+    if(_prefetched != null)
+    {
+      return true;
+    }
+    if(!_returned.isDone())
+    {
+      throw new IllegalStateException("the previous page has not arrived yet");
+    }
+    prefetchAfter(_returned);
+    return _prefetched != null;
+  }
+
+  /**
+   * Return a future to the next page. Once it completes, the page after it is requested.
+   *
+   * @return future containing the next page
+   * @throws NoSuchElementException if there are no more pages
+   */
+  public synchronized ListenableFuture<ListPage> next()
+  {
+    if(!hasNext())
+    {
+      throw new NoSuchElementException();
+    }
+
+    final ListenableFuture<ListPage> page = _prefetched;
+    _returned = page;
+    _prefetched = null;
+    page.addListener(new Runnable()
+    {
+      public void run()
+      {
+        prefetchAfter(page);
+      }
+    }, MoreExecutors.directExecutor());
+    return page;
+  }
+
+  /**
+   * Stops fetching pages ahead of the caller.
+   */
+  public synchronized void cancel()
+  {
+    if(_prefetched != null)
+    {
+      _prefetched.cancel(true);
+    }
+  }
+
+  /**
+   * Return a blocking iterator over the files of all remaining pages. Failures to fetch a page
+   * are thrown from {@link Iterator#hasNext} as {@link ListingException}s.
+   *
+   * @return iterator over files
+   */
+  public Iterator<StoreFile> files()
+  {
+    return new Iterator<StoreFile>()
+    {
+      private Iterator<StoreFile> _page;
+
+      public boolean hasNext()
+      {
+        while(_page == null || !_page.hasNext())
+        {
+          if(!ListPageIterator.this.hasNext())
+          {
+            return false;
+          }
+          try
+          {
+            _page = ListPageIterator.this.next().get().getFiles().iterator();
+          }
+          catch(ExecutionException e)
+          {
+            throw new ListingException(e.getCause());
+          }
+          catch(InterruptedException e)
+          {
+            Thread.currentThread().interrupt();
+            throw new ListingException(e);
+          }
+        }
+        return true;
+      }
+
+      public StoreFile next()
+      {
+        if(!hasNext())
+        {
+          throw new NoSuchElementException();
+        }
+        return _page.next();
+      }
+    };
+  }
+
+  /**
+   * Applies {@code function} to each remaining page in turn and collects the results. A page is
+   * only passed to {@code function} once the future returned for the previous page has
+   * completed, while the page itself is already being fetched during that time. This bounds the
+   * work started per page (e.g. the deletes of the files on a page) to a single page.
+   *
+   * @return A future containing the results of all pages, or failing with the first failure
+   */
+  <T> ListenableFuture<List<T>> transformPages(AsyncFunction<ListPage, List<T>> function)
+  {
+    final SettableFuture<List<T>> result = SettableFuture.create();
+    result.addListener(new Runnable()
+    {
+      public void run()
+      {
+        if(result.isCancelled())
+        {
+          cancel();
+        }
+      }
+    }, MoreExecutors.directExecutor());
+    transformRemainingPages(function, new ArrayList<T>(), result);
+    return result;
+  }
+
+  /**
+   * Pages that are processed synchronously are handled in a loop, so that the stack only grows
+   * when the processing of a page has to be waited for.
+   */
+  private <T> void transformRemainingPages(
+    final AsyncFunction<ListPage, List<T>> function, final List<T> results,
+    final SettableFuture<List<T>> result)
+  {
+    while(!result.isDone())
+    {
+      if(!hasNext())
+      {
+        result.set(results);
+        return;
+      }
+
+      ListenableFuture<List<T>> page = Futures.transformAsync(next(), function,
+        MoreExecutors.directExecutor());
+      if(!page.isDone())
+      {
+        Futures.addCallback(page, new FutureCallback<List<T>>()
+        {
+          public void onSuccess(List<T> pageResults)
+          {
+            results.addAll(pageResults);
+            transformRemainingPages(function, results, result);
+          }
+
+          public void onFailure(Throwable t)
+          {
+            if(result.setException(t))
+            {
+              cancel();
+            }
+          }
+        }, MoreExecutors.directExecutor());
+        return;
+      }
+
+      try
+      {
+        results.addAll(Futures.getDone(page));
+      }
+      catch(ExecutionException e)
+      {
+        if(result.setException(e.getCause()))
+        {
+          cancel();
+        }
+      }
+      catch(RuntimeException e)
+      {
+        // cancelled
+        if(result.setException(e))
+        {
+          cancel();
+        }
+      }
+    }
+  }
+
+  /**
+   * Requests the page after {@code page} if it has arrived, is still the last page returned, and
+   * is not the last page of the listing.
+   */
+  private synchronized void prefetchAfter(ListenableFuture<ListPage> page)
+  {
+    if(page != _returned || _prefetched != null || !page.isDone() || page.isCancelled())
+    {
+      return;
+    }
+
+    String token;
+    try
+    {
+      token = Futures.getDone(page).getNextPageToken().orElse(null);
+    }
+    catch(ExecutionException e)
+    {
+      // the failure is reported through the page itself
+      return;
+    }
+    if(token == null)
+    {
+      return;
+    }
+
+    ListOptions options = _options.withPageToken(token);
+    try
+    {
+      _prefetched = _client.listObjectsPage(options);
+    }
+    catch(RuntimeException e)
+    {
+      _prefetched = Futures.immediateFailedFuture(e);
+    }
+  }
+
+  /**
+   * Thrown by the iterator returned by {@link #files} when a page could not be fetched.
+   */
+  public static class ListingException
+    extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+
+    ListingException(Throwable cause)
+    {
+      super(cause);
+    }
+  }
+}
@@ -23,8 +23,12 @@ import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
@@ -35,6 +39,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -109,6 +114,11 @@ class Main
       "maximum number of concurrent HTTP connections to the storage service")
     int maxConcurrentConnections = Utils.getDefaultMaxConcurrentConnections();
 
+    @Parameter(names = {"--adaptive-max-connections"}, description = "If set, the number of " +
+      "concurrent HTTP connections starts at --max-concurrent-connections and adapts to the " +
+      "throughput and throttling of the storage service, up to this maximum")
+    int adaptiveMaxConnections = 0;
+
     @Parameter(names = "--endpoint", description = "Endpoint")
     String endpoint = null;
 
@@ -146,7 +156,7 @@ class Main
       throws URISyntaxException, IOException, GeneralSecurityException
     {
       return Utils.createCloudStoreClient(getScheme(), endpoint, maxConcurrentConnections,
-        encKeyDirectory, credentialProvidersS3, _stubborn, _retryCount);
+        adaptiveMaxConnections, encKeyDirectory, credentialProvidersS3, _stubborn, _retryCount);
     }
   }
 
@@ -546,6 +556,22 @@ class Main
       "The size of each chunk read from the file. Determined " + "automatically if not set.")
     long chunkSize = -1;
 
+    @Parameter(names = "--resume", description = "Keep track of uploaded parts in a local " +
+      "journal and resume an interrupted upload of the same file instead of starting over")
+    boolean resume = false;
+
+    @Parameter(names = "--compress", description = "Compress each chunk-size block of the file " +
+      "with the given codec (deflate or gzip) before uploading it")
+    String compression = null;
+
+    @Parameter(names = {"--max-parts-in-flight"}, description =
+      "The maximum number of parts of a file uploaded at the same time")
+    int maxPartsInFlight = Utils.getDefaultMaxPartsInFlight();
+
+    @Parameter(names = {"--max-bytes-in-flight"}, description =
+      "The maximum number of bytes of a file uploaded at the same time")
+    long maxBytesInFlight = Utils.getDefaultMaxBytesInFlight();
+
     public void invoke()
       throws Exception
     {
@@ -560,8 +586,16 @@ class Main
         .setChunkSize(chunkSize)
         .setEncKey(encKeyName)
         .setCannedAcl(cannedAcl)
+        .setMaxPartsInFlight(maxPartsInFlight)
+        .setMaxBytesInFlight(maxBytesInFlight)
+        .setResume(resume)
         .setDryRun(dryRun);
 
+      if(compression != null)
+      {
+        uob.setCompressionCodec(PartCodecs.get(compression));
+      }
+
       if(progress)
       {
         OverallProgressListenerFactory cplf = new ConsoleProgressListenerFactory();
@@ -601,6 +635,14 @@ class Main
       "that match the provided storage " + "service URL prefix")
     boolean includeVersions = false;
 
+    @Parameter(names = {"--shard-depth"}, description = "Discover this many levels of " +
+      "directories first and list the directories found concurrently (requires --recursive)")
+    int shardDepth = 0;
+
+    @Parameter(names = {"--key-range-shards"}, description = "Split each listed directory into " +
+      "this many key ranges that are listed concurrently (requires --recursive, S3 only)")
+    int keyRangeShards = 1;
+
     @Override
     public void invoke()
       throws Exception
@@ -612,7 +654,9 @@ class Main
         .setObjectKey(getObjectKey())
         .setRecursive(recursive)
         .setIncludeVersions(includeVersions)
-        .setExcludeDirs(excludeDirs);
+        .setExcludeDirs(excludeDirs)
+        .setShardDepth(shardDepth)
+        .setKeyRangeShards(keyRangeShards);
       try
       {
         List<StoreFile> listCommandResults = client.listObjects(lob.createOptions()).get();
@@ -732,6 +776,14 @@ class Main
       "Print sizes in human readable form " + "(eg 1kB instead of 1234)")
     boolean humanReadble = false;
 
+    @Parameter(names = {"--shard-depth"}, description = "Discover this many levels of " +
+      "directories first and list the directories found concurrently")
+    int shardDepth = 0;
+
+    @Parameter(names = {"--key-range-shards"}, description = "Split each listed directory into " +
+      "this many key ranges that are listed concurrently (S3 only)")
+    int keyRangeShards = 1;
+
     @Override
     public void invoke()
       throws Exception
@@ -743,7 +795,9 @@ class Main
         .setObjectKey(getObjectKey())
         .setRecursive(true)
         .setIncludeVersions(false)
-        .setExcludeDirs(false);
+        .setExcludeDirs(false)
+        .setShardDepth(shardDepth)
+        .setKeyRangeShards(keyRangeShards);
       long numberOfFiles = 0;
       long totalSize = 0;
       int baseDepth = getObjectKey().equals("") ? 1 : getObjectKey().split("/").length + 1;
@@ -751,9 +805,14 @@ class Main
       TreeMap<String, DirectoryNode> dirs = new TreeMap<String, DirectoryNode>();
       try
       {
-        List<StoreFile> result = client.listObjects(lob.createOptions()).get();
-        for(StoreFile obj : result)
+        // sizes are summed up while the listing is still being fetched, unless it is sharded
+        ListOptions options = lob.createOptions();
+        Iterator<StoreFile> result = options.isSharded() ?
+          client.listObjects(options).get().iterator() :
+          client.listObjectsPages(options).files();
+        while(result.hasNext())
         {
+          StoreFile obj = result.next();
           numberOfFiles += 1;
           totalSize += obj.getSize().orElse((long) 0);
           if(maxDepth > 0)
@@ -831,7 +890,7 @@ class Main
           printTree(dirs, humanReadble, all, getObjectKey());
         }
       }
-      catch(ExecutionException exc)
+      catch(ExecutionException | ListPageIterator.ListingException exc)
       {
         rethrow(exc.getCause());
       }
@@ -1089,7 +1148,8 @@ class Main
   class DownloadCommandOptions
     extends S3ObjectCommandOptions
   {
-    @Parameter(names = "-o", description = "Write output to file, or directory", required = true)
+    @Parameter(names = "-o", description = "Write output to file, or directory, or to standard " +
+      "output if '-'", required = true)
     String file = System.getProperty("user.dir");
 
     @Parameter(names = "--overwrite", description = "Overwrite existing file(s) if existing")
@@ -1105,6 +1165,34 @@ class Main
     @Parameter(names = "--progress", description = "Enable progress indication")
     boolean progress = false;
 
+    @Parameter(names = "--resume", description = "Download into a .partial file and keep track " +
+      "of downloaded parts, so that an interrupted download can be resumed instead of starting " +
+      "over. Files that a previous run already completed are kept as they are")
+    boolean resume = false;
+
+    @Parameter(names = "--fsync", description = "Force downloaded data to disk before completing")
+    boolean fsync = false;
+
+    @Parameter(names = "--prefetch-first-part", description = "Request the first part right " +
+      "away and take the object metadata from its response, instead of from separate requests")
+    boolean prefetchFirstPart = false;
+
+    @Parameter(names = "--hedge-requests", description = "Request the rest of a part again if " +
+      "its request falls behind the others, and use whichever request completes first")
+    boolean hedgeRequests = false;
+
+    @Parameter(names = "--max-hedge-bytes", description = "With --hedge-requests, only hedge " +
+      "requests with at most this many bytes left, which are buffered in memory")
+    long maxHedgeBytes = RequestHedger.DEFAULT_MAX_HEDGE_BYTES;
+
+    @Parameter(names = {"--max-parts-in-flight"}, description =
+      "The maximum number of parts of a file downloaded at the same time")
+    int maxPartsInFlight = Utils.getDefaultMaxPartsInFlight();
+
+    @Parameter(names = {"--max-bytes-in-flight"}, description =
+      "The maximum number of bytes of a file downloaded at the same time")
+    long maxBytesInFlight = Utils.getDefaultMaxBytesInFlight();
+
     @Parameter(names = "--dry-run", description = "Display operations but do not execute them")
     boolean dryRun = false;
 
@@ -1112,6 +1200,20 @@ class Main
     public void invoke()
       throws Exception
     {
+      boolean toStdout = "-".equals(file);
+      if(toStdout && (recursive || resume))
+      {
+        throw new UsageException("Downloads to standard output cannot be recursive or resumed");
+      }
+
+      OutputStream stdout = null;
+      if(toStdout)
+      {
+        // Standard output carries the data, so everything else goes to standard error
+        stdout = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1024 * 1024);
+        System.setOut(System.err);
+      }
+
       CloudStoreClient client = createCloudStoreClient();
 
       File output = new File(file);
@@ -1123,6 +1225,13 @@ class Main
         .setObjectKey(getObjectKey())
         .setVersion(version)
         .setOverwrite(overwrite)
+        .setMaxPartsInFlight(maxPartsInFlight)
+        .setMaxBytesInFlight(maxBytesInFlight)
+        .setResume(resume)
+        .setFsync(fsync)
+        .setPrefetchFirstPart(prefetchFirstPart)
+        .setRequestHedger(hedgeRequests ? new RequestHedger(RequestHedger.DEFAULT_PERCENTILE,
+          RequestHedger.DEFAULT_BUDGET, maxHedgeBytes) : null)
         .setDryRun(dryRun);
 
       if(progress)
@@ -1139,6 +1248,12 @@ class Main
           if((null == storeFiles) || storeFiles.isEmpty())
             System.err.println("warning: No objects found for " + getURI());
         }
+        else if(toStdout)
+        {
+          dob.setFile(null);
+          dob.setOutputStream(stdout);
+          client.download(dob.createOptions()).get();
+        }
         else
         {
           if(output.isDirectory())
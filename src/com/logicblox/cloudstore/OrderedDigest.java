@@ -0,0 +1,305 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Computes a single digest over all parts of a transfer, in order, while the parts themselves
+ * complete in any order.
+ * <p>
+ * The bytes of a part are offered to the digest while the part is written, through a {@link
+ * Part}. The part that is next in order is hashed right away. A part that completes before all
+ * preceding parts is held back in memory, as long as the parts held back add up to no more than
+ * {@code maxBufferedBytes}. Parts beyond that budget, and parts that were never offered, are read
+ * back by {@link #hashPart} once all preceding parts have been hashed. Parts that are held back or
+ * read back are hashed on the executor, at most one at a time.
+ */
+abstract class OrderedDigest
+{
+  private final int _partCount;
+  private final long _maxBufferedBytes;
+  private final Executor _executor;
+  private final SettableFuture<byte[]> _digest = SettableFuture.create();
+
+  /**
+   * The completed parts that have not been hashed yet. A part maps to its content if it is held
+   * back in memory, and to null if it has to be read back.
+   */
+  private final Map<Integer, byte[]> _completed = new HashMap<>();
+  private MessageDigest _md;
+  private long _bufferedBytes = 0;
+  private int _next = 0;
+  private boolean _hashing = false;
+
+  /**
+   * @param md               The digest to feed the parts to
+   * @param partCount        The number of parts of the transfer
+   * @param maxBufferedBytes The maximum number of bytes of parts that are held back in memory
+   * @param executor         The executor parts are hashed on
+   */
+  public OrderedDigest(MessageDigest md, int partCount, long maxBufferedBytes, Executor executor)
+  {
+    _md = md;
+    _partCount = partCount;
+    _maxBufferedBytes = maxBufferedBytes;
+    _executor = executor;
+  }
+
+  /**
+   * Feeds the content of a part that was not held back in memory to {@code md}.
+   */
+  protected abstract void hashPart(int partNumber, MessageDigest md)
+    throws IOException;
+
+  /**
+   * Starts an attempt to write a part, whose bytes are then offered to the returned {@link Part}.
+   * The part is hashed while it is written if it is the next part in order, and otherwise copied
+   * to memory if the budget for parts held back allows.
+   */
+  public Part startPart(int partNumber, long size)
+  {
+    synchronized(this)
+    {
+      if(!_hashing && partNumber == _next)
+      {
+        MessageDigest md = cloneDigest();
+        if(md != null)
+        {
+          // a failed attempt must not leave its bytes in the digest, so it works on a copy
+          _hashing = true;
+          return new Part(partNumber, md, null);
+        }
+      }
+      if(size <= Integer.MAX_VALUE && _bufferedBytes + size <= _maxBufferedBytes)
+      {
+        _bufferedBytes += size;
+        return new Part(partNumber, null, new byte[(int) size]);
+      }
+    }
+    return new Part(partNumber, null, null);
+  }
+
+  /**
+   * Marks a part as complete that was not offered to a {@link Part}, so that it is read back once
+   * all preceding parts have been hashed.
+   */
+  public void partCompleted(int partNumber)
+  {
+    partCompleted(partNumber, null);
+  }
+
+  /**
+   * @return A future to the digest of all parts, which completes once the last part has been
+   * hashed
+   */
+  public ListenableFuture<byte[]> getDigest()
+  {
+    return _digest;
+  }
+
+  private void partCompleted(int partNumber, byte[] data)
+  {
+    synchronized(this)
+    {
+      _completed.put(partNumber, data);
+      if(_hashing || !_completed.containsKey(_next))
+      {
+        return;
+      }
+      _hashing = true;
+    }
+    hashCompletedPartsLater();
+  }
+
+  private MessageDigest cloneDigest()
+  {
+    try
+    {
+      return (MessageDigest) _md.clone();
+    }
+    catch(CloneNotSupportedException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Called by the part that is being hashed while it is written, once it is done. If it
+   * succeeded, its digest replaces the digest of the preceding parts.
+   */
+  private void inlinePartDone(MessageDigest md)
+  {
+    synchronized(this)
+    {
+      if(md != null)
+      {
+        _md = md;
+        _next++;
+        if(_next == _partCount)
+        {
+          _hashing = false;
+          _digest.set(_md.digest());
+          return;
+        }
+      }
+      if(!_completed.containsKey(_next))
+      {
+        _hashing = false;
+        return;
+      }
+    }
+    hashCompletedPartsLater();
+  }
+
+  private void hashCompletedPartsLater()
+  {
+    _executor.execute(new Runnable()
+    {
+      public void run()
+      {
+        hashCompletedParts();
+      }
+    });
+  }
+
+  private void hashCompletedParts()
+  {
+    while(true)
+    {
+      int partNumber;
+      byte[] data;
+      synchronized(this)
+      {
+        if(!_completed.containsKey(_next))
+        {
+          _hashing = false;
+          return;
+        }
+        partNumber = _next;
+        data = _completed.remove(partNumber);
+      }
+
+      try
+      {
+        if(data != null)
+        {
+          _md.update(data);
+        }
+        else
+        {
+          hashPart(partNumber, _md);
+        }
+      }
+      catch(IOException | RuntimeException e)
+      {
+        _digest.setException(e);
+        return;
+      }
+
+      synchronized(this)
+      {
+        if(data != null)
+        {
+          _bufferedBytes -= data.length;
+        }
+        _next++;
+        if(_next == _partCount)
+        {
+          _hashing = false;
+          _digest.set(_md.digest());
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * An attempt to write a part, which is offered the bytes of the part in order. Exactly one of
+   * {@link #completed} and {@link #failed} has to be called once the attempt is over.
+   */
+  class Part
+  {
+    private final int _partNumber;
+    private MessageDigest _inline;
+    private byte[] _data;
+    private int _length = 0;
+
+    private Part(int partNumber, MessageDigest inline, byte[] data)
+    {
+      _partNumber = partNumber;
+      _inline = inline;
+      _data = data;
+    }
+
+    /**
+     * Offers the next bytes of the part.
+     */
+    public void update(byte[] buf, int offset, int length)
+    {
+      if(_inline != null)
+      {
+        _inline.update(buf, offset, length);
+      }
+      else if(_data != null)
+      {
+        System.arraycopy(buf, offset, _data, _length, length);
+        _length += length;
+      }
+    }
+
+    /**
+     * Marks the part as complete, after all its bytes have been offered.
+     */
+    public void completed()
+    {
+      if(_inline != null)
+      {
+        inlinePartDone(_inline);
+      }
+      else
+      {
+        partCompleted(_partNumber, _data);
+      }
+    }
+
+    /**
+     * Gives up this attempt, releasing what it held back.
+     */
+    public void failed()
+    {
+      if(_inline != null)
+      {
+        inlinePartDone(null);
+      }
+      else if(_data != null)
+      {
+        synchronized(OrderedDigest.this)
+        {
+          _bufferedBytes -= _data.length;
+        }
+      }
+    }
+  }
+}
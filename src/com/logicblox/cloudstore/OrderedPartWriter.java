@@ -0,0 +1,176 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the parts of a download to an {@link OutputStream} in order, while the parts themselves
+ * may arrive in any order. Parts that arrive early are held in memory until all preceding parts
+ * have been written. The number of parts held is bounded by the caller, which waits for
+ * {@link #written} of a part before counting it as done (see {@link PartScheduler}).
+ * <p>
+ * Writes to the stream happen on the thread that delivers the next part in order, one at a time.
+ */
+class OrderedPartWriter
+{
+  private final OutputStream _out;
+  private final Map<Integer, byte[]> _pending = new HashMap<>();
+  private final Map<Integer, SettableFuture<Void>> _written = new HashMap<>();
+  private int _next = 0;
+  private boolean _writing = false;
+  private IOException _failure;
+  private MessageDigest _md;
+
+  public OrderedPartWriter(OutputStream out)
+  {
+    _out = out;
+  }
+
+  /**
+   * Also feeds everything that is written to the stream to {@code md}. Must be called before the
+   * first part is delivered.
+   */
+  public void setDigest(MessageDigest md)
+  {
+    _md = md;
+  }
+
+  /**
+   * Delivers the content of a part. Delivering a part again (e.g. after a retry) before it has
+   * been written replaces its content.
+   */
+  public void put(int partNumber, byte[] data)
+  {
+    synchronized(this)
+    {
+      if(partNumber < _next)
+      {
+        return;
+      }
+      _pending.put(partNumber, data);
+      if(_writing)
+      {
+        return;
+      }
+      _writing = true;
+    }
+
+    drain();
+  }
+
+  /**
+   * @return A future that completes when the part has been written to the stream, or fails if
+   * writing to the stream failed
+   */
+  public synchronized ListenableFuture<Void> written(int partNumber)
+  {
+    SettableFuture<Void> f = getWrittenFuture(partNumber);
+    if(_failure != null)
+    {
+      f.setException(_failure);
+    }
+    return f;
+  }
+
+  public void flush()
+    throws IOException
+  {
+    _out.flush();
+  }
+
+  private void drain()
+  {
+    while(true)
+    {
+      byte[] data;
+      int partNumber;
+      synchronized(this)
+      {
+        data = _pending.remove(_next);
+        if(data == null || _failure != null)
+        {
+          _writing = false;
+          return;
+        }
+        partNumber = _next;
+      }
+
+      try
+      {
+        _out.write(data);
+        if(_md != null)
+        {
+          _md.update(data);
+        }
+      }
+      catch(IOException e)
+      {
+        fail(e);
+        return;
+      }
+
+      SettableFuture<Void> f;
+      synchronized(this)
+      {
+        _next++;
+        f = getWrittenFuture(partNumber);
+        _written.remove(partNumber);
+      }
+      f.set(null);
+    }
+  }
+
+  private void fail(IOException e)
+  {
+    Iterable<SettableFuture<Void>> waiting;
+    synchronized(this)
+    {
+      _failure = e;
+      _writing = false;
+      _pending.clear();
+      waiting = new HashMap<>(_written).values();
+    }
+    for(SettableFuture<Void> f : waiting)
+    {
+      f.setException(e);
+    }
+  }
+
+  private SettableFuture<Void> getWrittenFuture(int partNumber)
+  {
+    SettableFuture<Void> f = _written.get(partNumber);
+    if(f == null)
+    {
+      f = SettableFuture.create();
+      if(partNumber < _next)
+      {
+        f.set(null);
+        return f;
+      }
+      _written.put(partNumber, f);
+    }
+    return f;
+  }
+}
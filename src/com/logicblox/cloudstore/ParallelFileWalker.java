@@ -0,0 +1,208 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks a directory tree with several threads, reading different directories in parallel, and
+ * hands every regular file to a {@link Visitor} as soon as it is found. Unlike
+ * {@code FileUtils.listFiles}, the tree is never held in memory as a whole, and the visitor may
+ * block (e.g. until a queue has room) to slow the walk down.
+ * <p>
+ * Symbolic links are not followed and not visited. Like with {@code FileUtils.listFiles},
+ * directories and files that cannot be read (e.g. for lack of permissions) are skipped, with a
+ * warning.
+ */
+class ParallelFileWalker
+{
+  interface Visitor
+  {
+    /**
+     * Called for every regular file, possibly from several threads at the same time.
+     */
+    void visitFile(Path file, BasicFileAttributes attrs)
+      throws Exception;
+  }
+
+  private final int _parallelism;
+
+  /**
+   * @param parallelism The maximum number of directories read at the same time
+   */
+  public ParallelFileWalker(int parallelism)
+  {
+    _parallelism = parallelism;
+  }
+
+  /**
+   * Starts walking the tree under {@code root} on a pool of its own.
+   *
+   * @return A future that completes when all files have been visited, or fails with the first
+   * exception thrown while visiting a file
+   */
+  public ListenableFuture<Void> walk(final Path root, final Visitor visitor)
+  {
+    final SettableFuture<Void> result = SettableFuture.create();
+    final ForkJoinPool pool = new ForkJoinPool(_parallelism);
+    pool.execute(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          pool.invoke(new DirectoryTask(root, visitor, result));
+          result.set(null);
+        }
+        catch(Throwable t)
+        {
+          while(t instanceof WalkException)
+          {
+            t = t.getCause();
+          }
+          result.setException(t);
+        }
+        finally
+        {
+          pool.shutdown();
+        }
+      }
+    });
+    return result;
+  }
+
+  private static class DirectoryTask
+    extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final Path _dir;
+    private final Visitor _visitor;
+    private final ListenableFuture<Void> _result;
+
+    DirectoryTask(Path dir, Visitor visitor, ListenableFuture<Void> result)
+    {
+      _dir = dir;
+      _visitor = visitor;
+      _result = result;
+    }
+
+    @Override
+    protected void compute()
+    {
+      List<DirectoryTask> subdirs = new ArrayList<>();
+      try(DirectoryStream<Path> entries = Files.newDirectoryStream(_dir))
+      {
+        for(Path entry : entries)
+        {
+          // stop early if the walk has been cancelled or failed elsewhere
+          if(_result.isDone())
+          {
+            return;
+          }
+
+          BasicFileAttributes attrs;
+          try
+          {
+            attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+              LinkOption.NOFOLLOW_LINKS);
+          }
+          catch(IOException e)
+          {
+            skip(entry, e);
+            continue;
+          }
+          if(attrs.isDirectory())
+          {
+            DirectoryTask task = new DirectoryTask(entry, _visitor, _result);
+            task.fork();
+            subdirs.add(task);
+          }
+          else if(attrs.isRegularFile())
+          {
+            visitFile(entry, attrs);
+          }
+        }
+      }
+      catch(IOException e)
+      {
+        // the entries found so far are still visited
+        skip(_dir, e);
+      }
+      catch(DirectoryIteratorException e)
+      {
+        skip(_dir, e.getCause());
+      }
+
+      for(DirectoryTask task : subdirs)
+      {
+        task.join();
+      }
+    }
+
+    /**
+     * Unlike errors reading the tree, a failure of the visitor fails the walk.
+     */
+    private void visitFile(Path file, BasicFileAttributes attrs)
+    {
+      try
+      {
+        _visitor.visitFile(file, attrs);
+      }
+      catch(RuntimeException e)
+      {
+        throw e;
+      }
+      catch(Exception e)
+      {
+        throw new WalkException(e);
+      }
+    }
+
+    private static void skip(Path path, IOException e)
+    {
+      System.err.println("Warning: Skipping '" + path + "', which cannot be read: " + e);
+    }
+  }
+
+  /**
+   * Carries a checked exception out of a {@link DirectoryTask}.
+   */
+  private static class WalkException
+    extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+
+    WalkException(Exception cause)
+    {
+      super(cause);
+    }
+  }
+}
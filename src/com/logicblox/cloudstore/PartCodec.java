@@ -0,0 +1,54 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+
+package com.logicblox.cloudstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression codec that is applied to each chunk-size block of an uploaded file separately
+ * (before encryption, if any), and reversed when the blocks are downloaded. The name of the codec is
+ * recorded in the {@code s3tool-compression} metadata of the object, so the codec has to be
+ * {@link PartCodecs#register registered} under that name for the object to be downloaded.
+ *
+ * @see PartCodecs
+ * @see UploadOptionsBuilder#setCompressionCodec(PartCodec)
+ */
+public interface PartCodec
+{
+  /**
+   * @return The name the codec is registered and recorded under
+   */
+  String getName();
+
+  /**
+   * Returns a stream that compresses the data written to it into {@code out}. Closing the
+   * returned stream closes {@code out}. The output has to be deterministic, so that a block that
+   * is compressed again to retry its upload yields the same bytes.
+   */
+  OutputStream newCompressingStream(OutputStream out)
+    throws IOException;
+
+  /**
+   * Returns a stream that decompresses the data read from {@code in}, which is exactly one block
+   * as compressed by {@link #newCompressingStream}.
+   */
+  InputStream newDecompressingStream(InputStream in)
+    throws IOException;
+}
@@ -0,0 +1,147 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+
+package com.logicblox.cloudstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Registry of the {@link PartCodec PartCodecs} that can be used to compress uploaded files, and
+ * that are available to decompress downloaded ones. The {@code deflate} (zlib) and {@code gzip}
+ * codecs are built in.
+ */
+public final class PartCodecs
+{
+  public static final PartCodec DEFLATE = new PartCodec()
+  {
+    public String getName()
+    {
+      return "deflate";
+    }
+
+    public OutputStream newCompressingStream(OutputStream out)
+    {
+      // unlike its default deflater, the stream does not end a deflater that is passed in
+      return new DeflaterOutputStream(out, new Deflater(), BUFFER_SIZE)
+      {
+        @Override
+        public void close()
+          throws IOException
+        {
+          try
+          {
+            super.close();
+          }
+          finally
+          {
+            def.end();
+          }
+        }
+      };
+    }
+
+    public InputStream newDecompressingStream(InputStream in)
+    {
+      // unlike its default inflater, the stream does not end an inflater that is passed in
+      return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE)
+      {
+        @Override
+        public void close()
+          throws IOException
+        {
+          try
+          {
+            super.close();
+          }
+          finally
+          {
+            inf.end();
+          }
+        }
+      };
+    }
+  };
+
+  public static final PartCodec GZIP = new PartCodec()
+  {
+    public String getName()
+    {
+      return "gzip";
+    }
+
+    public OutputStream newCompressingStream(OutputStream out)
+      throws IOException
+    {
+      return new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+
+    public InputStream newDecompressingStream(InputStream in)
+      throws IOException
+    {
+      return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+  };
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final Map<String, PartCodec> _codecs = new ConcurrentHashMap<>();
+
+  static
+  {
+    register(DEFLATE);
+    register(GZIP);
+  }
+
+  private PartCodecs()
+  {
+  }
+
+  /**
+   * Makes a codec available under its name, replacing any codec registered under the same name.
+   */
+  public static void register(PartCodec codec)
+  {
+    _codecs.put(codec.getName(), codec);
+  }
+
+  /**
+   * Returns the codec registered under {@code name}, or throws a {@link UsageException} if there
+   * is none.
+   */
+  public static PartCodec get(String name)
+  {
+    PartCodec codec = _codecs.get(name);
+    if(codec == null)
+    {
+      throw new UsageException(
+        "Unknown compression codec '" + name + "', should be one of " + new TreeSet<>(
+          _codecs.keySet()));
+    }
+    return codec;
+  }
+}
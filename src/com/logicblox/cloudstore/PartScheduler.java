@@ -0,0 +1,405 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Starts the parts of a single transfer through a sliding window, instead of submitting all of
+ * them up front. At most {@code maxPartsInFlight} parts, adding up to at most
+ * {@code maxBytesInFlight} bytes, are running at any time; the next part is started only when an
+ * earlier one finishes. A part larger than {@code maxBytesInFlight} is started on its own.
+ * <p>
+ * This keeps the executor queues (and the memory held by queued parts) bounded regardless of the
+ * number of parts, so that concurrent transfers sharing the executors of a
+ * {@link CloudStoreClient} make progress side by side. On the first part failure, or when the
+ * future returned by {@link #start} is cancelled, no further parts are started and the parts still
+ * in flight are cancelled.
+ * <p>
+ * Parts are either all added before {@link #start}, or, if they are produced while others are
+ * already running (e.g. from the pages of a listing), added after {@link #open} until
+ * {@link #close} is called. A producer can keep the queue of pending parts bounded by waiting for
+ * {@link #awaitCapacity} before adding more.
+ * <p>
+ * Pending parts are started in the order they were added, or, if the scheduler is created with
+ * {@code largestFirst}, the largest pending part is started first.
+ */
+class PartScheduler
+{
+  private final int _maxPartsInFlight;
+  private final long _maxBytesInFlight;
+  private final Queue<Part> _pending;
+  private final Set<ListenableFuture<?>> _inFlight = new HashSet<>();
+  private final SettableFuture<Void> _result = SettableFuture.create();
+  private int _partsInFlight = 0;
+  private long _bytesInFlight = 0;
+  private boolean _started = false;
+  private boolean _closed = false;
+  private SettableFuture<Void> _capacity;
+  private int _capacityThreshold;
+  private boolean _releasing = false;
+  private boolean _releaseRequested = false;
+  private long _nextSequence = 0;
+
+  public PartScheduler(int maxPartsInFlight, long maxBytesInFlight)
+  {
+    this(maxPartsInFlight, maxBytesInFlight, false);
+  }
+
+  /**
+   * @param largestFirst If true, the largest pending part is started first instead of the one that
+   *                     was added first. Parts of equal size are started in the order they were
+   *                     added.
+   */
+  public PartScheduler(int maxPartsInFlight, long maxBytesInFlight, boolean largestFirst)
+  {
+    if(maxPartsInFlight < 1)
+    {
+      throw new IllegalArgumentException("maxPartsInFlight must be positive");
+    }
+    if(maxBytesInFlight < 1)
+    {
+      throw new IllegalArgumentException("maxBytesInFlight must be positive");
+    }
+
+    _maxPartsInFlight = maxPartsInFlight;
+    _maxBytesInFlight = maxBytesInFlight;
+    if(largestFirst)
+    {
+      _pending = new PriorityQueue<>(11, new Comparator<Part>()
+      {
+        public int compare(Part a, Part b)
+        {
+          int bySize = Long.compare(b._size, a._size);
+          return bySize != 0 ? bySize : Long.compare(a._sequence, b._sequence);
+        }
+      });
+    }
+    else
+    {
+      _pending = new ArrayDeque<>();
+    }
+  }
+
+  /**
+   * Queues a part.
+   *
+   * @param size The number of bytes the part transfers
+   * @param part Starts the part and returns a future that completes when the part is done
+   */
+  public void addPart(long size, Callable<? extends ListenableFuture<?>> part)
+  {
+    synchronized(this)
+    {
+      if(_closed)
+      {
+        throw new IllegalStateException("parts cannot be added after the scheduler has closed");
+      }
+      if(_result.isDone())
+      {
+        // failed or cancelled, the part would never be started
+        return;
+      }
+      _pending.add(new Part(size, part, _nextSequence++));
+      if(!_started)
+      {
+        return;
+      }
+    }
+    release();
+  }
+
+  /**
+   * Starts the first window of parts.
+   *
+   * @return A future that completes when all parts have completed successfully, or fails with the
+   * cause of the first part failure
+   */
+  public ListenableFuture<Void> start()
+  {
+    synchronized(this)
+    {
+      if(_started)
+      {
+        throw new IllegalStateException("scheduler has already started");
+      }
+      _closed = true;
+    }
+    return open();
+  }
+
+  /**
+   * Starts the first window of parts, and keeps accepting parts until {@link #close} is called.
+   *
+   * @return A future that completes when the scheduler has been closed and all parts have
+   * completed successfully, or fails with the cause of the first part failure
+   */
+  public ListenableFuture<Void> open()
+  {
+    synchronized(this)
+    {
+      if(_started)
+      {
+        throw new IllegalStateException("scheduler has already started");
+      }
+      _started = true;
+    }
+
+    _result.addListener(new Runnable()
+    {
+      public void run()
+      {
+        if(_result.isCancelled())
+        {
+          cancelInFlight();
+        }
+      }
+    }, MoreExecutors.directExecutor());
+
+    release();
+    return _result;
+  }
+
+  /**
+   * Marks that no more parts will be added.
+   */
+  public void close()
+  {
+    synchronized(this)
+    {
+      _closed = true;
+      if(!_started)
+      {
+        return;
+      }
+    }
+    release();
+  }
+
+  /**
+   * @return A future that completes as soon as fewer than {@code maxPending} parts are waiting to
+   * be started, or the scheduler has failed. Only a single producer may wait at a time.
+   */
+  public synchronized ListenableFuture<Void> awaitCapacity(int maxPending)
+  {
+    if(_pending.size() < maxPending || _result.isDone())
+    {
+      return Futures.immediateFuture(null);
+    }
+    _capacity = SettableFuture.create();
+    _capacityThreshold = maxPending;
+    return _capacity;
+  }
+
+  /**
+   * Starts as many pending parts as the window allows. Parts that complete synchronously call
+   * back into this method; those calls only flag that another pass is needed, so the stack does
+   * not grow with the number of parts.
+   */
+  private void release()
+  {
+    synchronized(this)
+    {
+      if(_releasing)
+      {
+        _releaseRequested = true;
+        return;
+      }
+      _releasing = true;
+    }
+
+    boolean done;
+    SettableFuture<Void> capacity;
+    while(true)
+    {
+      Part next;
+      synchronized(this)
+      {
+        next = nextPart();
+        if(next == null)
+        {
+          if(_releaseRequested)
+          {
+            _releaseRequested = false;
+            continue;
+          }
+          _releasing = false;
+          done = _closed && _pending.isEmpty() && _partsInFlight == 0;
+          capacity = takeCapacity();
+          break;
+        }
+        _partsInFlight++;
+        _bytesInFlight += next._size;
+      }
+      startPart(next);
+    }
+
+    if(done)
+    {
+      _result.set(null);
+    }
+    if(capacity != null)
+    {
+      capacity.set(null);
+    }
+  }
+
+  /**
+   * Removes and returns the future a producer waits for, if the producer can continue.
+   */
+  private SettableFuture<Void> takeCapacity()
+  {
+    SettableFuture<Void> capacity = _capacity;
+    if(capacity != null && (_pending.size() < _capacityThreshold || _result.isDone()))
+    {
+      _capacity = null;
+      return capacity;
+    }
+    return null;
+  }
+
+  /**
+   * Removes and returns the next part if the window has room for it, otherwise returns null.
+   */
+  private Part nextPart()
+  {
+    if(_result.isDone() || _pending.isEmpty())
+    {
+      return null;
+    }
+    if(_partsInFlight > 0)
+    {
+      Part next = _pending.peek();
+      if(_partsInFlight >= _maxPartsInFlight || _bytesInFlight + next._size > _maxBytesInFlight)
+      {
+        return null;
+      }
+    }
+    return _pending.poll();
+  }
+
+  private void startPart(final Part part)
+  {
+    ListenableFuture<?> future;
+    try
+    {
+      future = part._callable.call();
+    }
+    catch(Throwable t)
+    {
+      future = Futures.immediateFailedFuture(t);
+    }
+
+    synchronized(this)
+    {
+      _inFlight.add(future);
+    }
+
+    final ListenableFuture<?> f = future;
+    future.addListener(new Runnable()
+    {
+      public void run()
+      {
+        partDone(part, f);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  private void partDone(Part part, ListenableFuture<?> future)
+  {
+    Throwable failure = null;
+    try
+    {
+      Futures.getDone(future);
+    }
+    catch(ExecutionException e)
+    {
+      failure = e.getCause();
+    }
+    catch(CancellationException e)
+    {
+      failure = e;
+    }
+
+    synchronized(this)
+    {
+      _inFlight.remove(future);
+      _partsInFlight--;
+      _bytesInFlight -= part._size;
+    }
+
+    if(failure != null)
+    {
+      if(_result.setException(failure))
+      {
+        cancelInFlight();
+      }
+      return;
+    }
+
+    release();
+  }
+
+  private void cancelInFlight()
+  {
+    List<ListenableFuture<?>> inFlight;
+    SettableFuture<Void> capacity;
+    synchronized(this)
+    {
+      _pending.clear();
+      inFlight = new ArrayList<>(_inFlight);
+      capacity = takeCapacity();
+    }
+    for(ListenableFuture<?> f : inFlight)
+    {
+      f.cancel(true);
+    }
+    if(capacity != null)
+    {
+      capacity.set(null);
+    }
+  }
+
+  private static class Part
+  {
+    final long _size;
+    final Callable<? extends ListenableFuture<?>> _callable;
+    final long _sequence;
+
+    Part(long size, Callable<? extends ListenableFuture<?>> callable, long sequence)
+    {
+      _size = size;
+      _callable = callable;
+      _sequence = sequence;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reports the bytes read from a part's stream as progress of that part. Notifications are sent
+ * at most once every {@link #REPORT_INTERVAL} bytes, and when the stream is exhausted.
+ */
+class ProgressInputStream
+  extends FilterInputStream
+{
+  static final long REPORT_INTERVAL = 256 * 1024;
+
+  private final OverallProgressListener _opl;
+  private final PartProgressEvent _ppe;
+  private long _transferredBytes = 0;
+  private long _reportedBytes = 0;
+
+  public ProgressInputStream(InputStream in, OverallProgressListener opl, PartProgressEvent ppe)
+  {
+    super(in);
+    _opl = opl;
+    _ppe = ppe;
+  }
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    int res = in.read();
+    progress(res == -1 ? -1 : 1);
+    return res;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len)
+    throws IOException
+  {
+    int count = in.read(b, off, len);
+    progress(count);
+    return count;
+  }
+
+  @Override
+  public long skip(long n)
+    throws IOException
+  {
+    long skipped = in.skip(n);
+    _transferredBytes += skipped;
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+    return false;
+  }
+
+  private void progress(int count)
+  {
+    if(count > 0)
+    {
+      _transferredBytes += count;
+    }
+    if(_transferredBytes - _reportedBytes >= REPORT_INTERVAL ||
+      (count == -1 && _transferredBytes != _reportedBytes))
+    {
+      _ppe.setTransferredBytes(_transferredBytes);
+      _opl.progress(_ppe);
+      _reportedBytes = _transferredBytes;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+
+/**
+ * Reads a stream that can be opened again from the start, such as a (possibly encrypted) part of
+ * a local file, and supports {@link #mark} and {@link #reset} regardless of the read limit:
+ * resetting re-opens the stream and skips to the mark, instead of buffering the bytes read since
+ * the mark.
+ * <p>
+ * The AWS SDK resets the content of a request to retry it. Without mark support it buffers up to
+ * the read limit of the request, i.e. a whole part, in memory to be able to do that.
+ * <p>
+ * Every call of the {@code opener} has to return the same bytes.
+ */
+class ReopenableInputStream
+  extends InputStream
+{
+  private static final int SKIP_BUFFER_SIZE = 64 * 1024;
+
+  private final Callable<InputStream> _opener;
+  private InputStream _in;
+  private long _position = 0;
+  private long _mark = 0;
+
+  public ReopenableInputStream(Callable<InputStream> opener)
+    throws IOException
+  {
+    _opener = opener;
+    _in = open();
+  }
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    int result = _in.read();
+    if(result != -1)
+    {
+      _position++;
+    }
+    return result;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len)
+    throws IOException
+  {
+    int count = _in.read(b, off, len);
+    if(count > 0)
+    {
+      _position += count;
+    }
+    return count;
+  }
+
+  @Override
+  public long skip(long n)
+    throws IOException
+  {
+    long skipped = _in.skip(n);
+    _position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available()
+    throws IOException
+  {
+    return _in.available();
+  }
+
+  /**
+   * Marking is free, so {@code readlimit} is ignored.
+   */
+  @Override
+  public synchronized void mark(int readlimit)
+  {
+    _mark = _position;
+  }
+
+  @Override
+  public synchronized void reset()
+    throws IOException
+  {
+    if(_position == _mark)
+    {
+      return;
+    }
+
+    _in.close();
+    _in = open();
+    _position = 0;
+
+    byte[] buf = new byte[(int) Math.min(SKIP_BUFFER_SIZE, Math.max(_mark, 1))];
+    while(_position < _mark)
+    {
+      int count = _in.read(buf, 0, (int) Math.min(buf.length, _mark - _position));
+      if(count == -1)
+      {
+        throw new IOException("unexpected EOF: the re-opened stream is shorter than before");
+      }
+      _position += count;
+    }
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+    return true;
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    _in.close();
+  }
+
+  private InputStream open()
+    throws IOException
+  {
+    try
+    {
+      return _opener.call();
+    }
+    catch(IOException | RuntimeException e)
+    {
+      throw e;
+    }
+    catch(Exception e)
+    {
+      throw new IOException(e);
+    }
+  }
+}
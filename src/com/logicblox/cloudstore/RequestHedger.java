@@ -0,0 +1,230 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import java.util.Arrays;
+
+/**
+ * Decides when the ranged GETs of downloads are hedged: a part whose request falls behind the
+ * others gets a duplicate request for the bytes it has not delivered yet, and whichever request
+ * completes the part first is used (see {@link DownloadOptionsBuilder#setRequestHedger}).
+ * <p>
+ * The hedger keeps the time to first byte (the time until the response arrives) and the
+ * throughput of the most recent {@link #SAMPLE_WINDOW} requests. A request is behind if it has
+ * waited for its response longer than the {@code percentile}-th percentile of those times, or if
+ * it is streaming slower than the {@code (100 - percentile)}-th percentile of those throughputs.
+ * No request is hedged before {@link #MIN_SAMPLES} samples have been collected.
+ * <p>
+ * Hedges are extra requests, so they are capped by a budget: at most a {@code budget} fraction of
+ * the requests seen by this hedger is hedged, and at most {@link #MAX_CONCURRENT_HEDGES} hedges
+ * are running at any time. A hedge buffers the rest of its part in memory and occupies a thread
+ * of the API executor until it completes, so only requests with at most {@code maxHedgeBytes}
+ * bytes left are hedged. A single hedger can be set on any number of downloads, which then share
+ * its statistics and its budget.
+ */
+public class RequestHedger
+{
+  static final int SAMPLE_WINDOW = 200;
+  static final int MIN_SAMPLES = 10;
+  static final int MAX_CONCURRENT_HEDGES = 4;
+  static final double DEFAULT_PERCENTILE = 95;
+  static final double DEFAULT_BUDGET = 0.05;
+  static final long DEFAULT_MAX_HEDGE_BYTES = 32 * 1024 * 1024;
+
+  private final double _percentile;
+  private final double _budget;
+  private final long _maxHedgeBytes;
+
+  /**
+   * Ring buffers of the most recent samples. {@code _firstByteNext} and {@code _throughputNext}
+   * are the slots the next samples go into, and the counts (at most {@link #SAMPLE_WINDOW}) are
+   * the numbers of slots that hold samples.
+   */
+  private final long[] _firstByteNanos = new long[SAMPLE_WINDOW];
+  private final double[] _throughputs = new double[SAMPLE_WINDOW];
+  private int _firstByteNext = 0;
+  private int _firstByteCount = 0;
+  private int _throughputNext = 0;
+  private int _throughputCount = 0;
+  private long _requests = 0;
+  private long _hedges = 0;
+  private long _hedgesWon = 0;
+  private int _hedgesInFlight = 0;
+
+  /**
+   * Creates a hedger that hedges requests slower than the 95th percentile, up to 5% of all
+   * requests, that have at most 32MB left.
+   */
+  public RequestHedger()
+  {
+    this(DEFAULT_PERCENTILE, DEFAULT_BUDGET);
+  }
+
+  /**
+   * @param percentile The percentile (between 50 and 100) of time to first byte and throughput
+   *                   a request has to fall behind to be hedged
+   * @param budget     The maximum fraction (between 0 and 1) of requests that are hedged
+   */
+  public RequestHedger(double percentile, double budget)
+  {
+    this(percentile, budget, DEFAULT_MAX_HEDGE_BYTES);
+  }
+
+  /**
+   * @param percentile    The percentile (between 50 and 100) of time to first byte and
+   *                      throughput a request has to fall behind to be hedged
+   * @param budget        The maximum fraction (between 0 and 1) of requests that are hedged
+   * @param maxHedgeBytes The maximum number of bytes a hedge requests and buffers in memory.
+   *                      Requests with more bytes left are not hedged.
+   */
+  public RequestHedger(double percentile, double budget, long maxHedgeBytes)
+  {
+    if(percentile < 50 || percentile >= 100)
+    {
+      throw new UsageException("Hedge percentile has to be at least 50 and less than 100");
+    }
+    if(budget < 0 || budget > 1)
+    {
+      throw new UsageException("Hedge budget has to be between 0 and 1");
+    }
+    // a hedge is buffered in a single array
+    if(maxHedgeBytes < 1 || maxHedgeBytes > Integer.MAX_VALUE)
+    {
+      throw new UsageException(
+        "Maximum hedge size has to be between 1 and " + Integer.MAX_VALUE + " bytes");
+    }
+    _percentile = percentile;
+    _budget = budget;
+    _maxHedgeBytes = maxHedgeBytes;
+  }
+
+  /**
+   * @return The maximum number of bytes a request may have left to be hedged
+   */
+  public long getMaxHedgeBytes()
+  {
+    return _maxHedgeBytes;
+  }
+
+  /**
+   * @return The number of requests this hedger has seen
+   */
+  public synchronized long getRequestCount()
+  {
+    return _requests;
+  }
+
+  /**
+   * @return The number of hedged requests that have been started
+   */
+  public synchronized long getHedgeCount()
+  {
+    return _hedges;
+  }
+
+  /**
+   * @return The number of hedged requests that completed a part before the original request
+   */
+  public synchronized long getHedgesWon()
+  {
+    return _hedgesWon;
+  }
+
+  synchronized void requestStarted()
+  {
+    _requests++;
+  }
+
+  synchronized void recordFirstByte(long nanos)
+  {
+    _firstByteNanos[_firstByteNext] = nanos;
+    _firstByteNext = (_firstByteNext + 1) % SAMPLE_WINDOW;
+    _firstByteCount = Math.min(_firstByteCount + 1, SAMPLE_WINDOW);
+  }
+
+  /**
+   * @param bytesPerSecond The throughput of a request that delivered all of its bytes
+   */
+  synchronized void recordThroughput(double bytesPerSecond)
+  {
+    _throughputs[_throughputNext] = bytesPerSecond;
+    _throughputNext = (_throughputNext + 1) % SAMPLE_WINDOW;
+    _throughputCount = Math.min(_throughputCount + 1, SAMPLE_WINDOW);
+  }
+
+  /**
+   * @return The time to first byte after which a request is behind, in nanoseconds, or -1 if not
+   * enough requests have been seen yet
+   */
+  synchronized long getFirstByteThreshold()
+  {
+    if(_firstByteCount < MIN_SAMPLES)
+    {
+      return -1;
+    }
+    long[] samples = Arrays.copyOf(_firstByteNanos, _firstByteCount);
+    Arrays.sort(samples);
+    return samples[rank(samples.length, _percentile)];
+  }
+
+  /**
+   * @return The throughput, in bytes per second, below which a request is behind, or -1 if not
+   * enough requests have been seen yet
+   */
+  synchronized double getThroughputThreshold()
+  {
+    if(_throughputCount < MIN_SAMPLES)
+    {
+      return -1;
+    }
+    double[] samples = Arrays.copyOf(_throughputs, _throughputCount);
+    Arrays.sort(samples);
+    return samples[rank(samples.length, 100 - _percentile)];
+  }
+
+  /**
+   * Takes a hedge out of the budget, if there is one left.
+   *
+   * @return True if the caller may start a hedged request, in which case it has to call
+   * {@link #hedgeFinished} once that request is done
+   */
+  synchronized boolean tryStartHedge()
+  {
+    if(_hedgesInFlight >= MAX_CONCURRENT_HEDGES || _hedges + 1 > _budget * _requests)
+    {
+      return false;
+    }
+    _hedges++;
+    _hedgesInFlight++;
+    return true;
+  }
+
+  synchronized void hedgeFinished(boolean won)
+  {
+    _hedgesInFlight--;
+    if(won)
+    {
+      _hedgesWon++;
+    }
+  }
+
+  private static int rank(int count, double percentile)
+  {
+    int rank = (int) Math.ceil(percentile / 100 * count) - 1;
+    return Math.max(0, Math.min(count - 1, rank));
+  }
+}
@@ -16,11 +16,15 @@
 
 package com.logicblox.cloudstore;
 
+import com.google.common.base.Function;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -120,7 +124,16 @@ class S3AbortPendingUploadsCommand
         _client.getOptionsBuilderFactory().newUploadOptionsBuilder().createOptions(), getS3Client(),
         _client.getApiExecutor(), _uploadId, null);
 
-      return u.abort();
+      return Futures.transform(u.abort(), new Function<Void, Void>()
+      {
+        public Void apply(Void v)
+        {
+          // a journal of the aborted upload can no longer be resumed
+          TransferJournal.deleteMatching(new File(Utils.getDefaultJournalDirectory()), "upload",
+            Collections.singletonMap("upload-id", _uploadId));
+          return null;
+        }
+      }, MoreExecutors.directExecutor());
     }
 
     public String toString()
@@ -319,7 +319,7 @@ public class S3Client
   public ListenableFuture<List<StoreFile>> deleteRecursively(DeleteOptions options)
     throws InterruptedException, ExecutionException
   {
-    DeleteRecursivelyCommand cmd = new DeleteRecursivelyCommand(options);
+    S3DeleteRecursivelyCommand cmd = new S3DeleteRecursivelyCommand(options);
     configure(cmd);
     return cmd.run();
   }
@@ -425,7 +425,13 @@ public class S3Client
   public ListenableFuture<List<StoreFile>> listObjects(ListOptions options)
   {
     ListenableFuture<List<StoreFile>> results = null;
-    if(options.versionsIncluded())
+    if(options.isSharded())
+    {
+      S3ShardedListCommand cmd = new S3ShardedListCommand(options);
+      configure(cmd);
+      results = cmd.run();
+    }
+    else if(options.versionsIncluded())
     {
       S3ListVersionsCommand cmd = new S3ListVersionsCommand(options);
       configure(cmd);
@@ -440,6 +446,24 @@ public class S3Client
     return results;
   }
 
+  @Override
+  public ListenableFuture<ListPage> listObjectsPage(ListOptions options)
+  {
+    if(options.versionsIncluded())
+    {
+      throw new UsageException("Paged listing of versions is not supported");
+    }
+    S3ListCommand cmd = new S3ListCommand(options);
+    configure(cmd);
+    return cmd.runPage();
+  }
+
+  @Override
+  public ListPageIterator listObjectsPages(ListOptions options)
+  {
+    return new ListPageIterator(this, options);
+  }
+
   @Override
   public ListenableFuture<List<Upload>> listPendingUploads(PendingUploadsOptions options)
   {
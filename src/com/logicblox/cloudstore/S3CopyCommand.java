@@ -17,6 +17,7 @@
 package com.logicblox.cloudstore;
 
 
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.util.concurrent.AsyncFunction;
@@ -24,9 +25,8 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 
-import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -38,6 +38,19 @@ class S3CopyCommand
   private CopyOptions _options;
   private OverallProgressListenerFactory _progressListenerFactory;
 
+  /**
+   * The format the source object was uploaded in, which determines the layout of its encrypted
+   * parts. The copy keeps the parts, and so the format, of the source.
+   */
+  private int _formatVersion = Version.CURRENT;
+
+  /**
+   * The positions of the blocks and parts of a compressed source object, or null if it is not
+   * compressed. The copy keeps the parts, and so the blocks and the index at the end of the last
+   * part.
+   */
+  private CompressedPartLayout _layout;
+
   public S3CopyCommand(CopyOptions options)
   {
     super(options);
@@ -152,7 +165,7 @@ class S3CopyCommand
     };
   }
 
-  private ListenableFuture<Copy> startParts(Copy copy)
+  private ListenableFuture<Copy> startParts(final Copy copy)
     throws UsageException
   {
     String srcUri = getUri(copy.getSourceBucketName(), copy.getSourceObjectKey());
@@ -164,15 +177,82 @@ class S3CopyCommand
     // cloudstore-specific metadata should already be set by factory.startCopy
     String objectVersion = meta.get("s3tool-version");
 
-    if(!String.valueOf(Version.CURRENT).equals(objectVersion))
+    if(!Version.isSupported(objectVersion))
     {
-      throw new UsageException(
-        errPrefix + "unsupported version: " + objectVersion + ", should be " + Version.CURRENT);
+      throw new UsageException(errPrefix + "unsupported version: " + objectVersion +
+        ", should be " + Version.CBC + " or " + Version.CURRENT);
     }
+    _formatVersion = Integer.parseInt(objectVersion);
 
     setFileLength(Long.valueOf(meta.get("s3tool-file-length")));
     setChunkSize(Long.valueOf(meta.get("s3tool-chunk-size")));
 
+    if(meta.containsKey("s3tool-compression"))
+    {
+      return Futures.transformAsync(
+        readCompressedLayout(copy),
+        new AsyncFunction<CompressedPartLayout, Copy>()
+        {
+          public ListenableFuture<Copy> apply(CompressedPartLayout layout)
+          {
+            _layout = layout;
+            return startPartCopies(copy);
+          }
+        },
+        MoreExecutors.directExecutor());
+    }
+    return startPartCopies(copy);
+  }
+
+  /**
+   * Reads the index of a compressed source object with more than one block.
+   */
+  private ListenableFuture<CompressedPartLayout> readCompressedLayout(final Copy copy)
+  {
+    final int blockCount = CompressedPartLayout.getBlockCount(fileLength, chunkSize);
+    final long objectSize = copy.getObjectSize();
+    if(!CompressedPartLayout.hasIndex(blockCount))
+    {
+      // the only block is the whole object, so its compressed size does not matter
+      return Futures.immediateFuture(CompressedPartLayout.forSingleBlock(0, objectSize));
+    }
+
+    final long indexStart = objectSize - CompressedPartLayout.getIndexSize(blockCount);
+    if(indexStart < 0)
+    {
+      throw new UsageException(getUri(copy.getSourceBucketName(), copy.getSourceObjectKey()) +
+        ": compressed object is too small to have an index of " + blockCount + " blocks");
+    }
+    return executeWithRetry(_client.getInternalExecutor(),
+      new Callable<ListenableFuture<CompressedPartLayout>>()
+      {
+        public ListenableFuture<CompressedPartLayout> call()
+        {
+          return _client.getApiExecutor().submit(new Callable<CompressedPartLayout>()
+          {
+            public CompressedPartLayout call()
+              throws IOException
+            {
+              GetObjectRequest req = new GetObjectRequest(copy.getSourceBucketName(),
+                copy.getSourceObjectKey());
+              req.setRange(indexStart, objectSize - 1);
+              try(InputStream in = getS3Client().getObject(req).getObjectContent())
+              {
+                return CompressedPartLayout.readIndex(in, blockCount, indexStart);
+              }
+            }
+          });
+        }
+
+        public String toString()
+        {
+          return "reading index of compressed blocks";
+        }
+      });
+  }
+
+  private ListenableFuture<Copy> startPartCopies(final Copy copy)
+  {
     OverallProgressListener opl = null;
     if(_progressListenerFactory != null)
     {
@@ -185,10 +265,21 @@ class S3CopyCommand
 
     List<ListenableFuture<Void>> parts = new ArrayList<>();
 
-    for(long position = 0; position < fileLength || (position == 0 && fileLength == 0);
-        position += chunkSize)
+    if(_layout != null)
     {
-      parts.add(startPartCopy(copy, position, opl));
+      for(int partNumber = 0; partNumber < _layout.getPartCount(); partNumber++)
+      {
+        parts.add(startPartCopy(copy, _layout.getFirstBlock(partNumber) * chunkSize, partNumber,
+          opl));
+      }
+    }
+    else
+    {
+      for(long position = 0; position < fileLength || (position == 0 && fileLength == 0);
+          position += chunkSize)
+      {
+        parts.add(startPartCopy(copy, position, (int) (position / chunkSize), opl));
+      }
     }
 
     return Futures.transform(
@@ -196,9 +287,9 @@ class S3CopyCommand
   }
 
   private ListenableFuture<Void> startPartCopy(
-    final Copy copy, final long position, final OverallProgressListener opl)
+    final Copy copy, final long position, final int partNumber,
+    final OverallProgressListener opl)
   {
-    final int partNumber = (int) (position / chunkSize);
 
     return executeWithRetry(_client.getInternalExecutor(), new Callable<ListenableFuture<Void>>()
     {
@@ -225,21 +316,16 @@ class S3CopyCommand
     Long end;
     long partSize;
 
-    if(copy.getMeta().containsKey("s3tool-key-name"))
+    if(_layout != null)
+    {
+      start = _layout.getPartStart(partNumber);
+      partSize = _layout.getPartSize(partNumber);
+    }
+    else if(copy.getMeta().containsKey("s3tool-key-name"))
     {
-      long blockSize;
-      try
-      {
-        blockSize = Cipher.getInstance("AES/CBC/PKCS5Padding").getBlockSize();
-      }
-      catch(NoSuchAlgorithmException | NoSuchPaddingException e)
-      {
-        throw new RuntimeException(e);
-      }
-
       long postCryptSize = Math.min(fileLength - position, chunkSize);
-      start = partNumber * blockSize * (chunkSize / blockSize + 2);
-      partSize = blockSize * (postCryptSize / blockSize + 2);
+      start = EncryptedPartFormat.getStoredPartStart(_formatVersion, partNumber, chunkSize);
+      partSize = EncryptedPartFormat.getStoredPartSize(_formatVersion, postCryptSize);
     }
     else
     {
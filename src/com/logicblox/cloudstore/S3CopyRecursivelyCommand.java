@@ -16,11 +16,11 @@
 
 package com.logicblox.cloudstore;
 
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.base.Functions;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -48,48 +48,51 @@ class S3CopyRecursivelyCommand
         getUri(_options.getDestinationBucketName(), _options.getDestinationObjectKey()));
     }
 
-    String baseDirURI = Utils.getBaseDirURI(_options.getSourceObjectKey());
-    List<ListenableFuture<StoreFile>> files = new ArrayList<>();
-
-    ListObjectsRequest req = new ListObjectsRequest().withBucketName(_options.getSourceBucketName())
-      .withPrefix(_options.getSourceObjectKey());
-
-    ObjectListing current = getS3Client().listObjects(req);
-    files.addAll(copyBatch(current.getObjectSummaries(), baseDirURI));
-    current = getS3Client().listNextBatchOfObjects(current);
-
-    while(current.isTruncated())
-    {
-      files.addAll(copyBatch(current.getObjectSummaries(), baseDirURI));
-      current = getS3Client().listNextBatchOfObjects(current);
-    }
-    files.addAll(copyBatch(current.getObjectSummaries(), baseDirURI));
+    final String baseDirURI = Utils.getBaseDirURI(_options.getSourceObjectKey());
+    ListOptions listOpts = _client.getOptionsBuilderFactory()
+      .newListOptionsBuilder()
+      .setBucketName(_options.getSourceBucketName())
+      .setObjectKey(_options.getSourceObjectKey())
+      .setRecursive(true)
+      .createOptions();
+
+    // the files of a page are copied while the next page is being fetched
+    ListenableFuture<List<StoreFile>> result = _client.listObjectsPages(listOpts).transformPages(
+      new AsyncFunction<ListPage, List<StoreFile>>()
+      {
+        public ListenableFuture<List<StoreFile>> apply(ListPage page)
+          throws IOException
+        {
+          return Futures.allAsList(copyBatch(page.getFiles(), baseDirURI));
+        }
+      });
 
     if(_options.isDryRun())
     {
-      return Futures.immediateFuture(null);
+      return Futures.transform(result, Functions.<List<StoreFile>>constant(null),
+        MoreExecutors.directExecutor());
     }
     else
     {
-      return Futures.allAsList(files);
+      return result;
     }
   }
 
-  private List<ListenableFuture<StoreFile>> copyBatch(List<S3ObjectSummary> lst, String baseDirPath)
+  private List<ListenableFuture<StoreFile>> copyBatch(List<StoreFile> lst, String baseDirPath)
     throws IOException
   {
     List<ListenableFuture<StoreFile>> batch = new ArrayList<>();
 
-    for(S3ObjectSummary obj : lst)
+    for(StoreFile obj : lst)
     {
-      if(!obj.getKey().endsWith("/"))
+      if(!obj.getObjectKey().endsWith("/"))
       {
-        String destKeyLastPart = obj.getKey().substring(baseDirPath.length());
+        String destKeyLastPart = obj.getObjectKey().substring(baseDirPath.length());
         String destKey = _options.getDestinationObjectKey() + destKeyLastPart;
         CopyOptions options0 = _client.getOptionsBuilderFactory()
           .newCopyOptionsBuilder()
           .setSourceBucketName(_options.getSourceBucketName())
-          .setSourceObjectKey(obj.getKey())
+          .setSourceObjectKey(obj.getObjectKey())
           .setDestinationBucketName(_options.getDestinationBucketName())
           .setDestinationObjectKey(destKey)
           .setCannedAcl(_options.getCannedAcl().orElse(null))
@@ -99,7 +102,7 @@ class S3CopyRecursivelyCommand
         if(_options.isDryRun())
         {
           System.out.println(
-            "<DRYRUN> copying '" + getUri(_options.getSourceBucketName(), obj.getKey()) + "' to '" +
+            "<DRYRUN> copying '" + getUri(_options.getSourceBucketName(), obj.getObjectKey()) + "' to '" +
               getUri(_options.getDestinationBucketName(), destKey) + "'");
         }
         else
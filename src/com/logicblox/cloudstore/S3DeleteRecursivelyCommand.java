@@ -0,0 +1,77 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deletes the objects under a prefix with S3 DeleteObjects requests.
+ */
+class S3DeleteRecursivelyCommand
+  extends DeleteRecursivelyCommand
+{
+  /**
+   * The maximum number of keys S3 accepts in a single DeleteObjects request.
+   */
+  static final int MAX_BATCH_SIZE = 1000;
+
+  public S3DeleteRecursivelyCommand(DeleteOptions options)
+  {
+    super(options);
+  }
+
+  @Override
+  protected int getMaxBatchSize()
+  {
+    return MAX_BATCH_SIZE;
+  }
+
+  @Override
+  protected Map<String, String> deleteObjects(String bucket, List<String> keys)
+  {
+    List<DeleteObjectsRequest.KeyVersion> keyVersions = new ArrayList<>(keys.size());
+    for(String key : keys)
+    {
+      keyVersions.add(new DeleteObjectsRequest.KeyVersion(key));
+    }
+
+    // quiet mode: the response only lists the keys that could not be deleted
+    DeleteObjectsRequest req = new DeleteObjectsRequest(bucket).withKeys(keyVersions)
+      .withQuiet(true);
+    try
+    {
+      getS3Client().deleteObjects(req);
+      return Collections.emptyMap();
+    }
+    catch(MultiObjectDeleteException ex)
+    {
+      Map<String, String> errors = new LinkedHashMap<>();
+      for(MultiObjectDeleteException.DeleteError error : ex.getErrors())
+      {
+        errors.put(error.getKey(), error.getCode() + ": " + error.getMessage());
+      }
+      return errors;
+    }
+  }
+}
@@ -20,14 +20,20 @@ import com.amazonaws.event.ProgressListener;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -38,18 +44,42 @@ class S3Download
   private DownloadOptions _options;
   private AmazonS3 _client;
   private ListeningExecutorService _apiExecutor;
-  private ListeningExecutorService _internalExecutor;
+  private ListeningScheduledExecutorService _internalExecutor;
   private ObjectMetadata _meta;
   private ConcurrentMap<Integer, HashingInputStream> _partInputStreams = new ConcurrentSkipListMap<>();
+  private ConcurrentMap<Integer, byte[]> _restoredDigests = new ConcurrentSkipListMap<>();
+
+  /**
+   * The first bytes of the object, if they were fetched together with the metadata. Used once,
+   * for the first part, if the part is covered by them.
+   */
+  private byte[] _firstPart;
 
   public S3Download(
     DownloadOptions options,
     long fileLength, long chunkSize,
     AmazonS3 client,
     ListeningExecutorService apiExecutor,
-    ListeningExecutorService internalExecutor,
+    ListeningScheduledExecutorService internalExecutor,
     ObjectMetadata meta)
   {
+    this(options, fileLength, chunkSize, client, apiExecutor, internalExecutor, meta, null);
+  }
+
+  /**
+   * @param meta      The metadata of the object, possibly from the response to a ranged GET
+   * @param firstPart The bytes returned by that ranged GET, or null
+   */
+  public S3Download(
+    DownloadOptions options,
+    long fileLength, long chunkSize,
+    AmazonS3 client,
+    ListeningExecutorService apiExecutor,
+    ListeningScheduledExecutorService internalExecutor,
+    ObjectMetadata meta,
+    byte[] firstPart)
+  {
+    _firstPart = firstPart;
     _options = options;
     _client = client;
     _apiExecutor = apiExecutor;
@@ -61,12 +91,102 @@ class S3Download
   public ListenableFuture<InputStream> downloadPart(
     int partNumber, long start, long end, OverallProgressListener opl)
   {
+    byte[] firstPart = partNumber == 0 ? takeFirstPart() : null;
+    if(firstPart != null && start == 0 && end < firstPart.length)
+    {
+      InputStream in = new ByteArrayInputStream(firstPart, 0, (int) (end + 1));
+      if(opl != null)
+      {
+        in = new ProgressInputStream(in, opl, new PartProgressEvent(start + ":" + end));
+      }
+      HashingInputStream hin = new HashingInputStream(in);
+      _partInputStreams.put(partNumber, hin);
+      return Futures.immediateFuture(hin);
+    }
     return _apiExecutor.submit(new DownloadCallable(partNumber, start, end, opl));
   }
 
-  public ListenableFuture<Download> completeDownload(long fileLength, long chunkSize)
+  @Override
+  public ListenableFuture<InputStream> downloadRange(final long start, final long end)
+  {
+    return _apiExecutor.submit(new Callable<InputStream>()
+    {
+      public InputStream call()
+      {
+        return _client.getObject(newRangeRequest(start, end)).getObjectContent();
+      }
+    });
+  }
+
+  private synchronized byte[] takeFirstPart()
+  {
+    byte[] firstPart = _firstPart;
+    _firstPart = null;
+    return firstPart;
+  }
+
+  public ListenableFuture<Download> completeDownload(
+    long fileLength, long chunkSize, byte[] contentMd5)
+  {
+    return _internalExecutor.submit(new CompleteCallable(fileLength, chunkSize, contentMd5));
+  }
+
+  /**
+   * The ETag of an object that was not uploaded in parts is the MD5 of its content, which cannot
+   * be derived from the MD5s of several range GETs.
+   */
+  @Override
+  public boolean needsContentMd5(long fileLength, long chunkSize)
   {
-    return _internalExecutor.submit(new CompleteCallable(fileLength, chunkSize));
+    String etag = getETag();
+    boolean multipartETag = (etag != null) && (etag.length() > 32) && (etag.charAt(32) == '-');
+    return etag != null && !multipartETag && fileLength > chunkSize;
+  }
+
+  /**
+   * The MD5 of the (possibly encrypted) bytes of the part, in hex.
+   */
+  @Override
+  public String getPartState(int partNumber)
+  {
+    return DatatypeConverter.printHexBinary(getPartDigest(partNumber)).toLowerCase();
+  }
+
+  @Override
+  public boolean restorePart(int partNumber, String partState)
+  {
+    byte[] digest;
+    try
+    {
+      digest = DatatypeConverter.parseHexBinary(partState);
+    }
+    catch(IllegalArgumentException e)
+    {
+      return false;
+    }
+    if(digest.length != 16)
+    {
+      return false;
+    }
+    _restoredDigests.put(partNumber, digest);
+    return true;
+  }
+
+  private byte[] getPartDigest(int partNumber)
+  {
+    byte[] digest = _restoredDigests.get(partNumber);
+    if(digest != null)
+    {
+      return digest;
+    }
+    return _partInputStreams.get(partNumber).getDigest();
+  }
+
+  private SortedSet<Integer> getPartNumbers()
+  {
+    SortedSet<Integer> partNumbers = new TreeSet<>(_partInputStreams.keySet());
+    partNumbers.addAll(_restoredDigests.keySet());
+    return partNumbers;
   }
 
   @Override
@@ -78,7 +198,8 @@ class S3Download
   @Override
   public long getLength()
   {
-    return _meta.getContentLength();
+    // The length of the whole object, also if the metadata came with a range
+    return _meta.getInstanceLength();
   }
 
   @Override
@@ -119,17 +240,12 @@ class S3Download
     public InputStream call()
       throws Exception
     {
-      GetObjectRequest req = null;
-      String version = _options.getVersion().orElse(null);
-      if(version == null)
+      if(_options.getRequestHedger().isPresent())
       {
-        req = new GetObjectRequest(getBucketName(), getObjectKey());
+        return callHedged(_options.getRequestHedger().get());
       }
-      else
-      {
-        req = new GetObjectRequest(getBucketName(), getObjectKey(), version);
-      }
-      req.setRange(_start, _end);
+
+      GetObjectRequest req = newRangeRequest(_start, _end);
       if(_progressListener != null)
       {
         PartProgressEvent ppe = new PartProgressEvent(
@@ -142,6 +258,57 @@ class S3Download
       _partInputStreams.put(_partNumber, in);
       return in;
     }
+
+    /**
+     * Progress is reported as the part is read, instead of through the request, so that the bytes
+     * of a hedged request are not counted twice.
+     */
+    private InputStream callHedged(RequestHedger hedger)
+      throws Exception
+    {
+      HedgedInputStream.RangeSource source = new HedgedInputStream.RangeSource()
+      {
+        public HedgedInputStream.AbortableInputStream open(long start, long end)
+        {
+          final S3ObjectInputStream body = _client.getObject(newRangeRequest(start, end))
+            .getObjectContent();
+          return new HedgedInputStream.AbortableInputStream(body)
+          {
+            void abort()
+            {
+              body.abort();
+            }
+          };
+        }
+      };
+
+      InputStream in = HedgedInputStream.open(hedger, source, _start, _end, _apiExecutor,
+        _internalExecutor);
+      if(_progressListener != null)
+      {
+        in = new ProgressInputStream(in, _progressListener,
+          new PartProgressEvent(Long.toString(_start) + ':' + Long.toString(_end)));
+      }
+      HashingInputStream hin = new HashingInputStream(in);
+      _partInputStreams.put(_partNumber, hin);
+      return hin;
+    }
+  }
+
+  private GetObjectRequest newRangeRequest(long start, long end)
+  {
+    GetObjectRequest req;
+    String version = _options.getVersion().orElse(null);
+    if(version == null)
+    {
+      req = new GetObjectRequest(getBucketName(), getObjectKey());
+    }
+    else
+    {
+      req = new GetObjectRequest(getBucketName(), getObjectKey(), version);
+    }
+    req.setRange(start, end);
+    return req;
   }
 
   private class CompleteCallable
@@ -149,11 +316,13 @@ class S3Download
   {
     private long _fileLength;
     private long _chunkSize;
+    private byte[] _contentMd5;
 
-    CompleteCallable(long fileLength, long chunkSize)
+    CompleteCallable(long fileLength, long chunkSize, byte[] contentMd5)
     {
       _fileLength = fileLength;
       _chunkSize = chunkSize;
+      _contentMd5 = contentMd5;
     }
 
     public Download call()
@@ -190,6 +359,12 @@ class S3Download
 
         int expectedPartsNum = _fileLength == 0 ? 1
           : (int) Math.ceil(_fileLength / (double) _chunkSize);
+        if(meta.containsKey("s3tool-compression"))
+        {
+          // the compressed blocks are packed into parts, which are listed in the index of the
+          // object and downloaded as they were uploaded
+          expectedPartsNum = getPartNumbers().size();
+        }
         int actualPartsNum = Integer.parseInt(remoteEtag.substring(33));
 
         if(expectedPartsNum != actualPartsNum)
@@ -202,12 +377,13 @@ class S3Download
         }
 
         ByteArrayOutputStream os = new ByteArrayOutputStream();
-        for(Integer pNum : _partInputStreams.keySet())
+        SortedSet<Integer> partNumbers = getPartNumbers();
+        for(Integer pNum : partNumbers)
         {
-          os.write(_partInputStreams.get(pNum).getDigest());
+          os.write(getPartDigest(pNum));
         }
 
-        localDigest = DigestUtils.md5Hex(os.toByteArray()) + "-" + _partInputStreams.size();
+        localDigest = DigestUtils.md5Hex(os.toByteArray()) + "-" + partNumbers.size();
       }
       else
       {
@@ -215,17 +391,23 @@ class S3Download
         // so its Etag should be equal to object's MD5.
         // Same should hold for objects uploaded to GCS (if "compose" operation
         // wasn't used).
-        if(_partInputStreams.size() == 1)
+        if(getPartNumbers().size() == 1)
         {
           // Single-part download (1 range GET).
-          localDigest = DatatypeConverter.printHexBinary(_partInputStreams.get(0).getDigest()).toLowerCase();
+          localDigest = DatatypeConverter.printHexBinary(getPartDigest(0)).toLowerCase();
+        }
+        else if(_contentMd5 != null)
+        {
+          // Multi-part download (>1 range GETs), hashed in order while downloading.
+          localDigest = DatatypeConverter.printHexBinary(_contentMd5).toLowerCase();
         }
         else
         {
-          // Multi-part download (>1 range GETs).
+          // Multi-part download of an encrypted object: the parts were decrypted on the fly, so
+          // the stored bytes were never available in order.
           System.err.println("Warning: Skipped checksum validation for " + fn +
-            ". No efficient way to compute MD5 on multipart downloads of files with " +
-            "singlepart ETag.");
+            ". No MD5 of the stored object was computed for this multipart download of a file " +
+            "with singlepart ETag.");
           return S3Download.this;
         }
       }
@@ -17,6 +17,7 @@
 package com.logicblox.cloudstore;
 
 
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
@@ -35,6 +36,25 @@ class S3DownloadCommand
   {
     S3DownloadFactory factory = new S3DownloadFactory(_options, fileLength, chunkSize,
       getS3Client(), _client.getApiExecutor(), _client.getInternalExecutor());
+    if(_options.isPrefetchFirstPart())
+    {
+      long firstPartLength = _options.getObjectLength().isPresent()
+        ? getFirstPartPrefetchLength(_options.getObjectLength().get())
+        : getFirstPartPrefetchLength();
+      return factory.startDownloadWithFirstPart(firstPartLength);
+    }
     return factory.startDownload();
   }
+
+  @Override
+  protected boolean canPrefetchFirstPart()
+  {
+    return true;
+  }
+
+  @Override
+  protected boolean isNotFound(Throwable t)
+  {
+    return t instanceof AmazonS3Exception && ((AmazonS3Exception) t).getStatusCode() == 404;
+  }
 }
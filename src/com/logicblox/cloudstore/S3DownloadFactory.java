@@ -17,11 +17,18 @@
 package com.logicblox.cloudstore;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 
+import java.io.IOException;
 import java.util.concurrent.Callable;
 
 class S3DownloadFactory
@@ -30,14 +37,14 @@ class S3DownloadFactory
   final private long _fileLength;
   final private long _chunkSize;
   final private ListeningExecutorService _apiExecutor;
-  private final ListeningExecutorService _internalExecutor;
+  private final ListeningScheduledExecutorService _internalExecutor;
   final private AmazonS3 _client;
 
   public S3DownloadFactory(DownloadOptions options,
                            long fileLength, long chunkSize,
                            AmazonS3 client,
                            ListeningExecutorService apiExecutor,
-                           ListeningExecutorService internalExecutor)
+                           ListeningScheduledExecutorService internalExecutor)
   {
     _options = options;
     _client = client;
@@ -52,6 +59,17 @@ class S3DownloadFactory
     return _apiExecutor.submit(new StartCallable());
   }
 
+  /**
+   * Like {@link #startDownload}, but without a metadata request: the first {@code
+   * firstPartLength} bytes of the object are fetched right away, and the metadata is taken from
+   * that response. The bytes are kept by the download and used for its first part if it turns
+   * out to be covered by them.
+   */
+  ListenableFuture<Download> startDownloadWithFirstPart(long firstPartLength)
+  {
+    return _apiExecutor.submit(new PrefetchCallable(firstPartLength));
+  }
+
   private class StartCallable
     implements Callable<Download>
   {
@@ -64,4 +82,46 @@ class S3DownloadFactory
         _internalExecutor, metadata);
     }
   }
+
+  private class PrefetchCallable
+    implements Callable<Download>
+  {
+    private final long _firstPartLength;
+
+    PrefetchCallable(long firstPartLength)
+    {
+      _firstPartLength = firstPartLength;
+    }
+
+    public Download call()
+      throws IOException
+    {
+      GetObjectRequest req = new GetObjectRequest(_options.getBucketName(),
+        _options.getObjectKey(), _options.getVersion().orElse(null));
+      req.setRange(0, _firstPartLength - 1);
+
+      S3Object object;
+      try
+      {
+        object = _client.getObject(req);
+      }
+      catch(AmazonS3Exception e)
+      {
+        // No range of an empty object is satisfiable
+        if(e.getStatusCode() != 416)
+        {
+          throw e;
+        }
+        return new StartCallable().call();
+      }
+
+      byte[] firstPart;
+      try(S3ObjectInputStream in = object.getObjectContent())
+      {
+        firstPart = ByteStreams.toByteArray(in);
+      }
+      return new S3Download(_options, _fileLength, _chunkSize, _client, _apiExecutor,
+        _internalExecutor, object.getObjectMetadata(), firstPart);
+    }
+  }
 }
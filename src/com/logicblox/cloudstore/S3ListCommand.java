@@ -57,6 +57,69 @@ class S3ListCommand
     return future;
   }
 
+  /**
+   * Lists a single page, starting at the page token of the options.
+   */
+  public ListenableFuture<ListPage> runPage()
+  {
+    return executeWithRetry(_client.getInternalExecutor(),
+      new Callable<ListenableFuture<ListPage>>()
+      {
+        public ListenableFuture<ListPage> call()
+        {
+          return runPageActual();
+        }
+
+        public String toString()
+        {
+          return "listing a page of objects and directories for " +
+            getUri(_options.getBucketName(), _options.getObjectKey().orElse(""));
+        }
+      });
+  }
+
+  private ListenableFuture<ListPage> runPageActual()
+  {
+    return _client.getApiExecutor().submit(new Callable<ListPage>()
+    {
+      public ListPage call()
+      {
+        ObjectListing current = getS3Client().listObjects(createRequest());
+        List<StoreFile> files = new ArrayList<StoreFile>();
+        appendS3ObjectSummaryList(files, current.getObjectSummaries());
+        if(!_options.dirsExcluded())
+        {
+          appendS3DirStringList(files, current.getCommonPrefixes(), _options.getBucketName());
+        }
+
+        String nextMarker = null;
+        if(current.isTruncated())
+        {
+          nextMarker = current.getNextMarker();
+          if(nextMarker == null)
+          {
+            // Only listings with a delimiter come with a next marker
+            List<S3ObjectSummary> summaries = current.getObjectSummaries();
+            nextMarker = summaries.get(summaries.size() - 1).getKey();
+          }
+        }
+        return new ListPage(files, nextMarker);
+      }
+    });
+  }
+
+  private ListObjectsRequest createRequest()
+  {
+    ListObjectsRequest req = new ListObjectsRequest().withBucketName(_options.getBucketName())
+      .withPrefix(_options.getObjectKey().orElse(null))
+      .withMarker(_options.getPageToken().orElse(null));
+    if(!_options.isRecursive())
+    {
+      req.setDelimiter("/");
+    }
+    return req;
+  }
+
   private ListenableFuture<List<StoreFile>> runActual()
   {
     return _client.getApiExecutor().submit(new Callable<List<StoreFile>>()
@@ -64,12 +127,7 @@ class S3ListCommand
 
       public List<StoreFile> call()
       {
-        ListObjectsRequest req = new ListObjectsRequest().withBucketName(_options.getBucketName())
-          .withPrefix(_options.getObjectKey().orElse(null));
-        if(!_options.isRecursive())
-        {
-          req.setDelimiter("/");
-        }
+        ListObjectsRequest req = createRequest();
 
         List<StoreFile> all = new ArrayList<StoreFile>();
         ObjectListing current = getS3Client().listObjects(req);
@@ -122,7 +180,7 @@ class S3ListCommand
     return all;
   }
 
-  private StoreFile S3ObjectSummaryToStoreFile(S3ObjectSummary o)
+  static StoreFile S3ObjectSummaryToStoreFile(S3ObjectSummary o)
   {
     StoreFile of = new StoreFile();
     of.setObjectKey(o.getKey());
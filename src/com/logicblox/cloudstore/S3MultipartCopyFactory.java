@@ -71,7 +71,8 @@ class S3MultipartCopyFactory
       {
         long chunkSize = Utils.getDefaultChunkSize(metadata.getContentLength());
 
-        metadata.addUserMetadata("s3tool-version", String.valueOf(Version.CURRENT));
+        // The object is neither encrypted nor compressed, which older releases can read as well
+        metadata.addUserMetadata("s3tool-version", String.valueOf(Version.CBC));
         metadata.addUserMetadata("s3tool-chunk-size", Long.toString(chunkSize));
         metadata.addUserMetadata("s3tool-file-length", Long.toString(metadata.getContentLength()));
       }
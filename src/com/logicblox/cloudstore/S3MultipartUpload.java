@@ -24,7 +24,6 @@ import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
 import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.model.UploadPartResult;
-import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -34,7 +33,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -43,6 +44,7 @@ class S3MultipartUpload
   implements Upload
 {
   private ConcurrentMap<Integer, PartETag> _etags = new ConcurrentSkipListMap<>();
+  private Map<Integer, String> _remoteETags = Collections.emptyMap();
   private AmazonS3 _client;
   private String _uploadId;
   private Date _initiated;
@@ -77,6 +79,30 @@ class S3MultipartUpload
     return _executor.submit(new AbortCallable());
   }
 
+  public String getPartState(int partNumber)
+  {
+    return _etags.get(partNumber).getETag();
+  }
+
+  public boolean restorePart(int partNumber, String partState)
+  {
+    if(!partState.equals(_remoteETags.get(partNumber)))
+    {
+      return false;
+    }
+    _etags.put(partNumber, new PartETag(partNumber + 1, partState));
+    return true;
+  }
+
+  /**
+   * Sets the ETags of the parts the service already has for this upload, by (0-based) part
+   * number. Only those parts can be restored when the upload is resumed.
+   */
+  void setRemoteETags(Map<Integer, String> remoteETags)
+  {
+    _remoteETags = remoteETags;
+  }
+
   public String getBucketName()
   {
     return _options.getBucketName();
@@ -165,7 +191,11 @@ class S3MultipartUpload
     public Void call()
       throws Exception
     {
-      try(HashingInputStream stream = new HashingInputStream(_streamCallable.call()))
+      // The AWS SDK resets the stream to retry the request. Re-opening the part supports that
+      // without a read limit, which would make the SDK buffer the whole part in memory (see
+      // https://github.com/aws/aws-sdk-java/issues/427).
+      try(HashingInputStream stream = new HashingInputStream(
+        new ReopenableInputStream(_streamCallable)))
       {
         return upload(stream);
       }
@@ -186,19 +216,6 @@ class S3MultipartUpload
       req.setUploadId(_uploadId);
       req.setKey(getObjectKey());
 
-      // According to
-      // https://github.com/aws/aws-sdk-java/issues/427#issuecomment-100518891
-      // and
-      // https://github.com/aws/aws-sdk-java/issues/427#issuecomment-100583279,
-      // since we don't use a File or FileInputStream directly (stream here is
-      // either CipherWithInlineIVInputStream -if we encrypt- or
-      // BufferedInputStream) we should set the "read limit" (which is the
-      // maximum buffer size that could be consumed) as suggested in the
-      // relevant error message. That limit should be the
-      // expected max size of our input stream in bytes, plus 1, hence
-      // _partSize+1.
-      req.getRequestClientOptions().setReadLimit(Ints.checkedCast(_partSize + 1));
-
       if(_progressListener != null)
       {
         PartProgressEvent ppe = new PartProgressEvent(Integer.toString(_partNumber));
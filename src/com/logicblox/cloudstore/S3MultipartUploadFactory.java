@@ -17,13 +17,18 @@
 package com.logicblox.cloudstore;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListPartsRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
 
@@ -57,6 +62,16 @@ class S3MultipartUploadFactory
     return _executor.submit(new StartCallable());
   }
 
+  /**
+   * Continues an existing multipart upload, fetching the parts the service already has for it.
+   *
+   * @return A future to the upload, or to null if the service does not know the upload (anymore)
+   */
+  ListenableFuture<Upload> resumeUpload(String uploadId)
+  {
+    return _executor.submit(new ResumeCallable(uploadId));
+  }
+
   private class StartCallable
     implements Callable<Upload>
   {
@@ -73,4 +88,50 @@ class S3MultipartUploadFactory
       return new S3MultipartUpload(_options, _client, _executor, res.getUploadId(), new Date());
     }
   }
+
+  private class ResumeCallable
+    implements Callable<Upload>
+  {
+    private String _uploadId;
+
+    public ResumeCallable(String uploadId)
+    {
+      _uploadId = uploadId;
+    }
+
+    public Upload call()
+      throws Exception
+    {
+      Map<Integer, String> remoteETags = new HashMap<>();
+      ListPartsRequest req = new ListPartsRequest(_options.getBucketName(),
+        _options.getObjectKey(), _uploadId);
+      PartListing listing;
+      do
+      {
+        try
+        {
+          listing = _client.listParts(req);
+        }
+        catch(AmazonS3Exception e)
+        {
+          if(e.getStatusCode() == 404)
+          {
+            return null;
+          }
+          throw e;
+        }
+        for(PartSummary part : listing.getParts())
+        {
+          remoteETags.put(part.getPartNumber() - 1, part.getETag());
+        }
+        req.setPartNumberMarker(listing.getNextPartNumberMarker());
+      }
+      while(listing.isTruncated());
+
+      S3MultipartUpload upload = new S3MultipartUpload(_options, _client, _executor, _uploadId,
+        new Date());
+      upload.setRemoteETags(remoteETags);
+      return upload;
+    }
+  }
 }
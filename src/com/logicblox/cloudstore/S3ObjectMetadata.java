@@ -17,14 +17,36 @@
 package com.logicblox.cloudstore;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.SSEAwsKeyManagementParams;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 class S3ObjectMetadata
 {
+  /**
+   * The largest object a single CopyObject request can copy.
+   */
+  static final long MAX_COPY_OBJECT_SIZE = 5L * 1024 * 1024 * 1024;
+
+  /**
+   * The headers that are kept when the metadata of an object is replaced.
+   */
+  private static final List<String> COPIED_HEADERS = Arrays.asList(Headers.CONTENT_TYPE,
+    Headers.CONTENT_ENCODING, Headers.CONTENT_DISPOSITION, Headers.CONTENT_LANGUAGE,
+    Headers.CACHE_CONTROL);
+
   private AmazonS3 _client;
   private ListeningExecutorService _executor;
   private ObjectMetadata _meta;
@@ -63,7 +85,11 @@ class S3ObjectMetadata
   // mixed case keys
   public Map<String, String> getUserMetadata()
   {
-    Map<String, String> userData = _meta.getUserMetadata();
+    return lowerCaseKeys(_meta.getUserMetadata());
+  }
+
+  private static Map<String, String> lowerCaseKeys(Map<String, String> userData)
+  {
     Map<String, String> fixed = new HashMap<String, String>();
     for(Map.Entry<String, String> e : userData.entrySet())
       fixed.put(e.getKey().toLowerCase(), e.getValue());
@@ -84,4 +110,100 @@ class S3ObjectMetadata
   {
     return _version;
   }
+
+  /**
+   * Returns true if the user metadata of the object can be replaced by {@link
+   * #replaceUserMetadata}, which copies the object to itself in a single request.
+   *
+   * A single request copy replaces a multipart ETag by the MD5 of the whole object, which a
+   * multipart download cannot validate. Objects uploaded by this tool with a multipart ETag
+   * therefore have to be copied part by part to keep their ETag.
+   */
+  public boolean canReplaceUserMetadata()
+  {
+    if(getLength() > MAX_COPY_OBJECT_SIZE)
+      return false;
+
+    return !(hasMultipartETag() && getUserMetadata().containsKey("s3tool-version"));
+  }
+
+  private boolean hasMultipartETag()
+  {
+    String etag = getETag();
+    return (etag != null) && (etag.length() > 32) && (etag.charAt(32) == '-');
+  }
+
+  /**
+   * Replaces the user metadata of the object by copying it to itself with a single CopyObject
+   * request, instead of a multipart copy. The other headers, the storage class, the server-side
+   * encryption and the ACL of the object are kept. The copy only succeeds if the object has not
+   * changed since this metadata was fetched. If that precondition fails because the object
+   * already has the new user metadata (for instance when a retried request had succeeded before),
+   * the replacement is considered done.
+   */
+  public ListenableFuture<StoreFile> replaceUserMetadata(final Map<String, String> userMetadata)
+  {
+    return _executor.submit(new Callable<StoreFile>()
+    {
+      public StoreFile call()
+      {
+        // The SDK sends every header that is set, so only the ones the object has are copied.
+        ObjectMetadata newMeta = new ObjectMetadata();
+        newMeta.setUserMetadata(userMetadata);
+        for(String header : COPIED_HEADERS)
+        {
+          Object value = _meta.getRawMetadataValue(header);
+          if(value != null)
+          {
+            newMeta.setHeader(header, value);
+          }
+        }
+        newMeta.setHttpExpiresDate(_meta.getHttpExpiresDate());
+
+        CopyObjectRequest req = new CopyObjectRequest(_bucketName, _objectKey, _bucketName,
+          _objectKey);
+        req.setSourceVersionId(_version);
+        req.setNewObjectMetadata(newMeta);
+        req.withMatchingETagConstraint(_meta.getETag());
+        req.setStorageClass(_meta.getStorageClass());
+        if(_meta.getSSEAwsKmsKeyId() != null)
+        {
+          req.setSSEAwsKeyManagementParams(
+            new SSEAwsKeyManagementParams(_meta.getSSEAwsKmsKeyId()));
+        }
+        else if(_meta.getSSEAlgorithm() != null)
+        {
+          newMeta.setSSEAlgorithm(_meta.getSSEAlgorithm());
+        }
+
+        // A copy gets a private ACL unless one is given, so keep the ACL of the object.
+        try
+        {
+          AccessControlList acl = S3Client.getObjectAcl(_client, _bucketName, _objectKey);
+          req.setAccessControlList(acl);
+        }
+        catch(AmazonS3Exception ex)
+        {
+          if(!ex.getErrorCode().equalsIgnoreCase("NotImplemented"))
+          {
+            throw ex;
+          }
+        }
+
+        CopyObjectResult res = _client.copyObject(req);
+        if(res == null && !hasUserMetadata(userMetadata))
+        {
+          throw new UsageException("s3://" + _bucketName + "/" + _objectKey +
+            " was modified while its metadata was being updated");
+        }
+        return new StoreFile(_bucketName, _objectKey);
+      }
+    });
+  }
+
+  private boolean hasUserMetadata(Map<String, String> userMetadata)
+  {
+    ObjectMetadata current = _client.getObjectMetadata(_bucketName, _objectKey);
+    return lowerCaseKeys(current.getUserMetadata()).equals(lowerCaseKeys(userMetadata));
+  }
 }
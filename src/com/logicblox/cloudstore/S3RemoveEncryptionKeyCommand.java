@@ -255,15 +255,27 @@ class S3RemoveEncryptionKeyCommand
     AsyncFunction<S3ObjectMetadata, StoreFile> update
       = new AsyncFunction<S3ObjectMetadata, StoreFile>()
     {
-      public ListenableFuture<StoreFile> apply(S3ObjectMetadata metadata)
+      public ListenableFuture<StoreFile> apply(final S3ObjectMetadata metadata)
         throws IOException
       {
         if(null == getGCSClient())
         {
-          // It seems in AWS there is no way to update an object's metadata
-          // without re-uploading/copying the whole object. Here, we
-          // copy the object to itself in order to add the new
-          // user-metadata.
+          // AWS has no way to update an object's metadata without copying the whole object, so
+          // the object is copied to itself with the new user-metadata. Objects a single
+          // CopyObject request can copy are copied with one request, and larger ones, or ones
+          // with a multipart ETag a download validates, with a multipart copy.
+          if(metadata.canReplaceUserMetadata())
+          {
+            return executeWithRetry(_client.getInternalExecutor(),
+              new Callable<ListenableFuture<StoreFile>>()
+              {
+                public ListenableFuture<StoreFile> call()
+                {
+                  return metadata.replaceUserMetadata(metadata.getUserMetadata());
+                }
+              });
+          }
+
           CopyOptions options = _client.getOptionsBuilderFactory()
             .newCopyOptionsBuilder()
             .setSourceBucketName(metadata.getBucketName())
@@ -0,0 +1,88 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sharded listing on S3. Uses ListObjectsV2, whose {@code StartAfter} parameter lets key ranges be
+ * listed independently.
+ */
+class S3ShardedListCommand
+  extends ShardedListCommand
+{
+  public S3ShardedListCommand(ListOptions options)
+  {
+    super(options);
+  }
+
+  @Override
+  public ListenableFuture<List<StoreFile>> run()
+  {
+    if(_options.versionsIncluded())
+    {
+      throw new UsageException("Sharded listing of versions is not supported");
+    }
+    return super.run();
+  }
+
+  @Override
+  protected ShardPage listLevel(String prefix, String pageToken)
+  {
+    ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(_options.getBucketName())
+      .withPrefix(prefix)
+      .withDelimiter("/")
+      .withContinuationToken(pageToken);
+    ListObjectsV2Result result = getS3Client().listObjectsV2(req);
+    return new ShardPage(toStoreFiles(result.getObjectSummaries()), result.getCommonPrefixes(),
+      result.isTruncated() ? result.getNextContinuationToken() : null);
+  }
+
+  @Override
+  protected ShardPage listRange(String prefix, String startAfter, String pageToken)
+  {
+    ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(_options.getBucketName())
+      .withPrefix(prefix)
+      .withStartAfter(startAfter)
+      .withContinuationToken(pageToken);
+    ListObjectsV2Result result = getS3Client().listObjectsV2(req);
+    return new ShardPage(toStoreFiles(result.getObjectSummaries()), null,
+      result.isTruncated() ? result.getNextContinuationToken() : null);
+  }
+
+  @Override
+  protected boolean supportsKeyRanges()
+  {
+    return true;
+  }
+
+  private static List<StoreFile> toStoreFiles(List<S3ObjectSummary> summaries)
+  {
+    List<StoreFile> files = new ArrayList<StoreFile>(summaries.size());
+    for(S3ObjectSummary o : summaries)
+    {
+      files.add(S3ListCommand.S3ObjectSummaryToStoreFile(o));
+    }
+    return files;
+  }
+}
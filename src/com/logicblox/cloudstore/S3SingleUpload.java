@@ -0,0 +1,183 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * {@link Upload} implementation for objects that fit in a single part. The only part is sent with
+ * a single PutObject request, which saves the initiate and complete round trips of a multipart
+ * upload. There is nothing to clean up on the server if the request fails, so {@link #abort} is a
+ * no-op.
+ */
+class S3SingleUpload
+  implements Upload
+{
+  private AmazonS3 _client;
+  private Map<String, String> _meta;
+  private Date _initiated;
+  private ListeningExecutorService _executor;
+  private UploadOptions _options;
+  private volatile String _etag;
+
+  // for testing
+  private String _uploadId;
+
+  public S3SingleUpload(
+    UploadOptions options, AmazonS3 client, ListeningExecutorService executor,
+    Map<String, String> meta, Date initiated)
+  {
+    _options = options;
+    _client = client;
+    _meta = meta;
+    _initiated = initiated;
+    _executor = executor;
+    _uploadId = _options.getBucketName() + "/" + _options.getObjectKey();
+  }
+
+  public ListenableFuture<Void> uploadPart(
+    int partNumber, long partSize, Callable<InputStream> stream,
+    OverallProgressListener progressListener)
+  {
+    return _executor.submit(new UploadCallable(partNumber, partSize, stream, progressListener));
+  }
+
+  public ListenableFuture<String> completeUpload()
+  {
+    return Futures.immediateFuture(_etag);
+  }
+
+  public ListenableFuture<Void> abort()
+  {
+    return Futures.immediateFuture(null);
+  }
+
+  public String getPartState(int partNumber)
+  {
+    return _etag;
+  }
+
+  /**
+   * A single-request upload has no parts that could survive a failed run.
+   */
+  public boolean restorePart(int partNumber, String partState)
+  {
+    return false;
+  }
+
+  public String getBucketName()
+  {
+    return _options.getBucketName();
+  }
+
+  public String getObjectKey()
+  {
+    return _options.getObjectKey();
+  }
+
+  public String getId()
+  {
+    return null;
+  }
+
+  public Date getInitiationDate()
+  {
+    return _initiated;
+  }
+
+  private class UploadCallable
+    implements Callable<Void>
+  {
+    private int _partNumber;
+    private long _partSize;
+    private Callable<InputStream> _streamCallable;
+    private OverallProgressListener _progressListener;
+
+    public UploadCallable(
+      int partNumber, long partSize, Callable<InputStream> streamCallable,
+      OverallProgressListener progressListener)
+    {
+      _partNumber = partNumber;
+      _partSize = partSize;
+      _streamCallable = streamCallable;
+      _progressListener = progressListener;
+    }
+
+    public Void call()
+      throws Exception
+    {
+      // See the comment on retries in S3MultipartUpload.
+      try(HashingInputStream stream = new HashingInputStream(
+        new ReopenableInputStream(_streamCallable)))
+      {
+        return upload(stream);
+      }
+    }
+
+    private Void upload(HashingInputStream stream)
+      throws BadHashException
+    {
+      // added to support retry testing
+      _options.injectAbort(_uploadId);
+
+      ObjectMetadata metadata = new ObjectMetadata();
+      metadata.setUserMetadata(_meta);
+      metadata.setContentLength(_partSize);
+
+      PutObjectRequest req = new PutObjectRequest(getBucketName(), getObjectKey(), stream,
+        metadata);
+      req.setCannedAcl(S3Client.getCannedAcl(_options.getCannedAcl()));
+
+      if(_progressListener != null)
+      {
+        PartProgressEvent ppe = new PartProgressEvent(Integer.toString(_partNumber));
+        ProgressListener s3pl = new S3ProgressListener(_progressListener, ppe);
+        req.setGeneralProgressListener(s3pl);
+      }
+
+      PutObjectResult res = _client.putObject(req);
+      byte[] etag = DatatypeConverter.parseHexBinary(res.getETag());
+      if(Arrays.equals(etag, stream.getDigest()))
+      {
+        _etag = res.getETag();
+
+        return null;
+      }
+      else
+      {
+        String calculatedMD5 = DatatypeConverter.printHexBinary(stream.getDigest()).toLowerCase();
+        throw new BadHashException(
+          "Failed checksum validation for " + getBucketName() + "/" + getObjectKey() + ". " +
+            "Calculated MD5: " + calculatedMD5 + ", Expected MD5: " + res.getETag());
+      }
+    }
+  }
+}
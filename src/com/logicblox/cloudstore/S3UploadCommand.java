@@ -16,13 +16,20 @@
 
 package com.logicblox.cloudstore;
 
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.Date;
 import java.util.Map;
 
 class S3UploadCommand
   extends UploadCommand
 {
+  /**
+   * S3 rejects multipart uploads in which a part other than the last is smaller than this.
+   */
+  private static final long MINIMUM_PART_SIZE = 5 * 1024 * 1024;
+
   public S3UploadCommand(UploadOptions options)
   {
     super(options);
@@ -35,4 +42,29 @@ class S3UploadCommand
       _client.getApiExecutor(), metadata);
     return factory.startUpload();
   }
+
+  @Override
+  protected ListenableFuture<Upload> resumeUpload(Map<String, String> metadata, String uploadId)
+  {
+    if(uploadId == null)
+    {
+      return Futures.immediateFuture(null);
+    }
+    S3MultipartUploadFactory factory = new S3MultipartUploadFactory(_options, getS3Client(),
+      _client.getApiExecutor(), metadata);
+    return factory.resumeUpload(uploadId);
+  }
+
+  @Override
+  protected ListenableFuture<Upload> initiateSingleRequestUpload(Map<String, String> metadata)
+  {
+    return Futures.immediateFuture(new S3SingleUpload(_options, getS3Client(),
+      _client.getApiExecutor(), metadata, new Date()));
+  }
+
+  @Override
+  protected long getMinimumPartSize()
+  {
+    return MINIMUM_PART_SIZE;
+  }
 }
@@ -0,0 +1,486 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Lists a large prefix recursively with many list requests in flight, instead of page by page.
+ * <p>
+ * First, {@link ListOptions#getShardDepth()} levels of directories (common prefixes) under the
+ * prefix are discovered by listing with a delimiter. The directories found at the last level are
+ * then listed recursively and concurrently. If {@link ListOptions#getKeyRangeShards()} is more
+ * than 1, a directory whose first page does not hold all of its objects is further split into
+ * key ranges at letters and digits after the directory, which are listed concurrently as well
+ * (for services that can start a listing after a given key). Directories that fit into a single
+ * page are listed with a single request.
+ * <p>
+ * The shards cover disjoint, consecutive key ranges, so the results can be put in lexicographic
+ * order by ordering the shards, without sorting the results. All listings are started through a
+ * {@link PartScheduler} on the API executor.
+ */
+abstract class ShardedListCommand
+  extends Command
+{
+  /**
+   * The characters at which a directory is split into key ranges, in ascending order.
+   */
+  static final String KEY_RANGE_ALPHABET =
+    "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+  /**
+   * The maximum number of shards listed at the same time.
+   */
+  static final int MAX_SHARDS_IN_FLIGHT = 16;
+
+  protected ListOptions _options;
+  private PartScheduler _scheduler;
+  private final List<Segment> _segments = new ArrayList<>();
+
+  /**
+   * The number of listings that may still add shards. The scheduler is closed once they are all
+   * done.
+   */
+  private int _discoveriesPending = 0;
+  private long _completed = 0;
+
+  public ShardedListCommand(ListOptions options)
+  {
+    super(options);
+    _options = options;
+  }
+
+  /**
+   * Lists one page of the objects and directories directly under {@code prefix}.
+   */
+  protected abstract ShardPage listLevel(String prefix, String pageToken)
+    throws IOException;
+
+  /**
+   * Lists one page of all objects under {@code prefix}, recursively. If {@code startAfter} is
+   * set, only objects with keys after it are listed.
+   */
+  protected abstract ShardPage listRange(String prefix, String startAfter, String pageToken)
+    throws IOException;
+
+  /**
+   * Return true if {@link #listRange} supports {@code startAfter}.
+   */
+  protected abstract boolean supportsKeyRanges();
+
+  public ListenableFuture<List<StoreFile>> run()
+  {
+    if(_options.getKeyRangeShards() > 1 && !supportsKeyRanges())
+    {
+      throw new UsageException("Key range sharding is not supported by this service");
+    }
+
+    String prefix = _options.getObjectKey().orElse("");
+    _scheduler = new PartScheduler(MAX_SHARDS_IN_FLIGHT, Long.MAX_VALUE);
+    ListenableFuture<Void> done = _scheduler.open();
+    synchronized(this)
+    {
+      _discoveriesPending++;
+    }
+    if(_options.getShardDepth() > 0)
+    {
+      addDiscovery(prefix, _options.getShardDepth());
+    }
+    else
+    {
+      addShards(prefix);
+    }
+    discoveryDone();
+
+    return Futures.transform(done, new Function<Void, List<StoreFile>>()
+    {
+      public List<StoreFile> apply(Void ignored)
+      {
+        return collectResults();
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Queues the discovery of the directories under {@code prefix}. The scheduler is closed once
+   * all discoveries are done, since only they add further shards.
+   */
+  private void addDiscovery(final String prefix, final int depth)
+  {
+    synchronized(this)
+    {
+      _discoveriesPending++;
+    }
+    _scheduler.addPart(1, new Callable<ListenableFuture<Void>>()
+    {
+      public ListenableFuture<Void> call()
+      {
+        ListenableFuture<Void> discovery = discover(prefix, depth, null);
+        discovery.addListener(new Runnable()
+        {
+          public void run()
+          {
+            discoveryDone();
+          }
+        }, MoreExecutors.directExecutor());
+        return discovery;
+      }
+    });
+  }
+
+  private void discoveryDone()
+  {
+    boolean last;
+    synchronized(this)
+    {
+      _discoveriesPending--;
+      last = _discoveriesPending == 0;
+    }
+    if(last)
+    {
+      _scheduler.close();
+    }
+  }
+
+  private ListenableFuture<Void> discover(
+    final String prefix, final int depth, final String pageToken)
+  {
+    ListenableFuture<ShardPage> page = executeWithRetry(_client.getInternalExecutor(),
+      new Callable<ListenableFuture<ShardPage>>()
+      {
+        public ListenableFuture<ShardPage> call()
+        {
+          return _client.getApiExecutor().submit(new Callable<ShardPage>()
+          {
+            public ShardPage call()
+              throws IOException
+            {
+              return listLevel(prefix, pageToken);
+            }
+          });
+        }
+
+        public String toString()
+        {
+          return "discovering directories of " + getUri(_options.getBucketName(), prefix);
+        }
+      });
+
+    return Futures.transformAsync(page, new AsyncFunction<ShardPage, Void>()
+    {
+      public ListenableFuture<Void> apply(ShardPage page)
+      {
+        for(StoreFile f : page._objects)
+        {
+          Segment segment = addSegment(f.getObjectKey());
+          segment._files.add(f);
+          completed(segment);
+        }
+        for(String dir : page._prefixes)
+        {
+          if(depth > 1)
+          {
+            addDiscovery(dir, depth - 1);
+          }
+          else
+          {
+            addShards(dir);
+          }
+        }
+
+        if(page._nextPageToken != null)
+        {
+          return discover(prefix, depth, page._nextPageToken);
+        }
+        return Futures.immediateFuture(null);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Queues the recursive listing of {@code prefix}. If key ranges are requested, the first page
+   * of the listing decides whether the rest of the prefix is split into key ranges.
+   */
+  private void addShards(final String prefix)
+  {
+    if(_options.getKeyRangeShards() <= 1)
+    {
+      addShard(prefix, null, null);
+      return;
+    }
+
+    synchronized(this)
+    {
+      _discoveriesPending++;
+    }
+    final Segment segment = addSegment(prefix);
+    _scheduler.addPart(1, new Callable<ListenableFuture<Void>>()
+    {
+      public ListenableFuture<Void> call()
+      {
+        ListenableFuture<Void> firstPage = listFirstPage(segment, prefix);
+        firstPage.addListener(new Runnable()
+        {
+          public void run()
+          {
+            completed(segment);
+            discoveryDone();
+          }
+        }, MoreExecutors.directExecutor());
+        return firstPage;
+      }
+    });
+  }
+
+  /**
+   * Lists the first page of all objects under {@code prefix}. If there are more, the keys after
+   * the last key of the page are split into key ranges at letters and digits after the prefix.
+   */
+  private ListenableFuture<Void> listFirstPage(final Segment segment, final String prefix)
+  {
+    return Futures.transformAsync(listPage(prefix, null, null),
+      new AsyncFunction<ShardPage, Void>()
+      {
+        public ListenableFuture<Void> apply(ShardPage page)
+        {
+          segment._files.addAll(page._objects);
+          if(page._nextPageToken == null)
+          {
+            return Futures.immediateFuture(null);
+          }
+          if(page._objects.isEmpty())
+          {
+            return listShard(segment, prefix, null, null, page._nextPageToken);
+          }
+
+          int count = _options.getKeyRangeShards();
+          String lower = page._objects.get(page._objects.size() - 1).getObjectKey();
+          for(int i = 1; i < count; i++)
+          {
+            String upper = prefix + KEY_RANGE_ALPHABET.charAt(
+              i * KEY_RANGE_ALPHABET.length() / count);
+            if(compareKeys(upper, lower) > 0)
+            {
+              addShard(prefix, lower, upper);
+              lower = upper;
+            }
+          }
+          addShard(prefix, lower, null);
+          return Futures.immediateFuture(null);
+        }
+      }, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Queues the recursive listing of the keys under {@code prefix} after {@code lower} and up to
+   * and including {@code upper}. Both bounds are optional.
+   */
+  private void addShard(final String prefix, final String lower, final String upper)
+  {
+    final Segment segment = addSegment(lower == null ? prefix : lower);
+    _scheduler.addPart(1, new Callable<ListenableFuture<Void>>()
+    {
+      public ListenableFuture<Void> call()
+      {
+        ListenableFuture<Void> shard = listShard(segment, prefix, lower, upper, null);
+        shard.addListener(new Runnable()
+        {
+          public void run()
+          {
+            completed(segment);
+          }
+        }, MoreExecutors.directExecutor());
+        return shard;
+      }
+    });
+  }
+
+  private ListenableFuture<Void> listShard(
+    final Segment segment, final String prefix, final String lower, final String upper,
+    final String pageToken)
+  {
+    return Futures.transformAsync(listPage(prefix, lower, pageToken),
+      new AsyncFunction<ShardPage, Void>()
+      {
+        public ListenableFuture<Void> apply(ShardPage page)
+        {
+          for(StoreFile f : page._objects)
+          {
+            if(upper != null && compareKeys(f.getObjectKey(), upper) > 0)
+            {
+              // the rest of the keys belong to the next key range
+              return Futures.immediateFuture(null);
+            }
+            segment._files.add(f);
+          }
+
+          if(page._nextPageToken != null)
+          {
+            return listShard(segment, prefix, lower, upper, page._nextPageToken);
+          }
+          return Futures.immediateFuture(null);
+        }
+      }, MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<ShardPage> listPage(
+    final String prefix, final String lower, final String pageToken)
+  {
+    return executeWithRetry(_client.getInternalExecutor(),
+      new Callable<ListenableFuture<ShardPage>>()
+      {
+        public ListenableFuture<ShardPage> call()
+        {
+          return _client.getApiExecutor().submit(new Callable<ShardPage>()
+          {
+            public ShardPage call()
+              throws IOException
+            {
+              return listRange(prefix, lower, pageToken);
+            }
+          });
+        }
+
+        public String toString()
+        {
+          return "listing objects of " + getUri(_options.getBucketName(), prefix) +
+            (lower == null ? "" : " after '" + lower + "'");
+        }
+      });
+  }
+
+  /**
+   * Compares keys in the order the services list them, i.e. by their UTF-8 bytes, which is the
+   * order of their code points. {@link String#compareTo} compares UTF-16 units instead, which puts
+   * characters above U+FFFF before the characters U+E000 to U+FFFF.
+   */
+  static int compareKeys(String a, String b)
+  {
+    int n = Math.min(a.length(), b.length());
+    int i = 0;
+    while(i < n)
+    {
+      int ca = a.codePointAt(i);
+      int cb = b.codePointAt(i);
+      if(ca != cb)
+      {
+        return Integer.compare(ca, cb);
+      }
+      i += Character.charCount(ca);
+    }
+    return Integer.compare(a.length(), b.length());
+  }
+
+  private synchronized Segment addSegment(String key)
+  {
+    Segment segment = new Segment(key);
+    _segments.add(segment);
+    return segment;
+  }
+
+  private synchronized void completed(Segment segment)
+  {
+    segment._completion = _completed++;
+  }
+
+  /**
+   * Concatenates the results of all segments, either in the lexicographic order of the segments,
+   * or in the order the segments completed.
+   */
+  private synchronized List<StoreFile> collectResults()
+  {
+    Comparator<Segment> order;
+    if(_options.isLexicalOrder())
+    {
+      order = new Comparator<Segment>()
+      {
+        public int compare(Segment a, Segment b)
+        {
+          return compareKeys(a._key, b._key);
+        }
+      };
+    }
+    else
+    {
+      order = new Comparator<Segment>()
+      {
+        public int compare(Segment a, Segment b)
+        {
+          return Long.compare(a._completion, b._completion);
+        }
+      };
+    }
+    // stable, so that versions of the same key stay in the order they were listed
+    Collections.sort(_segments, order);
+
+    int size = 0;
+    for(Segment segment : _segments)
+    {
+      size += segment._files.size();
+    }
+    List<StoreFile> results = new ArrayList<>(size);
+    for(Segment segment : _segments)
+    {
+      results.addAll(segment._files);
+    }
+    return results;
+  }
+
+  /**
+   * A consecutive range of the results: a single object found while discovering directories, or
+   * the objects of a shard. {@code _key} is a lower bound of all keys in the range.
+   */
+  private static class Segment
+  {
+    final String _key;
+    final List<StoreFile> _files = new ArrayList<>();
+    long _completion;
+
+    Segment(String key)
+    {
+      _key = key;
+    }
+  }
+
+  /**
+   * One page of a listing of a shard. {@code _prefixes} is only used by {@link #listLevel}.
+   */
+  static class ShardPage
+  {
+    final List<StoreFile> _objects;
+    final List<String> _prefixes;
+    final String _nextPageToken;
+
+    ShardPage(List<StoreFile> objects, List<String> prefixes, String nextPageToken)
+    {
+      _objects = objects;
+      _prefixes = prefixes;
+      _nextPageToken = nextPageToken;
+    }
+  }
+}
@@ -18,6 +18,7 @@ package com.logicblox.cloudstore;
 
 
 //import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.AsyncCallable;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -27,7 +28,13 @@ import com.google.common.util.concurrent.MoreExecutors;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Calls a task and, if the future it returns fails and the retry policy allows it, calls it again
+ * after the delay given by the policy. Retries are scheduled on the given executor, so that no
+ * thread is held while waiting for the next attempt.
+ */
 public class ThrowableRetriableTask<V>
   implements Callable<ListenableFuture<V>>
 {
@@ -78,11 +85,13 @@ public class ThrowableRetriableTask<V>
             sendRetryNotifications(_callable.toString(), t);
 
             long delay = _retryPolicy.getDelay(t, _retryCount);
-            // TODO: actually use the scheduled executor once Guava 15 is out
-            // Futures.dereference(_executor.schedule(_callable, delay, TimeUnit.MILLISECONDS));
-            sleep(delay);
-
-            return call();
+            return Futures.scheduleAsync(new AsyncCallable<V>()
+            {
+              public ListenableFuture<V> call()
+              {
+                return ThrowableRetriableTask.this.call();
+              }
+            }, Math.max(delay, 0), TimeUnit.MILLISECONDS, _executor);
           }
           else
           {
@@ -105,18 +114,4 @@ public class ThrowableRetriableTask<V>
   {
     _retryListeners.add(l);
   }
-
-  private void sleep(long delay)
-  {
-    if(delay > 0)
-    {
-      try
-      {
-        Thread.sleep(delay);
-      }
-      catch(InterruptedException ignored)
-      {
-      }
-    }
-  }
 }
@@ -0,0 +1,327 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.base.Charsets;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Local record of the progress of a resumable transfer. A journal consists of a header, a set of
+ * properties that identifies the transfer and is written once when the transfer starts, followed
+ * by one entry per completed part. Part entries are appended as parts complete, so recording a
+ * part does not rewrite the journal. A part entry that was only partially written (for example
+ * because the process was killed) is ignored when the journal is loaded.
+ * <p>
+ * The state recorded for a part is an opaque, backend-specific string, e.g. the ETag of an S3 part.
+ * <p>
+ * Journals name the files and objects of transfers, and the journal of an encrypted upload holds
+ * its data key encrypted with the public key (never the data key itself), so they are created
+ * readable by their owner only (where the file system supports it).
+ */
+class TransferJournal
+{
+  private static final String VERSION_PROPERTY = "journal-version";
+  private static final String VERSION = "1";
+  private static final String PART_PREFIX = "part.";
+
+  private final File _file;
+  private Map<String, String> _header = Collections.emptyMap();
+  private SortedMap<Integer, String> _parts = new TreeMap<>();
+  private Writer _out;
+  private long _validLength = -1;
+
+  public TransferJournal(File file)
+  {
+    _file = file;
+  }
+
+  /**
+   * Returns the journal file for the transfer of {@code localFile} to or from {@code
+   * uri} in {@code directory}. The name of the file is derived from the local and remote location of
+   * the transfer, so rerunning the same transfer finds the same journal.
+   */
+  public static File getJournalFile(File directory, String kind, String uri, File localFile)
+    throws IOException
+  {
+    String id = DigestUtils.sha256Hex(kind + "\n" + uri + "\n" + localFile.getCanonicalPath());
+    return new File(directory, id + "." + kind);
+  }
+
+  /**
+   * Deletes the journals of the given kind in {@code directory} whose header has all of the
+   * given properties, e.g. the journal of an upload that was aborted.
+   */
+  public static void deleteMatching(File directory, String kind, Map<String, String> expected)
+  {
+    File[] files = directory.listFiles();
+    if(files == null)
+    {
+      return;
+    }
+    for(File f : files)
+    {
+      if(!f.getName().endsWith("." + kind))
+      {
+        continue;
+      }
+      TransferJournal journal = new TransferJournal(f);
+      try
+      {
+        if(journal.load() && journal.matches(expected))
+        {
+          journal.delete();
+        }
+      }
+      catch(IOException e)
+      {
+        // not a journal that can be resumed either
+      }
+    }
+  }
+
+  public File getFile()
+  {
+    return _file;
+  }
+
+  /**
+   * Reads the journal from disk, if it exists.
+   *
+   * @return False if there is no (readable) journal of a previous run
+   */
+  public synchronized boolean load()
+    throws IOException
+  {
+    if(!_file.isFile())
+    {
+      return false;
+    }
+
+    String content = new String(Files.readAllBytes(_file.toPath()), Charsets.UTF_8);
+    // drop a trailing part entry that was not completely written
+    content = content.substring(0, content.lastIndexOf('\n') + 1);
+    long validLength = content.getBytes(Charsets.UTF_8).length;
+
+    Properties props = new Properties();
+    props.load(new StringReader(content));
+    if(!VERSION.equals(props.getProperty(VERSION_PROPERTY)))
+    {
+      return false;
+    }
+
+    Map<String, String> header = new HashMap<>();
+    SortedMap<Integer, String> parts = new TreeMap<>();
+    for(String name : props.stringPropertyNames())
+    {
+      String value = props.getProperty(name);
+      if(name.startsWith(PART_PREFIX))
+      {
+        try
+        {
+          parts.put(Integer.parseInt(name.substring(PART_PREFIX.length())), value);
+        }
+        catch(NumberFormatException e)
+        {
+          return false;
+        }
+      }
+      else
+      {
+        header.put(name, value);
+      }
+    }
+
+    _header = header;
+    _parts = parts;
+    _validLength = validLength;
+    return true;
+  }
+
+  /**
+   * Returns true if the loaded journal belongs to a transfer with the given identifying
+   * properties, i.e. if all of them are present in the header with the same values.
+   */
+  public synchronized boolean matches(Map<String, String> expected)
+  {
+    for(Map.Entry<String, String> e : expected.entrySet())
+    {
+      if(!e.getValue().equals(_header.get(e.getKey())))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public synchronized String get(String name)
+  {
+    return _header.get(name);
+  }
+
+  /**
+   * @return The recorded state of all completed parts, by part number
+   */
+  public synchronized SortedMap<Integer, String> getParts()
+  {
+    return new TreeMap<>(_parts);
+  }
+
+  /**
+   * Starts a new journal with the given header, replacing any existing journal.
+   */
+  public synchronized void create(Map<String, String> header)
+    throws IOException
+  {
+    close();
+
+    File dir = _file.getAbsoluteFile().getParentFile();
+    if(!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+    {
+      throw new IOException("Cannot create journal directory " + dir.getPath());
+    }
+
+    Properties props = new Properties();
+    props.putAll(header);
+    props.setProperty(VERSION_PROPERTY, VERSION);
+
+    File tmp = new File(dir, _file.getName() + ".tmp");
+    Files.deleteIfExists(tmp.toPath());
+    createPrivateFile(tmp);
+    try(Writer w = new OutputStreamWriter(new FileOutputStream(tmp), Charsets.UTF_8))
+    {
+      props.store(w, null);
+    }
+    try
+    {
+      Files.move(tmp.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch(AtomicMoveNotSupportedException e)
+    {
+      Files.move(tmp.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    _header = new HashMap<>(header);
+    _parts = new TreeMap<>();
+    _validLength = -1;
+    openForAppend();
+  }
+
+  /**
+   * Continues a loaded journal, so that further parts are appended to it.
+   */
+  public synchronized void resume()
+    throws IOException
+  {
+    if(_out == null)
+    {
+      if(_validLength >= 0)
+      {
+        try(FileChannel channel = FileChannel.open(_file.toPath(), StandardOpenOption.WRITE))
+        {
+          channel.truncate(_validLength);
+        }
+      }
+      openForAppend();
+    }
+  }
+
+  /**
+   * Records that a part has completed.
+   */
+  public synchronized void recordPart(int partNumber, String state)
+    throws IOException
+  {
+    if(_out == null)
+    {
+      throw new IllegalStateException("journal " + _file.getPath() + " is not open");
+    }
+
+    // Properties.store would escape these, but part states are simple tokens.
+    if(state.indexOf('\n') != -1 || state.indexOf('\r') != -1 || state.indexOf('\\') != -1)
+    {
+      throw new IllegalArgumentException("invalid part state '" + state + "'");
+    }
+
+    _out.write(PART_PREFIX + partNumber + "=" + state + "\n");
+    _out.flush();
+    _parts.put(partNumber, state);
+  }
+
+  public synchronized void close()
+  {
+    if(_out != null)
+    {
+      try
+      {
+        _out.close();
+      }
+      catch(IOException ignored)
+      {
+      }
+      _out = null;
+    }
+  }
+
+  /**
+   * Closes and removes the journal, typically after the transfer has completed.
+   */
+  public synchronized void delete()
+  {
+    close();
+    _file.delete();
+  }
+
+  private void openForAppend()
+    throws IOException
+  {
+    _out = new OutputStreamWriter(new FileOutputStream(_file, true), Charsets.UTF_8);
+  }
+
+  private static void createPrivateFile(File file)
+    throws IOException
+  {
+    try
+    {
+      Files.createFile(file.toPath(),
+        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    }
+    catch(UnsupportedOperationException e)
+    {
+      Files.createFile(file.toPath());
+    }
+  }
+}
@@ -61,6 +61,27 @@ interface Upload
    */
   ListenableFuture<Void> abort();
 
+  /**
+   * Describes an uploaded part in enough detail to include it in the final object without
+   * uploading it again. Used to journal the progress of resumable uploads.
+   *
+   * @param partNumber The sequence number of a part that has been uploaded successfully
+   * @return A backend-specific description of the part, to be passed to {@link #restorePart}
+   */
+  String getPartState(int partNumber);
+
+  /**
+   * Registers a part that has been uploaded by a previous, interrupted run of this upload, so
+   * that it is included when the upload completes. The part is only restored if the storage
+   * service still has it as described.
+   *
+   * @param partNumber The sequence number of the part
+   * @param partState The description of the part returned by {@link #getPartState}
+   * @return True if the part was restored, false if it needs to be uploaded again
+   */
+  boolean restorePart(int partNumber, String partState)
+    throws Exception;
+
   /**
    * @return The bucket where the target object resides
    */
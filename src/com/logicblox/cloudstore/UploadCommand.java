@@ -18,8 +18,10 @@ package com.logicblox.cloudstore;
 
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.AsyncFunction;
 //import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -30,20 +32,32 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.SecureRandom;
-import java.util.ArrayList;
 import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Drives an end-to-end parallel object upload according to {@code UploadOptions}. At a high level,
@@ -64,6 +78,31 @@ abstract class UploadCommand
 
   UploadOptions _options;
 
+  /**
+   * Shared by all parts of this upload. Parts are read positionally through
+   * {@link FilePartInputStream}, so the file is opened once and not per part (or per retry).
+   */
+  private FileChannel _fileChannel;
+  private boolean _fileChannelClosed = false;
+
+  /**
+   * Records the completed parts of a resumable upload. Null unless the upload is resumable.
+   */
+  private volatile TransferJournal _journal;
+
+  /**
+   * The codec the blocks of the file are compressed with, or null.
+   *
+   * @see CompressedPartLayout
+   */
+  private PartCodec _codec;
+
+  /**
+   * The blocks of a compressed upload that were recorded in the journal of a previous run, by the
+   * number of the part that holds them.
+   */
+  private Map<Integer, RestoredBlocks> _restoredBlocks;
+
 
   public UploadCommand(UploadOptions options)
   {
@@ -74,6 +113,7 @@ abstract class UploadCommand
     setChunkSize(_options.getChunkSize());
     setFileLength(this.file.length());
     _encKeyName = _options.getEncKey().orElse(null);
+    _codec = _options.getCompressionCodec().orElse(null);
 
     if(_encKeyName != null)
     {
@@ -157,6 +197,11 @@ abstract class UploadCommand
       {
         public StoreFile apply(String etag)
         {
+          if(_journal != null)
+          {
+            _journal.delete();
+          }
+
           StoreFile f = new StoreFile();
           f.setLocalFile(file);
           f.setETag(etag);
@@ -168,11 +213,18 @@ abstract class UploadCommand
       MoreExecutors.directExecutor());
 
 //    return Futures.withFallback(res, new FutureFallback<StoreFile>()
-    return Futures.catchingAsync(res, Throwable.class, new AsyncFunction<Throwable, StoreFile>()
+    ListenableFuture<StoreFile> result = Futures.catchingAsync(res, Throwable.class, new AsyncFunction<Throwable, StoreFile>()
     {
 //      public ListenableFuture<StoreFile> create(final Throwable t)
       public ListenableFuture<StoreFile> apply(final Throwable t)
       {
+        if(_journal != null)
+        {
+          // keep the upload and its journal, so that a rerun can resume it
+          _journal.close();
+          return Futures.immediateFailedFuture(t);
+        }
+
         ListenableFuture<Void> aborted = Futures.transformAsync(
           started, abortAsyncFunction(), MoreExecutors.directExecutor());
         ListenableFuture<StoreFile> res0 = Futures.transformAsync(
@@ -189,6 +241,61 @@ abstract class UploadCommand
         return res0;
       }
     }, _client.getInternalExecutor());
+
+    result.addListener(new Runnable()
+    {
+      public void run()
+      {
+        closeFileChannel();
+        if(result.isCancelled())
+        {
+          // the upload is given up, so neither it nor its journal is kept for a rerun
+          if(_journal != null)
+          {
+            _journal.delete();
+          }
+          Futures.transformAsync(started, abortAsyncFunction(), MoreExecutors.directExecutor());
+        }
+      }
+    }, MoreExecutors.directExecutor());
+
+    return result;
+  }
+
+  /**
+   * Returns the channel parts are read from, opening it on first use. A thread that is
+   * interrupted while reading from a {@code FileChannel} closes it for all other readers too, so
+   * the channel is transparently re-opened in that case to let the retries of the affected parts
+   * proceed.
+   */
+  private synchronized FileChannel getFileChannel()
+    throws IOException
+  {
+    if(_fileChannelClosed)
+    {
+      throw new IOException("Upload of '" + file.getPath() + "' has already finished");
+    }
+    if(_fileChannel == null || !_fileChannel.isOpen())
+    {
+      _fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+    return _fileChannel;
+  }
+
+  private synchronized void closeFileChannel()
+  {
+    _fileChannelClosed = true;
+    if(_fileChannel != null)
+    {
+      try
+      {
+        _fileChannel.close();
+      }
+      catch(IOException ignored)
+      {
+      }
+      _fileChannel = null;
+    }
   }
 
   /**
@@ -199,6 +306,7 @@ abstract class UploadCommand
     return executeWithRetry(_client.getInternalExecutor(), new Callable<ListenableFuture<Upload>>()
     {
       public ListenableFuture<Upload> call()
+        throws Exception
       {
         return startUploadActual();
       }
@@ -211,24 +319,214 @@ abstract class UploadCommand
   }
 
    private ListenableFuture<Upload> startUploadActual()
+     throws IOException
    {
-     Map<String, String> meta = new HashMap<>();
-     meta.put("s3tool-version", String.valueOf(Version.CURRENT));
-     if(_encKeyName != null)
+     if(fileLength <= chunkSize)
      {
-       meta.put("s3tool-key-name", _encKeyName);
-       meta.put("s3tool-symmetric-key", _encryptedSymmetricKeyString);
-       meta.put("s3tool-pubkey-hash", _pubKeyHash.substring(0, 8));
+       return initiateSingleRequestUpload(getMetadata());
      }
-     meta.put("s3tool-chunk-size", Long.toString(chunkSize));
-     meta.put("s3tool-file-length", Long.toString(fileLength));
-
-     return initiateUpload(meta);
+     if(_options.isResume())
+     {
+       return startResumableUpload();
+     }
+     return initiateUpload(getMetadata());
    }
 
+  private Map<String, String> getMetadata()
+  {
+    Map<String, String> meta = new HashMap<>();
+    meta.put("s3tool-version", String.valueOf(getFormatVersion()));
+    if(_encKeyName != null)
+    {
+      meta.put("s3tool-key-name", _encKeyName);
+      meta.put("s3tool-symmetric-key", _encryptedSymmetricKeyString);
+      meta.put("s3tool-pubkey-hash", _pubKeyHash.substring(0, 8));
+    }
+    if(_codec != null)
+    {
+      meta.put("s3tool-compression", _codec.getName());
+    }
+    meta.put("s3tool-chunk-size", Long.toString(chunkSize));
+    meta.put("s3tool-file-length", Long.toString(fileLength));
+    return meta;
+  }
+
+  /**
+   * Returns the format the object is written in. Objects that are neither encrypted (with AES-GCM
+   * in the current format) nor compressed are laid out the same way in both formats, so they are
+   * written as {@link Version#CBC}, which older releases can read as well.
+   */
+  private int getFormatVersion()
+  {
+    if(_encKeyName != null || _codec != null)
+    {
+      return Version.CURRENT;
+    }
+    return Version.CBC;
+  }
+
+  /**
+   * Continues the upload recorded in the journal of a previous run, if there is one for the same
+   * file and target, or starts a new journaled upload otherwise. A resumed upload reuses the
+   * symmetric key of the previous run, since the parts it already uploaded are encrypted with it.
+   * The journal only holds that key encrypted with the public key, so an encrypted upload can
+   * only be resumed if the private key is available.
+   */
+  private ListenableFuture<Upload> startResumableUpload()
+    throws IOException
+  {
+    File journalFile = TransferJournal.getJournalFile(
+      new File(Utils.getDefaultJournalDirectory()), "upload",
+      getUri(_options.getBucketName(), _options.getObjectKey()), file);
+    final TransferJournal journal = new TransferJournal(journalFile);
+    final Map<String, String> identity = getJournalIdentity();
+
+    if(!journal.load() || !journal.matches(identity))
+    {
+      return startJournaledUpload(journal, identity);
+    }
+
+    if(_encKeyName != null)
+    {
+      byte[] encKeyBytes = unwrapJournalKey(journal);
+      if(encKeyBytes == null)
+      {
+        System.err.println("Warning: the upload of " + file.getPath() + " cannot be resumed " +
+          "without the private key '" + _encKeyName + "', starting it over");
+        return startJournaledUpload(journal, identity);
+      }
+      this.encKey = new SecretKeySpec(encKeyBytes, "AES");
+      _encryptedSymmetricKeyString = journal.get("encrypted-symmetric-key");
+      _pubKeyHash = journal.get("pubkey-hash");
+    }
+
+    return Futures.transformAsync(
+      resumeUpload(getMetadata(), journal.get("upload-id")),
+      new AsyncFunction<Upload, Upload>()
+      {
+        public ListenableFuture<Upload> apply(Upload upload)
+          throws IOException
+        {
+          if(upload == null)
+          {
+            // the service no longer knows the upload, e.g. because it was aborted
+            return startJournaledUpload(journal, identity);
+          }
+          journal.resume();
+          _journal = journal;
+          return Futures.immediateFuture(upload);
+        }
+      },
+      MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<Upload> startJournaledUpload(
+    final TransferJournal journal, final Map<String, String> identity)
+  {
+    return Futures.transformAsync(
+      initiateUpload(getMetadata()),
+      new AsyncFunction<Upload, Upload>()
+      {
+        public ListenableFuture<Upload> apply(Upload upload)
+          throws IOException
+        {
+          Map<String, String> header = new HashMap<>(identity);
+          if(upload.getId() != null)
+          {
+            header.put("upload-id", upload.getId());
+          }
+          if(_encKeyName != null)
+          {
+            header.put("encrypted-symmetric-key", _encryptedSymmetricKeyString);
+            header.put("pubkey-hash", _pubKeyHash);
+          }
+          journal.create(header);
+          _journal = journal;
+          return Futures.immediateFuture(upload);
+        }
+      },
+      MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Decrypts the symmetric key recorded in a journal with the private key of the encryption key.
+   *
+   * @return The symmetric key, or null if the private key is not available or does not belong to
+   * the public key the symmetric key was encrypted with
+   */
+  private byte[] unwrapJournalKey(TransferJournal journal)
+  {
+    String wrappedKey = journal.get("encrypted-symmetric-key");
+    if(wrappedKey == null)
+    {
+      return null;
+    }
+    KeyProvider keyProvider = _client.getKeyProvider();
+    try
+    {
+      PrivateKey privKey = keyProvider.getPrivateKey(_encKeyName);
+      if(!Command.getPublicKeyHash(keyProvider, privKey).equals(journal.get("pubkey-hash")))
+      {
+        return null;
+      }
+      return Command.unwrapDataKey(keyProvider, privKey, wrappedKey);
+    }
+    catch(NoSuchKeyException | RuntimeException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * The properties that identify an upload in its journal. A journal is only resumed if the
+   * source file, the target and the way the file is split into parts are all unchanged.
+   */
+  private Map<String, String> getJournalIdentity()
+    throws IOException
+  {
+    Map<String, String> identity = new HashMap<>();
+    identity.put("scheme", _client.getScheme());
+    identity.put("bucket", _options.getBucketName());
+    identity.put("key", _options.getObjectKey());
+    identity.put("file", file.getCanonicalPath());
+    identity.put("file-length", Long.toString(fileLength));
+    identity.put("file-mtime", Long.toString(file.lastModified()));
+    identity.put("chunk-size", Long.toString(chunkSize));
+    identity.put("enc-key-name", _encKeyName == null ? "" : _encKeyName);
+    identity.put("format-version", String.valueOf(getFormatVersion()));
+    identity.put("compression", _codec == null ? "" : _codec.getName());
+    return identity;
+  }
+
   protected abstract ListenableFuture<Upload> initiateUpload(
     Map<String, String> metadata);
 
+  /**
+   * Returns a future to the upload with the given id, which was started by a previous run, or to
+   * null if the upload cannot be continued.
+   *
+   * @param metadata The metadata the upload was started with
+   * @param uploadId The id of the upload, as returned by {@link Upload#getId()}
+   */
+  protected abstract ListenableFuture<Upload> resumeUpload(
+    Map<String, String> metadata, String uploadId);
+
+  /**
+   * Returns an upload for files that fit in a single part. Such an upload sends its only part
+   * with a single request instead of going through the multi-part machinery.
+   */
+  protected abstract ListenableFuture<Upload> initiateSingleRequestUpload(
+    Map<String, String> metadata);
+
+  /**
+   * Returns the size every part but the last has to have at least. The blocks of a compressed
+   * file are packed into parts of at least this size.
+   */
+  protected long getMinimumPartSize()
+  {
+    return 0;
+  }
+
   /**
    * Step 2: Upload parts
    */
@@ -245,7 +543,100 @@ abstract class UploadCommand
 
   private ListenableFuture<Upload> startParts(final Upload upload)
   {
-    OverallProgressListener opl = null;
+    if(_codec != null)
+    {
+      _restoredBlocks = new ConcurrentHashMap<>();
+    }
+
+    if(_journal == null || _journal.getParts().isEmpty())
+    {
+      return startParts(upload, Collections.<Integer>emptySet());
+    }
+
+    // Parts recorded in the journal of a previous run are reused if the service still has them
+    List<ListenableFuture<Integer>> restored = new ArrayList<>();
+    for(final Map.Entry<Integer, String> part : _journal.getParts().entrySet())
+    {
+      restored.add(_client.getApiExecutor().submit(new Callable<Integer>()
+      {
+        public Integer call()
+          throws Exception
+        {
+          return restorePart(upload, part.getKey(), part.getValue()) ? part.getKey() : null;
+        }
+      }));
+    }
+
+    return Futures.transformAsync(
+      Futures.allAsList(restored),
+      new AsyncFunction<List<Integer>, Upload>()
+      {
+        public ListenableFuture<Upload> apply(List<Integer> restoredParts)
+        {
+          Set<Integer> skip = new HashSet<>(restoredParts);
+          skip.remove(null);
+          return startParts(upload, skip);
+        }
+      },
+      MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Restores a part recorded in the journal. The journal entry of a compressed part is prefixed
+   * with the number of its first block and the compressed sizes of its blocks, which are needed
+   * to lay out the parts that follow it and to write the index.
+   */
+  private boolean restorePart(Upload upload, int partNumber, String partState)
+    throws Exception
+  {
+    if(_codec == null)
+    {
+      return upload.restorePart(partNumber, partState);
+    }
+
+    String[] state = partState.split(" ", 3);
+    if(state.length != 3)
+    {
+      return false;
+    }
+    RestoredBlocks blocks;
+    try
+    {
+      String[] sizes = state[1].split(",");
+      long[] compressedSizes = new long[sizes.length];
+      for(int i = 0; i < sizes.length; i++)
+      {
+        compressedSizes[i] = Long.parseLong(sizes[i]);
+      }
+      blocks = new RestoredBlocks(Integer.parseInt(state[0]), compressedSizes);
+    }
+    catch(NumberFormatException e)
+    {
+      return false;
+    }
+    if(!upload.restorePart(partNumber, state[2]))
+    {
+      return false;
+    }
+    _restoredBlocks.put(partNumber, blocks);
+    return true;
+  }
+
+  private static class RestoredBlocks
+  {
+    final int _firstBlock;
+    final long[] _compressedSizes;
+
+    RestoredBlocks(int firstBlock, long[] compressedSizes)
+    {
+      _firstBlock = firstBlock;
+      _compressedSizes = compressedSizes;
+    }
+  }
+
+  private ListenableFuture<Upload> startParts(final Upload upload, Set<Integer> restoredParts)
+  {
+    final OverallProgressListener opl;
     if(_progressListenerFactory != null)
     {
       opl = _progressListenerFactory.create(
@@ -254,17 +645,261 @@ abstract class UploadCommand
           .setFileSizeInBytes(fileLength)
           .createProgressOptions());
     }
+    else
+    {
+      opl = null;
+    }
+
+    // Parts are released through a bounded window rather than all at once, so that the
+    // executors only ever see a few parts of this upload at a time.
+    PartScheduler scheduler = new PartScheduler(_options.getMaxPartsInFlight(),
+      _options.getMaxBytesInFlight());
+    if(_codec != null)
+    {
+      return Futures.transform(new BlockPacker(upload, scheduler, opl).start(),
+        Functions.constant(upload), MoreExecutors.directExecutor());
+    }
 
-    List<ListenableFuture<Void>> parts = new ArrayList<ListenableFuture<Void>>();
     for(long position = 0; position < fileLength || (position == 0 && fileLength == 0);
         position += chunkSize)
     {
-      parts.add(startPartUploadThread(upload, position, opl));
+      if(restoredParts.contains((int) (position / chunkSize)))
+      {
+        continue;
+      }
+
+      final long partPosition = position;
+      scheduler.addPart(Math.min(fileLength - position, chunkSize),
+        new Callable<ListenableFuture<Void>>()
+        {
+          public ListenableFuture<Void> call()
+          {
+            return startPartUploadThread(upload, partPosition, opl);
+          }
+        });
     }
 
     // we do not care about the voids, so we just return the upload
     // object.
-    return Futures.transform(Futures.allAsList(parts), Functions.constant(upload), MoreExecutors.directExecutor());
+    return Futures.transform(scheduler.start(), Functions.constant(upload), MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Compresses the blocks of the file in order and packs them back to back into parts of at
+   * least the target part size, which are added to the scheduler as they fill up (see
+   * {@link CompressedPartLayout}). The last part also holds the index of the blocks.
+   * <p>
+   * A packed part is kept in memory until it is uploaded, since its size has to be known before
+   * its upload starts. The scheduler counts it with that size against the byte budget of the
+   * upload, and the next part is only packed once no packed part is waiting to be started, so at
+   * most one part beyond the window is held in memory.
+   */
+  private class BlockPacker
+  {
+    private final Upload _upload;
+    private final PartScheduler _scheduler;
+    private final OverallProgressListener _opl;
+    private final long _targetPartSize;
+    private final long[] _blockStarts;
+    private final long[] _compressedSizes;
+    private final int[] _blockParts;
+    private ListenableFuture<Void> _uploaded;
+    private int _nextBlock = 0;
+    private int _nextPart = 0;
+    private long _storedSize = 0;
+
+    BlockPacker(Upload upload, PartScheduler scheduler, OverallProgressListener opl)
+    {
+      _upload = upload;
+      _scheduler = scheduler;
+      _opl = opl;
+      _targetPartSize = Math.max(chunkSize, getMinimumPartSize());
+      int blockCount = CompressedPartLayout.getBlockCount(fileLength, chunkSize);
+      _blockStarts = new long[blockCount];
+      _compressedSizes = new long[blockCount];
+      _blockParts = new int[blockCount];
+    }
+
+    /**
+     * @return A future that completes when all parts have been packed and uploaded
+     */
+    ListenableFuture<Void> start()
+    {
+      _uploaded = _scheduler.open();
+      ListenableFuture<Void> packed = packParts();
+      Futures.addCallback(packed, new FutureCallback<Void>()
+      {
+        public void onSuccess(Void v)
+        {
+          _scheduler.close();
+        }
+
+        public void onFailure(Throwable t)
+        {
+          _uploaded.cancel(true);
+        }
+      }, MoreExecutors.directExecutor());
+
+      return Futures.transform(Futures.allAsList(packed, _uploaded), Functions.<Void>constant(null),
+        MoreExecutors.directExecutor());
+    }
+
+    private ListenableFuture<Void> packParts()
+    {
+      return Futures.transformAsync(_scheduler.awaitCapacity(1), new AsyncFunction<Void, Void>()
+      {
+        public ListenableFuture<Void> apply(Void v)
+          throws IOException, GeneralSecurityException
+        {
+          // a failed part stops the upload, so the rest of the file is not compressed for nothing
+          if(_uploaded.isDone() || !packPart())
+          {
+            return Futures.immediateFuture(null);
+          }
+          return packParts();
+        }
+      }, _client.getInternalExecutor());
+    }
+
+    /**
+     * Packs the next part and adds it to the scheduler, unless a previous run already uploaded
+     * it.
+     *
+     * @return True if there are blocks left for further parts
+     */
+    private boolean packPart()
+      throws IOException, GeneralSecurityException
+    {
+      final int partNumber = _nextPart++;
+      final int firstBlock = _nextBlock;
+      RestoredBlocks restored = _restoredBlocks.get(partNumber);
+      if(restored != null && restored._firstBlock == firstBlock &&
+        firstBlock + restored._compressedSizes.length <= _blockStarts.length)
+      {
+        for(long compressedSize : restored._compressedSizes)
+        {
+          long storedSize = compressedSize;
+          if(_encKeyName != null)
+          {
+            storedSize = EncryptedPartFormat.getStoredPartSize(getFormatVersion(), compressedSize);
+          }
+          addBlock(partNumber, compressedSize, storedSize);
+        }
+        return _nextBlock < _blockStarts.length;
+      }
+
+      ByteArrayOutputStream part = new ByteArrayOutputStream();
+      do
+      {
+        int before = part.size();
+        long compressedSize = compressBlock(_nextBlock, part);
+        addBlock(partNumber, compressedSize, part.size() - before);
+      }
+      while(part.size() < _targetPartSize && _nextBlock < _blockStarts.length);
+
+      if(_nextBlock == _blockStarts.length)
+      {
+        part.write(new CompressedPartLayout(_blockStarts, _compressedSizes, _blockParts,
+          _storedSize).toIndex());
+      }
+
+      final byte[] data = part.toByteArray();
+      final long[] compressedSizes = Arrays.copyOfRange(_compressedSizes, firstBlock, _nextBlock);
+      _scheduler.addPart(data.length, new Callable<ListenableFuture<Void>>()
+      {
+        public ListenableFuture<Void> call()
+        {
+          return startPackedPartUpload(partNumber, data, firstBlock, compressedSizes);
+        }
+      });
+      return _nextBlock < _blockStarts.length;
+    }
+
+    private void addBlock(int partNumber, long compressedSize, long storedSize)
+    {
+      _blockStarts[_nextBlock] = _storedSize;
+      _compressedSizes[_nextBlock] = compressedSize;
+      _blockParts[_nextBlock] = partNumber;
+      _storedSize += storedSize;
+      _nextBlock++;
+    }
+
+    /**
+     * Compresses (and encrypts) a block of the file and appends it to {@code out}.
+     *
+     * @return The size of the compressed block before encryption
+     */
+    private long compressBlock(int blockNumber, ByteArrayOutputStream out)
+      throws IOException, GeneralSecurityException
+    {
+      long position = blockNumber * chunkSize;
+      long length = Math.min(fileLength - position, chunkSize);
+      ByteArrayOutputStream compressed = _encKeyName != null ? new ByteArrayOutputStream() : out;
+      int before = compressed.size();
+      try(InputStream in = new FilePartInputStream(getFileChannel(), position, length);
+          OutputStream cout = _codec.newCompressingStream(compressed))
+      {
+        ByteStreams.copy(in, cout);
+      }
+      if(_encKeyName == null)
+      {
+        return out.size() - before;
+      }
+
+      try(InputStream in = EncryptedPartFormat.newEncryptingStream(
+        new ByteArrayInputStream(compressed.toByteArray()), encKey, blockNumber))
+      {
+        ByteStreams.copy(in, out);
+      }
+      return compressed.size();
+    }
+
+    private ListenableFuture<Void> startPackedPartUpload(
+      final int partNumber, final byte[] data, final int firstBlock, final long[] compressedSizes)
+    {
+      ListenableFuture<Void> uploaded = executeWithRetry(_client.getInternalExecutor(),
+        new Callable<ListenableFuture<Void>>()
+        {
+          public ListenableFuture<Void> call()
+          {
+            return _upload.uploadPart(partNumber, data.length, new Callable<InputStream>()
+            {
+              public InputStream call()
+              {
+                return new ByteArrayInputStream(data);
+              }
+            }, _opl);
+          }
+
+          public String toString()
+          {
+            return "uploading part " + (partNumber + 1);
+          }
+        });
+      if(_journal == null)
+      {
+        return uploaded;
+      }
+
+      return Futures.transformAsync(
+        uploaded,
+        new AsyncFunction<Void, Void>()
+        {
+          public ListenableFuture<Void> apply(Void v)
+            throws IOException
+          {
+            StringBuilder sizes = new StringBuilder();
+            for(long compressedSize : compressedSizes)
+            {
+              sizes.append(sizes.length() == 0 ? "" : ",").append(compressedSize);
+            }
+            _journal.recordPart(partNumber,
+              firstBlock + " " + sizes + " " + _upload.getPartState(partNumber));
+            return Futures.immediateFuture(null);
+          }
+        },
+        MoreExecutors.directExecutor());
+    }
   }
 
   private ListenableFuture<Void> startPartUploadThread(
@@ -341,51 +976,59 @@ removed in 24.0?
     throws Exception
   {
     final int partNumber = (int) (position / chunkSize);
-    final Cipher cipher;
 
+    final long preCryptSize = Math.min(fileLength - position, chunkSize);
     long partSize;
     if(_encKeyName != null)
     {
-      cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-
-      long preCryptSize = Math.min(fileLength - position, chunkSize);
-      long blockSize = cipher.getBlockSize();
-      partSize = blockSize * (preCryptSize / blockSize + 2);
+      partSize = EncryptedPartFormat.getStoredPartSize(getFormatVersion(), preCryptSize);
     }
     else
     {
-      cipher = null;
-      partSize = Math.min(fileLength - position, chunkSize);
+      partSize = preCryptSize;
     }
 
+    // The encryption of a part is deterministic, so a part stream that is opened again to retry
+    // a request yields the same bytes
     Callable<InputStream> inputStreamCallable = new Callable<InputStream>()
     {
       public InputStream call()
         throws Exception
       {
-        FileInputStream fs = new FileInputStream(file);
-        long skipped = fs.skip(position);
-        while(skipped < position)
-        {
-          skipped += fs.skip(position - skipped);
-        }
-
-        BufferedInputStream bs = new BufferedInputStream(fs);
+        InputStream fs = new FilePartInputStream(getFileChannel(), position, preCryptSize);
         InputStream in;
-        if(cipher != null)
+        if(_encKeyName != null)
         {
-          in = new CipherWithInlineIVInputStream(bs, cipher, Cipher.ENCRYPT_MODE, encKey);
+          in = EncryptedPartFormat.newEncryptingStream(fs, encKey, partNumber);
         }
         else
         {
-          in = bs;
+          in = fs;
         }
 
         return in;
       }
     };
 
-    return upload.uploadPart(partNumber, partSize, inputStreamCallable, opl);
+    ListenableFuture<Void> uploaded = upload.uploadPart(partNumber, partSize,
+      inputStreamCallable, opl);
+    if(_journal == null)
+    {
+      return uploaded;
+    }
+
+    return Futures.transformAsync(
+      uploaded,
+      new AsyncFunction<Void, Void>()
+      {
+        public ListenableFuture<Void> apply(Void v)
+          throws IOException
+        {
+          _journal.recordPart(partNumber, upload.getPartState(partNumber));
+          return Futures.immediateFuture(null);
+        }
+      },
+      MoreExecutors.directExecutor());
   }
 
   /**
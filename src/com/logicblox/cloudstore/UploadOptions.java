@@ -33,6 +33,10 @@ import java.util.Optional;
  * If the {@code enckey} is present, the {@code keyProvider} will be asked to provide a public key
  * with that name. This key will be used to encrypt the {@code _file} at the client side.
  * <p>
+ * If the {@code _compressionCodec} is present, each chunk-size block of the {@code _file} is
+ * compressed with it (before encryption) and the downloads of the object decompress it
+ * transparently.
+ * <p>
  * If progress listener factory has been set, then progress notifications will be recorded.
  * <p>
  * {@code UploadOptions} objects are meant to be built by {@code UploadOptionsBuilder}. This class
@@ -56,6 +60,10 @@ public class UploadOptions
   private boolean _dryRun;
   private boolean _ignoreAbortInjection;
   private OverallProgressListenerFactory _overallProgressListenerFactory;
+  private int _maxPartsInFlight = -1;
+  private long _maxBytesInFlight = -1;
+  private boolean _resume;
+  private PartCodec _compressionCodec;
 
   // for testing
   private static AbortCounters _abortCounters = new AbortCounters();
@@ -64,7 +72,8 @@ public class UploadOptions
   UploadOptions(
     CloudStoreClient cloudStoreClient, File file, String bucketName, String objectKey, long chunkSize,
     String encKey, String cannedAcl, boolean dryRun, boolean ignoreAbortInjection,
-    OverallProgressListenerFactory overallProgressListenerFactory)
+    OverallProgressListenerFactory overallProgressListenerFactory, int maxPartsInFlight,
+    long maxBytesInFlight, boolean resume, PartCodec compressionCodec)
   {
     super(cloudStoreClient);
     _file = file;
@@ -76,6 +85,10 @@ public class UploadOptions
     _dryRun = dryRun;
     _ignoreAbortInjection = ignoreAbortInjection;
     _overallProgressListenerFactory = overallProgressListenerFactory;
+    _maxPartsInFlight = maxPartsInFlight;
+    _maxBytesInFlight = maxBytesInFlight;
+    _resume = resume;
+    _compressionCodec = compressionCodec;
   }
 
 
@@ -162,6 +175,18 @@ public class UploadOptions
     return _dryRun;
   }
 
+  /**
+   * If set to true, the progress of the upload is recorded in a local journal, the upload is not
+   * aborted on failure and a later upload of the same file to the same object continues it,
+   * sending only the parts that are missing.
+   *
+   * @return resume flag
+   */
+  public boolean isResume()
+  {
+    return _resume;
+  }
+
   /**
    * Return the name of the encryption key used to encrypt data in the file.
    * The public key for the named key pair must be in the local key directory.
@@ -173,6 +198,17 @@ public class UploadOptions
     return Optional.ofNullable(_encKey);
   }
 
+  /**
+   * Return the optional codec each block of the file is compressed with before it is encrypted
+   * and uploaded.
+   *
+   * @return codec used to compress the blocks of the uploaded file
+   */
+  public Optional<PartCodec> getCompressionCodec()
+  {
+    return Optional.ofNullable(_compressionCodec);
+  }
+
   /**
    * Return the optional progress listener used to track upload progress.
    *
@@ -182,4 +218,34 @@ public class UploadOptions
   {
     return Optional.ofNullable(_overallProgressListenerFactory);
   }
+
+  /**
+   * Return the maximum number of parts that are transferred at the same time. Further parts are
+   * started only as earlier ones finish.
+   *
+   * @return maximum number of parts in flight
+   */
+  public int getMaxPartsInFlight()
+  {
+    if(_maxPartsInFlight == -1)
+    {
+      return Utils.getDefaultMaxPartsInFlight();
+    }
+    return _maxPartsInFlight;
+  }
+
+  /**
+   * Return the maximum number of bytes that are transferred at the same time, summed over all
+   * parts in flight. A single part larger than this limit is still transferred, on its own.
+   *
+   * @return maximum number of bytes in flight
+   */
+  public long getMaxBytesInFlight()
+  {
+    if(_maxBytesInFlight == -1)
+    {
+      return Utils.getDefaultMaxBytesInFlight();
+    }
+    return _maxBytesInFlight;
+  }
 }
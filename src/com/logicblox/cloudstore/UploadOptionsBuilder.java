@@ -44,6 +44,10 @@ public class UploadOptionsBuilder
   private OverallProgressListenerFactory _overallProgressListenerFactory;
   private boolean _dryRun = false;
   private boolean _ignoreAbortInjection = false;
+  private int _maxPartsInFlight = -1;
+  private long _maxBytesInFlight = -1;
+  private boolean _resume = false;
+  private PartCodec _compressionCodec;
 
   UploadOptionsBuilder(CloudStoreClient client)
   {
@@ -111,6 +115,21 @@ public class UploadOptionsBuilder
     return this;
   }
 
+  /**
+   * Set the codec each chunk-size block of the file is compressed with before it is encrypted
+   * and uploaded.
+   * The codec has to be registered with {@link PartCodecs} for the object to be downloaded. If
+   * not set, the file is uploaded uncompressed.
+   *
+   * @param codec codec used to compress the blocks of the file, or null
+   * @return this builder
+   */
+  public UploadOptionsBuilder setCompressionCodec(PartCodec codec)
+  {
+    _compressionCodec = codec;
+    return this;
+  }
+
   /**
    * Set the name of access control list given to the uploaded file.  If not
    * specified, the default access control list for the service is used.
@@ -149,6 +168,50 @@ public class UploadOptionsBuilder
     return this;
   }
 
+  /**
+   * Set the maximum number of parts that are transferred at the same time. Further parts are
+   * started only as earlier ones finish. If not set, {@link Utils#getDefaultMaxPartsInFlight()}
+   * is used.
+   *
+   * @param maxPartsInFlight maximum number of parts in flight
+   * @return this builder
+   */
+  public UploadOptionsBuilder setMaxPartsInFlight(int maxPartsInFlight)
+  {
+    _maxPartsInFlight = maxPartsInFlight;
+    return this;
+  }
+
+  /**
+   * Set the maximum number of bytes that are transferred at the same time, summed over all parts
+   * in flight. If not set, {@link Utils#getDefaultMaxBytesInFlight()} is used.
+   *
+   * @param maxBytesInFlight maximum number of bytes in flight
+   * @return this builder
+   */
+  public UploadOptionsBuilder setMaxBytesInFlight(long maxBytesInFlight)
+  {
+    _maxBytesInFlight = maxBytesInFlight;
+    return this;
+  }
+
+  /**
+   * If set to true, record the progress of the upload in a local journal (see
+   * {@link Utils#getDefaultJournalDirectory()}) and, instead of aborting the upload on failure,
+   * keep it so that a later upload of the same file to the same object can resume it. Only the
+   * parts that are missing are sent again. Files that fit in a single part are not journaled.
+   * Resuming an encrypted upload requires the private key of the encryption key, since the
+   * journal only holds the data key of the upload encrypted with the public key.
+   *
+   * @param resume true if the upload should be resumable
+   * @return this builder
+   */
+  public UploadOptionsBuilder setResume(boolean resume)
+  {
+    _resume = resume;
+    return this;
+  }
+
   /**
    * Used by test framework to control abort injection behavior.
    *
@@ -191,6 +254,15 @@ public class UploadOptionsBuilder
     {
       _cannedAcl = _cloudStoreClient.getAclHandler().getDefaultCannedAcl();
     }
+
+    if(_maxPartsInFlight != -1 && _maxPartsInFlight < 1)
+    {
+      throw new UsageException("Maximum number of parts in flight has to be positive");
+    }
+    if(_maxBytesInFlight != -1 && _maxBytesInFlight < 1)
+    {
+      throw new UsageException("Maximum number of bytes in flight has to be positive");
+    }
   }
 
   /**
@@ -205,6 +277,7 @@ public class UploadOptionsBuilder
     validateOptions();
 
     return new UploadOptions(_cloudStoreClient, _file, _bucketName, _objectKey, _chunkSize, _encKey,
-      _cannedAcl, _dryRun, _ignoreAbortInjection, _overallProgressListenerFactory);
+      _cannedAcl, _dryRun, _ignoreAbortInjection, _overallProgressListenerFactory,
+      _maxPartsInFlight, _maxBytesInFlight, _resume, _compressionCodec);
   }
 }
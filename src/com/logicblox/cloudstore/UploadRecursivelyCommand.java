@@ -16,24 +16,62 @@
 
 package com.logicblox.cloudstore;
 
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.IOFileFilter;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 
+/**
+ * Uploads all files under a local directory. The directory tree is walked by several threads and
+ * every file found is queued for upload right away, so uploads start while the tree is still being
+ * walked. Uploads are started through a bounded window, largest queued file first, and the walk
+ * is paused while the queue is full. Only the results of the uploads are collected, the tree is
+ * never held in memory as a whole.
+ */
 class UploadRecursivelyCommand
   extends Command
 {
+  /**
+   * The maximum number of files uploaded at the same time. Each of them has its own window of
+   * parts in flight.
+   */
+  static final int MAX_FILES_IN_FLIGHT = 32;
+
+  /**
+   * The number of files found that may wait for an upload slot before the walk is paused.
+   */
+  static final int MAX_PENDING_FILES = 1000;
+
+  /**
+   * The maximum number of directories read at the same time.
+   */
+  static final int WALKER_THREADS = 4;
+
   private UploadOptions _options;
+  private PartScheduler _scheduler;
+  private ListenableFuture<Void> _uploads;
+  private ListenableFuture<Void> _walk;
+  private final Object _queueLock = new Object();
+  private final List<StoreFile> _uploaded = new ArrayList<>();
+  private final SettableFuture<List<StoreFile>> _result = SettableFuture.create();
+  private boolean _walkDone = false;
+  private long _filesFound = 0;
+  private long _bytesFound = 0;
+  private long _bytesUploaded = 0;
 
   public UploadRecursivelyCommand(UploadOptions options)
   {
@@ -55,63 +93,143 @@ class UploadRecursivelyCommand
       throw new FileNotFoundException(_options.getFile().getPath());
     }
 
-    final IOFileFilter noSymlinks = new IOFileFilter()
+    // files are only ever ordered by size, so the bytes in flight are bounded by the windows of
+    // the individual uploads
+    _scheduler = new PartScheduler(MAX_FILES_IN_FLIGHT, Long.MAX_VALUE, true);
+    _uploads = _scheduler.open();
+    Futures.addCallback(_uploads, new FutureCallback<Void>()
     {
-      @Override
-      public boolean accept(File file, String s)
+      public void onSuccess(Void ignored)
       {
-        return isSymlink(file);
+        synchronized(UploadRecursivelyCommand.this)
+        {
+          _result.set(_options.isDryRun() ? null : new ArrayList<>(_uploaded));
+        }
       }
 
-      private boolean isSymlink(File file)
+      public void onFailure(Throwable t)
       {
-        try
-        {
-          boolean res = !FileUtils.isSymlink(file);
-          return res;
-        }
-        catch(IOException e)
-        {
-          return false;
-        }
+        fail(t);
       }
+    }, MoreExecutors.directExecutor());
 
-      @Override
-      public boolean accept(File file)
+    _result.addListener(new Runnable()
+    {
+      public void run()
       {
-        return isSymlink(file);
+        if(_result.isCancelled())
+        {
+          _uploads.cancel(true);
+          if(_walk != null)
+          {
+            _walk.cancel(true);
+          }
+        }
       }
-    };
+    }, MoreExecutors.directExecutor());
 
-    List<ListenableFuture<StoreFile>> files = new ArrayList<ListenableFuture<StoreFile>>();
     if(_options.getFile().isDirectory())
     {
-      Collection<File> found = FileUtils.listFiles(_options.getFile(), noSymlinks, noSymlinks);
-
-      for(File file : found)
+      final Path root = _options.getFile().toPath();
+      _walk = new ParallelFileWalker(WALKER_THREADS).walk(root, new ParallelFileWalker.Visitor()
       {
-        String relPath = file.getPath().substring(_options.getFile().getPath().length() + 1);
-        String key = Paths.get(_options.getObjectKey(), relPath).toString();
-        uploadFile(files, file, key);
-      }
+        public void visitFile(Path file, BasicFileAttributes attrs)
+          throws ExecutionException, InterruptedException
+        {
+          String relPath = root.relativize(file).toString();
+          String key = Paths.get(_options.getObjectKey(), relPath).toString();
+          addUpload(file.toFile(), key, attrs.size());
+        }
+      });
+      Futures.addCallback(_walk, new FutureCallback<Void>()
+      {
+        public void onSuccess(Void ignored)
+        {
+          synchronized(UploadRecursivelyCommand.this)
+          {
+            _walkDone = true;
+          }
+          _scheduler.close();
+        }
+
+        public void onFailure(Throwable t)
+        {
+          if(!(t instanceof CancellationException))
+          {
+            fail(t);
+          }
+        }
+      }, MoreExecutors.directExecutor());
     }
     else
     {
       String key = Paths.get(_options.getObjectKey(), _options.getFile().getName()).toString();
-      uploadFile(files, _options.getFile(), key);
+      addUpload(_options.getFile(), key, _options.getFile().length());
+      synchronized(this)
+      {
+        _walkDone = true;
+      }
+      _scheduler.close();
     }
 
-    if(_options.isDryRun())
+    return _result;
+  }
+
+  /**
+   * Fails the upload, stops the walk and cancels the uploads in flight.
+   */
+  private void fail(Throwable t)
+  {
+    if(_result.setException(t))
     {
-      return Futures.immediateFuture(null);
+      _uploads.cancel(true);
+      if(_walk != null)
+      {
+        _walk.cancel(true);
+      }
     }
-    else
+  }
+
+  /**
+   * Queues the upload of a file, waiting until the queue has room for it. This is called from
+   * all threads of the walk, but only one of them at a time can wait for the queue. The wait
+   * holds a lock of its own, since finishing uploads need the lock on this command to make room.
+   */
+  private void addUpload(final File file, final String key, final long size)
+    throws ExecutionException, InterruptedException
+  {
+    synchronized(_queueLock)
     {
-      return Futures.allAsList(files);
+      if(_options.isDryRun())
+      {
+        System.out.println("<DRYRUN> uploading '" + file.getAbsolutePath() + "' to '" +
+          getUri(_options.getBucketName(), key) + "'");
+        return;
+      }
+
+      _scheduler.awaitCapacity(MAX_PENDING_FILES).get();
+      if(_result.isDone())
+      {
+        return;
+      }
+
+      synchronized(this)
+      {
+        _filesFound++;
+        _bytesFound += size;
+      }
+      _scheduler.addPart(size, new Callable<ListenableFuture<StoreFile>>()
+      {
+        public ListenableFuture<StoreFile> call()
+          throws IOException
+        {
+          return startUpload(file, key, size);
+        }
+      });
     }
   }
 
-  private void uploadFile(List<ListenableFuture<StoreFile>> files, File file, String key)
+  private ListenableFuture<StoreFile> startUpload(File file, String key, final long size)
     throws IOException
   {
     UploadOptions options = _client.getOptionsBuilderFactory()
@@ -123,17 +241,49 @@ class UploadRecursivelyCommand
       .setEncKey(_options.getEncKey().orElse(null))
       .setCannedAcl(_options.getCannedAcl())
       .setOverallProgressListenerFactory(_options.getOverallProgressListenerFactory().orElse(null))
+      .setMaxPartsInFlight(_options.getMaxPartsInFlight())
+      .setMaxBytesInFlight(_options.getMaxBytesInFlight())
+      .setResume(_options.isResume())
+      .setCompressionCodec(_options.getCompressionCodec().orElse(null))
       .createOptions();
 
-    if(_options.isDryRun())
+    ListenableFuture<StoreFile> future = _client.upload(options);
+    Futures.addCallback(future, new FutureCallback<StoreFile>()
+    {
+      public void onSuccess(StoreFile f)
+      {
+        uploaded(f, size);
+      }
+
+      public void onFailure(Throwable t)
+      {
+      }
+    }, MoreExecutors.directExecutor());
+    return future;
+  }
+
+  /**
+   * Records a finished upload and, if progress is reported, prints how far the whole upload has
+   * come. While the tree is still being walked, the totals only cover the files found so far.
+   */
+  private void uploaded(StoreFile f, long size)
+  {
+    String message = null;
+    synchronized(this)
     {
-      System.out.println("<DRYRUN> uploading '" + file.getAbsolutePath() + "' to '" +
-        getUri(_options.getBucketName(), key) + "'");
+      _uploaded.add(f);
+      _bytesUploaded += size;
+      if(_options.getOverallProgressListenerFactory().isPresent())
+      {
+        message = MessageFormat.format("{0}: uploaded {1}/{2} files, {3}/{4} bytes{5}",
+          getUri(_options.getBucketName(), _options.getObjectKey()), _uploaded.size(),
+          _filesFound, _bytesUploaded, _bytesFound,
+          _walkDone ? "" : " (still scanning '" + _options.getFile().getPath() + "')");
+      }
     }
-    else
+    if(message != null)
     {
-      files.add(_client.upload(options));
+      System.out.println(message);
     }
   }
-
 }
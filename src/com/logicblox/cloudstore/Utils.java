@@ -45,6 +45,7 @@ import java.util.regex.Pattern;
 public class Utils
 {
   private static String _defaultKeyDir = null;
+  private static String _defaultJournalDir = null;
 
   static void initLogging()
   {
@@ -89,6 +90,21 @@ public class Utils
     _defaultKeyDir = keydir;
   }
 
+  public static String getDefaultJournalDirectory()
+  {
+    if(null == _defaultJournalDir)
+    {
+      _defaultJournalDir = System.getProperty("user.home") + File.separator +
+        ".cloud-store-journals";
+    }
+    return _defaultJournalDir;
+  }
+
+  public static void setDefaultJournalDir(String journalDir)
+  {
+    _defaultJournalDir = journalDir;
+  }
+
   public static long getDefaultChunkSize()
   {
     return 5 * 1024 * 1024;
@@ -114,6 +130,24 @@ public class Utils
     return 10;
   }
 
+  /**
+   * Default maximum number of parts of a single upload or download that are in flight at the same
+   * time.
+   */
+  public static int getDefaultMaxPartsInFlight()
+  {
+    return 64;
+  }
+
+  /**
+   * Default maximum number of bytes of a single upload or download that are in flight at the same
+   * time.
+   */
+  public static long getDefaultMaxBytesInFlight()
+  {
+    return 1024L * 1024 * 1024;
+  }
+
   public static int getDefaultRetryCount()
   {
     return 10;
@@ -322,6 +356,17 @@ public class Utils
     return MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(nThreads));
   }
 
+  /**
+   * Create an API executor that starts with {@code initialLimit} concurrent requests and adapts
+   * its limit, up to {@code maxLimit}, to the throughput and throttling of the storage service.
+   *
+   * @see AdaptiveApiExecutor
+   */
+  public static AdaptiveApiExecutor createAdaptiveApiExecutor(int initialLimit, int maxLimit)
+  {
+    return new AdaptiveApiExecutor(initialLimit, maxLimit);
+  }
+
   public static ListeningScheduledExecutorService createInternalExecutor(int poolSize)
   {
     return MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(poolSize));
@@ -344,7 +389,7 @@ public class Utils
         keyDirs.add(prevDefKeyDir);
     }
 
-    return new DirectoryKeyProvider(keyDirs);
+    return new CachingKeyProvider(new DirectoryKeyProvider(keyDirs), keyDirs);
   }
 
   public static boolean viaProxy()
@@ -431,7 +476,34 @@ public class Utils
     List<String> credentialProviders, boolean stubborn, int retryCount)
     throws URISyntaxException, GeneralSecurityException, IOException
   {
-    ListeningExecutorService uploadExecutor = createApiExecutor(maxConcurrentConnections);
+    return createCloudStoreClient(scheme, endpoint, maxConcurrentConnections, 0, encKeyDirectory,
+      credentialProviders, stubborn, retryCount);
+  }
+
+  /**
+   * Like {@link #createCloudStoreClient(String, String, int, String, List, boolean, int)}, but
+   * optionally lets the number of concurrent connections adapt to the storage service.
+   *
+   * @param adaptiveMaxConnections If greater than 0, the client starts with
+   *   {@code maxConcurrentConnections} connections and adjusts the number between 1 and
+   *   {@code adaptiveMaxConnections} based on observed throughput and throttling (see
+   *   {@link AdaptiveApiExecutor}). If 0, exactly {@code maxConcurrentConnections} are used.
+   */
+  public static CloudStoreClient createCloudStoreClient(
+    String scheme, String endpoint, int maxConcurrentConnections, int adaptiveMaxConnections,
+    String encKeyDirectory, List<String> credentialProviders, boolean stubborn, int retryCount)
+    throws URISyntaxException, GeneralSecurityException, IOException
+  {
+    ListeningExecutorService uploadExecutor;
+    if(adaptiveMaxConnections > 0)
+    {
+      uploadExecutor = createAdaptiveApiExecutor(
+        Math.min(maxConcurrentConnections, adaptiveMaxConnections), adaptiveMaxConnections);
+    }
+    else
+    {
+      uploadExecutor = createApiExecutor(maxConcurrentConnections);
+    }
 
     StorageService service = detectStorageService(endpoint, scheme);
 
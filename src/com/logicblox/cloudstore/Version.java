@@ -20,5 +20,15 @@ class Version
 {
   // Version that is used to indicate the format of S3 objects and its
   // annotations. It is not the version of the software.
-  public static final int CURRENT = 3;
+  public static final int CURRENT = 4;
+
+  // The previous format, which is still read. It differs from the current
+  // one only in how the parts of encrypted objects are laid out, see
+  // EncryptedPartFormat.
+  public static final int CBC = 3;
+
+  public static boolean isSupported(String version)
+  {
+    return String.valueOf(CURRENT).equals(version) || String.valueOf(CBC).equals(version);
+  }
 }
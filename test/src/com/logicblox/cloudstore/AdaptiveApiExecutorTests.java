@@ -0,0 +1,128 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.amazonaws.AmazonServiceException;
+import com.google.common.util.concurrent.ListenableFuture;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+public class AdaptiveApiExecutorTests
+{
+  private AdaptiveApiExecutor _executor = null;
+
+
+  @After
+  public void tearDown()
+  {
+    if(_executor != null)
+    {
+      _executor.shutdownNow();
+      _executor = null;
+    }
+  }
+
+
+  @Test
+  public void testLimitGrowsWithQueuedBacklog()
+    throws Throwable
+  {
+    // the whole backlog is queued before the first window ends, so later windows only see
+    // saturation through the queue that is still waiting when tasks complete.
+    _executor = new AdaptiveApiExecutor(2, 8, TimeUnit.MILLISECONDS.toNanos(50));
+    List<ListenableFuture<?>> futures = new ArrayList<ListenableFuture<?>>();
+    for(int i = 0; i < 1000; i++)
+    {
+      futures.add(_executor.submit(new SleepingTask(5)));
+    }
+
+    for(ListenableFuture<?> f : futures)
+    {
+      f.get(60, TimeUnit.SECONDS);
+    }
+    Assert.assertTrue("limit is " + _executor.getLimit(), _executor.getLimit() >= 4);
+  }
+
+
+  @Test
+  public void testOverloadHalvesLimitOncePerWindow()
+    throws Throwable
+  {
+    _executor = new AdaptiveApiExecutor(8, 8, TimeUnit.SECONDS.toNanos(60));
+    List<ListenableFuture<?>> futures = new ArrayList<ListenableFuture<?>>();
+    for(int i = 0; i < 8; i++)
+    {
+      futures.add(_executor.submit(new OverloadedTask()));
+    }
+
+    for(ListenableFuture<?> f : futures)
+    {
+      try
+      {
+        f.get(10, TimeUnit.SECONDS);
+        Assert.fail("expected an overload failure");
+      }
+      catch(ExecutionException exc)
+      {
+        Assert.assertTrue(exc.getCause() instanceof AmazonServiceException);
+      }
+    }
+    Assert.assertEquals(4, _executor.getLimit());
+  }
+
+
+  private static class SleepingTask
+    implements Callable<Void>
+  {
+    private long _millis;
+
+    SleepingTask(long millis)
+    {
+      _millis = millis;
+    }
+
+    public Void call()
+      throws Exception
+    {
+      Thread.sleep(_millis);
+      return null;
+    }
+  }
+
+
+  private static class OverloadedTask
+    implements Callable<Void>
+  {
+    public Void call()
+      throws Exception
+    {
+      AmazonServiceException exc = new AmazonServiceException("Slow Down");
+      exc.setErrorCode("SlowDown");
+      exc.setErrorType(AmazonServiceException.ErrorType.Service);
+      exc.setStatusCode(503);
+      throw exc;
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.io.ByteStreams;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class BulkCipherInputStreamTests
+{
+  private static final int MB = 1024 * 1024;
+  private static final int[] SIZES = {0, 1, 15, 16, 17, MB - 1, MB, MB + 1};
+  private static final int[] READ_SIZES = {1, 7, 16, 4096, MB + 16};
+  private static final String[] TRANSFORMATIONS = {"AES/CBC/PKCS5Padding", "AES/CTR/NoPadding"};
+
+  private Key _key;
+  private byte[] _iv;
+  private Random _random;
+
+
+  @Before
+  public void setUp()
+  {
+    _random = new Random(17);
+    byte[] keyBytes = new byte[32];
+    _random.nextBytes(keyBytes);
+    _key = new SecretKeySpec(keyBytes, "AES");
+    _iv = new byte[16];
+    _random.nextBytes(_iv);
+  }
+
+
+  @Test
+  public void testSameBytesAsCipherInputStream()
+    throws Exception
+  {
+    for(String transformation : TRANSFORMATIONS)
+    {
+      for(int size : SIZES)
+      {
+        byte[] plain = new byte[size];
+        _random.nextBytes(plain);
+        byte[] encrypted = ByteStreams.toByteArray(
+          new CipherInputStream(new ByteArrayInputStream(plain), newCipher(transformation,
+            Cipher.ENCRYPT_MODE)));
+
+        for(int readSize : READ_SIZES)
+        {
+          String msg = transformation + " size " + size + " reads of " + readSize;
+          Assert.assertTrue(msg, Arrays.equals(encrypted,
+            read(new BulkCipherInputStream(trickle(plain),
+              newCipher(transformation, Cipher.ENCRYPT_MODE)), readSize)));
+          Assert.assertTrue(msg, Arrays.equals(plain,
+            read(new BulkCipherInputStream(trickle(encrypted),
+              newCipher(transformation, Cipher.DECRYPT_MODE)), readSize)));
+        }
+      }
+    }
+  }
+
+
+  @Test
+  public void testInlineIvFormat()
+    throws Exception
+  {
+    // the stored format is the IV followed by the CBC ciphertext, as CipherInputStream produced
+    for(int size : SIZES)
+    {
+      byte[] plain = new byte[size];
+      _random.nextBytes(plain);
+      byte[] stored = ByteStreams.toByteArray(new CipherWithInlineIVInputStream(
+        new ByteArrayInputStream(plain), Cipher.getInstance("AES/CBC/PKCS5Padding"),
+        Cipher.ENCRYPT_MODE, _key));
+
+      byte[] iv = Arrays.copyOf(stored, 16);
+      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      cipher.init(Cipher.ENCRYPT_MODE, _key, new IvParameterSpec(iv));
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      expected.write(iv);
+      expected.write(ByteStreams.toByteArray(
+        new CipherInputStream(new ByteArrayInputStream(plain), cipher)));
+      Assert.assertTrue("size " + size, Arrays.equals(expected.toByteArray(), stored));
+
+      byte[] decrypted = ByteStreams.toByteArray(new CipherWithInlineIVInputStream(
+        new ByteArrayInputStream(stored), Cipher.getInstance("AES/CBC/PKCS5Padding"),
+        Cipher.DECRYPT_MODE, _key));
+      Assert.assertTrue("size " + size, Arrays.equals(plain, decrypted));
+    }
+  }
+
+
+  @Test
+  public void testZeroLengthReadAtEnd()
+    throws Exception
+  {
+    InputStream in = new BulkCipherInputStream(new ByteArrayInputStream(new byte[0]),
+      newCipher("AES/CTR/NoPadding", Cipher.DECRYPT_MODE));
+    Assert.assertEquals(-1, in.read(new byte[0], 0, 0));
+  }
+
+
+  @Test
+  public void testBadPadding()
+    throws Exception
+  {
+    byte[] truncated = new byte[17];
+    InputStream in = new BulkCipherInputStream(new ByteArrayInputStream(truncated),
+      newCipher("AES/CBC/PKCS5Padding", Cipher.DECRYPT_MODE));
+    try
+    {
+      ByteStreams.toByteArray(in);
+      Assert.fail("expected a padding failure");
+    }
+    catch(IOException expected)
+    {
+    }
+  }
+
+
+  private Cipher newCipher(String transformation, int mode)
+    throws Exception
+  {
+    Cipher cipher = Cipher.getInstance(transformation);
+    cipher.init(mode, _key, new IvParameterSpec(_iv));
+    return cipher;
+  }
+
+
+  /**
+   * @return A stream that delivers at most 1000 bytes per read, like a network stream
+   */
+  private static InputStream trickle(byte[] data)
+  {
+    return new FilterInputStream(new ByteArrayInputStream(data))
+    {
+      @Override
+      public int read(byte[] b, int off, int len)
+        throws IOException
+      {
+        return super.read(b, off, Math.min(len, 1000));
+      }
+    };
+  }
+
+
+  private static byte[] read(InputStream in, int readSize)
+    throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[readSize];
+    while(true)
+    {
+      int count = readSize == 1 ? single(in, buf) : in.read(buf, 0, readSize);
+      if(count == -1)
+      {
+        return out.toByteArray();
+      }
+      out.write(buf, 0, count);
+    }
+  }
+
+
+  private static int single(InputStream in, byte[] buf)
+    throws IOException
+  {
+    int b = in.read();
+    if(b == -1)
+    {
+      return -1;
+    }
+    buf[0] = (byte) b;
+    return 1;
+  }
+}
@@ -0,0 +1,215 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+
+
+public class CachingKeyProviderTests
+{
+  private static KeyPair _keyPair = null;
+
+  private File _dir = null;
+  private int _loads;
+
+
+  @Before
+  public void setUp()
+    throws Exception
+  {
+    if(_keyPair == null)
+    {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+      generator.initialize(2048);
+      _keyPair = generator.generateKeyPair();
+    }
+    _dir = Files.createTempDirectory("key-tests").toFile();
+    _loads = 0;
+  }
+
+
+  @After
+  public void tearDown()
+    throws IOException
+  {
+    FileUtils.deleteDirectory(_dir);
+  }
+
+
+  @Test
+  public void testCachesKeys()
+    throws Exception
+  {
+    CachingKeyProvider keys = new CachingKeyProvider(newDelegate());
+    Assert.assertSame(_keyPair.getPublic(), keys.getPublicKey("present"));
+    Assert.assertSame(_keyPair.getPublic(), keys.getPublicKey("present"));
+    Assert.assertSame(_keyPair.getPrivate(), keys.getPrivateKey("present"));
+    Assert.assertEquals(2, _loads);
+
+    keys.invalidate();
+    keys.getPublicKey("present");
+    Assert.assertEquals(3, _loads);
+  }
+
+
+  @Test
+  public void testCachesMissingKeys()
+    throws Exception
+  {
+    CachingKeyProvider keys = new CachingKeyProvider(newDelegate());
+    for(int i = 0; i < 2; i++)
+    {
+      try
+      {
+        keys.getPublicKey("missing");
+        Assert.fail("expected the key to be missing");
+      }
+      catch(NoSuchKeyException expected)
+      {
+      }
+    }
+    Assert.assertEquals(1, _loads);
+  }
+
+
+  @Test
+  public void testReloadsChangedKeyFiles()
+    throws Exception
+  {
+    CachingKeyProvider keys = new CachingKeyProvider(newDelegate(),
+      Collections.singletonList(_dir));
+    File file = new File(_dir, "present.pem");
+
+    keys.getPublicKey("present");
+    keys.getPublicKey("present");
+    Assert.assertEquals(1, _loads);
+
+    // a key file that appears, changes or disappears invalidates the cached key
+    FileUtils.writeStringToFile(file, "key", "UTF-8");
+    keys.getPublicKey("present");
+    keys.getPublicKey("present");
+    Assert.assertEquals(2, _loads);
+
+    FileUtils.writeStringToFile(file, "other key", "UTF-8");
+    keys.getPublicKey("present");
+    Assert.assertEquals(3, _loads);
+
+    Assert.assertTrue(file.delete());
+    keys.getPublicKey("present");
+    Assert.assertEquals(4, _loads);
+
+    // other aliases and kinds of keys are stamped by their own files
+    keys.getCertificate("present");
+    FileUtils.writeStringToFile(new File(_dir, "other.pem"), "key", "UTF-8");
+    keys.getPublicKey("present");
+    keys.getCertificate("present");
+    Assert.assertEquals(5, _loads);
+  }
+
+
+  @Test
+  public void testUnwrapDataKey()
+    throws Exception
+  {
+    byte[] dataKey = new byte[32];
+    Arrays.fill(dataKey, (byte) 7);
+    Cipher cipher = Cipher.getInstance("RSA");
+    cipher.init(Cipher.ENCRYPT_MODE, _keyPair.getPublic());
+    String wrapped = Base64.getEncoder().encodeToString(cipher.doFinal(dataKey));
+
+    CachingKeyProvider keys = new CachingKeyProvider(newDelegate(),
+      Collections.<File>emptyList(), 1);
+    byte[] unwrapped = keys.unwrapDataKey(_keyPair.getPrivate(), wrapped);
+    Assert.assertTrue(Arrays.equals(dataKey, unwrapped));
+
+    // callers get their own copy of a cached data key
+    unwrapped[0] = 0;
+    Assert.assertTrue(Arrays.equals(dataKey, keys.unwrapDataKey(_keyPair.getPrivate(), wrapped)));
+
+    Assert.assertEquals(CachingKeyProvider.computePublicKeyHash(_keyPair.getPrivate()),
+      keys.getPublicKeyHash(_keyPair.getPrivate()));
+  }
+
+
+  @Test
+  public void testRejectsNegativeCacheSize()
+  {
+    try
+    {
+      new CachingKeyProvider(newDelegate(), Collections.<File>emptyList(), -1);
+      Assert.fail("expected a negative cache size to be rejected");
+    }
+    catch(UsageException expected)
+    {
+    }
+  }
+
+
+  private KeyProvider newDelegate()
+  {
+    return new KeyProvider()
+    {
+      public PrivateKey getPrivateKey(String alias)
+        throws NoSuchKeyException
+      {
+        check(alias);
+        return _keyPair.getPrivate();
+      }
+
+      public PublicKey getPublicKey(String alias)
+        throws NoSuchKeyException
+      {
+        check(alias);
+        return _keyPair.getPublic();
+      }
+
+      public Certificate getCertificate(String alias)
+        throws NoSuchKeyException
+      {
+        check(alias);
+        return null;
+      }
+
+      private void check(String alias)
+        throws NoSuchKeyException
+      {
+        _loads++;
+        if(!alias.equals("present"))
+        {
+          throw new NoSuchKeyException("no key " + alias);
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,150 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+public class CompressedPartLayoutTests
+{
+  @Test
+  public void testBlockCount()
+  {
+    Assert.assertEquals(1, CompressedPartLayout.getBlockCount(0, 100));
+    Assert.assertEquals(1, CompressedPartLayout.getBlockCount(100, 100));
+    Assert.assertEquals(10, CompressedPartLayout.getBlockCount(1000, 100));
+    Assert.assertEquals(11, CompressedPartLayout.getBlockCount(1001, 100));
+    Assert.assertEquals(0, CompressedPartLayout.getIndexSize(1));
+    Assert.assertEquals(3 * CompressedPartLayout.ENTRY_SIZE, CompressedPartLayout.getIndexSize(3));
+  }
+
+
+  @Test
+  public void testPackedParts()
+  {
+    // blocks 0 and 1 in part 0, block 2 in part 1; stored blocks are 16 bytes larger
+    CompressedPartLayout layout = new CompressedPartLayout(new long[]{0, 116, 282},
+      new long[]{100, 150, 50}, new int[]{0, 0, 1}, 348);
+
+    Assert.assertTrue(layout.hasIndex());
+    Assert.assertEquals(3, layout.getBlockCount());
+    Assert.assertEquals(166, layout.getStoredSize(1));
+    Assert.assertEquals(66, layout.getStoredSize(2));
+    Assert.assertEquals(348, layout.getIndexStart());
+    Assert.assertEquals(348 + 3 * CompressedPartLayout.ENTRY_SIZE, layout.getObjectSize());
+
+    Assert.assertEquals(2, layout.getPartCount());
+    Assert.assertEquals(0, layout.getFirstBlock(0));
+    Assert.assertEquals(2, layout.getEndBlock(0));
+    Assert.assertEquals(0, layout.getPartStart(0));
+    Assert.assertEquals(282, layout.getPartSize(0));
+    Assert.assertEquals(2, layout.getFirstBlock(1));
+    Assert.assertEquals(3, layout.getEndBlock(1));
+    Assert.assertEquals(282, layout.getPartStart(1));
+    // the last part holds the index
+    Assert.assertEquals(66 + 3 * CompressedPartLayout.ENTRY_SIZE, layout.getPartSize(1));
+  }
+
+
+  @Test
+  public void testSingleBlock()
+  {
+    CompressedPartLayout layout = CompressedPartLayout.forSingleBlock(80, 96);
+    Assert.assertFalse(layout.hasIndex());
+    Assert.assertEquals(0, layout.toIndex().length);
+    Assert.assertEquals(1, layout.getPartCount());
+    Assert.assertEquals(80, layout.getCompressedSize(0));
+    Assert.assertEquals(96, layout.getStoredSize(0));
+    Assert.assertEquals(96, layout.getPartSize(0));
+    Assert.assertEquals(96, layout.getObjectSize());
+  }
+
+
+  @Test
+  public void testIndexRoundTrip()
+    throws IOException
+  {
+    CompressedPartLayout layout = new CompressedPartLayout(new long[]{0, 100, 250, 300},
+      new long[]{100, 150, 50, 0}, new int[]{0, 0, 1, 1}, 300);
+    byte[] index = layout.toIndex();
+    Assert.assertEquals(CompressedPartLayout.getIndexSize(4), index.length);
+
+    CompressedPartLayout read = CompressedPartLayout.readIndex(new ByteArrayInputStream(index), 4,
+      300);
+    Assert.assertTrue(Arrays.equals(index, read.toIndex()));
+    Assert.assertEquals(layout.getObjectSize(), read.getObjectSize());
+    Assert.assertEquals(2, read.getPartCount());
+    Assert.assertEquals(250, read.getPartStart(1));
+    Assert.assertEquals(0, read.getStoredSize(3));
+  }
+
+
+  @Test
+  public void testRejectsCorruptIndex()
+  {
+    // first block not at the start
+    assertCorrupt(index(new long[]{1, 100, 0}, new long[]{101, 100, 1}), 2, 300);
+    // overlapping blocks
+    assertCorrupt(index(new long[]{0, 100, 0}, new long[]{99, 100, 0}), 2, 300);
+    // negative compressed size
+    assertCorrupt(index(new long[]{0, -1, 0}, new long[]{0, 100, 0}), 2, 300);
+    // skipped part
+    assertCorrupt(index(new long[]{0, 100, 0}, new long[]{100, 100, 2}), 2, 300);
+    // first block not in the first part
+    assertCorrupt(index(new long[]{0, 100, 1}, new long[]{100, 100, 1}), 2, 300);
+    // last block runs into the index
+    assertCorrupt(index(new long[]{0, 100, 0}, new long[]{100, 100, 0}), 2, 150);
+    // truncated index
+    assertCorrupt(Arrays.copyOf(index(new long[]{0, 100, 0}, new long[]{100, 100, 0}), 39), 2,
+      300);
+    // trailing data
+    assertCorrupt(Arrays.copyOf(index(new long[]{0, 100, 0}, new long[]{100, 100, 0}), 41), 2,
+      300);
+  }
+
+
+  private static byte[] index(long[]... entries)
+  {
+    ByteBuffer index = ByteBuffer.allocate(entries.length * CompressedPartLayout.ENTRY_SIZE);
+    for(long[] entry : entries)
+    {
+      index.putLong(entry[0]);
+      index.putLong(entry[1]);
+      index.putInt((int) entry[2]);
+    }
+    return index.array();
+  }
+
+
+  private static void assertCorrupt(byte[] index, int blockCount, long indexStart)
+  {
+    try
+    {
+      CompressedPartLayout.readIndex(new ByteArrayInputStream(index), blockCount, indexStart);
+      Assert.fail("expected the index to be rejected");
+    }
+    catch(IOException expected)
+    {
+    }
+  }
+}
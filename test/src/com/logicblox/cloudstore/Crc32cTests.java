@@ -0,0 +1,145 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class Crc32cTests
+{
+  @Test
+  public void testKnownValues()
+  {
+    // check value of the CRC-32C catalogue, and the examples of rfc3720 section B.4
+    Assert.assertEquals(0xe3069283L, crc("123456789".getBytes(StandardCharsets.US_ASCII)));
+    Assert.assertEquals(0L, crc(new byte[0]));
+    Assert.assertEquals(0x8a9136aaL, crc(new byte[32]));
+    byte[] ones = new byte[32];
+    Arrays.fill(ones, (byte) 0xff);
+    Assert.assertEquals(0x62a8ab43L, crc(ones));
+    byte[] ascending = new byte[32];
+    byte[] descending = new byte[32];
+    for(int i = 0; i < 32; i++)
+    {
+      ascending[i] = (byte) i;
+      descending[i] = (byte) (31 - i);
+    }
+    Assert.assertEquals(0x46dd794eL, crc(ascending));
+    Assert.assertEquals(0x113fdb5cL, crc(descending));
+  }
+
+
+  @Test
+  public void testValueAsBytes()
+  {
+    Crc32c crc = new Crc32c();
+    crc.update("123456789".getBytes(StandardCharsets.US_ASCII), 0, 9);
+    Assert.assertTrue(Arrays.equals(new byte[]{(byte) 0xe3, 0x06, (byte) 0x92, (byte) 0x83},
+      crc.getValueAsBytes()));
+    Assert.assertEquals(0xe3069283L, Crc32c.bytesBigEndianToLong(crc.getValueAsBytes()));
+  }
+
+
+  @Test
+  public void testUpdateByteBuffer()
+  {
+    byte[] data = new byte[10000];
+    new Random(1).nextBytes(data);
+    for(ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.wrap(data),
+      ByteBuffer.allocateDirect(data.length).put(data)})
+    {
+      buffer.rewind();
+      Crc32c crc = new Crc32c();
+      crc.update(buffer);
+      Assert.assertEquals(crc(data), crc.getValue());
+      Assert.assertFalse(buffer.hasRemaining());
+    }
+  }
+
+
+  @Test
+  public void testCombineRandomSplits()
+  {
+    Random random = new Random(23);
+    for(int i = 0; i < 200; i++)
+    {
+      byte[] data = new byte[random.nextInt(3) == 0 ? random.nextInt(32) :
+        random.nextInt(3 * 1024 * 1024)];
+      random.nextBytes(data);
+      // include empty pieces at either end
+      int split = random.nextInt(5) == 0 ? (random.nextBoolean() ? 0 : data.length) :
+        random.nextInt(data.length + 1);
+      assertCombines(data, split);
+    }
+  }
+
+
+  @Test
+  public void testCombineManyPieces()
+  {
+    // a composite object is combined piece by piece
+    Random random = new Random(29);
+    byte[] data = new byte[1000000];
+    random.nextBytes(data);
+    long combined = 0;
+    int offset = 0;
+    while(offset < data.length)
+    {
+      int length = Math.min(data.length - offset, random.nextInt(100000));
+      combined = Crc32c.combine(combined, crc(data, offset, length), length);
+      offset += length;
+    }
+    Assert.assertEquals(crc(data), combined);
+  }
+
+
+  @Test
+  public void testCombineZeroLength()
+  {
+    Assert.assertEquals(0xe3069283L, Crc32c.combine(0xe3069283L, 0, 0));
+    Assert.assertEquals(0xe3069283L, Crc32c.combine(0, 0xe3069283L, 9));
+  }
+
+
+  private static void assertCombines(byte[] data, int split)
+  {
+    long crc1 = crc(data, 0, split);
+    long crc2 = crc(data, split, data.length - split);
+    Assert.assertEquals("length " + data.length + " split at " + split, crc(data),
+      Crc32c.combine(crc1, crc2, data.length - split));
+  }
+
+
+  private static long crc(byte[] data)
+  {
+    return crc(data, 0, data.length);
+  }
+
+
+  private static long crc(byte[] data, int offset, int length)
+  {
+    Crc32c crc = new Crc32c();
+    crc.update(data, offset, length);
+    return crc.getValue();
+  }
+}
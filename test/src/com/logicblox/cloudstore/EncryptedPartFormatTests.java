@@ -0,0 +1,164 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.io.ByteStreams;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class EncryptedPartFormatTests
+{
+  private static final int[] PART_SIZES = {0, 1, 15, 16, 17, 100000};
+
+  private Key _key;
+  private Random _random;
+
+
+  @Before
+  public void setUp()
+  {
+    _random = new Random(42);
+    byte[] keyBytes = new byte[32];
+    _random.nextBytes(keyBytes);
+    _key = new SecretKeySpec(keyBytes, "AES");
+  }
+
+
+  @Test
+  public void testRoundTrip()
+    throws Exception
+  {
+    for(int size : PART_SIZES)
+    {
+      byte[] plain = randomBytes(size);
+      byte[] stored = encrypt(plain, 3);
+      Assert.assertEquals(EncryptedPartFormat.getStoredPartSize(Version.CURRENT, size),
+        stored.length);
+
+      // retried parts have to be encrypted to the same bytes
+      Assert.assertTrue(Arrays.equals(stored, encrypt(plain, 3)));
+
+      InputStream in = EncryptedPartFormat.newDecryptingStream(Version.CURRENT,
+        new ByteArrayInputStream(stored), _key, 3, size);
+      Assert.assertTrue(Arrays.equals(plain, readAll(in)));
+      Assert.assertEquals(-1, in.read(new byte[0], 0, 0));
+    }
+  }
+
+
+  @Test
+  public void testTagIsVerifiedByLastRead()
+    throws Exception
+  {
+    // a reader that stops after the last plain byte, without reading to EOF, still learns about
+    // a bad tag before it has all bytes of the part
+    int size = 100000;
+    byte[] stored = encrypt(randomBytes(size), 4);
+    stored[stored.length - 1] ^= 1;
+    InputStream in = EncryptedPartFormat.newDecryptingStream(Version.CURRENT,
+      new ByteArrayInputStream(stored), _key, 4, size);
+    try
+    {
+      ByteStreams.readFully(in, new byte[size]);
+      Assert.fail("expected the part to fail authentication");
+    }
+    catch(IOException e)
+    {
+      // expected
+    }
+  }
+
+
+  @Test
+  public void testTamperedPartIsRejected()
+    throws Exception
+  {
+    for(int size : PART_SIZES)
+    {
+      byte[] stored = encrypt(randomBytes(size), 1);
+      stored[_random.nextInt(stored.length)] ^= 1;
+      assertRejected(stored, 1, size);
+    }
+  }
+
+
+  @Test
+  public void testSwappedPartIsRejected()
+    throws Exception
+  {
+    byte[] stored = encrypt(randomBytes(1000), 1);
+    assertRejected(stored, 2, 1000);
+  }
+
+
+  private void assertRejected(byte[] stored, int partNumber, int size)
+    throws Exception
+  {
+    InputStream in = EncryptedPartFormat.newDecryptingStream(Version.CURRENT,
+      new ByteArrayInputStream(stored), _key, partNumber, size);
+    try
+    {
+      readAll(in);
+      Assert.fail("expected the part to fail authentication");
+    }
+    catch(IOException e)
+    {
+      // expected
+    }
+  }
+
+
+  private byte[] encrypt(byte[] plain, int partNumber)
+    throws Exception
+  {
+    return readAll(EncryptedPartFormat.newEncryptingStream(new ByteArrayInputStream(plain), _key,
+      partNumber));
+  }
+
+
+  private byte[] randomBytes(int size)
+  {
+    byte[] bytes = new byte[size];
+    _random.nextBytes(bytes);
+    return bytes;
+  }
+
+
+  private static byte[] readAll(InputStream in)
+    throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int count;
+    while((count = in.read(buf)) != -1)
+    {
+      out.write(buf, 0, count);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,240 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.io.ByteStreams;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class FilePartInputStreamTests
+{
+  private static final int BUFFER_SIZE = FilePartInputStream.BUFFER_SIZE;
+
+  // a part that starts and ends in the middle of the file, and spans a few read-ahead buffers
+  private static final int PART_START = 500000;
+  private static final int PART_LENGTH = 2 * BUFFER_SIZE + 12345;
+
+  private File _file = null;
+  private byte[] _data;
+  private FileChannel _channel = null;
+
+
+  @Before
+  public void setUp()
+    throws IOException
+  {
+    _data = new byte[PART_START + PART_LENGTH + 1000];
+    new Random(3).nextBytes(_data);
+    _file = File.createTempFile("part-tests", ".bin");
+    Files.write(_file.toPath(), _data);
+    _channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ);
+  }
+
+
+  @After
+  public void tearDown()
+    throws IOException
+  {
+    _channel.close();
+    _file.delete();
+  }
+
+
+  @Test
+  public void testReadSizes()
+    throws IOException
+  {
+    // small reads go through the read-ahead buffer and cross its boundaries, large reads bypass it
+    int[][] readSizes = {{1}, {7}, {4096}, {BUFFER_SIZE - 1}, {BUFFER_SIZE + 1},
+      {3, BUFFER_SIZE, 100000, 1}};
+    for(int[] sizes : readSizes)
+    {
+      InputStream in = newPart();
+      Assert.assertTrue(Arrays.toString(sizes), Arrays.equals(expected(0, PART_LENGTH),
+        read(in, sizes, PART_LENGTH)));
+      // the part ends in the middle of the file
+      Assert.assertEquals(-1, in.read());
+      Assert.assertEquals(-1, in.read(new byte[10], 0, 10));
+      in.close();
+    }
+  }
+
+
+  @Test
+  public void testSingleByteReads()
+    throws IOException
+  {
+    InputStream in = newPart();
+    Assert.assertTrue(in.skip(BUFFER_SIZE - 2) == BUFFER_SIZE - 2);
+    for(int i = BUFFER_SIZE - 2; i < BUFFER_SIZE + 2; i++)
+    {
+      Assert.assertEquals(_data[PART_START + i] & 0xFF, in.read());
+    }
+    Assert.assertEquals(PART_LENGTH - BUFFER_SIZE - 2, in.available());
+  }
+
+
+  @Test
+  public void testResetAfterPartialRead()
+    throws IOException
+  {
+    // the AWS SDK marks the start of a part and resets to it when it retries the request
+    InputStream in = newPart();
+    Assert.assertTrue(in.markSupported());
+    in.mark(0);
+    read(in, new int[]{7}, BUFFER_SIZE + 100);
+    in.reset();
+    Assert.assertTrue(Arrays.equals(expected(0, PART_LENGTH), read(in, new int[]{8192},
+      PART_LENGTH)));
+
+    // a mark in the middle of the part
+    in.reset();
+    read(in, new int[]{1000}, 5000);
+    in.mark(0);
+    read(in, new int[]{13}, BUFFER_SIZE);
+    in.reset();
+    Assert.assertTrue(Arrays.equals(expected(5000, PART_LENGTH - 5000),
+      read(in, new int[]{13}, PART_LENGTH - 5000)));
+    Assert.assertEquals(-1, in.read());
+  }
+
+
+  @Test
+  public void testSkip()
+    throws IOException
+  {
+    InputStream in = newPart();
+    read(in, new int[]{10}, 100);
+    Assert.assertEquals(BUFFER_SIZE, in.skip(BUFFER_SIZE));
+    Assert.assertTrue(Arrays.equals(expected(BUFFER_SIZE + 100, 50), read(in, new int[]{50}, 50)));
+    Assert.assertEquals(PART_LENGTH - BUFFER_SIZE - 150, in.skip(Long.MAX_VALUE));
+    Assert.assertEquals(-1, in.read());
+  }
+
+
+  @Test
+  public void testPartsShareChannel()
+    throws IOException
+  {
+    InputStream first = new FilePartInputStream(_channel, 0, PART_START);
+    InputStream second = newPart();
+    ByteArrayOutputStream a = new ByteArrayOutputStream();
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    byte[] buf = new byte[3000];
+    int count;
+    do
+    {
+      count = copy(first, a, buf);
+      count = Math.max(count, copy(second, b, buf));
+    }
+    while(count != -1);
+    Assert.assertTrue(Arrays.equals(expected(-PART_START, PART_START), a.toByteArray()));
+    Assert.assertTrue(Arrays.equals(expected(0, PART_LENGTH), b.toByteArray()));
+    Assert.assertTrue(_channel.isOpen());
+  }
+
+
+  @Test
+  public void testTruncatedFile()
+    throws IOException
+  {
+    InputStream in = new FilePartInputStream(_channel, PART_START, _data.length);
+    try
+    {
+      ByteStreams.toByteArray(in);
+      Assert.fail("expected the truncated file to be detected");
+    }
+    catch(IOException expected)
+    {
+    }
+  }
+
+
+  @Test
+  public void testClosed()
+    throws IOException
+  {
+    InputStream in = newPart();
+    in.close();
+    try
+    {
+      in.read();
+      Assert.fail("expected a read from a closed stream to fail");
+    }
+    catch(IOException expected)
+    {
+    }
+  }
+
+
+  private InputStream newPart()
+  {
+    return new FilePartInputStream(_channel, PART_START, PART_LENGTH);
+  }
+
+
+  /**
+   * @return The bytes of the file at {@code offset} from the start of the part
+   */
+  private byte[] expected(int offset, int length)
+  {
+    return Arrays.copyOfRange(_data, PART_START + offset, PART_START + offset + length);
+  }
+
+
+  /**
+   * Reads {@code total} bytes, cycling through the given read sizes.
+   */
+  private static byte[] read(InputStream in, int[] sizes, int total)
+    throws IOException
+  {
+    byte[] result = new byte[total];
+    int offset = 0;
+    for(int i = 0; offset < total; i++)
+    {
+      int count = in.read(result, offset, Math.min(sizes[i % sizes.length], total - offset));
+      Assert.assertTrue(count > 0);
+      offset += count;
+    }
+    return result;
+  }
+
+
+  private static int copy(InputStream in, ByteArrayOutputStream out, byte[] buf)
+    throws IOException
+  {
+    int count = in.read(buf, 0, buf.length);
+    if(count > 0)
+    {
+      out.write(buf, 0, count);
+    }
+    return count;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.io.ByteStreams;
+import junit.framework.Assert;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+
+public class HashingInputStreamTests
+{
+  private byte[] _data;
+
+
+  @Before
+  public void setUp()
+  {
+    _data = new byte[300 * 1024 + 5];
+    new Random(17).nextBytes(_data);
+  }
+
+
+  @Test
+  public void testSingleRead()
+    throws Exception
+  {
+    HashingInputStream in = new HashingInputStream(new ByteArrayInputStream(_data));
+    Assert.assertTrue(Arrays.equals(_data, ByteStreams.toByteArray(in)));
+    Assert.assertTrue(Arrays.equals(DigestUtils.md5(_data), in.getDigest()));
+  }
+
+
+  @Test
+  public void testResetToStartAfterPartialRead()
+    throws Exception
+  {
+    // like a retried request of the AWS SDK: mark at the start, read partway, reset, read fully
+    HashingInputStream in = newStream();
+    in.mark(0);
+    ByteStreams.readFully(in, new byte[100 * 1024 + 3]);
+    Assert.assertEquals(_data[100 * 1024 + 3] & 0xff, in.read());
+    in.reset();
+    Assert.assertTrue(Arrays.equals(_data, ByteStreams.toByteArray(in)));
+    Assert.assertTrue(Arrays.equals(DigestUtils.md5(_data), in.getDigest()));
+  }
+
+
+  @Test
+  public void testResetToMiddle()
+    throws Exception
+  {
+    HashingInputStream in = newStream();
+    byte[] read = new byte[_data.length];
+    int mark = 70000;
+    ByteStreams.readFully(in, read, 0, mark);
+    in.mark(0);
+    ByteStreams.readFully(in, new byte[5000]);
+    in.reset();
+    ByteStreams.readFully(in, read, mark, read.length - mark);
+    Assert.assertEquals(-1, in.read());
+    Assert.assertTrue(Arrays.equals(_data, read));
+    Assert.assertTrue(Arrays.equals(DigestUtils.md5(_data), in.getDigest()));
+  }
+
+
+  @Test
+  public void testRepeatedResets()
+    throws Exception
+  {
+    HashingInputStream in = newStream();
+    in.mark(0);
+    for(int i = 1; i <= 3; i++)
+    {
+      ByteStreams.readFully(in, new byte[i * 1000]);
+      in.reset();
+    }
+    Assert.assertTrue(Arrays.equals(_data, ByteStreams.toByteArray(in)));
+    Assert.assertTrue(Arrays.equals(DigestUtils.md5(_data), in.getDigest()));
+  }
+
+
+  @Test
+  public void testResetWithoutMarkFails()
+    throws Exception
+  {
+    HashingInputStream in = newStream();
+    in.read();
+    try
+    {
+      in.reset();
+      Assert.fail("expected exception");
+    }
+    catch(IOException expected)
+    {
+    }
+  }
+
+
+  private HashingInputStream newStream()
+    throws IOException
+  {
+    return new HashingInputStream(new ReopenableInputStream(new Callable<InputStream>()
+    {
+      public InputStream call()
+      {
+        return new ByteArrayInputStream(_data);
+      }
+    }));
+  }
+}
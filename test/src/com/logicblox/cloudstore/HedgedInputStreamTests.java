@@ -0,0 +1,322 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+
+public class HedgedInputStreamTests
+{
+  private static final int START = 100;
+  private static final int END = 5099;
+
+  private ListeningExecutorService _apiExecutor = null;
+  private ListeningScheduledExecutorService _scheduler = null;
+  private byte[] _data;
+  private List<TestStream> _streams;
+
+
+  @Before
+  public void setUp()
+  {
+    _apiExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+    _scheduler = MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(1));
+    _data = new byte[6000];
+    new Random(5).nextBytes(_data);
+    _streams = new ArrayList<TestStream>();
+  }
+
+
+  @After
+  public void tearDown()
+  {
+    _apiExecutor.shutdownNow();
+    _scheduler.shutdownNow();
+  }
+
+
+  @Test
+  public void testFastRequestIsNotHedged()
+    throws Exception
+  {
+    RequestHedger hedger = newHedger(1.0);
+    byte[] read = readRange(hedger, new TestSource(0, 0, false));
+    Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(_data, START, END + 1), read));
+    Assert.assertEquals(0, hedger.getHedgeCount());
+    Assert.assertEquals(1, _streams.size());
+  }
+
+
+  @Test
+  public void testSlowFirstByteIsHedged()
+    throws Exception
+  {
+    RequestHedger hedger = newHedger(1.0);
+    byte[] read = readRange(hedger, new TestSource(400, 0, false));
+    Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(_data, START, END + 1), read));
+    Assert.assertEquals(1, hedger.getHedgesWon());
+    // the original response is dropped once it arrives
+    Assert.assertEquals(2, _streams.size());
+    Assert.assertTrue(_streams.get(1)._aborted);
+  }
+
+
+  @Test
+  public void testFailedRequestIsServedByHedge()
+    throws Exception
+  {
+    RequestHedger hedger = newHedger(1.0);
+    byte[] read = readRange(hedger, new TestSource(400, 0, true));
+    Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(_data, START, END + 1), read));
+    Assert.assertEquals(1, hedger.getHedgesWon());
+  }
+
+
+  @Test
+  public void testSlowStreamIsHedged()
+    throws Exception
+  {
+    RequestHedger hedger = newHedger(1.0);
+    byte[] read = readRange(hedger, new TestSource(0, 20, false));
+    Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(_data, START, END + 1), read));
+    Assert.assertEquals(1, hedger.getHedgesWon());
+    Assert.assertTrue(_streams.get(0)._aborted);
+  }
+
+
+  @Test
+  public void testSlowReaderIsNotHedged()
+    throws Exception
+  {
+    // the reader takes much longer than the request, which must not count against the request
+    RequestHedger hedger = newHedger(1.0);
+    HedgedInputStream in = HedgedInputStream.open(hedger, new TestSource(0, 0, false), START,
+      END, _apiExecutor, _scheduler);
+    byte[] read = new byte[END - START + 1];
+    for(int off = 0; off < read.length; off += 500)
+    {
+      ByteStreams.readFully(in, read, off, 500);
+      Thread.sleep(100);
+    }
+    Assert.assertEquals(-1, in.read());
+    in.close();
+    Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(_data, START, END + 1), read));
+    Assert.assertEquals(0, hedger.getHedgeCount());
+  }
+
+
+  @Test
+  public void testHedgesAreLimitedByBudget()
+    throws Exception
+  {
+    RequestHedger hedger = newHedger(0);
+    byte[] read = readRange(hedger, new TestSource(400, 0, false));
+    Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(_data, START, END + 1), read));
+    Assert.assertEquals(0, hedger.getHedgeCount());
+    Assert.assertEquals(1, hedger.getRequestCount());
+  }
+
+
+  @Test
+  public void testLargeRemainderIsNotHedged()
+    throws Exception
+  {
+    RequestHedger hedger = newHedger(1.0, END - START);
+    byte[] read = readRange(hedger, new TestSource(400, 0, false));
+    Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(_data, START, END + 1), read));
+    Assert.assertEquals(0, hedger.getHedgeCount());
+    Assert.assertEquals(1, _streams.size());
+  }
+
+
+  @Test
+  public void testSampleWindowKeepsRecentSamples()
+  {
+    RequestHedger hedger = new RequestHedger(95, 1.0);
+    Assert.assertEquals(-1, hedger.getFirstByteThreshold());
+    Assert.assertEquals(-1.0, hedger.getThroughputThreshold());
+    for(int i = 0; i < 10 * RequestHedger.SAMPLE_WINDOW + 7; i++)
+    {
+      hedger.recordFirstByte(1000);
+      hedger.recordThroughput(1000);
+    }
+    Assert.assertEquals(1000, hedger.getFirstByteThreshold());
+    Assert.assertEquals(1000.0, hedger.getThroughputThreshold());
+
+    // a full window of new samples replaces all older ones
+    for(int i = 0; i < RequestHedger.SAMPLE_WINDOW; i++)
+    {
+      hedger.recordFirstByte(5000 + i);
+      hedger.recordThroughput(5000 + i);
+    }
+    Assert.assertEquals(5000 + 189, hedger.getFirstByteThreshold());
+    Assert.assertEquals(5000.0 + 9, hedger.getThroughputThreshold());
+  }
+
+
+  /**
+   * @return A hedger that considers a request behind once it waits more than a millisecond for
+   * its response, or streams slower than 1MB/s
+   */
+  private static RequestHedger newHedger(double budget)
+  {
+    return newHedger(budget, RequestHedger.DEFAULT_MAX_HEDGE_BYTES);
+  }
+
+
+  private static RequestHedger newHedger(double budget, long maxHedgeBytes)
+  {
+    RequestHedger hedger = new RequestHedger(95, budget, maxHedgeBytes);
+    for(int i = 0; i < RequestHedger.MIN_SAMPLES; i++)
+    {
+      hedger.recordFirstByte(1000000);
+      hedger.recordThroughput(1000000);
+    }
+    return hedger;
+  }
+
+
+  private byte[] readRange(RequestHedger hedger, TestSource source)
+    throws IOException
+  {
+    try(HedgedInputStream in = HedgedInputStream.open(hedger, source, START, END, _apiExecutor,
+      _scheduler))
+    {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+
+  /**
+   * Serves ranges of {@link #_data}. Only the first (original) request is slow or fails.
+   */
+  private class TestSource
+    implements HedgedInputStream.RangeSource
+  {
+    private final long _firstByteDelay;
+    private final long _readDelay;
+    private final boolean _fail;
+    private int _requests = 0;
+
+    TestSource(long firstByteDelay, long readDelay, boolean fail)
+    {
+      _firstByteDelay = firstByteDelay;
+      _readDelay = readDelay;
+      _fail = fail;
+    }
+
+    public HedgedInputStream.AbortableInputStream open(long start, long end)
+      throws IOException
+    {
+      boolean original;
+      synchronized(this)
+      {
+        original = _requests++ == 0;
+      }
+      if(!original)
+      {
+        return newStream(start, end, 0);
+      }
+
+      sleep(_firstByteDelay);
+      if(_fail)
+      {
+        throw new IOException("request failed");
+      }
+      return newStream(start, end, _readDelay);
+    }
+
+    private TestStream newStream(long start, long end, long readDelay)
+    {
+      TestStream stream = new TestStream(
+        new ByteArrayInputStream(_data, (int) start, (int) (end - start + 1)), readDelay);
+      synchronized(_streams)
+      {
+        _streams.add(stream);
+      }
+      return stream;
+    }
+  }
+
+
+  /**
+   * Delivers at most 10 bytes per read, after {@code readDelay} milliseconds.
+   */
+  private static class TestStream
+    extends HedgedInputStream.AbortableInputStream
+  {
+    private final long _readDelay;
+    private volatile boolean _aborted = false;
+
+    TestStream(ByteArrayInputStream in, long readDelay)
+    {
+      super(in);
+      _readDelay = readDelay;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      if(_readDelay > 0)
+      {
+        sleep(_readDelay);
+        len = Math.min(len, 10);
+      }
+      if(_aborted)
+      {
+        throw new IOException("aborted");
+      }
+      return super.read(b, off, len);
+    }
+
+    void abort()
+    {
+      _aborted = true;
+    }
+  }
+
+
+  private static void sleep(long millis)
+    throws IOException
+  {
+    try
+    {
+      Thread.sleep(millis);
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+}
@@ -0,0 +1,235 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+
+public class ListPageIteratorTests
+{
+  private List<String> _requested;
+  private List<SettableFuture<ListPage>> _pages;
+  private List<ListPage> _responses;
+  private CloudStoreClient _client;
+
+
+  @Before
+  public void setUp()
+  {
+    _requested = new ArrayList<String>();
+    _pages = new ArrayList<SettableFuture<ListPage>>();
+    _responses = new ArrayList<ListPage>();
+    _client = (CloudStoreClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+      new Class<?>[]{CloudStoreClient.class}, new InvocationHandler()
+      {
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+          if(method.getName().equals("listObjectsPage"))
+          {
+            ListOptions options = (ListOptions) args[0];
+            _requested.add(options.getPageToken().orElse("first"));
+            SettableFuture<ListPage> page = SettableFuture.create();
+            _pages.add(page);
+            if(!_responses.isEmpty())
+            {
+              page.set(_responses.remove(0));
+            }
+            return page;
+          }
+          throw new UnsupportedOperationException(method.getName());
+        }
+      });
+  }
+
+
+  @Test
+  public void testFetchesOnePageAhead()
+    throws Exception
+  {
+    ListPageIterator pages = newIterator();
+    Assert.assertEquals(Arrays.asList("first"), _requested);
+
+    Assert.assertTrue(pages.hasNext());
+    ListenableFuture<ListPage> first = pages.next();
+    try
+    {
+      pages.hasNext();
+      Assert.fail("expected hasNext to fail before the page arrived");
+    }
+    catch(IllegalStateException expected)
+    {
+    }
+
+    // the next page is requested as soon as the previous one arrives, but no further
+    _pages.get(0).set(page("t1", "a", "b"));
+    Assert.assertEquals(Arrays.asList("first", "t1"), _requested);
+    Assert.assertEquals(2, first.get().getFiles().size());
+    _pages.get(1).set(page("t2", "c"));
+    Assert.assertEquals(Arrays.asList("first", "t1"), _requested);
+
+    Assert.assertTrue(pages.hasNext());
+    Assert.assertSame(_pages.get(1), pages.next());
+    Assert.assertEquals(Arrays.asList("first", "t1", "t2"), _requested);
+
+    Assert.assertTrue(pages.hasNext());
+    ListenableFuture<ListPage> last = pages.next();
+    _pages.get(2).set(page(null));
+    Assert.assertTrue(last.get().getFiles().isEmpty());
+    Assert.assertFalse(pages.hasNext());
+    Assert.assertEquals(3, _requested.size());
+  }
+
+
+  @Test
+  public void testFiles()
+    throws Exception
+  {
+    // an empty page in between is skipped
+    _responses.add(page("t1", "a", "b"));
+    _responses.add(page("t2"));
+    _responses.add(page(null, "c"));
+    Iterator<StoreFile> files = newIterator().files();
+    Assert.assertEquals("a", files.next().getObjectKey());
+    Assert.assertEquals("b", files.next().getObjectKey());
+    Assert.assertTrue(files.hasNext());
+    Assert.assertEquals("c", files.next().getObjectKey());
+    Assert.assertFalse(files.hasNext());
+  }
+
+
+  @Test
+  public void testFilesFailure()
+    throws Exception
+  {
+    ListPageIterator pages = newIterator();
+    IOException failure = new IOException("listing failed");
+    _pages.get(0).setException(failure);
+    try
+    {
+      pages.files().hasNext();
+      Assert.fail("expected the listing to fail");
+    }
+    catch(ListPageIterator.ListingException e)
+    {
+      Assert.assertSame(failure, e.getCause());
+    }
+  }
+
+
+  @Test
+  public void testTransformPages()
+    throws Exception
+  {
+    ListPageIterator pages = newIterator();
+    final List<SettableFuture<List<String>>> results = new ArrayList<SettableFuture<List<String>>>();
+    ListenableFuture<List<String>> all = pages.transformPages(
+      new AsyncFunction<ListPage, List<String>>()
+      {
+        public ListenableFuture<List<String>> apply(ListPage page)
+        {
+          List<String> keys = new ArrayList<String>();
+          for(StoreFile f : page.getFiles())
+          {
+            keys.add(f.getObjectKey());
+          }
+          if(keys.contains("slow"))
+          {
+            SettableFuture<List<String>> result = SettableFuture.create();
+            results.add(result);
+            return result;
+          }
+          return Futures.immediateFuture(keys);
+        }
+      });
+
+    _pages.get(0).set(page("t1", "a", "b"));
+    _pages.get(1).set(page("t2", "slow"));
+    Assert.assertEquals(1, results.size());
+    // the page after the one that is being processed is already fetched, but not passed on
+    Assert.assertEquals(3, _requested.size());
+    _pages.get(2).set(page(null, "c"));
+    Assert.assertFalse(all.isDone());
+
+    results.get(0).set(Collections.singletonList("d"));
+    Assert.assertEquals(Arrays.asList("a", "b", "d", "c"), all.get());
+  }
+
+
+  @Test
+  public void testTransformPagesFailure()
+    throws Exception
+  {
+    ListPageIterator pages = newIterator();
+    final IOException failure = new IOException("page failed");
+    ListenableFuture<List<String>> all = pages.transformPages(
+      new AsyncFunction<ListPage, List<String>>()
+      {
+        public ListenableFuture<List<String>> apply(ListPage page)
+        {
+          return Futures.immediateFailedFuture(failure);
+        }
+      });
+
+    _pages.get(0).set(page("t1", "a"));
+    try
+    {
+      all.get();
+      Assert.fail("expected the transformation to fail");
+    }
+    catch(ExecutionException e)
+    {
+      Assert.assertSame(failure, e.getCause());
+    }
+    // the page that was fetched ahead is not needed anymore
+    Assert.assertTrue(_pages.get(1).isCancelled());
+  }
+
+
+  private ListPageIterator newIterator()
+  {
+    return new ListPageIterator(_client, new ListOptionsBuilder(_client).setBucketName("bucket")
+      .setObjectKey("prefix/").createOptions());
+  }
+
+
+  private static ListPage page(String nextPageToken, String... keys)
+  {
+    List<StoreFile> files = new ArrayList<StoreFile>();
+    for(String key : keys)
+    {
+      files.add(new StoreFile("bucket", key));
+    }
+    return new ListPage(files, nextPageToken);
+  }
+}
@@ -18,10 +18,13 @@ package com.logicblox.cloudstore;
 
 import junit.framework.Assert;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.PrintStream;
 import java.net.URI;
 import java.nio.file.Files;
 import java.util.List;
@@ -495,4 +498,61 @@ public class MultiKeyTests
     Assert.assertNull(msg);
   }
 
+  @Test
+  public void testKeyChangesKeepMultipartETag()
+    throws Throwable
+  {
+    // GCS objects do not have multipart ETags
+    Assume.assumeTrue(TestUtils.getService().equalsIgnoreCase("s3"));
+
+    File keydir = TestUtils.createTmpDir(true);
+    String[] keys = {"cloud-store-ut-1", "cloud-store-ut-2"};
+    for(String key : keys)
+      TestUtils.createEncryptionKey(keydir, key);
+    TestUtils.setKeyProvider(keydir);
+
+    // create a file of several parts and upload
+    File toUpload = TestUtils.createTextFile(2 * Utils.getDefaultChunkSize() + 100);
+    String rootPrefix = TestUtils.addPrefix("test-multikey-etag");
+    String objKey = rootPrefix + '/' + toUpload.getName();
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    StoreFile f = TestUtils.uploadEncryptedFile(toUpload, dest, keys[0]);
+    Assert.assertNotNull(f);
+    String etag = TestUtils.objectExists(_testBucket, objKey).getETag();
+    Assert.assertTrue(etag.contains("-"));
+
+    // the ETag must survive key changes, so downloads can still be validated
+    f = _client.addEncryptionKey(
+      TestUtils.buildEncryptionKeyOptions(_testBucket, objKey, keys[1])).get();
+    Assert.assertNotNull(f);
+    Assert.assertEquals(etag, TestUtils.objectExists(_testBucket, objKey).getETag());
+    assertValidatedDownload(dest, toUpload);
+
+    f = _client.removeEncryptionKey(
+      TestUtils.buildEncryptionKeyOptions(_testBucket, objKey, keys[0])).get();
+    Assert.assertNotNull(f);
+    Assert.assertEquals(etag, TestUtils.objectExists(_testBucket, objKey).getETag());
+    assertValidatedDownload(dest, toUpload);
+  }
+
+  private void assertValidatedDownload(URI src, File expected)
+    throws Throwable
+  {
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    PrintStream originalErr = System.err;
+    System.setErr(new PrintStream(err, true));
+    File dlTemp = TestUtils.createTmpFile();
+    try
+    {
+      StoreFile f = TestUtils.downloadFile(src, dlTemp);
+      Assert.assertTrue(TestUtils.compareFiles(expected, f.getLocalFile()));
+    }
+    finally
+    {
+      System.setErr(originalErr);
+      dlTemp.delete();
+    }
+    Assert.assertFalse(err.toString().contains("Skipped checksum validation"));
+  }
+
 }
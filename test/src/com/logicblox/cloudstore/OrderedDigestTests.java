@@ -0,0 +1,204 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+
+public class OrderedDigestTests
+{
+  private static final int PART_COUNT = 4;
+  private static final int PART_SIZE = 1000;
+
+  private byte[][] _parts;
+  private byte[] _expected;
+  private List<Integer> _readBack;
+
+
+  @Before
+  public void setUp()
+    throws Exception
+  {
+    Random random = new Random(7);
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    _parts = new byte[PART_COUNT][PART_SIZE];
+    for(byte[] part : _parts)
+    {
+      random.nextBytes(part);
+      md.update(part);
+    }
+    _expected = md.digest();
+    _readBack = new ArrayList<Integer>();
+  }
+
+
+  @Test
+  public void testPartsInOrderAreHashedInline()
+    throws Exception
+  {
+    OrderedDigest digest = newDigest(0);
+    for(int i = 0; i < PART_COUNT; i++)
+    {
+      write(digest, i);
+    }
+    assertDigest(digest);
+    Assert.assertTrue(_readBack.isEmpty());
+  }
+
+
+  @Test
+  public void testPartsOutOfOrderAreHeldBack()
+    throws Exception
+  {
+    OrderedDigest digest = newDigest(PART_COUNT * PART_SIZE);
+    for(int i = PART_COUNT - 1; i >= 0; i--)
+    {
+      write(digest, i);
+    }
+    assertDigest(digest);
+    Assert.assertTrue(_readBack.isEmpty());
+  }
+
+
+  @Test
+  public void testPartsBeyondBudgetAreReadBack()
+    throws Exception
+  {
+    // only one part fits in the budget, the others are read back
+    OrderedDigest digest = newDigest(PART_SIZE);
+    for(int i = PART_COUNT - 1; i >= 0; i--)
+    {
+      write(digest, i);
+    }
+    assertDigest(digest);
+    Assert.assertEquals(Arrays.asList(1, 2), _readBack);
+  }
+
+
+  @Test
+  public void testPartsNotOfferedAreReadBack()
+    throws Exception
+  {
+    OrderedDigest digest = newDigest(PART_COUNT * PART_SIZE);
+    digest.partCompleted(1);
+    write(digest, 2);
+    digest.partCompleted(3);
+    Assert.assertFalse(digest.getDigest().isDone());
+    write(digest, 0);
+    assertDigest(digest);
+    Assert.assertEquals(Arrays.asList(1, 3), _readBack);
+  }
+
+
+  @Test
+  public void testFailedAttemptsAreDiscarded()
+    throws Exception
+  {
+    OrderedDigest digest = newDigest(PART_SIZE);
+
+    // a failed inline attempt leaves no bytes in the digest
+    OrderedDigest.Part part = digest.startPart(0, PART_SIZE);
+    part.update(new byte[10], 0, 10);
+    part.failed();
+
+    // a failed held back attempt releases its budget for the retry
+    part = digest.startPart(2, PART_SIZE);
+    part.update(new byte[10], 0, 10);
+    part.failed();
+    write(digest, 2);
+
+    write(digest, 0);
+    write(digest, 1);
+    write(digest, 3);
+    assertDigest(digest);
+    Assert.assertTrue(_readBack.isEmpty());
+  }
+
+
+  @Test
+  public void testReadBackFailure()
+    throws Exception
+  {
+    final IOException failure = new IOException("cannot read part");
+    OrderedDigest digest = new OrderedDigest(MessageDigest.getInstance("MD5"), PART_COUNT, 0,
+      MoreExecutors.directExecutor())
+    {
+      protected void hashPart(int partNumber, MessageDigest md)
+        throws IOException
+      {
+        throw failure;
+      }
+    };
+    digest.partCompleted(1);
+    write(digest, 0);
+    try
+    {
+      digest.getDigest().get();
+      Assert.fail("expected the digest to fail");
+    }
+    catch(ExecutionException e)
+    {
+      Assert.assertSame(failure, e.getCause());
+    }
+  }
+
+
+  private OrderedDigest newDigest(long maxBufferedBytes)
+    throws Exception
+  {
+    return new OrderedDigest(MessageDigest.getInstance("MD5"), PART_COUNT, maxBufferedBytes,
+      MoreExecutors.directExecutor())
+    {
+      protected void hashPart(int partNumber, MessageDigest md)
+      {
+        _readBack.add(partNumber);
+        md.update(_parts[partNumber]);
+      }
+    };
+  }
+
+
+  private void write(OrderedDigest digest, int partNumber)
+  {
+    OrderedDigest.Part part = digest.startPart(partNumber, PART_SIZE);
+    // offer the bytes in a few pieces, as they are written
+    for(int offset = 0; offset < PART_SIZE; offset += 300)
+    {
+      part.update(_parts[partNumber], offset, Math.min(300, PART_SIZE - offset));
+    }
+    part.completed();
+  }
+
+
+  private void assertDigest(OrderedDigest digest)
+    throws Exception
+  {
+    Assert.assertTrue(digest.getDigest().isDone());
+    Assert.assertTrue(Arrays.equals(_expected, digest.getDigest().get()));
+  }
+}
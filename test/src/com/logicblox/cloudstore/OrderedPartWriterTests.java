@@ -0,0 +1,121 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+
+public class OrderedPartWriterTests
+{
+  @Test
+  public void testWritesPartsInOrder()
+    throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OrderedPartWriter writer = new OrderedPartWriter(out);
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    writer.setDigest(md);
+
+    ListenableFuture<Void> written0 = writer.written(0);
+    ListenableFuture<Void> written2 = writer.written(2);
+    writer.put(2, bytes("cc"));
+    writer.put(1, bytes("bb"));
+    Assert.assertEquals(0, out.size());
+    Assert.assertFalse(written2.isDone());
+
+    writer.put(0, bytes("aa"));
+    Assert.assertTrue(written0.isDone());
+    Assert.assertTrue(written2.isDone());
+    Assert.assertTrue(writer.written(1).isDone());
+    Assert.assertEquals("aabbcc", out.toString("UTF-8"));
+    Assert.assertTrue(Arrays.equals(MessageDigest.getInstance("MD5").digest(bytes("aabbcc")),
+      md.digest()));
+  }
+
+
+  @Test
+  public void testRedeliveredPart()
+    throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OrderedPartWriter writer = new OrderedPartWriter(out);
+
+    // a retried part replaces the earlier delivery until it is written, and is ignored after
+    writer.put(1, bytes("xx"));
+    writer.put(1, bytes("bb"));
+    writer.put(0, bytes("aa"));
+    writer.put(0, bytes("yy"));
+    writer.put(2, bytes("cc"));
+    Assert.assertEquals("aabbcc", out.toString("UTF-8"));
+  }
+
+
+  @Test
+  public void testWriteFailure()
+    throws Exception
+  {
+    final IOException failure = new IOException("disk full");
+    OutputStream out = new OutputStream()
+    {
+      public void write(int b)
+        throws IOException
+      {
+        throw failure;
+      }
+    };
+    OrderedPartWriter writer = new OrderedPartWriter(out);
+    ListenableFuture<Void> written1 = writer.written(1);
+    writer.put(1, bytes("bb"));
+    writer.put(0, bytes("aa"));
+
+    assertFails(failure, writer.written(0));
+    assertFails(failure, written1);
+    assertFails(failure, writer.written(2));
+  }
+
+
+  private static void assertFails(IOException expected, ListenableFuture<Void> f)
+    throws InterruptedException
+  {
+    Assert.assertTrue(f.isDone());
+    try
+    {
+      f.get();
+      Assert.fail("expected the write to fail");
+    }
+    catch(ExecutionException e)
+    {
+      Assert.assertSame(expected, e.getCause());
+    }
+  }
+
+
+  private static byte[] bytes(String s)
+    throws IOException
+  {
+    return s.getBytes("UTF-8");
+  }
+}
@@ -0,0 +1,241 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class ParallelFileWalkerTests
+{
+  private Path _root;
+  private List<Path> _visited = Collections.synchronizedList(new ArrayList<Path>());
+
+
+  @Before
+  public void setUp()
+    throws IOException
+  {
+    _root = Files.createTempDirectory("walker");
+  }
+
+
+  @After
+  public void tearDown()
+    throws IOException
+  {
+    // make the unreadable directory deletable again
+    File locked = _root.resolve("locked").toFile();
+    locked.setReadable(true);
+    locked.setExecutable(true);
+    TestUtils.destroyDir(_root.toFile());
+  }
+
+
+  @Test
+  public void testVisitsEveryRegularFileOnce()
+    throws Exception
+  {
+    Set<Path> expected = new HashSet<Path>();
+    for(int i = 0; i < 5; i++)
+    {
+      Path dir = Files.createDirectories(_root.resolve("d" + i).resolve("sub"));
+      expected.add(createFile(_root.resolve("d" + i).resolve("f")));
+      for(int j = 0; j < 20; j++)
+      {
+        expected.add(createFile(dir.resolve("f" + j)));
+      }
+    }
+    expected.add(createFile(_root.resolve("top")));
+    Files.createDirectories(_root.resolve("empty"));
+
+    walk(4, null);
+    Assert.assertEquals(expected.size(), _visited.size());
+    Assert.assertEquals(expected, new HashSet<Path>(_visited));
+  }
+
+
+  @Test
+  public void testSymbolicLinksAreNotFollowed()
+    throws Exception
+  {
+    Path dir = Files.createDirectories(_root.resolve("dir"));
+    Path file = createFile(dir.resolve("f"));
+    Path outside = Files.createTempDirectory("walker-outside");
+    try
+    {
+      createFile(outside.resolve("g"));
+      try
+      {
+        Files.createSymbolicLink(_root.resolve("file-link"), file);
+        Files.createSymbolicLink(_root.resolve("dir-link"), outside);
+        // a link back up the tree would make a walk that follows links loop forever
+        Files.createSymbolicLink(dir.resolve("loop"), _root);
+      }
+      catch(UnsupportedOperationException e)
+      {
+        Assume.assumeTrue(false);
+      }
+
+      walk(2, null);
+      Assert.assertEquals(Collections.singletonList(file), _visited);
+    }
+    finally
+    {
+      TestUtils.destroyDir(outside.toFile());
+    }
+  }
+
+
+  @Test
+  public void testParallelismBoundsConcurrentVisits()
+    throws Exception
+  {
+    for(int i = 0; i < 16; i++)
+    {
+      Path dir = Files.createDirectories(_root.resolve("d" + i));
+      for(int j = 0; j < 4; j++)
+      {
+        createFile(dir.resolve("f" + j));
+      }
+    }
+
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger maxActive = new AtomicInteger();
+    walk(3, new ParallelFileWalker.Visitor()
+    {
+      public void visitFile(Path file, BasicFileAttributes attrs)
+        throws Exception
+      {
+        int n = active.incrementAndGet();
+        synchronized(maxActive)
+        {
+          maxActive.set(Math.max(maxActive.get(), n));
+        }
+        Thread.sleep(5);
+        active.decrementAndGet();
+      }
+    });
+    Assert.assertEquals(64, _visited.size());
+    Assert.assertTrue("max active " + maxActive.get(), maxActive.get() <= 3);
+    Assert.assertTrue("max active " + maxActive.get(), maxActive.get() > 1);
+  }
+
+
+  @Test
+  public void testSkipsUnreadableDirectory()
+    throws Exception
+  {
+    Path readable = createFile(_root.resolve("a"));
+    Path locked = Files.createDirectories(_root.resolve("locked"));
+    createFile(locked.resolve("hidden"));
+    Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("---------"));
+    // permissions do not keep root out
+    Assume.assumeFalse(Files.isReadable(locked));
+
+    walk(2, null);
+    Assert.assertEquals(Collections.singletonList(readable), _visited);
+  }
+
+
+  @Test
+  public void testSkipsMissingDirectory()
+    throws Exception
+  {
+    walk(2, null, _root.resolve("missing"));
+    Assert.assertTrue(_visited.isEmpty());
+  }
+
+
+  @Test
+  public void testVisitorFailureFailsWalk()
+    throws Exception
+  {
+    for(int i = 0; i < 10; i++)
+    {
+      createFile(_root.resolve("f" + i));
+    }
+    try
+    {
+      walk(2, new ParallelFileWalker.Visitor()
+      {
+        public void visitFile(Path file, BasicFileAttributes attrs)
+          throws Exception
+        {
+          throw new IOException("visit failed");
+        }
+      });
+      Assert.fail("expected exception");
+    }
+    catch(ExecutionException e)
+    {
+      Assert.assertTrue(e.getCause() instanceof IOException);
+      Assert.assertEquals("visit failed", e.getCause().getMessage());
+    }
+  }
+
+
+  private void walk(int parallelism, ParallelFileWalker.Visitor visitor)
+    throws Exception
+  {
+    walk(parallelism, visitor, _root);
+  }
+
+
+  private void walk(int parallelism, final ParallelFileWalker.Visitor visitor, Path root)
+    throws Exception
+  {
+    new ParallelFileWalker(parallelism).walk(root, new ParallelFileWalker.Visitor()
+    {
+      public void visitFile(Path file, BasicFileAttributes attrs)
+        throws Exception
+      {
+        Assert.assertTrue(attrs.isRegularFile());
+        if(visitor != null)
+        {
+          visitor.visitFile(file, attrs);
+        }
+        _visited.add(file);
+      }
+    }).get(30, TimeUnit.SECONDS);
+  }
+
+
+  private static Path createFile(Path path)
+    throws IOException
+  {
+    return Files.write(path, path.getFileName().toString().getBytes("UTF-8"));
+  }
+}
@@ -0,0 +1,117 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.io.ByteStreams;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class PartCodecsTests
+{
+  private static final int[] BLOCK_SIZES = {0, 1, 1000, 200000};
+
+
+  @Test
+  public void testRoundTrip()
+    throws IOException
+  {
+    Random random = new Random(11);
+    for(PartCodec codec : new PartCodec[]{PartCodecs.DEFLATE, PartCodecs.GZIP})
+    {
+      for(int size : BLOCK_SIZES)
+      {
+        byte[] block = new byte[size];
+        for(int i = 0; i < size; i++)
+        {
+          // compressible, but not trivially so
+          block[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256) : 'a' + i % 7);
+        }
+        byte[] compressed = compress(codec, block);
+        if(size > 1000)
+        {
+          Assert.assertTrue(codec.getName(), compressed.length < size);
+        }
+        // retried uploads compress the block again and have to yield the same bytes
+        Assert.assertTrue(codec.getName(), Arrays.equals(compressed, compress(codec, block)));
+
+        byte[] decompressed;
+        try(InputStream in = codec.newDecompressingStream(new ByteArrayInputStream(compressed)))
+        {
+          decompressed = ByteStreams.toByteArray(in);
+        }
+        Assert.assertTrue(codec.getName() + " " + size, Arrays.equals(block, decompressed));
+      }
+    }
+  }
+
+
+  @Test
+  public void testRegistry()
+  {
+    Assert.assertSame(PartCodecs.DEFLATE, PartCodecs.get("deflate"));
+    Assert.assertSame(PartCodecs.GZIP, PartCodecs.get("gzip"));
+    try
+    {
+      PartCodecs.get("lzma");
+      Assert.fail("expected an unknown codec to be rejected");
+    }
+    catch(UsageException expected)
+    {
+    }
+
+    PartCodec identity = new PartCodec()
+    {
+      public String getName()
+      {
+        return "identity-test";
+      }
+
+      public OutputStream newCompressingStream(OutputStream out)
+      {
+        return out;
+      }
+
+      public InputStream newDecompressingStream(InputStream in)
+      {
+        return in;
+      }
+    };
+    PartCodecs.register(identity);
+    Assert.assertSame(identity, PartCodecs.get("identity-test"));
+  }
+
+
+  private static byte[] compress(PartCodec codec, byte[] block)
+    throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try(OutputStream compressing = codec.newCompressingStream(out))
+    {
+      compressing.write(block);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,244 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+
+public class PartSchedulerTests
+{
+  private List<Integer> _started = new ArrayList<Integer>();
+  private List<SettableFuture<Void>> _parts = new ArrayList<SettableFuture<Void>>();
+
+
+  @Test
+  public void testStartsPartsInOrderWithinWindow()
+    throws Exception
+  {
+    PartScheduler scheduler = new PartScheduler(2, Long.MAX_VALUE);
+    for(int i = 0; i < 5; i++)
+    {
+      scheduler.addPart(10, newPart(i));
+    }
+    ListenableFuture<Void> result = scheduler.start();
+    Assert.assertEquals(Arrays.asList(0, 1), _started);
+
+    _parts.get(1).set(null);
+    Assert.assertEquals(Arrays.asList(0, 1, 2), _started);
+    _parts.get(0).set(null);
+    Assert.assertEquals(Arrays.asList(0, 1, 2, 3), _started);
+    _parts.get(2).set(null);
+    _parts.get(3).set(null);
+    Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4), _started);
+    Assert.assertFalse(result.isDone());
+
+    _parts.get(4).set(null);
+    Assert.assertTrue(result.isDone());
+    result.get();
+  }
+
+
+  @Test
+  public void testBytesInFlightLimit()
+    throws Exception
+  {
+    PartScheduler scheduler = new PartScheduler(10, 100);
+    scheduler.addPart(60, newPart(0));
+    scheduler.addPart(40, newPart(1));
+    scheduler.addPart(60, newPart(2));
+    scheduler.addPart(200, newPart(3));
+    scheduler.start();
+    Assert.assertEquals(Arrays.asList(0, 1), _started);
+
+    _parts.get(0).set(null);
+    Assert.assertEquals(Arrays.asList(0, 1, 2), _started);
+
+    // a part larger than the limit only starts once nothing else is in flight
+    _parts.get(1).set(null);
+    Assert.assertEquals(Arrays.asList(0, 1, 2), _started);
+    _parts.get(2).set(null);
+    Assert.assertEquals(Arrays.asList(0, 1, 2, 3), _started);
+  }
+
+
+  @Test
+  public void testLargestFirst()
+    throws Exception
+  {
+    PartScheduler scheduler = new PartScheduler(1, Long.MAX_VALUE, true);
+    scheduler.addPart(10, newPart(0));
+    scheduler.addPart(30, newPart(1));
+    scheduler.addPart(20, newPart(2));
+    scheduler.addPart(30, newPart(3));
+    ListenableFuture<Void> result = scheduler.start();
+    for(int i = 0; i < 4; i++)
+    {
+      _parts.get(_started.get(i)).set(null);
+    }
+    Assert.assertEquals(Arrays.asList(1, 3, 2, 0), _started);
+    result.get();
+  }
+
+
+  @Test
+  public void testFailureCancelsPartsInFlight()
+    throws Exception
+  {
+    PartScheduler scheduler = new PartScheduler(2, Long.MAX_VALUE);
+    for(int i = 0; i < 4; i++)
+    {
+      scheduler.addPart(10, newPart(i));
+    }
+    ListenableFuture<Void> result = scheduler.start();
+    IOException failure = new IOException("part failed");
+    _parts.get(0).setException(failure);
+
+    Assert.assertTrue(_parts.get(1).isCancelled());
+    Assert.assertEquals(Arrays.asList(0, 1), _started);
+    try
+    {
+      result.get();
+      Assert.fail("expected the failure of the part");
+    }
+    catch(ExecutionException e)
+    {
+      Assert.assertSame(failure, e.getCause());
+    }
+  }
+
+
+  @Test
+  public void testFailureToStartPart()
+    throws Exception
+  {
+    PartScheduler scheduler = new PartScheduler(1, Long.MAX_VALUE);
+    final IOException failure = new IOException("cannot start");
+    scheduler.addPart(10, new Callable<ListenableFuture<Void>>()
+    {
+      public ListenableFuture<Void> call()
+        throws IOException
+      {
+        throw failure;
+      }
+    });
+    scheduler.addPart(10, newPart(1));
+    ListenableFuture<Void> result = scheduler.start();
+    Assert.assertTrue(_started.isEmpty());
+    try
+    {
+      result.get();
+      Assert.fail("expected the failure of the part");
+    }
+    catch(ExecutionException e)
+    {
+      Assert.assertSame(failure, e.getCause());
+    }
+  }
+
+
+  @Test
+  public void testCancelStopsScheduler()
+    throws Exception
+  {
+    PartScheduler scheduler = new PartScheduler(2, Long.MAX_VALUE);
+    for(int i = 0; i < 4; i++)
+    {
+      scheduler.addPart(10, newPart(i));
+    }
+    ListenableFuture<Void> result = scheduler.start();
+    result.cancel(false);
+
+    Assert.assertTrue(_parts.get(0).isCancelled());
+    Assert.assertTrue(_parts.get(1).isCancelled());
+    Assert.assertEquals(Arrays.asList(0, 1), _started);
+  }
+
+
+  @Test
+  public void testOpenSchedulerWaitsForClose()
+    throws Exception
+  {
+    PartScheduler scheduler = new PartScheduler(1, Long.MAX_VALUE);
+    ListenableFuture<Void> result = scheduler.open();
+    Assert.assertTrue(scheduler.awaitCapacity(1).isDone());
+
+    scheduler.addPart(10, newPart(0));
+    scheduler.addPart(10, newPart(1));
+    Assert.assertEquals(Arrays.asList(0), _started);
+    ListenableFuture<Void> capacity = scheduler.awaitCapacity(1);
+    Assert.assertFalse(capacity.isDone());
+
+    _parts.get(0).set(null);
+    Assert.assertTrue(capacity.isDone());
+    Assert.assertEquals(Arrays.asList(0, 1), _started);
+
+    _parts.get(1).set(null);
+    Assert.assertFalse(result.isDone());
+    scheduler.close();
+    Assert.assertTrue(result.isDone());
+    result.get();
+  }
+
+
+  @Test
+  public void testManySynchronousParts()
+    throws Exception
+  {
+    // parts that complete while they are started must not grow the stack
+    PartScheduler scheduler = new PartScheduler(4, Long.MAX_VALUE);
+    final int[] count = new int[1];
+    for(int i = 0; i < 100000; i++)
+    {
+      scheduler.addPart(1, new Callable<ListenableFuture<Void>>()
+      {
+        public ListenableFuture<Void> call()
+        {
+          count[0]++;
+          return Futures.immediateFuture(null);
+        }
+      });
+    }
+    scheduler.start().get();
+    Assert.assertEquals(100000, count[0]);
+  }
+
+
+  private Callable<ListenableFuture<Void>> newPart(final int partNumber)
+  {
+    final SettableFuture<Void> part = SettableFuture.create();
+    _parts.add(part);
+    return new Callable<ListenableFuture<Void>>()
+    {
+      public ListenableFuture<Void> call()
+      {
+        _started.add(partNumber);
+        return part;
+      }
+    };
+  }
+}
@@ -1645,9 +1645,7 @@ public class RenameTests
     // verify metadata
     Metadata destMeta = TestUtils.objectExists(Utils.getBucketName(dest), Utils.getObjectKey(dest));
     Assert.assertNotNull(destMeta);
-    Cipher cipherAES = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    long blockSize = cipherAES.getBlockSize();
-    long partSize = blockSize * (fileSize / blockSize + 2);
+    long partSize = EncryptedPartFormat.getStoredPartSize(Version.CURRENT, fileSize);
     Assert.assertEquals(destMeta.getContentLength(), partSize);
 
     // verify user metadata
@@ -0,0 +1,139 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.io.ByteStreams;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+
+public class ReopenableInputStreamTests
+{
+  private byte[] _data;
+  private int _opened;
+
+
+  @Before
+  public void setUp()
+  {
+    // larger than the buffer used to skip to the mark
+    _data = new byte[200 * 1024 + 13];
+    new Random(21).nextBytes(_data);
+    _opened = 0;
+  }
+
+
+  @Test
+  public void testResetToStartAfterPartialRead()
+    throws Exception
+  {
+    ReopenableInputStream in = new ReopenableInputStream(opener(_data));
+    in.mark(0);
+    byte[] partial = new byte[1000];
+    ByteStreams.readFully(in, partial);
+    in.reset();
+    Assert.assertTrue(Arrays.equals(_data, ByteStreams.toByteArray(in)));
+    Assert.assertEquals(2, _opened);
+    in.close();
+  }
+
+
+  @Test
+  public void testResetToMark()
+    throws Exception
+  {
+    ReopenableInputStream in = new ReopenableInputStream(opener(_data));
+    int mark = 150 * 1024 + 7;
+    ByteStreams.readFully(in, new byte[mark - 1]);
+    Assert.assertEquals(_data[mark - 1] & 0xff, in.read());
+    in.mark(1);
+
+    // the read limit does not matter
+    ByteStreams.readFully(in, new byte[20000]);
+    in.reset();
+    byte[] rest = ByteStreams.toByteArray(in);
+    Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(_data, mark, _data.length), rest));
+
+    // the mark is kept, so the stream can be reset again
+    in.reset();
+    Assert.assertTrue(Arrays.equals(rest, ByteStreams.toByteArray(in)));
+    Assert.assertEquals(3, _opened);
+    in.close();
+  }
+
+
+  @Test
+  public void testResetAtMarkDoesNotReopen()
+    throws Exception
+  {
+    ReopenableInputStream in = new ReopenableInputStream(opener(_data));
+    Assert.assertTrue(in.markSupported());
+    Assert.assertEquals(100, in.skip(100));
+    in.mark(0);
+    in.reset();
+    Assert.assertEquals(1, _opened);
+    Assert.assertEquals(_data[100] & 0xff, in.read());
+    in.close();
+  }
+
+
+  @Test
+  public void testShorterReopenedStreamFails()
+    throws Exception
+  {
+    final byte[] shorter = Arrays.copyOf(_data, 10);
+    ReopenableInputStream in = new ReopenableInputStream(new Callable<InputStream>()
+    {
+      public InputStream call()
+      {
+        return new ByteArrayInputStream(_opened++ == 0 ? _data : shorter);
+      }
+    });
+    ByteStreams.readFully(in, new byte[100]);
+    in.mark(0);
+    in.read();
+    try
+    {
+      in.reset();
+      Assert.fail("expected exception");
+    }
+    catch(IOException expected)
+    {
+    }
+  }
+
+
+  private Callable<InputStream> opener(final byte[] data)
+  {
+    return new Callable<InputStream>()
+    {
+      public InputStream call()
+      {
+        _opened++;
+        return new ByteArrayInputStream(data);
+      }
+    };
+  }
+}
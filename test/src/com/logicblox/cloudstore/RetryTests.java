@@ -0,0 +1,183 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class RetryTests
+{
+  private ListeningScheduledExecutorService _executor = null;
+
+
+  @Before
+  public void setUp()
+  {
+    _executor = MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(1));
+  }
+
+
+  @After
+  public void tearDown()
+  {
+    _executor.shutdownNow();
+    _executor = null;
+  }
+
+
+  @Test
+  public void testConcurrentRetriesDoNotHoldThreads()
+    throws Throwable
+  {
+    // every task fails twice before it succeeds. if the backoff held a thread, the single
+    // thread of the executor would wait for all delays one after the other (40s in total).
+    int taskCount = 100;
+    long delay = 200;
+    List<ListenableFuture<Integer>> futures = new ArrayList<ListenableFuture<Integer>>();
+    long start = System.currentTimeMillis();
+    for(int i = 0; i < taskCount; i++)
+    {
+      futures.add(new ThrowableRetriableTask<Integer>(new FailingTask(i, 2), _executor,
+        new FixedDelayRetryPolicy(delay, 5)).call());
+    }
+
+    for(int i = 0; i < taskCount; i++)
+    {
+      Assert.assertEquals(i, (int) futures.get(i).get(10, TimeUnit.SECONDS));
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    Assert.assertTrue("retries took " + elapsed + "ms", elapsed < 5 * 2 * delay);
+  }
+
+
+  @Test
+  public void testGiveUp()
+    throws Throwable
+  {
+    FailingTask task = new FailingTask(0, 10);
+    ListenableFuture<Integer> future = new ThrowableRetriableTask<Integer>(task, _executor,
+      new FixedDelayRetryPolicy(10, 3)).call();
+    try
+    {
+      future.get(10, TimeUnit.SECONDS);
+      Assert.fail("expected exception");
+    }
+    catch(ExecutionException ex)
+    {
+      Assert.assertEquals("attempt 3 failed", ex.getCause().getMessage());
+    }
+    Assert.assertEquals(3, task.getAttempts());
+  }
+
+
+  @Test
+  public void testCancelStopsRetries()
+    throws Throwable
+  {
+    FailingTask task = new FailingTask(0, 10);
+    ListenableFuture<Integer> future = new ThrowableRetriableTask<Integer>(task, _executor,
+      new FixedDelayRetryPolicy(500, 10)).call();
+    Thread.sleep(100);
+    future.cancel(true);
+    Thread.sleep(1000);
+    Assert.assertEquals(1, task.getAttempts());
+  }
+
+
+  private class FailingTask
+    implements Callable<ListenableFuture<Integer>>
+  {
+    private final int _result;
+    private final int _failures;
+    private final AtomicInteger _attempts = new AtomicInteger();
+
+    FailingTask(int result, int failures)
+    {
+      _result = result;
+      _failures = failures;
+    }
+
+    int getAttempts()
+    {
+      return _attempts.get();
+    }
+
+    @Override
+    public ListenableFuture<Integer> call()
+    {
+      return _executor.submit(new Callable<Integer>()
+      {
+        public Integer call()
+          throws Exception
+        {
+          int attempt = _attempts.incrementAndGet();
+          if(attempt <= _failures)
+          {
+            throw new Exception("attempt " + attempt + " failed");
+          }
+          return _result;
+        }
+      });
+    }
+
+    @Override
+    public String toString()
+    {
+      return "failing task " + _result;
+    }
+  }
+
+
+  private static class FixedDelayRetryPolicy
+    implements ThrowableRetryPolicy
+  {
+    private final long _delay;
+    private final int _maxRetryCount;
+
+    FixedDelayRetryPolicy(long delay, int maxRetryCount)
+    {
+      _delay = delay;
+      _maxRetryCount = maxRetryCount;
+    }
+
+    @Override
+    public long getDelay(Throwable thrown, int retryCount)
+    {
+      return _delay;
+    }
+
+    @Override
+    public boolean shouldRetry(Throwable thrown, int retryCount)
+    {
+      return retryCount < _maxRetryCount;
+    }
+  }
+}
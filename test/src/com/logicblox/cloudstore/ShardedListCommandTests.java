@@ -0,0 +1,319 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+public class ShardedListCommandTests
+{
+  private static final int PAGE_SIZE = 3;
+
+  /**
+   * Orders keys by their UTF-8 bytes, like the services do.
+   */
+  private static final Comparator<String> UTF8_ORDER = new Comparator<String>()
+  {
+    public int compare(String a, String b)
+    {
+      byte[] x = utf8(a);
+      byte[] y = utf8(b);
+      for(int i = 0; i < Math.min(x.length, y.length); i++)
+      {
+        if(x[i] != y[i])
+        {
+          return (x[i] & 0xff) - (y[i] & 0xff);
+        }
+      }
+      return x.length - y.length;
+    }
+  };
+
+  private ListeningScheduledExecutorService _executor;
+  private CloudStoreClient _client;
+  private List<String> _keys;
+  private List<String> _ranges;
+
+
+  @Before
+  public void setUp()
+  {
+    _executor = MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(4));
+    _client = (CloudStoreClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+      new Class<?>[]{CloudStoreClient.class}, new InvocationHandler()
+      {
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+          if(method.getName().equals("getApiExecutor") ||
+            method.getName().equals("getInternalExecutor"))
+          {
+            return _executor;
+          }
+          if(method.getName().equals("getScheme"))
+          {
+            return "s3";
+          }
+          throw new UnsupportedOperationException(method.getName());
+        }
+      });
+    _keys = new ArrayList<String>();
+    _ranges = Collections.synchronizedList(new ArrayList<String>());
+  }
+
+
+  @After
+  public void tearDown()
+  {
+    _executor.shutdownNow();
+  }
+
+
+  @Test
+  public void testCompareKeys()
+  {
+    String[] keys = {"", "a", "a/", "a/b", "ab", "z", "\u00E9", "\u65E5\u672C", "\uE000",
+      "\uFFFD", "\uD83D\uDE00", "\uD83D\uDE00a", "\uD83D\uDE01"};
+    for(String a : keys)
+    {
+      for(String b : keys)
+      {
+        Assert.assertEquals(a + " vs " + b, Integer.signum(UTF8_ORDER.compare(a, b)),
+          Integer.signum(ShardedListCommand.compareKeys(a, b)));
+      }
+    }
+  }
+
+
+  @Test
+  public void testKeyRangesCoverAllKeysOnce()
+    throws Exception
+  {
+    for(char c : ShardedListCommand.KEY_RANGE_ALPHABET.toCharArray())
+    {
+      _keys.add("dir/" + c + "1");
+      _keys.add("dir/" + c + "2/x");
+    }
+    _keys.add("dir/");
+    _keys.add("dir/!");
+    _keys.add("dir/~");
+    _keys.add("other/a");
+
+    for(int shards : new int[]{2, 3, 7, 16, ShardedListCommand.KEY_RANGE_ALPHABET.length()})
+    {
+      _ranges.clear();
+      List<String> listed = list(0, shards, true);
+      Assert.assertEquals(sortedKeys("dir/"), listed);
+      // the first page, plus at least one listing for each of the ranges after it
+      Assert.assertTrue(_ranges.size() > Math.min(shards, 2));
+    }
+  }
+
+
+  @Test
+  public void testKeyRangesWithMultiByteKeys()
+    throws Exception
+  {
+    _keys.addAll(Arrays.asList("dir/a", "dir/b", "dir/c", "dir/Z\u00E9", "dir/z", "dir/z\u00E9",
+      "dir/\u00E9", "dir/\u00E9/x", "dir/\u65E5\u672C", "dir/\uE000", "dir/\uFFFD",
+      "dir/\uD83D\uDE00", "dir/\uD83D\uDE00/x", "dir/0\uD83D\uDE00", "dir/9"));
+
+    for(int shards : new int[]{1, 2, 5, ShardedListCommand.KEY_RANGE_ALPHABET.length()})
+    {
+      Assert.assertEquals(sortedKeys("dir/"), list(0, shards, true));
+      List<String> unordered = list(0, shards, false);
+      Assert.assertEquals(sortedKeys("dir/").size(), unordered.size());
+      Assert.assertEquals(new HashSet<String>(sortedKeys("dir/")), new HashSet<String>(unordered));
+    }
+  }
+
+
+  @Test
+  public void testDiscoveredDirectoriesInKeyOrder()
+    throws Exception
+  {
+    // U+E000 sorts before U+1F600 in UTF-8, but after it in UTF-16
+    _keys.addAll(Arrays.asList("dir/a", "dir/\uE000", "dir/\uE000x/1", "dir/\uE000x/2",
+      "dir/\uD83D\uDE00", "dir/\uD83D\uDE00/1", "dir/\uD83D\uDE00/2", "dir/\uD83D\uDE00/3",
+      "dir/\uD83D\uDE00/4", "dir/b/1", "dir/b/2"));
+
+    for(int shards : new int[]{1, 3})
+    {
+      Assert.assertEquals(sortedKeys("dir/"), list(1, shards, true));
+      Assert.assertEquals(sortedKeys("dir/"), list(2, shards, true));
+    }
+  }
+
+
+  private List<String> list(int shardDepth, int keyRangeShards, boolean lexicalOrder)
+    throws Exception
+  {
+    ListOptions options = new OptionsBuilderFactory(_client).newListOptionsBuilder()
+      .setBucketName("bucket")
+      .setObjectKey("dir/")
+      .setRecursive(true)
+      .setShardDepth(shardDepth)
+      .setKeyRangeShards(keyRangeShards)
+      .setLexicalOrder(lexicalOrder)
+      .createOptions();
+    List<String> keys = new ArrayList<String>();
+    for(StoreFile f : new MemShardedListCommand(options).run().get(30, TimeUnit.SECONDS))
+    {
+      keys.add(f.getObjectKey());
+    }
+    return keys;
+  }
+
+
+  private List<String> sortedKeys(String prefix)
+  {
+    List<String> keys = new ArrayList<String>();
+    for(String key : _keys)
+    {
+      if(key.startsWith(prefix))
+      {
+        keys.add(key);
+      }
+    }
+    Collections.sort(keys, UTF8_ORDER);
+    return keys;
+  }
+
+
+  private static byte[] utf8(String s)
+  {
+    try
+    {
+      return s.getBytes("UTF-8");
+    }
+    catch(UnsupportedEncodingException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+
+  private static StoreFile storeFile(String key)
+  {
+    StoreFile f = new StoreFile();
+    f.setBucketName("bucket");
+    f.setObjectKey(key);
+    return f;
+  }
+
+
+  /**
+   * Lists {@link #_keys} in pages of {@link #PAGE_SIZE} entries, in UTF-8 order. Page tokens are
+   * the index of the first entry of the page.
+   */
+  private class MemShardedListCommand
+    extends ShardedListCommand
+  {
+    MemShardedListCommand(ListOptions options)
+    {
+      super(options);
+      setRetryCount(0);
+    }
+
+    @Override
+    protected ShardPage listLevel(String prefix, String pageToken)
+    {
+      Set<String> prefixes = new HashSet<String>();
+      List<String> entries = new ArrayList<String>();
+      for(String key : sortedKeys(prefix))
+      {
+        int slash = key.indexOf('/', prefix.length());
+        if(slash < 0)
+        {
+          entries.add(key);
+        }
+        else if(prefixes.add(key.substring(0, slash + 1)))
+        {
+          entries.add(key.substring(0, slash + 1));
+        }
+      }
+      Collections.sort(entries, UTF8_ORDER);
+
+      int start = pageToken == null ? 0 : Integer.parseInt(pageToken);
+      int end = Math.min(start + PAGE_SIZE, entries.size());
+      List<StoreFile> objects = new ArrayList<StoreFile>();
+      List<String> dirs = new ArrayList<String>();
+      for(String entry : entries.subList(start, end))
+      {
+        if(prefixes.contains(entry))
+        {
+          dirs.add(entry);
+        }
+        else
+        {
+          objects.add(storeFile(entry));
+        }
+      }
+      return new ShardPage(objects, dirs, end < entries.size() ? Integer.toString(end) : null);
+    }
+
+    @Override
+    protected ShardPage listRange(String prefix, String startAfter, String pageToken)
+    {
+      if(pageToken == null)
+      {
+        _ranges.add(prefix + " after " + startAfter);
+      }
+      List<String> keys = new ArrayList<String>();
+      for(String key : sortedKeys(prefix))
+      {
+        if(startAfter == null || UTF8_ORDER.compare(key, startAfter) > 0)
+        {
+          keys.add(key);
+        }
+      }
+
+      int start = pageToken == null ? 0 : Integer.parseInt(pageToken);
+      int end = Math.min(start + PAGE_SIZE, keys.size());
+      List<StoreFile> objects = new ArrayList<StoreFile>();
+      for(String key : keys.subList(start, end))
+      {
+        objects.add(storeFile(key));
+      }
+      return new ShardPage(objects, null, end < keys.size() ? Integer.toString(end) : null);
+    }
+
+    @Override
+    protected boolean supportsKeyRanges()
+    {
+      return true;
+    }
+  }
+}
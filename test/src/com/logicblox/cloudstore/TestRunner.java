@@ -31,7 +31,26 @@ import org.junit.runners.Suite;
                       CopyTests.class,
                       DeleteTests.class,
                       RenameTests.class,
-                      MultiKeyTests.class})
+                      MultiKeyTests.class,
+                      RetryTests.class,
+                      AdaptiveApiExecutorTests.class,
+                      EncryptedPartFormatTests.class,
+                      FilePartInputStreamTests.class,
+                      BulkCipherInputStreamTests.class,
+                      Crc32cTests.class,
+                      PartSchedulerTests.class,
+                      TransferJournalTests.class,
+                      OrderedPartWriterTests.class,
+                      OrderedDigestTests.class,
+                      ListPageIteratorTests.class,
+                      CompressedPartLayoutTests.class,
+                      PartCodecsTests.class,
+                      CachingKeyProviderTests.class,
+                      HedgedInputStreamTests.class,
+                      ParallelFileWalkerTests.class,
+                      ShardedListCommandTests.class,
+                      ReopenableInputStreamTests.class,
+                      HashingInputStreamTests.class})
 public class TestRunner
 {
   public static void main(String[] args)
@@ -0,0 +1,259 @@
+/*
+  Copyright 2021, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+
+public class TransferJournalTests
+{
+  private File _dir = null;
+  private File _file = null;
+
+
+  @Before
+  public void setUp()
+    throws IOException
+  {
+    _dir = Files.createTempDirectory("journal-tests").toFile();
+    _file = new File(new File(_dir, "journals"), "test.upload");
+  }
+
+
+  @After
+  public void tearDown()
+    throws IOException
+  {
+    FileUtils.deleteDirectory(_dir);
+  }
+
+
+  @Test
+  public void testRoundTrip()
+    throws Exception
+  {
+    TransferJournal journal = new TransferJournal(_file);
+    Assert.assertFalse(journal.load());
+    journal.create(header());
+    journal.recordPart(2, "etag-2");
+    journal.recordPart(0, "etag-0");
+    journal.close();
+
+    TransferJournal loaded = new TransferJournal(_file);
+    Assert.assertTrue(loaded.load());
+    Assert.assertTrue(loaded.matches(header()));
+    Assert.assertEquals("s3://bucket/key", loaded.get("uri"));
+    SortedMap<Integer, String> parts = loaded.getParts();
+    Assert.assertEquals(2, parts.size());
+    Assert.assertEquals("etag-0", parts.get(0));
+    Assert.assertEquals("etag-2", parts.get(2));
+
+    Map<String, String> other = header();
+    other.put("length", "43");
+    Assert.assertFalse(loaded.matches(other));
+  }
+
+
+  @Test
+  public void testResumeAppendsParts()
+    throws Exception
+  {
+    TransferJournal journal = new TransferJournal(_file);
+    journal.create(header());
+    journal.recordPart(0, "a");
+    journal.close();
+
+    journal = new TransferJournal(_file);
+    Assert.assertTrue(journal.load());
+    journal.resume();
+    journal.recordPart(1, "b");
+    journal.close();
+
+    journal = new TransferJournal(_file);
+    Assert.assertTrue(journal.load());
+    Assert.assertEquals(2, journal.getParts().size());
+    Assert.assertEquals("b", journal.getParts().get(1));
+  }
+
+
+  @Test
+  public void testIgnoresPartiallyWrittenEntry()
+    throws Exception
+  {
+    TransferJournal journal = new TransferJournal(_file);
+    journal.create(header());
+    journal.recordPart(0, "a");
+    journal.close();
+    append("part.1=trunc");
+
+    journal = new TransferJournal(_file);
+    Assert.assertTrue(journal.load());
+    Assert.assertEquals(1, journal.getParts().size());
+
+    // resuming drops the partial entry, so the next entry starts on its own line
+    journal.resume();
+    journal.recordPart(2, "c");
+    journal.close();
+
+    journal = new TransferJournal(_file);
+    Assert.assertTrue(journal.load());
+    Assert.assertEquals(2, journal.getParts().size());
+    Assert.assertEquals("a", journal.getParts().get(0));
+    Assert.assertEquals("c", journal.getParts().get(2));
+  }
+
+
+  @Test
+  public void testRejectsUnknownVersion()
+    throws Exception
+  {
+    _file.getParentFile().mkdirs();
+    FileUtils.writeStringToFile(_file, "journal-version=0\nuri=s3://bucket/key\n", "UTF-8");
+    Assert.assertFalse(new TransferJournal(_file).load());
+  }
+
+
+  @Test
+  public void testRejectsInvalidPartNumber()
+    throws Exception
+  {
+    TransferJournal journal = new TransferJournal(_file);
+    journal.create(header());
+    journal.close();
+    append("part.x=a\n");
+    Assert.assertFalse(new TransferJournal(_file).load());
+  }
+
+
+  @Test
+  public void testRejectsInvalidPartState()
+    throws Exception
+  {
+    TransferJournal journal = new TransferJournal(_file);
+    journal.create(header());
+    try
+    {
+      journal.recordPart(0, "a\nuri=other");
+      Assert.fail("expected an invalid part state to be rejected");
+    }
+    catch(IllegalArgumentException expected)
+    {
+    }
+    finally
+    {
+      journal.close();
+    }
+  }
+
+
+  @Test
+  public void testCreateReplacesJournal()
+    throws Exception
+  {
+    TransferJournal journal = new TransferJournal(_file);
+    journal.create(header());
+    journal.recordPart(0, "a");
+    journal.create(header());
+    journal.close();
+
+    journal = new TransferJournal(_file);
+    Assert.assertTrue(journal.load());
+    Assert.assertTrue(journal.getParts().isEmpty());
+
+    journal.delete();
+    Assert.assertFalse(_file.exists());
+  }
+
+
+  @Test
+  public void testDeleteMatching()
+    throws Exception
+  {
+    Map<String, String> aborted = header();
+    aborted.put("upload-id", "aborted");
+    Map<String, String> other = header();
+    other.put("upload-id", "other");
+    File dir = _file.getParentFile();
+    TransferJournal abortedJournal = new TransferJournal(new File(dir, "a.upload"));
+    abortedJournal.create(aborted);
+    abortedJournal.close();
+    TransferJournal otherJournal = new TransferJournal(new File(dir, "b.upload"));
+    otherJournal.create(other);
+    otherJournal.close();
+    TransferJournal download = new TransferJournal(new File(dir, "c.download"));
+    download.create(aborted);
+    download.close();
+
+    TransferJournal.deleteMatching(dir, "upload",
+      Collections.singletonMap("upload-id", "aborted"));
+    Assert.assertFalse(abortedJournal.getFile().exists());
+    Assert.assertTrue(otherJournal.getFile().exists());
+    Assert.assertTrue(download.getFile().exists());
+
+    // a missing directory has no journals to delete
+    TransferJournal.deleteMatching(new File(_dir, "missing"), "upload", aborted);
+  }
+
+
+  @Test
+  public void testJournalFileName()
+    throws Exception
+  {
+    File local = new File(_dir, "data");
+    File a = TransferJournal.getJournalFile(_dir, "upload", "s3://bucket/key", local);
+    File b = TransferJournal.getJournalFile(_dir, "upload", "s3://bucket/key", local);
+    File c = TransferJournal.getJournalFile(_dir, "download", "s3://bucket/key", local);
+    Assert.assertEquals(a, b);
+    Assert.assertFalse(a.equals(c));
+    Assert.assertEquals(_dir, a.getParentFile());
+    Assert.assertTrue(a.getName().endsWith(".upload"));
+  }
+
+
+  private static Map<String, String> header()
+  {
+    Map<String, String> header = new HashMap<String, String>();
+    header.put("uri", "s3://bucket/key");
+    header.put("length", "42");
+    return header;
+  }
+
+
+  private void append(String s)
+    throws IOException
+  {
+    try(OutputStream out = new FileOutputStream(_file, true))
+    {
+      out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+}
@@ -26,6 +26,7 @@ import org.junit.Test;
 import javax.crypto.Cipher;
 import java.io.File;
 import java.net.URI;
+import java.nio.file.Files;
 import java.security.Key;
 import java.security.PrivateKey;
 import java.util.Base64;
@@ -1251,9 +1252,7 @@ public class UploadDownloadTests
     // verify metadata
     Metadata destMeta = TestUtils.objectExists(Utils.getBucketName(dest), Utils.getObjectKey(dest));
     Assert.assertNotNull(destMeta);
-    Cipher cipherAES = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    long blockSize = cipherAES.getBlockSize();
-    long partSize = blockSize * (fileSize / blockSize + 2);
+    long partSize = EncryptedPartFormat.getStoredPartSize(Version.CURRENT, fileSize);
     Assert.assertEquals(destMeta.getContentLength(), partSize);
 
     // verify user metadata
@@ -1280,6 +1279,92 @@ public class UploadDownloadTests
     Assert.assertEquals(destUserMeta.get("s3tool-pubkey-hash"), pubKeyHash.substring(0, 8));
   }
 
+  @Test
+  public void testResumedDownloadOfChangedObject()
+    throws Throwable
+  {
+    // upload a small file and download it resumably
+    String rootPrefix = TestUtils.addPrefix("test-resumed-download-changed");
+    File toUpload = TestUtils.createTextFile(100);
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    Assert.assertNotNull(TestUtils.uploadFile(toUpload, dest));
+    File dlTemp = TestUtils.createTmpFile();
+    dlTemp.delete();
+    StoreFile f = resumedDownload(dest, dlTemp);
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, f.getLocalFile()));
+
+    // rerunning the download finds it complete
+    f = resumedDownload(dest, dlTemp);
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, f.getLocalFile()));
+
+    // replace the object with different content of the same length.  the file downloaded from
+    // the old object is stale and must not be taken for the download of the new one
+    File changed = new File(toUpload.getParentFile(), toUpload.getName() + ".changed");
+    Files.copy(toUpload.toPath(), changed.toPath());
+    byte[] content = Files.readAllBytes(changed.toPath());
+    content[0] = (byte) (content[0] == 'x' ? 'y' : 'x');
+    Files.write(changed.toPath(), content);
+    UploadOptions upOpts = _client.getOptionsBuilderFactory()
+      .newUploadOptionsBuilder()
+      .setFile(changed)
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .createOptions();
+    Assert.assertNotNull(_client.upload(upOpts).get());
+    String msg = null;
+    try
+    {
+      resumedDownload(dest, dlTemp);
+      msg = "expected exception (stale file)";
+    }
+    catch(Exception ex)
+    {
+      // expected
+      checkUsageException(ex, "already exists");
+    }
+    Assert.assertNull(msg);
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, dlTemp));
+
+    // a recursive download does not skip the stale file either
+    File dlDir = TestUtils.createTmpDir(true);
+    URI dirSrc = TestUtils.getUri(_testBucket, "", rootPrefix);
+    File stale = new File(dlDir, toUpload.getName());
+    Files.copy(dlTemp.toPath(), stale.toPath());
+    DownloadOptions dlOpts = _client.getOptionsBuilderFactory()
+      .newDownloadOptionsBuilder()
+      .setFile(dlDir)
+      .setBucketName(Utils.getBucketName(dirSrc))
+      .setObjectKey(Utils.getObjectKey(dirSrc))
+      .setResume(true)
+      .createOptions();
+    try
+    {
+      _client.downloadRecursively(dlOpts).get();
+      msg = "expected exception (stale file)";
+    }
+    catch(Exception ex)
+    {
+      // expected
+      checkUsageException(ex, "already exists");
+    }
+    Assert.assertNull(msg);
+    changed.delete();
+    dlTemp.delete();
+  }
+
+  private StoreFile resumedDownload(URI src, File dest)
+    throws Throwable
+  {
+    DownloadOptions dlOpts = _client.getOptionsBuilderFactory()
+      .newDownloadOptionsBuilder()
+      .setFile(dest)
+      .setBucketName(Utils.getBucketName(src))
+      .setObjectKey(Utils.getObjectKey(src))
+      .setResume(true)
+      .createOptions();
+    return _client.download(dlOpts).get();
+  }
+
   private synchronized int getPartCount()
   {
     return _partSet.size();